@@ -1,15 +1,19 @@
 package simpledb.common;
 
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.BufferPool;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
+import simpledb.storage.PageLsnMap;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -27,6 +31,7 @@ public class Catalog {
     private Map<Integer, DbFile> idTableMap;
     private Map<Integer, String> idKeyMap;
     private Map<Integer, String> idNameMap;
+    private Map<Integer, List<SecondaryIndex>> indexMap;
 
     /**
      * Constructor.
@@ -38,6 +43,7 @@ public class Catalog {
         idTableMap = new ConcurrentHashMap<>();
         idKeyMap = new ConcurrentHashMap<>();
         idNameMap = new ConcurrentHashMap<>();
+        indexMap = new ConcurrentHashMap<>();
     }
 
     /**
@@ -49,9 +55,11 @@ public class Catalog {
      * @param name      the name of the table -- may be an empty string.  May not be null.  If a name
      *                  conflict exists, use the last table to be added as the table for a given name.
      * @param pkeyField the name of the primary key field
+     * @throws IllegalArgumentException if the file does not match the configured page size
      */
     public void addTable(DbFile file, String name, String pkeyField) {
         System.out.println("Catalog: add File: " + file.getId());
+        checkPageSize(file, name);
         tableMap.put(name, file);
         keyMap.put(name, pkeyField);
         idTableMap.put(file.getId(), file);
@@ -59,6 +67,87 @@ public class Catalog {
         idNameMap.put(file.getId(), name);
     }
 
+    /**
+     * Checks that an existing heap or B+ tree file was written with the page
+     * size this database runs with: the size recorded next to the file must
+     * match, its length must be a whole number of pages, and a page must hold
+     * at least one tuple. A file with no recorded size, or no pages, records
+     * the current one.
+     */
+    private static void checkPageSize(DbFile file, String name) {
+        int pageSize = BufferPool.getPageSize();
+        File dataFile;
+        long length;
+        int tupleSize = file.getTupleDesc().getSize();
+        if (file instanceof HeapFile) {
+            dataFile = ((HeapFile) file).getFile();
+            length = dataFile.length();
+        } else if (file instanceof BTreeFile) {
+            dataFile = ((BTreeFile) file).getFile();
+            length = dataFile.length();
+            if (length > 0) {
+                length -= BTreeRootPtrPage.getPageSize();
+            }
+        } else {
+            return;
+        }
+        int recorded = length > 0 ? recordedPageSize(dataFile) : 0;
+        if (recorded != 0 && recorded != pageSize) {
+            throw new IllegalArgumentException("table " + name + " was written with "
+                    + recorded + "-byte pages, not " + pageSize + "; set " + Config.PAGE_SIZE
+                    + " to " + recorded);
+        }
+        if (length < 0 || length % pageSize != 0) {
+            throw new IllegalArgumentException("table " + name + ": " + length
+                    + " bytes is not a whole number of " + pageSize
+                    + "-byte pages; was it written with a different " + Config.PAGE_SIZE + "?");
+        }
+        if (pageSize * 8 / (tupleSize * 8 + 1) < 1) {
+            throw new IllegalArgumentException("table " + name + ": " + tupleSize
+                    + "-byte tuples do not fit in a " + pageSize + "-byte page");
+        }
+        if (recorded == 0) {
+            try {
+                recordPageSize(dataFile, pageSize);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the file next to a table file (<tt>foo.dat.psz</tt>) that
+     * records the page size the table was written with.
+     */
+    public static File pageSizeFile(File dataFile) {
+        return new File(dataFile.getPath() + ".psz");
+    }
+
+    /**
+     * Records the page size a table file is written with.
+     */
+    public static void recordPageSize(File dataFile, int pageSize) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(pageSizeFile(dataFile)))) {
+            out.writeInt(pageSize);
+        }
+    }
+
+    // the page size recorded for a table file, or 0 if none is
+    private static int recordedPageSize(File dataFile) {
+        File f = pageSizeFile(dataFile);
+        if (!f.exists()) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            return in.readInt();
+        } catch (EOFException e) {
+            // torn while it was being recorded
+            return 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     public void addTable(DbFile file, String name) {
         addTable(file, name, "");
     }
@@ -130,18 +219,96 @@ public class Catalog {
     }
 
     /**
-     * Delete all tables from the catalog
+     * Add a secondary index over one of the tables. The B+ tree of the index
+     * can be looked up by its id, so that its pages can be read, but it is
+     * not a table of its own: it has no name and is not in tableIdIterator.
+     *
+     * @param index the index to add; its table must be in the catalog
+     */
+    public void addIndex(SecondaryIndex index) {
+        addIndexFile(index.getFile());
+        indexMap.computeIfAbsent(index.getTableId(), k -> new CopyOnWriteArrayList<>()).add(index);
+    }
+
+    /**
+     * Makes the B+ tree of an index that is being built readable by its id,
+     * without adding the index to its table: inserts into and deletes from
+     * the table do not reach it until {@link #addIndex} is called.
+     *
+     * @param file the B+ tree of the index
+     */
+    public void addIndexFile(BTreeFile file) {
+        idTableMap.put(file.getId(), file);
+    }
+
+    /**
+     * Takes back {@link #addIndexFile}, for an index that could not be built.
+     *
+     * @param file the B+ tree of the index
+     */
+    public void removeIndexFile(BTreeFile file) {
+        idTableMap.remove(file.getId(), file);
+    }
+
+    /**
+     * Returns the secondary indexes over the specified table, which may be none
+     *
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *                function passed to addTable
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        return indexMap.getOrDefault(tableid, Collections.emptyList());
+    }
+
+    /**
+     * Forces the pages written to every table and index file to disk, and
+     * then records their page LSNs (see {@link PageLsnMap#force}).
+     */
+    public void forceFiles() throws IOException {
+        // indexes are in idTableMap too
+        for (DbFile f : idTableMap.values()) {
+            if (f instanceof HeapFile || f instanceof BTreeFile) {
+                PageLsnMap.of(f).force();
+            }
+        }
+    }
+
+    /**
+     * Delete all tables from the catalog, closing their files
      */
     public void clear() {
+        // indexes are in idTableMap too
+        IOException failure = null;
+        for (DbFile f : idTableMap.values()) {
+            try {
+                f.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
         tableMap.clear();
         keyMap.clear();
         idTableMap.clear();
         idKeyMap.clear();
         idNameMap.clear();
+        indexMap.clear();
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
     }
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * <p>
+     * Each line is either a table, {@code name (field type [pk], ...)}, kept
+     * in name.dat, or a secondary index over a field of a table declared
+     * above it, {@code index name (field)}, kept in name.field.idx. An index
+     * whose file is empty or missing is built from the table; otherwise the
+     * file is opened as it is. The indexes must be in the catalog before
+     * {@link simpledb.storage.LogFile#recover} runs, since the log holds the
+     * changes to their pages like those to the tables.
      *
      * @param catalogFile
      */
@@ -154,6 +321,11 @@ public class Catalog {
             while ((line = br.readLine()) != null) {
                 //assume line is of the format name (field type, field type, ...)
                 String name = line.substring(0, line.indexOf("(")).trim();
+                if (name.startsWith("index ")) {
+                    addSchemaIndex(baseFolder, name.substring("index ".length()).trim(),
+                            line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim());
+                    continue;
+                }
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
                 String[] els = fields.split(",");
@@ -187,10 +359,27 @@ public class Catalog {
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | NoSuchElementException e) {
             System.out.println("Invalid catalog entry : " + line);
             System.exit(0);
         }
     }
+
+    // opens or builds the index of a schema file over a field of a table
+    private void addSchemaIndex(String baseFolder, String name, String field) throws IOException {
+        int tableid = getTableId(name);
+        int keyField = getTupleDesc(tableid).indexForFieldName(field);
+        File f = new File(baseFolder + "/" + name + "." + field + ".idx");
+        if (f.length() > 0) {
+            addIndex(new SecondaryIndex(tableid, keyField, f));
+        } else {
+            try {
+                SecondaryIndex.create(tableid, keyField, f, 1.0);
+            } catch (DbException | TransactionAbortedException e) {
+                throw new IOException("cannot build the index on " + name + "." + field, e);
+            }
+        }
+        System.out.println("Added index : " + name + "." + field);
+    }
 }
 
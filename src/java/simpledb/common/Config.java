@@ -0,0 +1,337 @@
+package simpledb.common;
+
+import simpledb.storage.EvictionPolicy;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Config holds the settings SimpleDb reads once at startup: the page size,
+ * the size of the buffer pool and how it evicts and prefetches pages.
+ * <p>
+ * Settings are read from a properties file, {@value #DEFAULT_FILE} in the
+ * working directory or the file named by the system property
+ * {@value #FILE_PROPERTY}, and then from system properties with the same
+ * keys, which take precedence:
+ * <pre>
+ * simpledb.pagesize           page size in bytes, a power of two from 512 to 64k
+ * simpledb.bufferpool.pages   buffer pool capacity in pages
+ * simpledb.bufferpool.bytes   buffer pool capacity in bytes, instead of pages
+ * simpledb.bufferpool.policy  eviction policy: lru, 2q or lru-k
+ * simpledb.prefetch.window    pages read ahead of sequential scans, 0 for none
+ * simpledb.lock.timeout       milliseconds a transaction waits for a lock
+ * simpledb.lock.detect        milliseconds between deadlock checks
+ * simpledb.lock.escalation    page or tuple locks under one table or page
+ *                             before they are replaced by one lock on it
+ * simpledb.log.group.size     most commits that share one force of the log,
+ *                             1 to force it for every commit
+ * simpledb.log.group.delay    microseconds a force of the log waits for more
+ *                             commits to join it
+ * simpledb.log.segment        bytes per log segment file
+ * simpledb.log.checkpoint     milliseconds between checkpoints of the log,
+ *                             0 for none
+ * </pre>
+ * Byte sizes may carry a k, m or g suffix, e.g. {@code 16k}; counts and
+ * durations are plain numbers in the unit given above.
+ *
+ * @Immutable
+ */
+public final class Config {
+
+    public static final String FILE_PROPERTY = "simpledb.config";
+    public static final String DEFAULT_FILE = "simpledb.properties";
+
+    public static final String PAGE_SIZE = "simpledb.pagesize";
+    public static final String POOL_PAGES = "simpledb.bufferpool.pages";
+    public static final String POOL_BYTES = "simpledb.bufferpool.bytes";
+    public static final String POOL_POLICY = "simpledb.bufferpool.policy";
+    public static final String PREFETCH_WINDOW = "simpledb.prefetch.window";
+    public static final String LOCK_TIMEOUT = "simpledb.lock.timeout";
+    public static final String DEADLOCK_INTERVAL = "simpledb.lock.detect";
+    public static final String LOCK_ESCALATION = "simpledb.lock.escalation";
+    public static final String GROUP_COMMIT_SIZE = "simpledb.log.group.size";
+    public static final String GROUP_COMMIT_DELAY = "simpledb.log.group.delay";
+    public static final String LOG_SEGMENT_SIZE = "simpledb.log.segment";
+    public static final String CHECKPOINT_INTERVAL = "simpledb.log.checkpoint";
+
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    public static final int DEFAULT_POOL_PAGES = 50;
+    public static final String DEFAULT_POLICY = "lru";
+    public static final int DEFAULT_PREFETCH_WINDOW = 8;
+    public static final long DEFAULT_LOCK_TIMEOUT_MS = 5000;
+    public static final long DEFAULT_DEADLOCK_INTERVAL_MS = 5;
+    public static final int DEFAULT_LOCK_ESCALATION = 512;
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 32;
+    public static final long DEFAULT_GROUP_COMMIT_DELAY_US = 100;
+    public static final int DEFAULT_LOG_SEGMENT_BYTES = 16 << 20;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MS = 0;
+
+    public static final int MIN_PAGE_SIZE = 512;
+    public static final int MAX_PAGE_SIZE = 64 * 1024;
+
+    private final int pageSize;
+    private final int poolPages;
+    private final String policy;
+    private final int prefetchWindow;
+    private final long lockTimeout;
+    private final long deadlockInterval;
+    private final int lockEscalation;
+    private final int groupCommitSize;
+    private final long groupCommitDelay;
+    private final int logSegmentSize;
+    private final long checkpointInterval;
+
+    /**
+     * Reads the settings from the given properties; missing keys take their
+     * defaults.
+     *
+     * @throws IllegalArgumentException if a setting is malformed or out of range
+     */
+    public Config(Properties props) {
+        pageSize = (int) parseBytes(props, PAGE_SIZE, DEFAULT_PAGE_SIZE);
+        if (pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+            throw new IllegalArgumentException(PAGE_SIZE + " must be a power of two from "
+                    + MIN_PAGE_SIZE + " to " + MAX_PAGE_SIZE + ", got " + pageSize);
+        }
+
+        if (props.getProperty(POOL_PAGES) != null && props.getProperty(POOL_BYTES) != null) {
+            throw new IllegalArgumentException("set only one of " + POOL_PAGES + " and " + POOL_BYTES);
+        }
+        long pages = props.getProperty(POOL_BYTES) != null
+                ? parseBytes(props, POOL_BYTES, 0) / pageSize
+                : parseLong(props, POOL_PAGES, DEFAULT_POOL_PAGES);
+        if (pages < 1 || pages > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("the buffer pool must hold from 1 to "
+                    + Integer.MAX_VALUE + " pages, got " + pages);
+        }
+        poolPages = (int) pages;
+
+        policy = props.getProperty(POOL_POLICY, DEFAULT_POLICY).trim().toLowerCase(Locale.ROOT);
+        try {
+            // EvictionPolicy.forName is the one place that knows the names
+            EvictionPolicy.forName(policy, 1);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown " + POOL_POLICY + ": " + policy, e);
+        }
+
+        long window = parseLong(props, PREFETCH_WINDOW, DEFAULT_PREFETCH_WINDOW);
+        if (window > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(PREFETCH_WINDOW + " is too large: " + window);
+        }
+        prefetchWindow = (int) window;
+
+        lockTimeout = parseLong(props, LOCK_TIMEOUT, DEFAULT_LOCK_TIMEOUT_MS);
+        if (lockTimeout < 1) {
+            throw new IllegalArgumentException(LOCK_TIMEOUT + " must be positive, got " + lockTimeout);
+        }
+        deadlockInterval = parseLong(props, DEADLOCK_INTERVAL, DEFAULT_DEADLOCK_INTERVAL_MS);
+        if (deadlockInterval < 1) {
+            throw new IllegalArgumentException(DEADLOCK_INTERVAL + " must be positive, got " + deadlockInterval);
+        }
+        long escalation = parseLong(props, LOCK_ESCALATION, DEFAULT_LOCK_ESCALATION);
+        if (escalation < 1 || escalation > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(LOCK_ESCALATION + " must be from 1 to "
+                    + Integer.MAX_VALUE + ", got " + escalation);
+        }
+        lockEscalation = (int) escalation;
+
+        long groupSize = parseLong(props, GROUP_COMMIT_SIZE, DEFAULT_GROUP_COMMIT_SIZE);
+        if (groupSize < 1 || groupSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(GROUP_COMMIT_SIZE + " must be from 1 to "
+                    + Integer.MAX_VALUE + ", got " + groupSize);
+        }
+        groupCommitSize = (int) groupSize;
+        groupCommitDelay = parseLong(props, GROUP_COMMIT_DELAY, DEFAULT_GROUP_COMMIT_DELAY_US);
+
+        long segment = parseBytes(props, LOG_SEGMENT_SIZE, DEFAULT_LOG_SEGMENT_BYTES);
+        if (segment < 1 || segment > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(LOG_SEGMENT_SIZE + " must be from 1 to "
+                    + Integer.MAX_VALUE + ", got " + segment);
+        }
+        logSegmentSize = (int) segment;
+        checkpointInterval = parseLong(props, CHECKPOINT_INTERVAL, DEFAULT_CHECKPOINT_INTERVAL_MS);
+    }
+
+    private static class Loaded {
+        static final Config INSTANCE = load();
+    }
+
+    /**
+     * Returns the settings of this process, read by {@link #load()} the first
+     * time they are needed.
+     */
+    public static Config get() {
+        return Loaded.INSTANCE;
+    }
+
+    /**
+     * Reads the settings from the properties file, if there is one, and the
+     * system properties.
+     */
+    public static Config load() {
+        Properties props = new Properties();
+        String path = System.getProperty(FILE_PROPERTY);
+        File file = new File(path != null ? path : DEFAULT_FILE);
+        if (file.exists()) {
+            try (Reader in = new FileReader(file)) {
+                props.load(in);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("cannot read " + file + ": " + e.getMessage());
+            }
+        } else if (path != null) {
+            throw new IllegalArgumentException(FILE_PROPERTY + " names a missing file: " + path);
+        }
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith("simpledb.") && !key.equals(FILE_PROPERTY)) {
+                props.setProperty(key, System.getProperty(key));
+            }
+        }
+        return new Config(props);
+    }
+
+    /**
+     * Parses a non-negative count or duration, in the unit of the setting.
+     */
+    private static long parseLong(Properties props, String key, long defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long n = Long.parseLong(value.trim());
+            if (n < 0) {
+                throw new NumberFormatException();
+            }
+            return n;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad value for " + key + ": " + value);
+        }
+    }
+
+    /**
+     * Parses a non-negative byte size with an optional k, m or g suffix.
+     */
+    private static long parseBytes(Properties props, String key, long defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        String v = value.trim().toLowerCase(Locale.ROOT);
+        if (v.endsWith("b")) {
+            v = v.substring(0, v.length() - 1);
+        }
+        long unit = 1;
+        if (v.endsWith("k")) {
+            unit = 1L << 10;
+        } else if (v.endsWith("m")) {
+            unit = 1L << 20;
+        } else if (v.endsWith("g")) {
+            unit = 1L << 30;
+        }
+        if (unit != 1) {
+            v = v.substring(0, v.length() - 1);
+        }
+        try {
+            long n = Long.parseLong(v.trim());
+            if (n < 0) {
+                throw new NumberFormatException();
+            }
+            return Math.multiplyExact(n, unit);
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new IllegalArgumentException("bad value for " + key + ": " + value);
+        }
+    }
+
+    /**
+     * @return the size of a page in bytes
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return the number of pages the buffer pool holds
+     */
+    public int getBufferPoolPages() {
+        return poolPages;
+    }
+
+    /**
+     * @return the eviction policy name, as taken by
+     * {@link simpledb.storage.EvictionPolicy#forName}
+     */
+    public String getEvictionPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the number of pages read ahead of sequential scans
+     */
+    public int getPrefetchWindow() {
+        return prefetchWindow;
+    }
+
+    /**
+     * @return the milliseconds a transaction waits for a lock before it is
+     * aborted
+     */
+    public long getLockTimeoutMillis() {
+        return lockTimeout;
+    }
+
+    /**
+     * @return the milliseconds between checks for deadlocks
+     */
+    public long getDeadlockIntervalMillis() {
+        return deadlockInterval;
+    }
+
+    /**
+     * @return the number of page or tuple locks a transaction takes under
+     * one table or page before it tries to lock the table or page instead
+     */
+    public int getLockEscalationThreshold() {
+        return lockEscalation;
+    }
+
+    /**
+     * @return the most commits that share one force of the log
+     */
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    /**
+     * @return the microseconds a force of the log waits for more commits
+     */
+    public long getGroupCommitDelayMicros() {
+        return groupCommitDelay;
+    }
+
+    /**
+     * @return the bytes per log segment file
+     */
+    public int getLogSegmentSize() {
+        return logSegmentSize;
+    }
+
+    /**
+     * @return the milliseconds between checkpoints of the log, 0 for none
+     */
+    public long getCheckpointIntervalMillis() {
+        return checkpointInterval;
+    }
+
+    @Override
+    public String toString() {
+        return "Config{pageSize=" + pageSize + ", bufferPoolPages=" + poolPages
+                + ", policy=" + policy + ", prefetchWindow=" + prefetchWindow + ", lockTimeout=" + lockTimeout
+                + ", deadlockInterval=" + deadlockInterval + ", lockEscalation=" + lockEscalation
+                + ", groupCommitSize=" + groupCommitSize + ", groupCommitDelay=" + groupCommitDelay
+                + ", logSegmentSize=" + logSegmentSize + ", checkpointInterval=" + checkpointInterval + "}";
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb.common;
 
 import simpledb.storage.BufferPool;
+import simpledb.storage.EvictionPolicy;
 import simpledb.storage.LogFile;
 import simpledb.transaction.TransactionId;
 
@@ -27,12 +28,21 @@ import java.util.concurrent.atomic.AtomicReference;
  * by a txn are reflected on non-volatile storage
  * before the txn can commit.
  *
- * NOW: NO STEAL + FORCE (do not need undo and redo)
+ * NOW: STEAL + FORCE. A dirty page of a running transaction may be written
+ * when it is evicted or cleaned by the background
+ * {@link simpledb.storage.PageWriter}, once its update record is on disk;
+ * the record's before-image lets a rollback or recovery undo it. Commit
+ * still forces the transaction's pages.
+ * <p>
+ * The page size, the buffer pool and the lock manager are set up from
+ * {@link Config}.
  *
  * @Threadsafe
  */
 public class Database {
     private static final AtomicReference<Database> _instance = new AtomicReference<>(new Database());
+    // bytes per page, including header
+    private volatile int _pageSize;
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
     private final static String LOGFILENAME = "log";
@@ -43,9 +53,15 @@ public class Database {
     private final TransactionId nullTid;
 
     private Database() {
+        Config config = Config.get();
+        _pageSize = config.getPageSize();
         _catalog = new Catalog();
-        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
-        _lockmanager = new LockManager();
+        _bufferpool = new BufferPool(config.getBufferPoolPages(),
+                EvictionPolicy.forName(config.getEvictionPolicy(), config.getBufferPoolPages()));
+        _bufferpool.getPrefetcher().setWindow(config.getPrefetchWindow());
+        _lockmanager = new LockManager(config.getLockTimeoutMillis());
+        _lockmanager.setDetectInterval(config.getDeadlockIntervalMillis());
+        _lockmanager.setEscalationThreshold(config.getLockEscalationThreshold());
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -54,11 +70,31 @@ public class Database {
             System.exit(1);
         }
         _logfile = tmp;
+        _logfile.setGroupCommit(config.getGroupCommitSize(), config.getGroupCommitDelayMicros());
+        _logfile.setSegmentSize(config.getLogSegmentSize());
+        _logfile.setCheckpointInterval(config.getCheckpointIntervalMillis());
         abortTids = new CopyOnWriteArraySet<>();
         nullTid = new TransactionId();
         // startControllerThread();
     }
 
+    /**
+     * Return the page size of the static Database instance, in bytes
+     * including the header, as set by {@link Config#PAGE_SIZE}
+     */
+    public static int getPageSize() {
+        return _instance.get()._pageSize;
+    }
+
+    /**
+     * Method used for testing -- change the page size of the static Database
+     * instance. Tables already open keep the pages they have read, so set it
+     * before creating any; {@link #reset()} goes back to the configured size.
+     */
+    public static void setPageSize(int pageSize) {
+        _instance.get()._pageSize = pageSize;
+    }
+
     /**
      * Return the log file of the static Database instance
      */
@@ -89,11 +125,24 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * with the given eviction policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, EvictionPolicy policy) {
+        return resetBufferPool(new BufferPool(pages, policy));
+    }
+
+    private static BufferPool resetBufferPool(BufferPool bufferPool) {
+        getBufferPool().close();
         java.lang.reflect.Field bufferPoolF = null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
         }
@@ -103,6 +152,8 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        getBufferPool().close();
+        getCatalog().clear();
         _instance.set(new Database());
     }
 
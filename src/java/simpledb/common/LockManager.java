@@ -1,258 +1,900 @@
 package simpledb.common;
 
-import simpledb.storage.Page;
 import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 // refer to bustub https://github.com/cmu-db/bustub
-// page-level lock
+/**
+ * LockManager grants locks on tables, pages and tuples to transactions.
+ * <p>
+ * Locks are hierarchical. Tables and pages take the modes IS, IX, S, SIX
+ * and X, and tuples take S and X. Before a transaction locks a page or a
+ * tuple, it takes the matching intention lock, IS or IX, on the table and,
+ * for a tuple, on the page. A transaction that already holds an S or X lock
+ * on the table, or on the page of a tuple, needs no lock below it. Once a
+ * transaction holds as many page locks on one table, or tuple locks on one
+ * page, as the escalation threshold, it tries to replace them with one S or
+ * X lock on the table or page. Escalation never waits: if the coarser lock
+ * is not free at once, the finer locks are kept.
+ * <p>
+ * Every locked table, page or tuple has a FIFO queue of lock requests: the
+ * granted requests at the front, then the waiting ones in the order they
+ * arrived. A request is granted once every request ahead of it is granted
+ * and compatible with it, so a stream of readers cannot starve a writer. A
+ * transaction upgrading a lock it holds goes ahead of the waiting requests.
+ * Waiters sleep on the queue's condition and are woken when a lock on the
+ * queue is released.
+ * <p>
+ * The queues live in a fixed number of shards, chosen by a hash of what is
+ * locked, each with its own latch, so requests in different shards never
+ * contend. A queue is dropped from its shard once it is empty. A
+ * transaction touches the queue of a table only the first time it takes
+ * each mode on it.
+ * <p>
+ * While a transaction waits, it records which transactions it waits for in
+ * a waits-for graph shared by all shards, and updates its edges whenever it
+ * is woken, so the graph follows the locks as they are granted and
+ * released. A lock granted without waiting never touches the graph.
+ * <p>
+ * Deadlocks are found off the acquire path, by a background detector that
+ * runs while any transaction waits. Every interval it looks for cycles in
+ * the graph, including cycles through different shards, and breaks each
+ * one by waking its youngest transaction, whose lock request then throws a
+ * {@link DeadlockException}. Two transactions upgrading the same lock in
+ * conflicting ways are refused at once. A wait that outlasts the timeout
+ * aborts the transaction, for stalls the lock table cannot see.
+ *
+ * @Threadsafe
+ */
 public class LockManager {
+
+    public static final long DEFAULT_WAIT_TIMEOUT_MS = Config.DEFAULT_LOCK_TIMEOUT_MS;
+    public static final long DEFAULT_DETECT_INTERVAL_MS = Config.DEFAULT_DEADLOCK_INTERVAL_MS;
+    public static final int DEFAULT_ESCALATION_THRESHOLD = Config.DEFAULT_LOCK_ESCALATION;
+    public static final int DEFAULT_SHARDS =
+            Math.max(16, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1);
+
     enum LockMode {
-        SHARED, EXCLUSIVE;
+        IS, IX, S, SIX, X;
+
+        private static final boolean[][] COMPATIBLE = {
+                //        IS     IX     S      SIX    X
+                /* IS */ {true, true, true, true, false},
+                /* IX */ {true, true, false, false, false},
+                /* S  */ {true, false, true, false, false},
+                /* SIX*/ {true, false, false, false, false},
+                /* X  */ {false, false, false, false, false},
+        };
+
+        static LockMode of(Permissions perm) {
+            return perm == Permissions.READ_WRITE ? X : S;
+        }
+
+        boolean compatibleWith(LockMode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /**
+         * @return the weakest mode that allows both this and other
+         */
+        LockMode join(LockMode other) {
+            if (this == other || other == IS) {
+                return this;
+            }
+            if (this == IS) {
+                return other;
+            }
+            if (this == X || other == X) {
+                return X;
+            }
+            // two of IX, S and SIX
+            return SIX;
+        }
+
+        boolean covers(LockMode other) {
+            return join(other) == this;
+        }
+
+        /**
+         * @return the mode taken on the parent before locking in this mode
+         */
+        LockMode intention() {
+            return this == IS || this == S ? IS : IX;
+        }
     }
 
-    class LockRequest {
-        public TransactionId tid;
-        public LockMode lockMode;
-        public boolean granted = false;
-        public boolean tryUpgrade = false;
+    /**
+     * A table in the lock hierarchy; pages and tuples are locked by their
+     * PageId and RecordId.
+     */
+    static final class TableLock {
+        final int tableId;
+
+        TableLock(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableLock && ((TableLock) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(tableId);
+        }
+
+        @Override
+        public String toString() {
+            return "table " + tableId;
+        }
+    }
 
-        public LockRequest(TransactionId tid, LockMode lockMode, PageId pageId) {
+    static class LockRequest {
+        final TransactionId tid;
+        LockMode lockMode;
+        boolean granted = false;
+        // the mode a granted request is being upgraded to
+        LockMode upgradeTo;
+
+        LockRequest(TransactionId tid, LockMode lockMode) {
             this.tid = tid;
             this.lockMode = lockMode;
         }
     }
 
-    class LockRequestQueue {
-        public Queue<LockRequest> queue;
-        // coordination
-        public Lock latch;
-        public Condition condition;
-        public TransactionId upgradingTid;
+    static class LockRequestQueue {
+        // granted requests first, then waiting ones in arrival order
+        final List<LockRequest> queue = new LinkedList<>();
+        // coordination, on the latch of the queue's shard
+        final Condition condition;
+        LockRequest upgrading;
 
-        public LockRequestQueue() {
-            queue = new ConcurrentLinkedQueue<>();
-            latch = new ReentrantLock();
+        LockRequestQueue(Lock latch) {
             condition = latch.newCondition();
         }
 
-        public boolean offer(LockRequest request) {
-            return queue.offer(request);
+        LockRequest granted(TransactionId tid) {
+            for (LockRequest request : queue) {
+                if (request.granted && request.tid.equals(tid)) {
+                    return request;
+                }
+            }
+            return null;
         }
+    }
+
+    static class Shard {
+        final Lock latch = new ReentrantLock();
+        final Map<Object, LockRequestQueue> lockMap = new HashMap<>();
+    }
 
-        public LockRequest poll() {
-            return queue.poll();
+    /**
+     * A blocked transaction: the queue it sleeps on, and the edges of the
+     * waits-for graph leaving it.
+     */
+    static class Waiter {
+        final Shard shard;
+        final LockRequestQueue requestQueue;
+        Set<TransactionId> blockers;
+        // set by the detector to break a cycle
+        volatile boolean victim;
+
+        Waiter(Shard shard, LockRequestQueue requestQueue) {
+            this.shard = shard;
+            this.requestQueue = requestQueue;
         }
     }
 
-    private Map<PageId, LockRequestQueue> pageLockMap;
-    private Map<Long, List<Long>> waitsForMap;
-    private Map<TransactionId, Set<PageId>> txnMarkMap;
-    private Queue<TransactionId> abortQueue;
-    public Lock lock;
-    public Condition condition;
+    /**
+     * The locks one transaction holds, kept for escalation and release, and
+     * the pages it has locked, for the BufferPool. Guarded by itself, apart
+     * from the page set.
+     */
+    static class TxnLocks {
+        final Set<PageId> pages = ConcurrentHashMap.newKeySet();
+        final Map<Object, LockMode> held = new HashMap<>();
+        // page locks by table id, and tuple locks by page
+        final Map<Integer, Integer> pagesPerTable = new HashMap<>();
+        final Map<PageId, Integer> tuplesPerPage = new HashMap<>();
+
+        synchronized LockMode mode(Object resource) {
+            return held.get(resource);
+        }
+
+        synchronized int granted(Object resource, LockMode mode) {
+            if (held.put(resource, mode) != null) {
+                return 0;
+            }
+            if (resource instanceof PageId) {
+                return pagesPerTable.merge(((PageId) resource).getTableId(), 1, Integer::sum);
+            } else if (resource instanceof RecordId) {
+                return tuplesPerPage.merge(((RecordId) resource).getPageId(), 1, Integer::sum);
+            }
+            return 0;
+        }
+
+        synchronized void released(Object resource) {
+            if (held.remove(resource) == null) {
+                return;
+            }
+            if (resource instanceof PageId) {
+                pagesPerTable.computeIfPresent(((PageId) resource).getTableId(), (k, n) -> n > 1 ? n - 1 : null);
+            } else if (resource instanceof RecordId) {
+                tuplesPerPage.computeIfPresent(((RecordId) resource).getPageId(), (k, n) -> n > 1 ? n - 1 : null);
+            }
+        }
+
+        /**
+         * @return the locks held below the table or page, with their modes
+         */
+        synchronized Map<Object, LockMode> below(Object parent) {
+            Map<Object, LockMode> below = new HashMap<>();
+            for (Map.Entry<Object, LockMode> e : held.entrySet()) {
+                Object r = e.getKey();
+                PageId pid = r instanceof RecordId ? ((RecordId) r).getPageId() : r instanceof PageId ? (PageId) r : null;
+                if (pid != null && (parent instanceof TableLock
+                        ? pid.getTableId() == ((TableLock) parent).tableId : !(r instanceof PageId) && pid.equals(parent))) {
+                    below.put(r, e.getValue());
+                }
+            }
+            return below;
+        }
+    }
 
+    private final Shard[] shards;
+    private final Map<TransactionId, TxnLocks> txnLocks = new ConcurrentHashMap<>();
+    // the waits-for graph, by blocked transaction; guarded by itself
+    private final Map<TransactionId, Waiter> waitsForMap = new HashMap<>();
+    private boolean detectorRunning;
+    private volatile long waitTimeoutMillis;
+    private volatile long detectIntervalMillis = DEFAULT_DETECT_INTERVAL_MS;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final AtomicLong escalations = new AtomicLong();
 
     public LockManager() {
-        pageLockMap = new ConcurrentHashMap<>();
-        waitsForMap = new ConcurrentHashMap<>();
-        txnMarkMap = new ConcurrentHashMap<>();
-        abortQueue = new ConcurrentLinkedQueue<>();
-        lock = new ReentrantLock();
-        condition = lock.newCondition();
+        this(DEFAULT_WAIT_TIMEOUT_MS);
+    }
+
+    /**
+     * @param waitTimeoutMillis how long a transaction waits for a lock before
+     *                          it is aborted
+     */
+    public LockManager(long waitTimeoutMillis) {
+        this(waitTimeoutMillis, DEFAULT_SHARDS);
     }
 
-    public void resetLockManager(){
-        pageLockMap = new ConcurrentHashMap<>();
-        waitsForMap = new ConcurrentHashMap<>();
-        txnMarkMap = new ConcurrentHashMap<>();
-        abortQueue = new ConcurrentLinkedQueue<>();
-        lock = new ReentrantLock();
-        condition = lock.newCondition();
+    /**
+     * @param waitTimeoutMillis how long a transaction waits for a lock before
+     *                          it is aborted
+     * @param numShards         the number of shards of the lock table, a
+     *                          power of two
+     */
+    public LockManager(long waitTimeoutMillis, int numShards) {
+        if (numShards < 1 || Integer.bitCount(numShards) != 1) {
+            throw new IllegalArgumentException("the number of shards must be a power of two: " + numShards);
+        }
+        setWaitTimeout(waitTimeoutMillis);
+        shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    private Shard shard(Object resource) {
+        int h = resource.hashCode() * 0x9E3779B9;
+        return shards[(h ^ (h >>> 16)) & (shards.length - 1)];
+    }
+
+    public void setWaitTimeout(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("lock wait timeout must be positive: " + millis);
+        }
+        waitTimeoutMillis = millis;
     }
 
+    public long getWaitTimeout() {
+        return waitTimeoutMillis;
+    }
+
+    /**
+     * Sets how often the detector looks for deadlocks while transactions
+     * wait.
+     */
+    public void setDetectInterval(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("deadlock detection interval must be positive: " + millis);
+        }
+        detectIntervalMillis = millis;
+    }
+
+    public long getDetectInterval() {
+        return detectIntervalMillis;
+    }
+
+    /**
+     * Sets how many page locks on a table, or tuple locks on a page, a
+     * transaction takes before it tries to lock the table or page instead.
+     */
+    public void setEscalationThreshold(int locks) {
+        if (locks < 1) {
+            throw new IllegalArgumentException("lock escalation threshold must be positive: " + locks);
+        }
+        escalationThreshold = locks;
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * @return the number of deadlocks the detector has broken
+     */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
+
+    /**
+     * @return the number of times fine-grained locks were replaced by a lock
+     * on their table or page
+     */
+    public long getEscalationCount() {
+        return escalations.get();
+    }
+
+    public void resetLockManager() {
+        for (Shard shard : shards) {
+            shard.latch.lock();
+            try {
+                shard.lockMap.clear();
+            } finally {
+                shard.latch.unlock();
+            }
+        }
+        txnLocks.clear();
+        synchronized (waitsForMap) {
+            waitsForMap.clear();
+        }
+    }
+
+    private TxnLocks locksOf(TransactionId tid) {
+        return txnLocks.computeIfAbsent(tid, k -> new TxnLocks());
+    }
+
+    /**
+     * Blocks until the transaction holds a lock on the page that allows perm:
+     * a shared lock for READ_ONLY, an exclusive one for READ_WRITE.
+     *
+     * @throws DeadlockException if the transaction was chosen to break a
+     *                           deadlock
+     * @throws TransactionAbortedException if the wait timed out or the thread
+     *                                     was interrupted
+     */
     public void acquireLock(TransactionId tid, PageId pageId, Permissions perm) throws DeadlockException, TransactionAbortedException {
-//        System.out.println("AcquireLock: Txn id: " + tid + "query Lock: " + " pageId: " + pageId + " perm: " + perm);
-        long begin = System.currentTimeMillis();
-        try {
-            while (!lockPage(tid, pageId, perm, 0)) {
-                if (System.currentTimeMillis() - begin > 1000) {
-                    throw new TransactionAbortedException();
-                }
-                Thread.sleep(100);
+        lockPage(tid, pageId, perm, true);
+    }
+
+    /**
+     * Locks the page like {@link #acquireLock} if that needs no wait for the
+     * page itself. The intention lock on the table is still waited for.
+     *
+     * @return false if another transaction holds a conflicting lock on the page
+     */
+    public boolean tryAcquireLock(TransactionId tid, PageId pageId, Permissions perm) throws DeadlockException, TransactionAbortedException {
+        return lockPage(tid, pageId, perm, false);
+    }
+
+    private boolean lockPage(TransactionId tid, PageId pageId, Permissions perm, boolean wait) throws DeadlockException, TransactionAbortedException {
+        if (tid == null) {
+            tid = Database.getNullTid();
+        }
+        TxnLocks locks = locksOf(tid);
+        LockMode mode = LockMode.of(perm);
+        TableLock table = new TableLock(pageId.getTableId());
+        if (!covered(locks, table, mode)) {
+            lock(tid, locks, table, mode.intention(), true);
+            int count = lock(tid, locks, pageId, mode, wait);
+            if (count < 0) {
+                return false;
             }
-        } catch (InterruptedException e) {
-            throw new TransactionAbortedException();
+            escalate(tid, locks, table, count);
         }
-//        System.out.println("Txn id: " + tid + "get Lock:" + " pageId: " + pageId + " perm: " + perm);
+        locks.pages.add(pageId);
+        return true;
     }
 
-    private synchronized boolean lockPage(TransactionId tid, PageId pageId, Permissions perm, int retry) throws DeadlockException, InterruptedException, TransactionAbortedException {
-//        System.out.println("lockPage tid: " + tid + " pageId: " + pageId + " perm: " + perm.toString() + " retry: " + retry);
-        if (retry > 3) {
-            return false;
+    /**
+     * Blocks until the transaction holds a shared (READ_ONLY) or exclusive
+     * (READ_WRITE) lock on the tuple, taking intention locks on its table and
+     * page. Nothing is taken under a lock on the table or page that covers
+     * the tuple already.
+     *
+     * @throws DeadlockException if the transaction was chosen to break a
+     *                           deadlock
+     * @throws TransactionAbortedException if the wait timed out or the thread
+     *                                     was interrupted
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm) throws DeadlockException, TransactionAbortedException {
+        lockTuple(tid, rid, perm, true);
+    }
+
+    /**
+     * Locks the tuple like {@link #lockTuple} if that needs no wait for the
+     * tuple itself. The intention locks on the table and page are still
+     * waited for.
+     *
+     * @return false if another transaction holds a conflicting lock on the tuple
+     */
+    public boolean tryLockTuple(TransactionId tid, RecordId rid, Permissions perm) throws DeadlockException, TransactionAbortedException {
+        return lockTuple(tid, rid, perm, false);
+    }
+
+    /**
+     * Blocks until the transaction holds the intention locks, IS or IX, that
+     * locking tuples of the page with perm takes on the page and its table,
+     * so that the tuple locks that follow never wait for them.
+     */
+    public void lockTupleParents(TransactionId tid, PageId pageId, Permissions perm) throws DeadlockException, TransactionAbortedException {
+        if (tid == null) {
+            tid = Database.getNullTid();
+        }
+        TxnLocks locks = locksOf(tid);
+        LockMode mode = LockMode.of(perm);
+        TableLock table = new TableLock(pageId.getTableId());
+        if (!covered(locks, table, mode) && !covered(locks, pageId, mode)) {
+            lock(tid, locks, table, mode.intention(), true);
+            escalate(tid, locks, table, lock(tid, locks, pageId, mode.intention(), true));
         }
-        if (!pageLockMap.containsKey(pageId)) pageLockMap.put(pageId, new LockRequestQueue());
+        locks.pages.add(pageId);
+    }
 
+    private boolean lockTuple(TransactionId tid, RecordId rid, Permissions perm, boolean wait) throws DeadlockException, TransactionAbortedException {
         if (tid == null) {
             tid = Database.getNullTid();
         }
-//        System.out.println(txnMarkMap + "======");
-        if (!txnMarkMap.containsKey(tid)) {
-            txnMarkMap.put(tid, new HashSet<>());
-        }
-        txnMarkMap.get(tid).add(pageId);
-        LockMode mode = null;
-        LockMode formerMode = null;
-        LockRequest formerRequest = null;
-        int lockNum = 0;
-        boolean isOtherHasLock = false;
-        boolean isOtherTryUpgrade = false;
-        if (perm == Permissions.READ_ONLY) {
-            mode = LockMode.SHARED;
-        } else if (perm == Permissions.READ_WRITE) {
-            mode = LockMode.EXCLUSIVE;
-        }
-
-        LockRequest newRequest = new LockRequest(tid, mode, pageId);
-        LockRequestQueue requestQueue = pageLockMap.get(pageId);
-
-        // if no lock on the page, lock literally
-        if (requestQueue.queue.isEmpty()) {
-            newRequest.granted = true;
-//            System.out.println("pageId: " + pageId + " queue size: " + requestQueue.queue.size());
-//            System.out.println(tid + " requestQueue is empty, get directly");
-            requestQueue.offer(newRequest);
-            return true;
-        }
-
-        // check if the txn already has lock
-        for (LockRequest request : requestQueue.queue) {
-            lockNum++;
-            if (request.tid == tid) {
-                formerRequest = request;
-                formerMode = request.lockMode;
-            } else {
-                isOtherHasLock = true;
-            }
-            // if other txn try to upgrade the lock
-            if (request.tryUpgrade && request.tid != tid) {
-                isOtherTryUpgrade = true;
+        TxnLocks locks = locksOf(tid);
+        LockMode mode = LockMode.of(perm);
+        PageId pageId = rid.getPageId();
+        TableLock table = new TableLock(pageId.getTableId());
+        if (!covered(locks, table, mode) && !covered(locks, pageId, mode)) {
+            lock(tid, locks, table, mode.intention(), true);
+            int pages = lock(tid, locks, pageId, mode.intention(), true);
+            locks.pages.add(pageId);
+            int tuples = lock(tid, locks, rid, mode, wait);
+            if (tuples < 0) {
+                return false;
             }
+            escalate(tid, locks, pageId, tuples);
+            escalate(tid, locks, table, pages);
         }
+        locks.pages.add(pageId);
+        return true;
+    }
 
-//        System.out.println("requestQueue is: " + requestQueue.queue.size() + " formerRequest: " + (formerRequest != null) + " formerMode: " + formerMode + " mode:" + mode);
+    // whether a lock on the parent already allows mode on everything below it
+    private static boolean covered(TxnLocks locks, Object parent, LockMode mode) {
+        LockMode held = locks.mode(parent);
+        return held != null && held.covers(mode);
+    }
 
-        // if the txn already has lock on the page
-        if (formerRequest != null) {
-            // the txn already has lock
-            if (formerMode == LockMode.SHARED) {
-                if (mode == LockMode.SHARED) {
+    /**
+     * Locks the resource in mode unless the transaction holds it in a mode
+     * that covers mode already.
+     *
+     * @return the number of locks the transaction now holds at this level
+     * under the same parent if a new lock was granted, 0 if the transaction
+     * held one already, or -1 if it would have to wait and wait is false
+     */
+    private int lock(TransactionId tid, TxnLocks locks, Object resource, LockMode mode, boolean wait)
+            throws DeadlockException, TransactionAbortedException {
+        LockMode held = locks.mode(resource);
+        if (held != null && held.covers(mode)) {
+            return 0;
+        }
+        LockMode granted = enqueue(tid, resource, mode, wait);
+        if (granted == null) {
+            return -1;
+        }
+        return locks.granted(resource, granted);
+    }
 
-                } else if (mode == LockMode.EXCLUSIVE) {
-                    if (isOtherHasLock) {
-                        // when 2 Txn race, one should abort, the other should wait and retry
-                        System.out.println("LockManager: upgrade failure, wait tid: " + tid + " waitqueue size: " + abortQueue.size());
-                        if (isOtherTryUpgrade) {
-                            System.out.println("LockManager: OtherTryUpgrade abort tid: " + tid);
-                            throw new TransactionAbortedException();
-                        } else {
-                            formerRequest.tryUpgrade = true;
-                            return false;
-                        }
-                    } else {
-                        // upgrade the lock
-//                        System.out.println("LockManager:   upgrade success tid: " + tid);
-                        formerRequest.lockMode = LockMode.EXCLUSIVE;
-                        formerRequest.tryUpgrade = false;
+    /**
+     * Once the transaction holds a multiple of the escalation threshold of
+     * locks below the parent, tries to lock the parent in S, or in X if any
+     * of them is for writing, without waiting, and releases the locks it
+     * covers.
+     */
+    private void escalate(TransactionId tid, TxnLocks locks, Object parent, int count) {
+        int threshold = escalationThreshold;
+        if (count < threshold || count % threshold != 0) {
+            return;
+        }
+        Map<Object, LockMode> below = locks.below(parent);
+        LockMode target = LockMode.S;
+        for (LockMode mode : below.values()) {
+            if (mode != LockMode.IS && mode != LockMode.S) {
+                target = LockMode.X;
+                break;
+            }
+        }
+        try {
+            if (lock(tid, locks, parent, target, false) < 0) {
+                return;
+            }
+        } catch (DeadlockException | TransactionAbortedException e) {
+            // an upgrade of the parent is already under way; keep the locks
+            return;
+        }
+        escalations.incrementAndGet();
+        LockMode parentMode = locks.mode(parent);
+        for (Map.Entry<Object, LockMode> e : below.entrySet()) {
+            if (parentMode.covers(e.getValue())) {
+                release(tid, locks, e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Grants the request, or queues it and waits until it can be granted.
+     *
+     * @return the mode the transaction now holds, or null if the request
+     * would wait and wait is false
+     */
+    private LockMode enqueue(TransactionId tid, Object resource, LockMode mode, boolean wait)
+            throws DeadlockException, TransactionAbortedException {
+        Shard shard = shard(resource);
+        shard.latch.lock();
+        LockRequestQueue requestQueue = shard.lockMap.computeIfAbsent(resource, k -> new LockRequestQueue(shard.latch));
+        LockRequest request = null;
+        LockMode target = mode;
+        boolean upgrade = false;
+        boolean enqueued = false;
+        boolean granted = false;
+        Waiter waiter = null;
+        try {
+            request = requestQueue.granted(tid);
+            if (request != null) {
+                target = request.lockMode.join(mode);
+                if (target == request.lockMode) {
+                    return target;
+                }
+                LockRequest other = requestQueue.upgrading;
+                if (other != null && !other.upgradeTo.compatibleWith(request.lockMode)
+                        && !target.compatibleWith(other.lockMode)) {
+                    // each waits for the other to let go
+                    throw new DeadlockException();
+                }
+                upgrade = true;
+            } else {
+                request = new LockRequest(tid, mode);
+                requestQueue.queue.add(request);
+                enqueued = true;
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTimeoutMillis);
+            try {
+                while (true) {
+                    if (upgrade && requestQueue.upgrading == null) {
+                        requestQueue.upgrading = request;
+                        request.upgradeTo = target;
+                        // the waiters now wait for the upgrade too
+                        requestQueue.condition.signalAll();
+                    }
+                    Set<TransactionId> blockers = blockers(requestQueue, request, target);
+                    if (blockers.isEmpty()) {
+                        break;
+                    }
+                    if (!wait) {
+                        return null;
+                    }
+                    if (!requestQueue.queue.contains(request)) {
+                        // the transaction was aborted by another thread
+                        throw new TransactionAbortedException();
+                    }
+                    if (waiter == null) {
+                        waiter = new Waiter(shard, requestQueue);
+                    } else if (waiter.victim) {
+                        throw new DeadlockException();
                     }
+                    waitFor(tid, waiter, blockers);
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new TransactionAbortedException();
+                    }
+                    requestQueue.condition.awaitNanos(remaining);
                 }
-            } else if (formerMode == LockMode.EXCLUSIVE) {
+            } catch (InterruptedException e) {
+                throw new TransactionAbortedException();
+            }
 
+            request.lockMode = target;
+            request.granted = true;
+            granted = true;
+            return target;
+        } finally {
+            if (upgrade && requestQueue.upgrading == request) {
+                requestQueue.upgrading = null;
+                request.upgradeTo = null;
             }
-        } else {
-            if (lockNum > 1) {
-                if (newRequest.lockMode == LockMode.SHARED) {
-                    requestQueue.offer(newRequest);
-                } else {
-                    for (LockRequest request : requestQueue.queue) {
-                        putWaitForMap(tid.getId(), request.tid.getId());
-                    }
-                    return false;
+            if (enqueued && !granted) {
+                requestQueue.queue.remove(request);
+            }
+            if (requestQueue.queue.isEmpty()) {
+                shard.lockMap.remove(resource);
+            } else if (upgrade || enqueued && !granted) {
+                // requests behind this one may go ahead now
+                requestQueue.condition.signalAll();
+            }
+            shard.latch.unlock();
+            if (waiter != null) {
+                synchronized (waitsForMap) {
+                    waitsForMap.remove(tid, waiter);
                 }
-            } else if (lockNum == 1) {
-                LockRequest other = requestQueue.queue.peek();
-                if (other.lockMode == LockMode.EXCLUSIVE) {
-                    System.out.println("LockManager: " + tid + " the other lock is exclusive, wait some time， otherLock is: " + other.tid + " ,page: " + pageId);
-                    putWaitForMap(tid.getId(), other.tid.getId());
-                    return false;
-                } else if (other.lockMode == LockMode.SHARED) {
-                    if (mode == LockMode.SHARED) {
-                        requestQueue.offer(newRequest);
-                    } else if (mode == LockMode.EXCLUSIVE) {
-                        System.out.println("LockManager: " + tid + " the request is exclusive, the other is shared, wait some time， otherLock is: " + other.tid + " ,page: " + pageId);
-                        putWaitForMap(tid.getId(), other.tid.getId());
-                        return false;
-                    }
+            }
+        }
+    }
+
+    /**
+     * Returns the transactions the request waits for, empty if it can be
+     * granted in the target mode. The caller holds the latch of the queue's
+     * shard.
+     */
+    private static Set<TransactionId> blockers(LockRequestQueue requestQueue, LockRequest request, LockMode target) {
+        Set<TransactionId> blockers = new HashSet<>();
+        LockRequest upgrading = requestQueue.upgrading;
+        if (request.granted) {
+            if (upgrading != request) {
+                // one upgrade at a time
+                blockers.add(upgrading.tid);
+                return blockers;
+            }
+            // an upgrade waits for the conflicting holders only
+            for (LockRequest other : requestQueue.queue) {
+                if (other.granted && !other.tid.equals(request.tid) && !other.lockMode.compatibleWith(target)) {
+                    blockers.add(other.tid);
                 }
             }
+            return blockers;
         }
-        return true;
+        if (upgrading != null && !upgrading.tid.equals(request.tid)) {
+            blockers.add(upgrading.tid);
+        }
+        for (LockRequest other : requestQueue.queue) {
+            if (other == request) {
+                break;
+            }
+            if (!other.tid.equals(request.tid) && (!other.granted || !other.lockMode.compatibleWith(target))) {
+                blockers.add(other.tid);
+            }
+        }
+        return blockers;
     }
 
-    public void unLockPage(TransactionId tid, PageId pageId) {
-//        System.out.println("unLockPage tid: " + tid + " pageId: " + pageId);
-        LockRequestQueue requestQueue = pageLockMap.get(pageId);
-        LockRequest removeRequest = null;
-//        System.out.println("unLockPage tid: " + "get requestQueue");
-        for (LockRequest request : requestQueue.queue) {
-            if (tid == request.tid) {
-                removeRequest = request;
+    /**
+     * Records that tid waits for the blockers, starting the detector if it
+     * is not running.
+     */
+    private void waitFor(TransactionId tid, Waiter waiter, Set<TransactionId> blockers) {
+        synchronized (waitsForMap) {
+            waiter.blockers = blockers;
+            waitsForMap.put(tid, waiter);
+            if (!detectorRunning) {
+                detectorRunning = true;
+                Thread detector = new Thread(this::runDetector, "deadlock-detector");
+                detector.setDaemon(true);
+                detector.start();
             }
         }
-        requestQueue.queue.remove(removeRequest);
     }
 
-    public Set<PageId> getMarkPages(TransactionId tid) {
-        return txnMarkMap.get(tid);
+    private void runDetector() {
+        try {
+            do {
+                Thread.sleep(detectIntervalMillis);
+            } while (detectDeadlocks());
+        } catch (InterruptedException e) {
+            synchronized (waitsForMap) {
+                detectorRunning = false;
+            }
+        }
     }
 
-    public void removeTxnMark(TransactionId tid) {
-        txnMarkMap.remove(tid);
+    /**
+     * Breaks every cycle in a snapshot of the waits-for graph by marking its
+     * youngest transaction as the victim and waking it.
+     *
+     * @return false, stopping the detector, if no transaction waits
+     */
+    private boolean detectDeadlocks() {
+        Map<TransactionId, Waiter> waiters;
+        Map<TransactionId, Set<TransactionId>> graph = new HashMap<>();
+        synchronized (waitsForMap) {
+            if (waitsForMap.isEmpty()) {
+                detectorRunning = false;
+                return false;
+            }
+            waiters = new HashMap<>(waitsForMap);
+            for (Map.Entry<TransactionId, Waiter> e : waitsForMap.entrySet()) {
+                graph.put(e.getKey(), e.getValue().blockers);
+            }
+        }
+
+        List<TransactionId> cycle;
+        while ((cycle = findCycle(graph)) != null) {
+            TransactionId victim = Collections.max(cycle, Comparator.comparingLong(TransactionId::getId));
+            graph.remove(victim);
+            Waiter waiter = waiters.get(victim);
+            waiter.victim = true;
+            deadlocks.incrementAndGet();
+            waiter.shard.latch.lock();
+            try {
+                waiter.requestQueue.condition.signalAll();
+            } finally {
+                waiter.shard.latch.unlock();
+            }
+        }
+        return true;
     }
 
-    public void putWaitForMap(Long k, Long v) throws DeadlockException {
-        if (!waitsForMap.containsKey(k)) waitsForMap.put(k, new LinkedList<>());
-        waitsForMap.get(k).add(v);
-        if (isCycle(k))
-            throw new DeadlockException();
+    /**
+     * @return the transactions on a cycle of the graph, or null if it has none
+     */
+    private static List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> graph) {
+        // absent: not seen yet, true: on the current path, false: done
+        Map<TransactionId, Boolean> onPath = new HashMap<>();
+        for (TransactionId root : graph.keySet()) {
+            if (onPath.containsKey(root)) {
+                continue;
+            }
+            Deque<TransactionId> path = new ArrayDeque<>();
+            Deque<Iterator<TransactionId>> edges = new ArrayDeque<>();
+            path.push(root);
+            edges.push(graph.get(root).iterator());
+            onPath.put(root, true);
+            while (!path.isEmpty()) {
+                Iterator<TransactionId> it = edges.peek();
+                if (!it.hasNext()) {
+                    onPath.put(path.pop(), false);
+                    edges.pop();
+                    continue;
+                }
+                TransactionId next = it.next();
+                Boolean state = onPath.get(next);
+                if (state == null) {
+                    Set<TransactionId> out = graph.get(next);
+                    if (out == null) {
+                        // not waiting, or already chosen as a victim
+                        onPath.put(next, false);
+                    } else {
+                        onPath.put(next, true);
+                        path.push(next);
+                        edges.push(out.iterator());
+                    }
+                } else if (state) {
+                    List<TransactionId> cycle = new ArrayList<>();
+                    for (TransactionId tid : path) {
+                        cycle.add(tid);
+                        if (tid.equals(next)) {
+                            break;
+                        }
+                    }
+                    return cycle;
+                }
+            }
+        }
+        return null;
     }
 
-    public boolean isCycle(Long start) {
-        Deque<Long> queue = new LinkedList<>();
-        List<Long> list = waitsForMap.get(start);
-        for (Long i : list) {
-            queue.offer(i);
+
+    /**
+     * Releases the transaction's lock on the page, waking the transactions
+     * waiting for it. A page covered by a lock on its table stays locked
+     * until the table lock is released.
+     */
+    public void unLockPage(TransactionId tid, PageId pageId) {
+        if (tid == null) {
+            tid = Database.getNullTid();
         }
-        while (!queue.isEmpty()) {
-            Long i = queue.poll();
-            if (i == start) return true;
-            List<Long> l = waitsForMap.get(i);
-            if (l != null) {
-                for (Long item : l) {
-                    queue.offer(item);
+        TxnLocks locks = txnLocks.get(tid);
+        if (locks != null) {
+            // an abort must not drop a page another transaction may now hold
+            locks.pages.remove(pageId);
+        }
+        release(tid, locks, pageId);
+    }
+
+    private void release(TransactionId tid, TxnLocks locks, Object resource) {
+        if (locks != null) {
+            locks.released(resource);
+        }
+        Shard shard = shard(resource);
+        shard.latch.lock();
+        try {
+            LockRequestQueue requestQueue = shard.lockMap.get(resource);
+            if (requestQueue == null) {
+                return;
+            }
+            if (requestQueue.queue.removeIf(request -> request.granted && request.tid.equals(tid))) {
+                if (requestQueue.queue.isEmpty()) {
+                    shard.lockMap.remove(resource);
+                } else {
+                    requestQueue.condition.signalAll();
                 }
             }
+        } finally {
+            shard.latch.unlock();
+        }
+    }
+
+    /**
+     * Releases every lock the transaction still holds, tuples first and
+     * tables last, and forgets the pages it locked.
+     */
+    public void releaseAll(TransactionId tid) {
+        if (tid == null) {
+            tid = Database.getNullTid();
         }
-        return false;
+        TxnLocks locks = txnLocks.remove(tid);
+        if (locks == null) {
+            return;
+        }
+        List<Object> resources;
+        synchronized (locks) {
+            resources = new ArrayList<>(locks.held.keySet());
+        }
+        resources.sort(Comparator.comparingInt(r -> r instanceof RecordId ? 0 : r instanceof PageId ? 1 : 2));
+        for (Object resource : resources) {
+            release(tid, null, resource);
+        }
+    }
+
+    /**
+     * Return true if the transaction holds a shared or exclusive lock on the
+     * page, or on its table
+     */
+    public boolean holdsLock(TransactionId tid, PageId pageId) {
+        TxnLocks locks = txnLocks.get(tid);
+        if (locks == null) {
+            return false;
+        }
+        LockMode mode = locks.mode(pageId);
+        return mode == LockMode.S || mode == LockMode.SIX || mode == LockMode.X
+                || covered(locks, new TableLock(pageId.getTableId()), LockMode.S);
     }
 
+    /**
+     * @return the number of tables, pages and tuples with locks held or
+     * requested
+     */
+    public int getLockCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            shard.latch.lock();
+            try {
+                count += shard.lockMap.size();
+            } finally {
+                shard.latch.unlock();
+            }
+        }
+        return count;
+    }
 
+    /**
+     * @return the pages the transaction has locked, directly or under a lock
+     * on their table
+     */
+    public Set<PageId> getMarkPages(TransactionId tid) {
+        TxnLocks locks = txnLocks.get(tid);
+        return locks != null ? locks.pages : Collections.emptySet();
+    }
 }
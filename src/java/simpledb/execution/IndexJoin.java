@@ -0,0 +1,195 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The IndexJoin operator implements an index nested-loops equi-join: for the
+ * tuples of the outer child, it looks up the inner tuples with the same key
+ * through an index on the join field of the inner child, instead of scanning
+ * the inner child again.
+ * <p>
+ * The outer tuples are read in batches of up to BATCH_SIZE and sorted on the
+ * join field, so that the lookups walk the leaves of the index in key order
+ * and a key that several outer tuples share is looked up once. The tuples
+ * come out in key order within each batch.
+ */
+public class IndexJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of outer tuples sorted together
+     */
+    public static final int BATCH_SIZE = 1000;
+
+    private final JoinPredicate pred;
+    private OpIterator child1;
+    private IndexOpIterator child2;
+    private final TupleDesc comboTD;
+    private boolean innerOpen;
+
+    // the current batch of outer tuples, sorted on the join field
+    private final List<Tuple> batch = new ArrayList<>();
+    private int batchPos;
+    // the inner tuples that match the current outer tuple
+    private Field matchKey;
+    private final List<Tuple> matches = new ArrayList<>();
+    private int matchPos;
+    private transient Tuple t1;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on
+     *
+     * @param p      The predicate to use to join the children; its operator must be EQUALS
+     * @param child1 Iterator for the left(outer) relation to join
+     * @param child2 Index access method for the right(inner) relation to join,
+     *               on the field of the predicate
+     */
+    public IndexJoin(JoinPredicate p, OpIterator child1, IndexOpIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("an index join needs an equality predicate, not " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        // the inner child is opened by the first lookup
+        child1.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (innerOpen) {
+            child2.close();
+            innerOpen = false;
+        }
+        child1.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        reset();
+    }
+
+    private void reset() {
+        batch.clear();
+        batchPos = 0;
+        matchKey = null;
+        matches.clear();
+        matchPos = 0;
+        t1 = null;
+    }
+
+    /**
+     * Reads the next batch of outer tuples and sorts it on the join field.
+     *
+     * @return false if the outer child has no more tuples
+     */
+    private boolean loadBatch() throws DbException, TransactionAbortedException {
+        batch.clear();
+        batchPos = 0;
+        while (batch.size() < BATCH_SIZE && child1.hasNext()) {
+            batch.add(child1.next());
+        }
+        int field1 = pred.getField1();
+        batch.sort(Comparator.comparing(t -> t.getField(field1), (a, b) ->
+                a.compare(Predicate.Op.LESS_THAN, b) ? -1 : a.compare(Predicate.Op.GREATER_THAN, b) ? 1 : 0));
+        return !batch.isEmpty();
+    }
+
+    /**
+     * Looks up the inner tuples with the given key.
+     */
+    private void probe(Field key) throws DbException, TransactionAbortedException {
+        IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS, key);
+        if (innerOpen) {
+            child2.rewind(ipred);
+        } else {
+            child2.open(ipred);
+            innerOpen = true;
+        }
+        matches.clear();
+        while (child2.hasNext()) {
+            matches.add(child2.next());
+        }
+        matchKey = key;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of an outer tuple and an inner tuple
+     * with the same key, as for {@link Join}.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (t1 == null || matchPos == matches.size()) {
+            if (batchPos == batch.size() && !loadBatch()) {
+                return null;
+            }
+            t1 = batch.get(batchPos++);
+            Field key = t1.getField(pred.getField1());
+            // outer tuples with the same key follow each other in a batch
+            if (matchKey == null || !matchKey.equals(key)) {
+                probe(key);
+            }
+            matchPos = 0;
+        }
+        Tuple t2 = matches.get(matchPos++);
+
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        // set fields in combined tuple
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = (IndexOpIterator) children[1];
+    }
+}
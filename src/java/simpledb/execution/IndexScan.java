@@ -0,0 +1,148 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.NoSuchElementException;
+
+/**
+ * IndexScan is an access method that reads the tuples of a table that match
+ * an index predicate through a {@link SecondaryIndex} on the predicate's
+ * field: it looks up the record ids of the tuples in the index, and fetches
+ * each tuple from its page of the table. The tuples come in key order.
+ * <p>
+ * The index is not clustered, so each tuple may cost a page read of its
+ * own; the optimizer picks an index scan over a sequential scan only for
+ * predicates that few tuples match. See {@link simpledb.optimizer.TableStats#estimateIndexScanCost}.
+ */
+public class IndexScan implements IndexOpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final SecondaryIndex index;
+    private final String tableAlias;
+    private IndexPredicate ipred;
+    private transient DbFileIterator entries;
+    private Tuple next;
+
+    /**
+     * Creates a scan of the tuples of a table that match a predicate, as a
+     * part of the specified transaction.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param index      the index to scan, over the table to read.
+     * @param ipred      the predicate the tuples must match, on the field of the index;
+     *                   may be null if the scan is only opened with {@link #open(IndexPredicate)}.
+     * @param tableAlias the alias of the table; the returned tupleDesc has
+     *                   fields named tableAlias.fieldName, as for {@link SeqScan}.
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, IndexPredicate ipred, String tableAlias) {
+        this.tid = tid;
+        this.index = index;
+        this.ipred = ipred;
+        this.tableAlias = tableAlias;
+    }
+
+    /**
+     * @return the name of the table the operator scans in the catalog
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return the alias of the table this operator scans.
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /**
+     * @return the index this operator scans
+     */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the predicate the tuples of the last scan match
+     */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        open(ipred);
+    }
+
+    public void open(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+        this.ipred = ipred;
+        entries = index.getFile().indexIterator(tid, ipred);
+        entries.open();
+        next = null;
+    }
+
+    /**
+     * Returns the TupleDesc of the table, with field names prefixed with the
+     * tableAlias string from the constructor.
+     */
+    public TupleDesc getTupleDesc() {
+        return Database.getCatalog().getTupleDesc(index.getTableId()).getTupleDescWithAlias(tableAlias);
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (entries == null) {
+            throw new IllegalStateException("index scan is not open");
+        }
+        if (next == null) {
+            next = fetchNext();
+        }
+        return next != null;
+    }
+
+    public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Tuple t = next;
+        next = null;
+        return t;
+    }
+
+    // the next tuple of the table that an entry of the index points to
+    private Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (entries.hasNext()) {
+            RecordId rid = index.recordId(entries.next());
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+            Tuple t = page.getTupleAt(rid.getTupleNumber());
+            // a snapshot of the table may be older than the entry
+            if (t != null && t.getField(index.keyField()).compare(ipred.getOp(), ipred.getField())) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    public void close() {
+        if (entries != null) {
+            entries.close();
+        }
+        entries = null;
+        next = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        rewind(ipred);
+    }
+
+    public void rewind(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+        close();
+        open(ipred);
+    }
+}
@@ -0,0 +1,365 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * BTreeBulkLoader builds a B+ tree file bottom-up from tuples that arrive
+ * sorted on the key field, instead of inserting them one at a time.
+ * <p>
+ * The leaves are filled in key order up to the fill factor, and each page
+ * that is done adds an entry to the page being filled on the level above,
+ * so the internal levels grow along with the leaves and every page is
+ * written once. Only the last two pages of each level are held in memory:
+ * when the input ends, the last page of a level is evened out with the one
+ * before it so that no page is less than half full. A page that this leaves
+ * unused is marked free in the header pages.
+ * <p>
+ * The pages are written straight to the file without log records, and the
+ * file is forced to disk before {@link #load} returns. Input that is not
+ * sorted yet can be put through an {@link simpledb.execution.OrderBy}.
+ */
+public class BTreeBulkLoader {
+
+    private final BTreeFile bf;
+    private final int keyField;
+    private final Type[] types;
+    // tuples per leaf, and children per internal page
+    private final int leafCapacity;
+    private final int leafTarget;
+    private final int internalCapacity;
+    private final int internalTarget;
+
+    // the pages being filled, from the leaves up
+    private final List<Level> levels = new ArrayList<>();
+    // pages given out that the end of the input left unused
+    private final List<BTreePageId> unused = new ArrayList<>();
+    private int lastPageNo;
+    private Field lastKey;
+
+    /**
+     * The last two pages of one level of the tree. The one before the last
+     * is full, but the end of the input may still move items out of it.
+     */
+    private static class Level {
+        Node prev;
+        Node cur;
+    }
+
+    /**
+     * A page that is not written yet: the tuples of a leaf, or the children
+     * of an internal page, with the lowest key of each
+     */
+    private static class Node {
+        final BTreePageId id;
+        final BTreePageId leftSibling;
+        final List<Field> keys = new ArrayList<>();
+        final List<Tuple> tuples = new ArrayList<>();
+        final List<BTreePageId> children = new ArrayList<>();
+
+        Node(BTreePageId id, BTreePageId leftSibling) {
+            this.id = id;
+            this.leftSibling = leftSibling;
+        }
+
+        int size() {
+            return keys.size();
+        }
+    }
+
+    private BTreeBulkLoader(BTreeFile bf, double fillFactor) throws IOException {
+        this.bf = bf;
+        this.keyField = bf.keyField();
+        TupleDesc td = bf.getTupleDesc();
+        this.types = new Type[td.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = td.getFieldType(i);
+        }
+
+        int tableid = bf.getId();
+        leafCapacity = new BTreeLeafPage(new BTreePageId(tableid, 0, BTreePageId.LEAF),
+                BTreePage.createEmptyPageData(), keyField).getMaxTuples();
+        int entries = new BTreeInternalPage(new BTreePageId(tableid, 0, BTreePageId.INTERNAL),
+                BTreePage.createEmptyPageData(), keyField).getMaxEntries();
+        internalCapacity = entries + 1;
+        leafTarget = fill(leafCapacity, fillFactor);
+        internalTarget = fill(entries, fillFactor) + 1;
+    }
+
+    // the items to put in a page, at least half of what it holds
+    private static int fill(int capacity, double fillFactor) {
+        return Math.max(Math.max(capacity / 2, 1), Math.min(capacity, (int) Math.round(capacity * fillFactor)));
+    }
+
+    /**
+     * Builds a B+ tree from the tuples of child, which must be sorted on the
+     * key field, and adds it to the catalog.
+     *
+     * @param child      - the tuples of the tree, in key order; opened and closed here
+     * @param f          - the file to back the tree, which must be empty
+     * @param keyField   - the index of the key field
+     * @param fillFactor - the part of each page to fill, from 0.5 to 1; the
+     *                   rest is left for later inserts
+     * @param name       - the name of the table in the catalog
+     * @return the B+ tree file
+     * @throws DbException if the file is not empty or the tuples are not in key order
+     */
+    public static BTreeFile load(OpIterator child, File f, int keyField, double fillFactor, String name)
+            throws DbException, TransactionAbortedException, IOException {
+        if (fillFactor < 0.5 || fillFactor > 1.0) {
+            throw new IllegalArgumentException("fill factor " + fillFactor + " is not between 0.5 and 1");
+        }
+        if (f.length() > 0) {
+            throw new DbException("cannot bulk load " + f + ": the file is not empty");
+        }
+        TupleDesc td = child.getTupleDesc();
+        BTreeFile bf = new BTreeFile(f, keyField, td);
+        String keyName = td.getFieldName(keyField);
+        // the pages look up the tuple descriptor in the catalog
+        Database.getCatalog().addTable(bf, name, keyName == null ? "" : keyName);
+        load(bf, child, fillFactor);
+        return bf;
+    }
+
+    /**
+     * Builds a B+ tree in a file that is already in the catalog from the
+     * tuples of child, which must be sorted on the key field of the file.
+     *
+     * @param bf         - the B+ tree file, which must be empty
+     * @param child      - the tuples of the tree, in key order; opened and closed here
+     * @param fillFactor - the part of each page to fill, from 0.5 to 1
+     * @throws DbException if the file is not empty or the tuples are not in key order
+     */
+    public static void load(BTreeFile bf, OpIterator child, double fillFactor)
+            throws DbException, TransactionAbortedException, IOException {
+        if (fillFactor < 0.5 || fillFactor > 1.0) {
+            throw new IllegalArgumentException("fill factor " + fillFactor + " is not between 0.5 and 1");
+        }
+        if (bf.getFile().length() > 0) {
+            throw new DbException("cannot bulk load " + bf.getFile() + ": the file is not empty");
+        }
+        BTreeBulkLoader loader = new BTreeBulkLoader(bf, fillFactor);
+        child.open();
+        try {
+            while (child.hasNext()) {
+                loader.add(child.next());
+            }
+        } finally {
+            child.close();
+        }
+        loader.finish();
+    }
+
+    private void add(Tuple t) throws DbException, IOException {
+        Field key = t.getField(keyField);
+        if (lastKey != null && key.compare(Op.LESS_THAN, lastKey)) {
+            throw new DbException("tuples are not sorted on field " + keyField + ": " + key + " after " + lastKey);
+        }
+        lastKey = key;
+        append(0, key).tuples.add(t);
+    }
+
+    /**
+     * Makes room for one more item with the given key on a level, writing
+     * out the page before the last if the last one is full.
+     *
+     * @param depth - the level, 0 for the leaves
+     * @return the page the item goes to, with the key added
+     */
+    private Node append(int depth, Field key) throws DbException, IOException {
+        if (levels.size() == depth) {
+            Level level = new Level();
+            level.cur = newNode(depth, null);
+            levels.add(level);
+        }
+        Level level = levels.get(depth);
+        if (level.cur.size() == (depth == 0 ? leafTarget : internalTarget)) {
+            if (level.prev != null) {
+                write(depth, level.prev, level.cur.id);
+            }
+            level.prev = level.cur;
+            level.cur = newNode(depth, level.prev.id);
+        }
+        level.cur.keys.add(key);
+        return level.cur;
+    }
+
+    private Node newNode(int depth, BTreePageId leftSibling) {
+        int pgcateg = depth == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+        return new Node(new BTreePageId(bf.getId(), ++lastPageNo, pgcateg), leftSibling);
+    }
+
+    /**
+     * Adds a page to its parent and writes it out.
+     */
+    private void write(int depth, Node node, BTreePageId rightSibling) throws DbException, IOException {
+        Node parent = append(depth + 1, node.keys.get(0));
+        parent.children.add(node.id);
+        writePage(depth, node, parent.id, rightSibling);
+    }
+
+    private void writePage(int depth, Node node, BTreePageId parentId, BTreePageId rightSibling)
+            throws DbException, IOException {
+        int pageSize = BufferPool.getPageSize();
+        BTreePage page;
+        if (depth == 0) {
+            BTreeLeafPage leaf = new BTreeLeafPage(node.id, BTreeFileEncoder.convertToLeafPage(node.tuples,
+                    pageSize, types.length, types, keyField), keyField);
+            leaf.setLeftSiblingId(node.leftSibling);
+            leaf.setRightSiblingId(rightSibling);
+            page = leaf;
+        } else {
+            // the key of each child but the first separates it from the one before
+            List<BTreeEntry> entries = new ArrayList<>(node.size() - 1);
+            for (int i = 1; i < node.size(); i++) {
+                entries.add(new BTreeEntry(node.keys.get(i), node.children.get(i - 1), node.children.get(i)));
+            }
+            int childCategory = depth == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+            page = new BTreeInternalPage(node.id, BTreeFileEncoder.convertToInternalPage(entries,
+                    pageSize, types[keyField], childCategory), keyField);
+        }
+        page.setParentId(parentId);
+        bf.writePage(page);
+    }
+
+    /**
+     * Writes out the pages still in memory, from the leaves up, then the
+     * header pages and the root pointer, and forces the file to disk.
+     */
+    private void finish() throws DbException, IOException {
+        int tableid = bf.getId();
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+        if (levels.isEmpty()) {
+            // no tuples; the root is an empty leaf
+            Level level = new Level();
+            level.cur = newNode(0, null);
+            levels.add(level);
+        }
+        BTreePageId rootId = null;
+        for (int depth = 0; rootId == null && depth < levels.size(); depth++) {
+            Level level = levels.get(depth);
+            balance(depth, level);
+            if (level.prev == null && depth == levels.size() - 1) {
+                // no page of this level went up, so this is the only one
+                writePage(depth, level.cur, rootPtrId, null);
+                rootId = level.cur.id;
+            } else {
+                if (level.prev != null) {
+                    write(depth, level.prev, level.cur.id);
+                }
+                write(depth, level.cur, null);
+            }
+        }
+
+        // pages given out last need not be written at all
+        unused.sort(Comparator.comparingInt(BTreePageId::getPageNumber));
+        while (!unused.isEmpty() && unused.get(unused.size() - 1).getPageNumber() == lastPageNo) {
+            unused.remove(unused.size() - 1);
+            lastPageNo--;
+        }
+        int headerNo = unused.isEmpty() ? 0 : writeHeaderPages();
+
+        bf.writePage(new BTreeRootPtrPage(rootPtrId, BTreeFileEncoder.convertToRootPtrPage(
+                rootId.getPageNumber(), rootId.pgcateg(), headerNo)));
+        bf.force();
+    }
+
+    /**
+     * Moves items out of the page before the last on a level if the last
+     * one is less than half full, or empties the last page into it if they
+     * fit in one page.
+     */
+    private void balance(int depth, Level level) throws DbException, IOException {
+        Node prev = level.prev;
+        Node cur = level.cur;
+        int capacity = depth == 0 ? leafCapacity : internalCapacity;
+        int min = depth == 0 ? leafCapacity / 2 : (internalCapacity - 1) / 2 + 1;
+        if (prev == null || cur.size() >= min) {
+            return;
+        }
+        int total = prev.size() + cur.size();
+        if (total <= capacity) {
+            move(depth, cur, 0, prev, prev.size());
+            unused.add(cur.id);
+            level.prev = null;
+            level.cur = prev;
+        } else {
+            move(depth, prev, total - total / 2, cur, 0);
+        }
+    }
+
+    /**
+     * Moves the items of one page from the given index on into another page
+     * at the given index. Children that move are already written, so their
+     * parent pointers are set again.
+     */
+    private void move(int depth, Node from, int start, Node to, int at) throws DbException, IOException {
+        int n = from.size() - start;
+        moveRange(from.keys, start, to.keys, at);
+        if (depth == 0) {
+            moveRange(from.tuples, start, to.tuples, at);
+            return;
+        }
+        moveRange(from.children, start, to.children, at);
+        for (BTreePageId childId : to.children.subList(at, at + n)) {
+            BTreePage child = (BTreePage) bf.readPage(childId);
+            child.setParentId(to.id);
+            bf.writePage(child);
+        }
+    }
+
+    private static <T> void moveRange(List<T> from, int start, List<T> to, int at) {
+        List<T> range = from.subList(start, from.size());
+        to.addAll(at, range);
+        range.clear();
+    }
+
+    /**
+     * Writes the unused pages as empty pages and header pages that mark them
+     * free, after the last page of the tree.
+     *
+     * @return the page number of the first header page
+     */
+    private int writeHeaderPages() throws DbException, IOException {
+        int tableid = bf.getId();
+        for (BTreePageId pid : unused) {
+            bf.writePage(pid.pgcateg() == BTreePageId.LEAF
+                    ? new BTreeLeafPage(pid, BTreePage.createEmptyPageData(), keyField)
+                    : new BTreeInternalPage(pid, BTreePage.createEmptyPageData(), keyField));
+        }
+
+        // header page i has a slot for each page from i * getNumSlots() on
+        int slots = BTreeHeaderPage.getNumSlots();
+        BTreeHeaderPage[] headers = new BTreeHeaderPage[unused.get(unused.size() - 1).getPageNumber() / slots + 1];
+        for (int i = 0; i < headers.length; i++) {
+            BTreePageId id = new BTreePageId(tableid, ++lastPageNo, BTreePageId.HEADER);
+            headers[i] = new BTreeHeaderPage(id, BTreeHeaderPage.createEmptyPageData());
+            headers[i].init();
+            if (i > 0) {
+                headers[i].setPrevPageId(headers[i - 1].getId());
+                headers[i - 1].setNextPageId(id);
+            }
+        }
+        for (BTreePageId pid : unused) {
+            headers[pid.getPageNumber() / slots].markSlotUsed(pid.getPageNumber() % slots, false);
+        }
+        for (BTreeHeaderPage header : headers) {
+            bf.writePage(header);
+        }
+        return headers[0].getId().getPageNumber();
+    }
+}
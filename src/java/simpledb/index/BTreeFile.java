@@ -11,7 +11,10 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.lang.invoke.VarHandle;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BTreeFile is an implementation of a DbFile that stores a B+ tree.
@@ -19,6 +22,16 @@ import java.util.*;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Searches, and inserts that fit in their leaf, descend optimistically: they
+ * read the root pointer and internal pages without transactional locks and
+ * lock only the leaf they reach. A structure version, bumped around every
+ * split, merge and redistribution and whenever an abort reverts pages of the
+ * tree, validates the descent once the leaf is locked; a descent that raced
+ * with a change to the structure is retried, and after a few retries the
+ * operation falls back on the locked descent. Structure changes still lock
+ * every page they change until the transaction ends, since an abort reverts
+ * whole pages, but they no longer wait for readers of the internal pages.
  *
  * @author Becca Taft
  * @see BTreeLeafPage#BTreeLeafPage
@@ -32,6 +45,18 @@ public class BTreeFile implements DbFile {
     private final TupleDesc td;
     private final int tableid;
     private final int keyField;
+    private final DbFileChannel channel;
+    private final PageLsnMap pageLsns;
+
+    // optimistic descents before an operation takes the locked path
+    private static final int OPTIMISTIC_ATTEMPTS = 8;
+    // deeper than any tree; a descent this long read pages mid-change
+    private static final int MAX_DEPTH = 32;
+
+    // bumped when a structure change begins and ends, and on aborts
+    private final AtomicLong structureVersion = new AtomicLong();
+    // the structure changes under way
+    private final AtomicInteger restructuring = new AtomicInteger();
 
     /**
      * Constructs a B+ tree file backed by the specified file.
@@ -46,6 +71,8 @@ public class BTreeFile implements DbFile {
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
+        this.channel = new DbFileChannel(f);
+        this.pageLsns = new PageLsnMap(channel);
     }
 
     /**
@@ -55,6 +82,24 @@ public class BTreeFile implements DbFile {
         return f;
     }
 
+    /**
+     * @return the page LSNs of the pages on disk, used by recovery
+     */
+    public PageLsnMap getPageLsnMap() {
+        return pageLsns;
+    }
+
+    /**
+     * Closes the B+ tree file and its page LSN map.
+     */
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            pageLsns.close();
+        }
+    }
+
     /**
      * Returns an ID uniquely identifying this BTreeFile. Implementation note:
      * you will need to generate this tableid somewhere and ensure that each
@@ -120,11 +165,11 @@ public class BTreeFile implements DbFile {
      */
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
+        try {
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
                 byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
+                int retval = channel.read(pageBuf, 0);
+                if (retval == 0) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
                 if (retval < BTreeRootPtrPage.getPageSize()) {
@@ -135,13 +180,8 @@ public class BTreeFile implements DbFile {
                 return new BTreeRootPtrPage(id, pageBuf);
             } else {
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
+                int retval = channel.read(pageBuf, pageOffset(id.getPageNumber()));
+                if (retval == 0) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
                 if (retval < BufferPool.getPageSize()) {
@@ -160,8 +200,6 @@ public class BTreeFile implements DbFile {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        // Close the file on success or error
-        // Ignore failures closing the file
     }
 
     /**
@@ -171,18 +209,32 @@ public class BTreeFile implements DbFile {
      * @param page - the page to write to disk
      */
     public void writePage(Page page) throws IOException {
-        BTreePageId id = (BTreePageId) page.getId();
+        writePage(page.getId(), page.getPageData(), page.getLsn());
+    }
 
-        byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
+    public void writePage(PageId pid, byte[] data, long lsn) throws IOException {
+        BTreePageId id = (BTreePageId) pid;
         if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-            rf.write(data);
-            rf.close();
+            channel.write(data, 0);
         } else {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
+            channel.write(data, pageOffset(id.getPageNumber()));
         }
+        pageLsns.pageWritten(id, lsn);
+    }
+
+    /**
+     * Forces the pages written to this file to disk.
+     */
+    void force() throws IOException {
+        channel.force();
+    }
+
+    /**
+     * Returns the file offset of the page with the given number. Page numbers
+     * start at 1, right after the root pointer page.
+     */
+    private static long pageOffset(int pageNo) {
+        return BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * BufferPool.getPageSize();
     }
 
     /**
@@ -220,47 +272,41 @@ public class BTreeFile implements DbFile {
             throws DbException, TransactionAbortedException {
 
         BTreePage page = (BTreePage) Database.getBufferPool().getPage(tid, pid, perm);
-        // TODO: some code goes here
-
-        if (f == null) {
-            if (page.getId().pgcateg() == BTreePageId.INTERNAL) {
-                BTreeInternalPage internalPage = (BTreeInternalPage) page;
-                Iterator<BTreeEntry> iterator = internalPage.iterator();
-                if (iterator.hasNext()) {
-                    BTreeEntry entry = iterator.next();
-                    if (entry.getLeftChild() != null) {
-                        return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-                    } else {
-                        return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
-                    }
-                } else {
-                    System.out.println("error");
-                }
-            } else if (page.getId().pgcateg() == BTreePageId.LEAF) {
-                return (BTreeLeafPage) page;
-            }
+        if (page.getId().pgcateg() == BTreePageId.LEAF) {
+            return (BTreeLeafPage) page;
+        }
+        if (page.getId().pgcateg() != BTreePageId.INTERNAL) {
+            throw new DbException("findLeafPage reached a page that is neither internal nor a leaf: " + pid);
         }
+        // binary search over the keys of the page, see BTreeInternalPage.findChildId
+        BTreePageId child = ((BTreeInternalPage) page).findChildId(f);
+        if (child == null) {
+            throw new DbException("findLeafPage reached an internal page with no entries: " + pid);
+        }
+        return findLeafPage(tid, dirtypages, child, perm, f);
+    }
 
-        if (page.getId().pgcateg() == BTreePageId.INTERNAL) {
-            BTreeInternalPage internalPage = (BTreeInternalPage) page;
-            Iterator<BTreeEntry> iterator = internalPage.iterator();
-            BTreeEntry pre = null;
-            while (iterator.hasNext()) {
-                BTreeEntry entry = iterator.next();
-                if (pre == null && f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())) {
-                    return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-                } else if (pre != null && f.compare(Op.GREATER_THAN_OR_EQ, pre.getKey()) && f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())) {
-                    // research the pre's right child and the entry's left child
-                    return findLeafPage(tid, dirtypages, pre.getRightChild(), perm, f);
+    /**
+     * Starts read-ahead for an iterator that walks the leaves through their
+     * right sibling pointers. With a predicate that bounds the keys from
+     * above, the read-ahead stops at the first leaf with a key past the
+     * bound, which is the last leaf the iterator reads.
+     *
+     * @param ipred the predicate of the search, or null for a full scan
+     */
+    static Prefetcher.Scan leafReadAhead(IndexPredicate ipred) {
+        return Database.getBufferPool().getPrefetcher().newChainScan(p -> {
+            BTreeLeafPage leaf = (BTreeLeafPage) p;
+            if (ipred != null && leaf.getNumTuples() > 0) {
+                Op op = ipred.getOp();
+                Field last = leaf.reverseIterator().next().getField(leaf.keyField);
+                if ((op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ) && !last.compare(op, ipred.getField())
+                        || op == Op.EQUALS && last.compare(Op.GREATER_THAN, ipred.getField())) {
+                    return null;
                 }
-                pre = entry;
             }
-            return findLeafPage(tid, dirtypages, pre.getRightChild(), perm, f);
-        } else if (page.getId().pgcateg() == BTreePageId.LEAF) {
-            return (BTreeLeafPage) page;
-        } else {
-            throw new RuntimeException();
-        }
+            return leaf.getRightSiblingId();
+        });
     }
 
     /**
@@ -279,6 +325,150 @@ public class BTreeFile implements DbFile {
         return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
     }
 
+    /**
+     * Finds and read-locks the left-most leaf page possibly containing the key
+     * field f, locking no page above it unless the optimistic descent keeps
+     * failing. Used by the BTreeFile iterators.
+     *
+     * @param tid - the transaction id
+     * @param f   - the field to search for, or null for the left-most leaf
+     * @return the left-most leaf page possibly containing the key field f
+     */
+    BTreeLeafPage findLeafPage(TransactionId tid, Field f)
+            throws DbException, TransactionAbortedException {
+        if (!Database.getBufferPool().getVersionStore().isSnapshot(tid)) {
+            BTreeLeafPage leaf = findLeafPageOptimistic(tid, null, Permissions.READ_ONLY, f);
+            if (leaf != null) {
+                return leaf;
+            }
+        }
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+                tid, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+        return findLeafPage(tid, rootPtr.getRootId(), f);
+    }
+
+    /**
+     * Finds the leaf for the key field f without locking the pages above it,
+     * then locks the leaf with permission perm and checks that the structure
+     * of the tree did not change while it was searched. The lock on the leaf
+     * is the only one the descent may wait for, and nothing else is held
+     * while it waits.
+     *
+     * @param dirtypages - the dirty pages of the operation, which a leaf locked
+     *                   for writing joins; null when perm is READ_ONLY
+     * @return the locked leaf page, or null if the tree has no root yet or its
+     * structure kept changing, in which case the caller takes the locked path
+     */
+    private BTreeLeafPage findLeafPageOptimistic(TransactionId tid, Map<PageId, Page> dirtypages,
+                                                 Permissions perm, Field f)
+            throws DbException, TransactionAbortedException {
+        if (numPages() == 0) {
+            return null;
+        }
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            long version = structureVersion();
+            if (version < 0) {
+                Thread.yield();
+                continue;
+            }
+            BTreePageId leafId = descend(f, version);
+            if (leafId == null) {
+                if (rootId() == null) {
+                    return null;
+                }
+                continue;
+            }
+            boolean held = Database.getBufferPool().holdsLock(tid, leafId);
+            BTreeLeafPage leaf = (BTreeLeafPage) (perm == Permissions.READ_WRITE
+                    ? getPage(tid, dirtypages, leafId, perm)
+                    : Database.getBufferPool().getPage(tid, leafId, perm));
+            if (structureUnchanged(version)) {
+                return leaf;
+            }
+            if (dirtypages != null) {
+                dirtypages.remove(leafId);
+            }
+            // nothing was read from the leaf, so a lock this attempt took
+            // may go before the transaction ends
+            if (!held) {
+                Database.getBufferPool().unsafeReleasePage(tid, leafId);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Follows the child pointers from the root to the leaf for the key field
+     * f, reading each page from the buffer pool without locking it.
+     * <p>
+     * A page read in the middle of a split or merge may have a torn slot
+     * index, or point to a page that was freed; the failures that causes are
+     * passed over only if the structure version moved since version, and
+     * thrown otherwise.
+     *
+     * @return the id of the leaf, or null if there is no root or a page was
+     * read in the middle of a change to the structure of the tree
+     */
+    private BTreePageId descend(Field f, long version) throws DbException {
+        try {
+            BTreePageId pid = rootId();
+            for (int depth = 0; pid != null && depth < MAX_DEPTH; depth++) {
+                if (pid.pgcateg() == BTreePageId.LEAF) {
+                    return pid;
+                }
+                if (pid.pgcateg() != BTreePageId.INTERNAL) {
+                    return null;
+                }
+                pid = ((BTreeInternalPage) Database.getBufferPool().getPage(pid)).findChildId(f);
+            }
+        } catch (DbException | IndexOutOfBoundsException | NullPointerException | IllegalArgumentException e) {
+            if (structureUnchanged(version)) {
+                throw e;
+            }
+        }
+        return null;
+    }
+
+    // the root page id, read without a lock
+    private BTreePageId rootId() throws DbException {
+        return ((BTreeRootPtrPage) Database.getBufferPool().getPage(BTreeRootPtrPage.getId(tableid))).getRootId();
+    }
+
+    /**
+     * @return the structure version to validate an optimistic descent with,
+     * or -1 while a structure change is under way
+     */
+    private long structureVersion() {
+        long version = structureVersion.get();
+        return restructuring.get() == 0 ? version : -1;
+    }
+
+    // whether no structure change began, ended or was reverted since version
+    private boolean structureUnchanged(long version) {
+        // the pages read during the descent are read before the version
+        VarHandle.acquireFence();
+        return structureVersion.get() == version;
+    }
+
+    private void beginRestructure() {
+        restructuring.incrementAndGet();
+        structureVersion.incrementAndGet();
+    }
+
+    private void endRestructure() {
+        structureVersion.incrementAndGet();
+        restructuring.decrementAndGet();
+    }
+
+    /**
+     * Invalidates the optimistic descents under way. Called when an abort
+     * drops pages of this tree, which may undo a split or merge that a
+     * descent followed.
+     */
+    public void structureReverted() {
+        structureVersion.incrementAndGet();
+    }
+
     /**
      * Split a leaf page to make room for new tuples and recursively split the parent node
      * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -342,7 +532,7 @@ public class BTreeFile implements DbFile {
             page.setRightSiblingId(newPage.pid);
             newPage.setLeftSiblingId(page.pid);
         } else {
-            BTreeLeafPage formerRightSibling = (BTreeLeafPage) Database.getBufferPool().getPage(tid, page.getRightSiblingId(), Permissions.READ_ONLY);
+            BTreeLeafPage formerRightSibling = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, page.getRightSiblingId(), Permissions.READ_ONLY);
             formerRightSibling.setLeftSiblingId(newPage.pid);
             page.setRightSiblingId(newPage.pid);
             newPage.setLeftSiblingId(page.pid);
@@ -523,7 +713,12 @@ public class BTreeFile implements DbFile {
         BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
 
         if (!p.getParentId().equals(pid)) {
-            p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
+            // not pinned: a split or merge can move half of the children of
+            // an internal page, more than the pool may hold
+            if (!dirtypages.containsKey(child)) {
+                dirtypages.put(child, Database.getBufferPool().getPage(tid, child, Permissions.READ_WRITE));
+            }
+            p = (BTreePage) dirtypages.get(child);
             p.setParentId(pid);
         }
         dirtypages.put(p.getId(), p);
@@ -577,11 +772,13 @@ public class BTreeFile implements DbFile {
         if (dirtypages.containsKey(pid)) {
             return dirtypages.get(pid);
         } else {
-            Page p = Database.getBufferPool().getPage(tid, pid, perm);
             if (perm == Permissions.READ_WRITE) {
+                // pages the operation changes stay resident until it ends
+                Page p = Database.getBufferPool().pinPage(tid, pid, perm);
                 dirtypages.put(pid, p);
+                return p;
             }
-            return p;
+            return Database.getBufferPool().getPage(tid, pid, perm);
         }
     }
 
@@ -598,29 +795,50 @@ public class BTreeFile implements DbFile {
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         Map<PageId, Page> dirtypages = new HashMap<>();
+        int pinDepth = Database.getBufferPool().getPinDepth(tid);
+        try {
+            // most inserts fit in their leaf, and lock only the leaf
+            BTreeLeafPage leafPage = findLeafPageOptimistic(tid, dirtypages, Permissions.READ_WRITE,
+                    t.getField(keyField));
+            if (leafPage != null && leafPage.getNumEmptySlots() > 0) {
+                leafPage.insertTuple(t);
+                return new ArrayList<>(dirtypages.values());
+            }
 
-        // get a read lock on the root pointer page and use it to locate the root page
-        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-        BTreePageId rootId = rootPtr.getRootId();
-
-        if (rootId == null) { // the root has just been created, so set the root pointer to point to it
-            rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-            rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-            rootPtr.setRootId(rootId);
-        }
+            // get a read lock on the root pointer page and use it to locate the root page
+            BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+            BTreePageId rootId = rootPtr.getRootId();
+
+            if (rootId == null) { // the root has just been created, so set the root pointer to point to it
+                rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+                beginRestructure();
+                try {
+                    rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+                    rootPtr.setRootId(rootId);
+                } finally {
+                    endRestructure();
+                }
+            }
 
-        // find and lock the left-most leaf page corresponding to the key field,
-        // and split the leaf page if there are no more slots available
-        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-        if (leafPage.getNumEmptySlots() == 0) {
-//            System.out.println("BTreeFile: " + t.getRecordId().getPageId() + " split page");
-            leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
-        }
+            // find and lock the left-most leaf page corresponding to the key field,
+            // and split the leaf page if there are no more slots available
+            leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+            if (leafPage.getNumEmptySlots() == 0) {
+                beginRestructure();
+                try {
+                    leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+                } finally {
+                    endRestructure();
+                }
+            }
 
-        // insert the tuple into the leaf page
-        leafPage.insertTuple(t);
+            // insert the tuple into the leaf page
+            leafPage.insertTuple(t);
 
-        return new ArrayList<>(dirtypages.values());
+            return new ArrayList<>(dirtypages.values());
+        } finally {
+            Database.getBufferPool().unpinAbove(tid, pinDepth);
+        }
     }
 
     //TODO a method to print the B+Tree
@@ -1102,7 +1320,7 @@ public class BTreeFile implements DbFile {
         leftPage.setRightSiblingId(rightPage.getRightSiblingId());
 //        System.out.printf("page: %s set right is %s\n", leftPage.getId().getPageNumber(), rightPage.getRightSiblingId().getPageNumber());
         if (rightPage.getRightSiblingId() != null) {
-            BTreeLeafPage page = (BTreeLeafPage) Database.getBufferPool().getPage(tid, rightPage.getRightSiblingId(), Permissions.READ_ONLY);
+            BTreeLeafPage page = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, rightPage.getRightSiblingId(), Permissions.READ_ONLY);
             page.setLeftSiblingId(leftPage.getId());
 //            System.out.printf("page: %s set left is %s\n", page.getId().getPageNumber(), leftPage.getId().getPageNumber());
         }
@@ -1246,20 +1464,29 @@ public class BTreeFile implements DbFile {
     public List<Page> deleteTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         Map<PageId, Page> dirtypages = new HashMap<>();
+        int pinDepth = Database.getBufferPool().getPinDepth(tid);
+        try {
+            BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
+                    BTreePageId.LEAF);
+            BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+            page.deleteTuple(t);
+
+            // if the page is below minimum occupancy, get some tuples from its siblings
+            // or merge with one of the siblings
+            int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples() / 2; // ceiling
+            if (page.getNumEmptySlots() > maxEmptySlots) {
+                beginRestructure();
+                try {
+                    handleMinOccupancyPage(tid, dirtypages, page);
+                } finally {
+                    endRestructure();
+                }
+            }
 
-        BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
-                BTreePageId.LEAF);
-        BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-        page.deleteTuple(t);
-
-        // if the page is below minimum occupancy, get some tuples from its siblings
-        // or merge with one of the siblings
-        int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples() / 2; // ceiling
-        if (page.getNumEmptySlots() > maxEmptySlots) {
-            handleMinOccupancyPage(tid, dirtypages, page);
+            return new ArrayList<>(dirtypages.values());
+        } finally {
+            Database.getBufferPool().unpinAbove(tid, pinDepth);
         }
-
-        return new ArrayList<>(dirtypages.values());
     }
 
     /**
@@ -1277,13 +1504,8 @@ public class BTreeFile implements DbFile {
         synchronized (this) {
             if (f.length() == 0) {
                 // create the root pointer page and the root page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
-                byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-                byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
+                channel.append(BTreeRootPtrPage.createEmptyPageData());
+                channel.append(BTreeLeafPage.createEmptyPageData());
             }
         }
 
@@ -1337,11 +1559,7 @@ public class BTreeFile implements DbFile {
         if (headerId == null) {
             synchronized (this) {
                 // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
-                byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
+                channel.append(BTreeInternalPage.createEmptyPageData());
                 emptyPageNo = numPages();
             }
         }
@@ -1370,11 +1588,11 @@ public class BTreeFile implements DbFile {
         int emptyPageNo = getEmptyPageNo(tid, dirtypages);
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
-        // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
+        // write empty page to disk; the changes logged for the page before it
+        // was freed must not be replayed onto it by recovery
+        long lsn = Database.getLogFile().pageOverwritten(newPageId);
+        channel.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
+        pageLsns.pageOverwritten(newPageId, lsn);
 
         // make sure the page is not in the buffer pool	or in the local cache
         Database.getBufferPool().removePage(newPageId);
@@ -1503,6 +1721,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    Prefetcher.Scan readAhead = null;
 
     final TransactionId tid;
     final BTreeFile f;
@@ -1522,13 +1741,28 @@ class BTreeFileIterator extends AbstractDbFileIterator {
      * Open this iterator by getting an iterator on the first leaf page
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
-        curp = f.findLeafPage(tid, root, null);
+        readAhead = BTreeFile.leafReadAhead(null);
+        moveTo(f.findLeafPage(tid, null).getId());
         it = curp.iterator();
     }
 
+    /**
+     * Make the given leaf the current page; the iterator keeps the current
+     * page pinned
+     */
+    private void moveTo(BTreePageId pid) throws TransactionAbortedException, DbException {
+        BTreeLeafPage next = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+        unpinCurrent();
+        curp = next;
+        readAhead.accessed(curp);
+    }
+
+    private void unpinCurrent() {
+        if (curp != null) {
+            Database.getBufferPool().unpinPage(tid, curp.getId());
+        }
+    }
+
     /**
      * Read the next tuple either from the current page if it has more tuples or
      * from the next page by following the right sibling pointer.
@@ -1543,10 +1777,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
         while (it == null && curp != null) {
             BTreePageId nextp = curp.getRightSiblingId();
             if (nextp == null) {
+                unpinCurrent();
                 curp = null;
             } else {
-                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-                        nextp, Permissions.READ_ONLY);
+                moveTo(nextp);
                 it = curp.iterator();
                 if (!it.hasNext())
                     it = null;
@@ -1572,7 +1806,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
     public void close() {
         super.close();
         it = null;
+        unpinCurrent();
         curp = null;
+        readAhead = null;
     }
 }
 
@@ -1584,6 +1820,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    Prefetcher.Scan readAhead = null;
 
     final TransactionId tid;
     final BTreeFile f;
@@ -1607,17 +1844,31 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
      * for the given predicate operation
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
-        if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
-                || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-            System.out.println("open: find " + ipred.getField());
-            curp = f.findLeafPage(tid, root, ipred.getField());
-        } else {
-            curp = f.findLeafPage(tid, root, null);
+        boolean seek = ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
+                || ipred.getOp() == Op.GREATER_THAN_OR_EQ;
+        BTreeLeafPage start = f.findLeafPage(tid, seek ? ipred.getField() : null);
+        readAhead = BTreeFile.leafReadAhead(ipred);
+        moveTo(start.getId());
+        // the first leaf is entered at the first matching key, found by
+        // binary search, rather than scanned from its first tuple
+        it = seek ? curp.iterator(ipred.getField(), ipred.getOp() == Op.GREATER_THAN) : curp.iterator();
+    }
+
+    /**
+     * Make the given leaf the current page; the iterator keeps the current
+     * page pinned
+     */
+    private void moveTo(BTreePageId pid) throws TransactionAbortedException, DbException {
+        BTreeLeafPage next = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+        unpinCurrent();
+        curp = next;
+        readAhead.accessed(curp);
+    }
+
+    private void unpinCurrent() {
+        if (curp != null) {
+            Database.getBufferPool().unpinPage(tid, curp.getId());
         }
-        it = curp.iterator();
     }
 
     /**
@@ -1634,7 +1885,6 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
             while (it.hasNext()) {
                 Tuple t = it.next();
                 if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-                    System.out.println("BTreeSearch: read: " + ((IntField) t.getField(f.keyField())).getValue() + " , page: " + curp.pid);
                     return t;
                 } else if (ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
                     // if the predicate was not satisfied and the operation is less than, we have
@@ -1653,9 +1903,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
             if (nextp == null) {
                 return null;
             } else {
-                System.out.println("BTreeSearch: readPage: " + nextp);
-                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-                        nextp, Permissions.READ_ONLY);
+                moveTo(nextp);
                 it = curp.iterator();
             }
         }
@@ -1677,5 +1925,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
     public void close() {
         super.close();
         it = null;
+        unpinCurrent();
+        curp = null;
+        readAhead = null;
     }
 }
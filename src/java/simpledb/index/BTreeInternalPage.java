@@ -437,6 +437,7 @@ public class BTreeInternalPage extends BTreePage {
         }
         children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
         keys[rid.getTupleNumber()] = e.getKey();
+        slotsChanged();
     }
 
     /**
@@ -609,6 +610,43 @@ public class BTreeInternalPage extends BTreePage {
             header[headerbyte] |= 1 << headerbit;
         else
             header[headerbyte] &= (0xFF ^ (1 << headerbit));
+        slotsChanged();
+    }
+
+    @Override
+    protected int firstKeySlot() {
+        // the first key slot is not used since a node with m keys has m+1 pointers
+        return 1;
+    }
+
+    @Override
+    protected int keySlots() {
+        return numSlots;
+    }
+
+    @Override
+    protected Field keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Finds the child to descend to in search of a key by binary search over
+     * the keys, without building any entry: the left child of the first
+     * entry whose key is greater than or equal to f, or the right child of
+     * the last entry if there is none.
+     *
+     * @param f - the key searched for, or null for the leftmost child
+     * @return the id of the child, or null if the page has no entries
+     */
+    public BTreePageId findChildId(Field f) {
+        int n = usedKeySlots();
+        if (n == 0) {
+            return null;
+        }
+        int p = f == null ? 0 : lowerBound(f, false);
+        // the left child of an entry is the right child of the one before it
+        int slot = p == 0 ? 0 : usedKeySlot(p - 1);
+        return new BTreePageId(pid.getTableId(), children[slot], childCategory);
     }
 
     /**
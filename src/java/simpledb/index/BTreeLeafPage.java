@@ -487,6 +487,22 @@ public class BTreeLeafPage extends BTreePage {
             header[headerbyte] |= 1 << headerbit;
         else
             header[headerbyte] &= (0xFF ^ (1 << headerbit));
+        slotsChanged();
+    }
+
+    @Override
+    protected int firstKeySlot() {
+        return 0;
+    }
+
+    @Override
+    protected int keySlots() {
+        return numSlots;
+    }
+
+    @Override
+    protected Field keyAt(int slot) {
+        return tuples[slot].getField(keyField);
     }
 
     /**
@@ -497,6 +513,17 @@ public class BTreeLeafPage extends BTreePage {
         return new BTreeLeafPageIterator(this);
     }
 
+    /**
+     * @param f      - the key to start from, found by binary search over the keys
+     * @param strict - whether to pass over the tuples with key f
+     * @return an iterator over the tuples on this page with keys greater than
+     * or equal to f, or greater than f if strict
+     */
+    public Iterator<Tuple> iterator(Field f, boolean strict) {
+        int p = lowerBound(f, strict);
+        return new BTreeLeafPageIterator(this, p == usedKeySlots() ? numSlots : usedKeySlot(p));
+    }
+
     /**
      * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
@@ -544,6 +571,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
         this.p = p;
     }
 
+    public BTreeLeafPageIterator(BTreeLeafPage p, int fromSlot) {
+        this.p = p;
+        this.curTuple = fromSlot;
+    }
+
     public boolean hasNext() {
         if (nextToReturn != null)
             return true;
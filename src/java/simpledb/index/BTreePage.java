@@ -4,11 +4,16 @@ import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.execution.Predicate.Op;
 import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
 import simpledb.storage.Page;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
+import java.util.Arrays;
+
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and
  * implements the Page interface that is used by BufferPool.
@@ -19,6 +24,7 @@ import simpledb.transaction.TransactionId;
 public abstract class BTreePage implements Page {
     protected volatile boolean dirty = false;
     protected volatile TransactionId dirtier = null;
+    private volatile long lsn;
 
     protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -30,6 +36,10 @@ public abstract class BTreePage implements Page {
     protected byte[] oldData;
     protected final Byte oldDataLock = (byte) 0;
 
+    // the used key slots in key order, for binary search; null after the
+    // slots or keys change until the next search rebuilds it
+    private SlotIndex slotIndex;
+
     /**
      * Create a BTreeInternalPage from a set of bytes of data read from disk.
      * The format of a BTreeInternalPage is a set of header bytes indicating
@@ -134,6 +144,127 @@ public abstract class BTreePage implements Page {
             return null;
     }
 
+    public long getLsn() {
+        return lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
+    /**
+     * The used key slots of a page in key order, and their keys as ints
+     * when the key field is an int, so that a search compares ints in an
+     * array. Immutable, so that pages read without locks can share it.
+     */
+    private static final class SlotIndex {
+        final int[] slots;
+        final int[] intKeys;
+
+        SlotIndex(int[] slots, int[] intKeys) {
+            this.slots = slots;
+            this.intKeys = intKeys;
+        }
+    }
+
+    /**
+     * @return the first slot that may hold a key
+     */
+    protected abstract int firstKeySlot();
+
+    /**
+     * @return the number of key slots, used or not
+     */
+    protected abstract int keySlots();
+
+    /**
+     * @return the key in a used slot
+     */
+    protected abstract Field keyAt(int slot);
+
+    /**
+     * Called when slots are filled or emptied, or their keys change.
+     */
+    protected void slotsChanged() {
+        slotIndex = null;
+    }
+
+    private SlotIndex slotIndex() {
+        SlotIndex index = slotIndex;
+        if (index == null) {
+            int[] slots = new int[keySlots()];
+            int n = 0;
+            for (int i = firstKeySlot(); i < slots.length; i++) {
+                if (isSlotUsed(i)) {
+                    slots[n++] = i;
+                }
+            }
+            slots = Arrays.copyOf(slots, n);
+            int[] intKeys = null;
+            if (td.getFieldType(keyField) == Type.INT_TYPE) {
+                intKeys = new int[n];
+                for (int i = 0; i < n; i++) {
+                    intKeys[i] = ((IntField) keyAt(slots[i])).getValue();
+                }
+            }
+            index = new SlotIndex(slots, intKeys);
+            slotIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * @return the number of used key slots
+     */
+    protected int usedKeySlots() {
+        return slotIndex().slots.length;
+    }
+
+    /**
+     * @return the i-th used key slot in key order
+     */
+    protected int usedKeySlot(int i) {
+        return slotIndex().slots[i];
+    }
+
+    /**
+     * Binary search over the keys of this page.
+     *
+     * @param f      the key searched for
+     * @param strict whether keys equal to f are passed over
+     * @return the position in key order of the first key that is greater
+     * than or equal to f, or greater than f if strict; the number of keys if
+     * there is none
+     */
+    protected int lowerBound(Field f, boolean strict) {
+        SlotIndex index = slotIndex();
+        int lo = 0;
+        int hi = index.slots.length;
+        if (index.intKeys != null) {
+            int v = ((IntField) f).getValue();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int k = index.intKeys[mid];
+                if (k < v || strict && k == v) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+        } else {
+            Op before = strict ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keyAt(index.slots[mid]).compare(before, f)) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+        }
+        return lo;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
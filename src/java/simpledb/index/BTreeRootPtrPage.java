@@ -19,6 +19,7 @@ public class BTreeRootPtrPage implements Page {
 
     private boolean dirty = false;
     private TransactionId dirtier = null;
+    private volatile long lsn;
 
     private final BTreePageId pid;
 
@@ -141,6 +142,14 @@ public class BTreeRootPtrPage implements Page {
             return null;
     }
 
+    public long getLsn() {
+        return lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Return a view of this page before it was modified
      * -- used by recovery
@@ -0,0 +1,184 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A SecondaryIndex is a B+ tree over one field of a heap file. Each tuple of
+ * the tree is an entry (key, page number, slot) that points to the heap
+ * tuple with that key, so that the tuples of the table with a given key can
+ * be found without a scan of the table.
+ * <p>
+ * Once it is in the catalog, the BufferPool keeps the index up to date as
+ * tuples are inserted into and deleted from the table, in the transaction
+ * that changes the table. The entries are locked and logged like the pages
+ * of any other B+ tree, so an index must be back in the catalog before
+ * recovery runs; the catalog does not remember it across a restart unless
+ * it is declared in the schema file (see {@link simpledb.common.Catalog#loadSchema}).
+ *
+ * @see simpledb.execution.IndexScan
+ */
+public class SecondaryIndex {
+
+    private final int tableid;
+    private final int keyField;
+    private final BTreeFile file;
+
+    /**
+     * Opens an index over a heap file. The index is not in the catalog until
+     * it is added with {@link simpledb.common.Catalog#addIndex}.
+     *
+     * @param tableid  - the id of the heap file
+     * @param keyField - the index of the field of the heap file to index
+     * @param f        - the file that backs the B+ tree
+     */
+    public SecondaryIndex(int tableid, int keyField, File f) {
+        this.tableid = tableid;
+        this.keyField = keyField;
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+        TupleDesc entryDesc = new TupleDesc(
+                new Type[]{td.getFieldType(keyField), Type.INT_TYPE, Type.INT_TYPE},
+                new String[]{td.getFieldName(keyField), "page", "slot"});
+        this.file = new BTreeFile(f, 0, entryDesc);
+    }
+
+    /**
+     * Builds an index over a field of a heap file from the tuples the file
+     * holds, and adds it to the catalog once it is built. The entries are
+     * sorted and bulk loaded; the table must not be updated while the index
+     * is built.
+     *
+     * @param tableid    - the id of the heap file
+     * @param keyField   - the index of the field of the heap file to index
+     * @param f          - the file to back the B+ tree, which must be empty
+     * @param fillFactor - the part of each page of the tree to fill, from 0.5 to 1
+     * @return the index
+     */
+    public static SecondaryIndex create(int tableid, int keyField, File f, double fillFactor)
+            throws DbException, TransactionAbortedException, IOException {
+        SecondaryIndex index = new SecondaryIndex(tableid, keyField, f);
+        // the pages of the tree are read through the catalog while it is loaded
+        Database.getCatalog().addIndexFile(index.file);
+
+        TransactionId tid = new TransactionId();
+        boolean loaded = false;
+        try {
+            List<Tuple> entries = new ArrayList<>();
+            DbFileIterator it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+            it.open();
+            while (it.hasNext()) {
+                entries.add(index.entry(it.next()));
+            }
+            it.close();
+            // a stable sort, so that the entries of a key stay in the order of the table
+            entries.sort(new BTreeFileEncoder.TupleComparator(0));
+            BTreeBulkLoader.load(index.file, new TupleIterator(index.file.getTupleDesc(), entries), fillFactor);
+            loaded = true;
+        } finally {
+            Database.getBufferPool().transactionComplete(tid);
+            if (!loaded) {
+                Database.getCatalog().removeIndexFile(index.file);
+                index.file.close();
+            }
+        }
+        Database.getCatalog().addIndex(index);
+        return index;
+    }
+
+    /**
+     * @return the id of the heap file this index is over
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the index of the field of the heap file this index is over
+     */
+    public int keyField() {
+        return keyField;
+    }
+
+    /**
+     * @return the B+ tree that holds the entries of the index
+     */
+    public BTreeFile getFile() {
+        return file;
+    }
+
+    /**
+     * @return the entry of the index that points to the given heap tuple
+     */
+    private Tuple entry(Tuple t) {
+        RecordId rid = t.getRecordId();
+        Tuple entry = new Tuple(file.getTupleDesc());
+        entry.setField(0, t.getField(keyField));
+        entry.setField(1, new IntField(rid.getPageId().getPageNumber()));
+        entry.setField(2, new IntField(rid.getTupleNumber()));
+        return entry;
+    }
+
+    /**
+     * @param entry - an entry of the index
+     * @return the record id of the heap tuple the entry points to
+     */
+    public RecordId recordId(Tuple entry) {
+        int pageNo = ((IntField) entry.getField(1)).getValue();
+        int slot = ((IntField) entry.getField(2)).getValue();
+        return new RecordId(new HeapPageId(tableid, pageNo), slot);
+    }
+
+    /**
+     * Adds the entry for a tuple that was inserted into the heap file.
+     *
+     * @param tid - the transaction that inserted the tuple
+     * @param t   - the tuple, with the record id it was given
+     * @return the pages of the index that were modified
+     */
+    public List<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        return file.insertTuple(tid, entry(t));
+    }
+
+    /**
+     * Removes the entry for a tuple that was deleted from the heap file.
+     *
+     * @param tid - the transaction that deleted the tuple
+     * @param t   - the tuple, with the record id it had
+     * @return the pages of the index that were modified, none if the tuple
+     * had no entry
+     */
+    public List<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        Tuple found = null;
+        DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, t.getField(keyField)));
+        it.open();
+        try {
+            while (found == null && it.hasNext()) {
+                Tuple entry = it.next();
+                if (recordId(entry).equals(rid)) {
+                    found = entry;
+                }
+            }
+        } finally {
+            it.close();
+        }
+        if (found == null) {
+            return Collections.emptyList();
+        }
+        return file.deleteTuple(tid, found);
+    }
+}
@@ -145,13 +145,18 @@ public class IntHistogram {
      * This is not an indispensable method to implement the basic
      * join optimization. It may be needed if you want to
      * implement a more efficient optimization
+     * <p>
+     * This is the selectivity of f = const for a const taken from the
+     * values in the histogram: a value in a bucket of height h is taken with
+     * a chance of h / ntups, and matches about (h / w) / ntups of the values.
      */
     public double avgSelectivity() {
-        int sum = 0;
+        if (ntups == 0) return 1.0;
+        double sum = 0;
         for (int i = 0; i < heights.length; i++) {
-            sum += heights[i];
+            sum += (double) heights[i] * heights[i] / interval;
         }
-        return sum / ntups;
+        return sum / ((double) ntups * ntups);
     }
 
     /**
@@ -3,6 +3,7 @@ package simpledb.optimizer;
 import simpledb.ParsingException;
 import simpledb.common.Database;
 import simpledb.execution.*;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.TupleDesc;
 
 import javax.swing.*;
@@ -65,12 +66,61 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p, plan1, plan2);
+        j = lj.indexJoin ? instantiateIndexJoin(p, plan1, plan2) : null;
+        if (j == null) {
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
     }
 
+    /**
+     * Returns an index nested-loops join of plan1 with plan2 if plan2 scans a
+     * table, possibly under filters, that has an index on the join field, or
+     * null if the join cannot be done that way. The filters of plan2 are
+     * applied to the joined tuples instead. Used for the joins that
+     * {@link #orderJoins} found cheaper to do through the index.
+     */
+    private static OpIterator instantiateIndexJoin(JoinPredicate p, OpIterator plan1, OpIterator plan2) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            return null;
+        }
+        List<Predicate> filters = new ArrayList<>();
+        OpIterator base = plan2;
+        while (base instanceof Filter) {
+            filters.add(((Filter) base).getPredicate());
+            base = ((Filter) base).getChildren()[0];
+        }
+        if (!(base instanceof SeqScan)) {
+            return null;
+        }
+        SeqScan scan = (SeqScan) base;
+        SecondaryIndex index = findIndex(Database.getCatalog().getTableId(scan.getTableName()), p.getField2());
+        if (index == null) {
+            return null;
+        }
+
+        OpIterator j = new IndexJoin(p, plan1, new IndexScan(scan.getTransactionId(), index, null, scan.getAlias()));
+        int shift = plan1.getTupleDesc().numFields();
+        for (Predicate f : filters) {
+            j = new Filter(new Predicate(f.getField() + shift, f.getOp(), f.getOperand()), j);
+        }
+        return j;
+    }
+
+    /**
+     * @return an index over the given field of a table, or null if there is none
+     */
+    private static SecondaryIndex findIndex(int tableid, int field) {
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableid)) {
+            if (index.keyField() == field) {
+                return index;
+            }
+        }
+        return null;
+    }
+
     /**
      * Estimate the cost of a join.
      * <p>
@@ -92,6 +142,23 @@ public class JoinOptimizer {
      * cost2
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2, double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, TableStats.getStatsMap(), true);
+    }
+
+    /**
+     * Estimate the cost of a join, as {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)}.
+     * <p>
+     * An equi-join whose right-hand side is a table with an index on the
+     * join field may be done as an index nested-loops join, which looks up
+     * each left-hand tuple in the index instead of scanning the table again;
+     * the cost is that of the cheaper of the two joins. See {@link #instantiateJoin}.
+     *
+     * @param stats        The table stats, referenced by table names, not alias
+     * @param rightIsTable Whether the right-hand side of the join is a base
+     *                     table, rather than the result of other joins
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2, double cost1, double cost2,
+                                    Map<String, TableStats> stats, boolean rightIsTable) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
@@ -101,11 +168,56 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
-            //TODO can be optimized
-            return card1 * card2 + card1 * cost2 + cost1;
+            return Math.min(nestedLoopsCost(card1, card2, cost1, cost2),
+                    indexJoinCost(j, card1, cost1, stats, rightIsTable));
         }
     }
 
+    // the cost of a nested-loops join, which scans the right-hand side once for each left-hand tuple
+    private static double nestedLoopsCost(int card1, int card2, double cost1, double cost2) {
+        //TODO can be optimized
+        return card1 * card2 + card1 * cost2 + cost1;
+    }
+
+    /**
+     * @return the cost of an index nested-loops join, or infinity if the
+     * right-hand side has no index on the join field
+     */
+    private double indexJoinCost(LogicalJoinNode j, int card1, double cost1,
+                                 Map<String, TableStats> stats, boolean rightIsTable) {
+        TableStats indexed = rightIsTable && !(j instanceof LogicalSubplanJoinNode) ? indexedStats(j, stats) : null;
+        if (indexed == null) {
+            return Double.POSITIVE_INFINITY;
+        }
+        // each lookup reads a page to descend the index and one for
+        // each right-hand tuple with the key
+        int field = Database.getCatalog().getTupleDesc(p.getTableId(j.t2Alias))
+                .indexForFieldName(j.f2PureName);
+        double lookup = indexed.estimateIndexScanCost(indexed.avgSelectivity(field, Predicate.Op.EQUALS));
+        return cost1 + card1 * lookup;
+    }
+
+    /**
+     * @return the statistics of the right-hand table of an equi-join if it
+     * has an index on the join field, or null if the join cannot use an index
+     */
+    private TableStats indexedStats(LogicalJoinNode j, Map<String, TableStats> stats) {
+        if (j.p != Predicate.Op.EQUALS || j.t2Alias == null || p.getTableId(j.t2Alias) == null) {
+            return null;
+        }
+        int tableid = p.getTableId(j.t2Alias);
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableid).indexForFieldName(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        if (findIndex(tableid, field) == null) {
+            return null;
+        }
+        return stats.get(Database.getCatalog().getTableName(tableid));
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -206,6 +318,9 @@ public class JoinOptimizer {
      */
     public List<LogicalJoinNode> orderJoins(Map<String, TableStats> stats, Map<String, Double> filterSelectivities, boolean explain) throws ParsingException {
         // Not necessary for labs 1 and 2.
+        if (joins.isEmpty()) {
+            return joins;
+        }
         CostCard bestCard = new CostCard();
         double bestCost;
         PlanCache planCache = new PlanCache();
@@ -280,6 +395,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // whether a side is the result of other joins rather than a table
+        boolean t1Joined = false, t2Joined = false;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new ArrayList<>();
@@ -305,6 +422,7 @@ public class JoinOptimizer {
 
             // estimate cost of right subtree
             if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
+                t1Joined = true;
                 t1cost = prevBestCost; // left side just has cost of whatever
                 // left
                 // subtree is
@@ -317,6 +435,7 @@ public class JoinOptimizer {
             } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
                 // (both
                 // shouldn't be)
+                t2Joined = true;
                 t2cost = prevBestCost; // left side just has cost of whatever
                 // left
                 // subtree is
@@ -334,19 +453,26 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, stats, !t2Joined);
+        boolean index1 = cost1 < nestedLoopsCost(t1card, t2card, t1cost, t2cost);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, stats, !t1Joined);
+        boolean index2 = cost2 < nestedLoopsCost(t2card, t1card, t2cost, t1cost);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
             cost1 = cost2;
+            index1 = index2;
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
         }
         if (cost1 >= bestCostSoFar) return null;
+        if (index1) {
+            // the join node may be in other plans, where it is done otherwise
+            j = j.asIndexJoin();
+        }
 
         CostCard cc = new CostCard();
 
@@ -37,6 +37,12 @@ public class LogicalJoinNode {
      */
     public Predicate.Op p;
 
+    /**
+     * Whether the join is done by looking up the tuples of t1 in an index on
+     * t2.f2, which the optimizer estimated to be cheaper than a nested-loops join
+     */
+    public boolean indexJoin;
+
     public LogicalJoinNode() {
     }
 
@@ -78,6 +84,16 @@ public class LogicalJoinNode {
         return new LogicalJoinNode(t2Alias, t1Alias, f2PureName, f1PureName, newp);
     }
 
+    /**
+     * Return a copy of this LogicalJoinNode to be done as an index
+     * nested-loops join.
+     */
+    public LogicalJoinNode asIndexJoin() {
+        LogicalJoinNode j = new LogicalJoinNode(t1Alias, t2Alias, f1PureName, f2PureName, p);
+        j.indexJoin = true;
+        return j;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof LogicalJoinNode)) return false;
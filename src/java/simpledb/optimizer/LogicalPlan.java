@@ -5,6 +5,7 @@ import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -333,6 +334,10 @@ public class LogicalPlan {
 
         }
 
+        Map<String, List<Predicate>> aliasPredicates = new LinkedHashMap<>();
+        Map<String, OpIterator> accessPaths = new HashMap<>();
+        Map<String, Double> accessCosts = new HashMap<>();
+        Map<String, Predicate> accessPredicates = new HashMap<>();
         for (LogicalFilterNode lf : filters) {
             OpIterator subplan = subplanMap.get(lf.tableAlias);
             if (subplan == null) {
@@ -359,16 +364,42 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            aliasPredicates.computeIfAbsent(lf.tableAlias, k -> new ArrayList<>()).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
             double sel = s.estimateSelectivity(subplan.getTupleDesc().indexForFieldName(lf.fieldQuantifiedName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
+            // an index on the field may read fewer pages than a scan of the table
+            if (lf.p != Predicate.Op.NOT_EQUALS && lf.p != Predicate.Op.LIKE) {
+                double cost = s.estimateIndexScanCost(sel);
+                for (SecondaryIndex index : Database.getCatalog().getIndexes(this.getTableId(lf.tableAlias))) {
+                    if (index.keyField() == p.getField() && cost < s.estimateScanCost()
+                            && (!accessCosts.containsKey(lf.tableAlias) || cost < accessCosts.get(lf.tableAlias))) {
+                        accessCosts.put(lf.tableAlias, cost);
+                        accessPaths.put(lf.tableAlias, new IndexScan(t, index,
+                                new IndexPredicate(lf.p, f), lf.tableAlias));
+                        accessPredicates.put(lf.tableAlias, p);
+                    }
+                }
+            }
+
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
 
+        // the chosen access path of each table, with the filters it does not apply above it
+        for (Map.Entry<String, List<Predicate>> e : aliasPredicates.entrySet()) {
+            String alias = e.getKey();
+            OpIterator subplan = accessPaths.containsKey(alias) ? accessPaths.get(alias) : subplanMap.get(alias);
+            for (Predicate p : e.getValue()) {
+                if (p != accessPredicates.get(alias)) {
+                    subplan = new Filter(p, subplan);
+                }
+            }
+            subplanMap.put(alias, subplan);
+        }
+
         JoinOptimizer jo = new JoinOptimizer(this, joins);
 
         joins = jo.orderJoins(statsMap, filterSelectivities, explain);
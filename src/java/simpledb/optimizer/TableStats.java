@@ -202,8 +202,8 @@ public class TableStats {
                 throw new RuntimeException(e);
             }
         }
-
-
+        // releases the pin on the last page; there is no transaction to do it
+        iterator.close();
     }
 
     /**
@@ -222,6 +222,20 @@ public class TableStats {
         return pageNum * ioCostPerPage;
     }
 
+    /**
+     * Estimates the cost of reading the tuples that match a predicate of the
+     * given selectivity through a secondary index on the predicate's field,
+     * with the same assumptions as estimateScanCost. The descent of the
+     * index costs a page read, and as the index is not clustered, so does
+     * each matching tuple.
+     *
+     * @param selectivity The selectivity of the predicate the index is scanned with
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(double selectivity) {
+        return (1 + tupleNum * selectivity) * ioCostPerPage;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -0,0 +1,61 @@
+package simpledb.storage;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * AccessBuffer queues the hits reported to an eviction policy that keeps its
+ * state under a lock, so that a hit never waits for that lock. The policy
+ * replays the queued hits, in order, whenever it takes its lock anyway, and
+ * once the queue grows past its limit; eviction decisions therefore always
+ * see every hit that came before them.
+ *
+ * @Threadsafe
+ */
+final class AccessBuffer {
+
+    /**
+     * The number of queued hits past which the thread reporting one replays them
+     */
+    static final int DEFAULT_LIMIT = 64;
+
+    private final Queue<PageId> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final int limit;
+
+    AccessBuffer() {
+        this(DEFAULT_LIMIT);
+    }
+
+    AccessBuffer(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Queues a hit without taking any lock.
+     *
+     * @return true if the queue is full and the caller should take the lock
+     * of the policy and {@link #drain} it; only one caller at a time is asked to
+     */
+    boolean add(PageId pid) {
+        pending.add(pid);
+        return size.incrementAndGet() >= limit && draining.compareAndSet(false, true);
+    }
+
+    /**
+     * Replays the queued hits in the order they were reported. Must be called
+     * with the lock of the policy held.
+     */
+    void drain(Consumer<PageId> access) {
+        PageId pid;
+        while ((pid = pending.poll()) != null) {
+            size.decrementAndGet();
+            access.accept(pid);
+        }
+        draining.set(false);
+    }
+}
@@ -2,11 +2,15 @@ package simpledb.storage;
 
 import simpledb.Debug;
 import simpledb.common.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.SecondaryIndex;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -16,26 +20,34 @@ import java.util.*;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * A page that is pinned stays in the pool until it is unpinned. Pins belong to
+ * a transaction, like locks, and whatever a transaction still has pinned is
+ * unpinned when it commits or aborts.
+ * <p>
+ * A read-only transaction that began a snapshot takes no locks at all; its
+ * pages come from the {@link VersionStore} as they were when it began.
  *
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
-    /**
-     * Bytes per page, including header.
-     */
-    private static final int DEFAULT_PAGE_SIZE = 4096;
+    private final PageTable pageTable;
+
+    private final PageWriter pageWriter;
+
+    private final Prefetcher prefetcher;
 
-    private static int pageSize = DEFAULT_PAGE_SIZE;
+    private final VersionStore versions;
 
-    private List<Page> pages;
-    private LRUCache<PageId, Page> LRUCache;
+    // the pages each transaction has pinned, in the order it pinned them
+    private final Map<TransactionId, List<PageId>> pins = new ConcurrentHashMap<>();
 
     /**
      * Default number of pages passed to the constructor. This is used by
      * other classes. BufferPool should use the numPages argument to the
      * constructor instead.
      */
-    public static final int DEFAULT_PAGES = 50;
+    public static final int DEFAULT_PAGES = Config.DEFAULT_POOL_PAGES;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -43,34 +55,40 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-        pages = new ArrayList<>(numPages);
-        LRUCache = new LRUCache<>(numPages);
+        this(numPages, new LruPolicy());
     }
 
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts them
+     * according to the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy   the eviction policy, e.g. {@link TwoQueuePolicy} to keep
+     *                 hot pages resident across large sequential scans
+     */
+    public BufferPool(int numPages, EvictionPolicy policy) {
+        pageTable = new PageTable(numPages, policy);
+        pageWriter = new PageWriter(this, pageTable);
+        prefetcher = new Prefetcher(pageTable);
+        versions = new VersionStore(this);
+    }
+
+    /**
+     * @return bytes per page, including header, of the current database
+     * @see Database#getPageSize()
+     */
     public static int getPageSize() {
-        return pageSize;
+        return Database.getPageSize();
     }
 
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void setPageSize(int pageSize) {
-        BufferPool.pageSize = pageSize;
+        Database.setPageSize(pageSize);
     }
 
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void resetPageSize() {
-        BufferPool.pageSize = DEFAULT_PAGE_SIZE;
-    }
-
-    public Page getNotFullPageFromCache(int tableid) throws DbException {
-        Set<PageId> ids = LRUCache.getIds();
-        for (PageId id : ids) {
-            if (id.getTableId() == tableid) {
-                HeapPage page = (HeapPage) getPage(id);
-                if (!page.isFull())
-                    return page;
-            }
-        }
-        return null;
+        Database.setPageSize(Config.get().getPageSize());
     }
 
     /**
@@ -89,9 +107,13 @@ public class BufferPool {
      * @param perm the requested permissions on the page
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, DbException {
+        if (versions.isSnapshot(tid)) {
+            if (perm == Permissions.READ_WRITE) {
+                throw new DbException("read-only transaction " + tid + " cannot write " + pid);
+            }
+            return versions.read(tid, pid);
+        }
         // try to get the lock
-        System.out.println("BufferPool get page: " + pid.getPageNumber() + " perm: " + perm + " tid: " + tid);
-//        System.out.println(LRUCache.toString());
         try {
             Database.getLockManager().acquireLock(tid, pid, perm);
         } catch (DeadlockException e) {
@@ -99,22 +121,12 @@ public class BufferPool {
         }
 
         // get the page by catch or disk
-        Page page = LRUCache.get(pid);
+        Page page = pageTable.get(pid);
         // the removed page
         Page remove = null;
-//        System.out.println("BufferPool: " + LRUCache);
         if (page == null) {
 //            System.out.println("BufferPool: From Disk get page: " + pid + " perm: " + perm + " tid: " + tid);
-            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            // add the Page to Map
-            remove = LRUCache.put(page.getId(), page);
-            if (remove != null) {
-                try {
-                    flushPage(remove);
-                } catch (IOException e) {
-                    throw new DbException("IO exception");
-                }
-            }
+            page = readMissing(pid);
         } else {
 //            System.out.println("BufferPool: From Catch get page: " + pid + " perm: " + perm + " tid: " + tid);
         }
@@ -135,22 +147,147 @@ public class BufferPool {
 
     // internal use, no lock
     public Page getPage(PageId pid) throws DbException {
-        System.out.println("BufferPool get page: " + pid);
-//        System.out.println(LRUCache.toString());
-        if (LRUCache.containsKey(pid)) {
-//            System.out.println("BufferPool: " + "get from catch, catchSize: " + LRUCache.getSize());
-            return LRUCache.get(pid);
+        Page cached = pageTable.get(pid);
+        if (cached != null) {
+            return cached;
         }
 //        System.out.println("BufferPool: " + "fail to get from catch");
-        Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-        Page remove = LRUCache.put(page.getId(), page);
+        return readMissing(pid);
+    }
 
+    // reads a page that is not resident and adds it to the pool
+    private Page readMissing(PageId pid) throws DbException {
+        return prefetcher.read(pid, page -> {
+            try {
+                install(page);
+            } catch (IOException e) {
+                throw new DbException("IO Exception");
+            }
+        });
+    }
+
+    // puts a page in the pool and writes out the page it replaced, if any
+    private void install(Page page) throws DbException, IOException {
+        Page remove;
         try {
-            if (remove != null && remove.isDirty() != null) flushPage(remove);
-        } catch (IOException e) {
-            throw new DbException("IO Exception");
+            remove = pageTable.put(page.getId(), page);
+        } catch (IllegalStateException e) {
+            throw new DbException("buffer pool is full: every page is pinned");
         }
-        return page;
+        evicted(remove);
+    }
+
+    /**
+     * Retrieves a page as {@link #getPage(TransactionId, PageId, Permissions)}
+     * does and pins it, so that it is not evicted until
+     * {@link #unpinPage} is called or the transaction completes.
+     *
+     * @throws DbException if the page is not resident and every page in the
+     *                     pool is pinned
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (versions.isSnapshot(tid)) {
+            // snapshot images are not in the pool, so there is nothing to pin
+            return getPage(tid, pid, perm);
+        }
+        while (true) {
+            Page page = getPage(tid, pid, perm);
+            if (pin(tid, page)) {
+                return page;
+            }
+            // evicted before it could be pinned; get it again
+        }
+    }
+
+    // internal use, no lock; the pin still belongs to tid
+    public Page pinPage(TransactionId tid, PageId pid) throws DbException {
+        if (versions.isSnapshot(tid)) {
+            return versions.read(tid, pid);
+        }
+        while (true) {
+            Page page = getPage(pid);
+            if (pin(tid, page)) {
+                return page;
+            }
+        }
+    }
+
+    private boolean pin(TransactionId tid, Page page) {
+        if (!pageTable.pin(page)) {
+            return false;
+        }
+        if (tid != null) {
+            List<PageId> pinned = pins.computeIfAbsent(tid, t -> new ArrayList<>());
+            synchronized (pinned) {
+                pinned.add(page.getId());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Releases one pin a transaction holds on a page. Does nothing if the
+     * transaction has no pin on the page.
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        if (tid != null) {
+            List<PageId> pinned = pins.get(tid);
+            if (pinned == null) {
+                return;
+            }
+            synchronized (pinned) {
+                int i = pinned.lastIndexOf(pid);
+                if (i < 0) {
+                    return;
+                }
+                pinned.remove(i);
+            }
+        }
+        pageTable.unpin(pid);
+    }
+
+    /**
+     * @return the number of pins a transaction holds; see {@link #unpinAbove}
+     */
+    public int getPinDepth(TransactionId tid) {
+        List<PageId> pinned = pins.get(tid);
+        if (pinned == null) {
+            return 0;
+        }
+        synchronized (pinned) {
+            return pinned.size();
+        }
+    }
+
+    /**
+     * Releases the pins a transaction took after {@link #getPinDepth}
+     * returned the given depth, e.g. at the end of an operation that kept
+     * the pages it changed pinned.
+     */
+    public void unpinAbove(TransactionId tid, int depth) {
+        List<PageId> pinned = pins.get(tid);
+        if (pinned == null) {
+            return;
+        }
+        List<PageId> released;
+        synchronized (pinned) {
+            if (pinned.size() <= depth) {
+                return;
+            }
+            List<PageId> above = pinned.subList(depth, pinned.size());
+            released = new ArrayList<>(above);
+            above.clear();
+        }
+        for (PageId pid : released) {
+            pageTable.unpin(pid);
+        }
+    }
+
+    // releases every pin a completing transaction still holds
+    private void releasePins(TransactionId tid) {
+        unpinAbove(tid, 0);
+        pins.remove(tid);
     }
 
     /**
@@ -169,41 +306,171 @@ public class BufferPool {
 
     /**
      * Release all locks associated with a given transaction.
+     * <p>
+     * If the update records of the transaction cannot be forced to the log,
+     * none of its pages is written: the transaction is rolled back and
+     * aborted instead, and the failure is thrown.
      *
      * @param tid the ID of the transaction requesting the unlock
+     * @throws UncheckedIOException if the log could not be forced
      */
     public void transactionComplete(TransactionId tid) {
         System.out.println("transactionComplete");
+        releasePins(tid);
+        versions.endSnapshot(tid);
         Set<PageId> markPages = Database.getLockManager().getMarkPages(tid);
         if (markPages == null) {
-            Database.getLockManager().removeTxnMark(tid);
+            Database.getLockManager().releaseAll(tid);
             return;
         }
+        // keep the images open snapshots still read before any is replaced;
+        // the pages the transaction changed tuples of stay resident meanwhile
+        boolean rowsChanged = pinRowPages(tid, markPages);
+        versions.commitStart(tid, markPages);
+        unpinAbove(tid, 0);
+        try {
+            // one force covers the update records of every page, and is
+            // shared with the transactions committing at the same time
+            long lsn = logUpdates(tid, markPages);
+            if (rowsChanged) {
+                // tuple changes were logged as they were made
+                lsn = Math.max(lsn, Database.getLogFile().logEnd() - 1);
+            }
+            if (lsn >= 0) {
+                Database.getLogFile().groupForceTo(tid, lsn);
+            }
+        } catch (IOException e) {
+            // pages whose records are not on disk must not reach it
+            versions.commitEnd(tid);
+            try {
+                Database.getLogFile().logAbort(tid);
+            } catch (IOException | NoSuchElementException rollbackFailure) {
+                e.addSuppressed(rollbackFailure);
+            }
+            transactionAbort(tid);
+            throw new UncheckedIOException("commit of " + tid + " failed", e);
+        }
+        // each lock is held until its page is written, so the next
+        // transaction sees the committed page
         for (PageId pid : markPages) {
-            unsafeReleasePage(tid, pid);
             try {
                 Page page = Database.getBufferPool().getPage(pid);
                 if (page.isDirty() != null) {
-                    flushPage(page);
+                    writeLogged(page);
                 }
                 // use current page contents as the before-image
                 // for the next transaction that modifies this page.
-                page.setBeforeImage();
+                if (page instanceof HeapPage) {
+                    // its tuple changes are committed with it
+                    ((HeapPage) page).rowsEnded(tid);
+                } else {
+                    page.setBeforeImage();
+                }
             } catch (IOException e) {
                 System.out.println("warning, IOException");
             } catch (DbException e) {
                 System.out.println("warning, DbException");
             }
+            unsafeReleasePage(tid, pid);
         }
-        Database.getLockManager().removeTxnMark(tid);
+        versions.commitEnd(tid);
+        Database.getLockManager().releaseAll(tid);
 //        System.out.println("transactionComplete " + "tid: " + tid.toString());
     }
 
+    // pins the pages the transaction changed tuples of; false if there are none
+    private boolean pinRowPages(TransactionId tid, Set<PageId> pids) {
+        boolean pinned = false;
+        for (PageId pid : pids) {
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            if (file instanceof HeapFile && ((HeapFile) file).hasRowChanges(tid, pid.getPageNumber())) {
+                try {
+                    pinPage(tid, pid);
+                } catch (DbException e) {
+                    System.out.println("warning, DbException");
+                }
+                pinned = true;
+            }
+        }
+        return pinned;
+    }
+
+    /**
+     * Appends an update record for each of the given pages that is dirty,
+     * without forcing the log. Pages that log their changes as they are made
+     * need none.
+     *
+     * @return the LSN of the last record, or -1 if no page was dirty
+     */
+    private synchronized long logUpdates(TransactionId tid, Set<PageId> pids) throws IOException {
+        long lsn = -1;
+        for (PageId pid : pids) {
+            Page p = pageTable.get(pid);
+            if (p != null && p.isDirty() != null && !p.logsChanges()) {
+                versions.beforeWrite(p.isDirty(), p);
+                lsn = Database.getLogFile().logWrite(p.isDirty(), p.getBeforeImage(), p, p.getPageData());
+            }
+        }
+        return lsn;
+    }
+
+    // writes a page whose update record is already on disk
+    private synchronized void writeLogged(Page p) throws IOException {
+        pageWriter.awaitBatch();
+        if (pageTable.get(p.getId()) != p) {
+            if (p.logsChanges()) {
+                // written out with its changes when it was dropped
+                return;
+            }
+            // written out and dropped since it was logged; log it again
+            flushPage(p);
+            return;
+        }
+        if (p.logsChanges()) {
+            long version = pageTable.version(p);
+            writeChangesLogged(p);
+            pageTable.removeIfUnchanged(p.getId(), version);
+            return;
+        }
+        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+        pageTable.removeIfUnpinned(p.getId());
+    }
+
+    // writes a page whose tuple changes were rolled back, and logged so; if
+    // the log cannot be forced, the page stays dirty in the pool instead
+    private synchronized void writeRolledBack(Page p) {
+        pageWriter.awaitBatch();
+        try {
+            writeChangesLogged(p);
+        } catch (IOException e) {
+            System.out.println("warning, IOException");
+        }
+    }
+
+    /**
+     * Writes out a page that logs its changes as they are made (see
+     * {@link Page#logsChanges}) once the log is on disk up to its page LSN.
+     * The image and the LSN are taken together under the page latch, so the
+     * LSN covers every change the image holds.
+     */
+    private void writeChangesLogged(Page p) throws IOException {
+        byte[] image;
+        long lsn;
+        synchronized (p) {
+            image = p.getPageData();
+            lsn = p.getLsn();
+        }
+        if (lsn > 0) {
+            Database.getLogFile().forceTo(lsn);
+        }
+        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p.getId(), image, lsn);
+    }
+
     /**
      * Return true if the specified transaction has a lock on the specified page
      */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        return true;
+        return Database.getLockManager().holdsLock(tid, p);
     }
 
     /**
@@ -233,12 +500,42 @@ public class BufferPool {
 
     public void transactionAbort(TransactionId tid) {
         System.out.println("Transaction: abort begin " + tid);
+        releasePins(tid);
+        versions.endSnapshot(tid);
         Set<PageId> markPages = Database.getLockManager().getMarkPages(tid);
         for (PageId pid : markPages) {
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            boolean keep = false;
+            if (file instanceof HeapFile && ((HeapFile) file).hasRowChanges(tid, pid.getPageNumber())) {
+                // the page in the pool holds the rollback of the tuple
+                // changes, beside the changes of other transactions
+                try {
+                    HeapPage page = (HeapPage) getPage(pid);
+                    ((HeapFile) file).rowsAborted(tid, page);
+                    // the rollback reaches the disk, as a commit does
+                    writeRolledBack(page);
+                } catch (DbException | IOException e) {
+                    throw new RuntimeException("could not roll back " + pid + " for " + tid, e);
+                }
+                keep = true;
+            }
+            Page resident = pageTable.peek(pid);
+            if (!keep && (resident == null || !resident.logsChanges())) {
+                // drop the aborted page before a waiter can be granted it
+                pageTable.remove(pid);
+            }
+            if (file instanceof HeapFile) {
+                // the page goes back to its state on disk, which may have room again
+                ((HeapFile) file).getFreeSpaceMap().recordPage(pid.getPageNumber(), true);
+            } else if (file instanceof BTreeFile) {
+                // a split or merge the transaction made may be undone
+                ((BTreeFile) file).structureReverted();
+            }
             unsafeReleasePage(tid, pid);
-            LRUCache.remove(pid);
         }
-        Database.getLockManager().removeTxnMark(tid);
+        // the rollback put the committed images back on disk
+        versions.aborted(tid);
+        Database.getLockManager().releaseAll(tid);
 //        System.out.println("Transaction: notify " + tid + " " + Database.getLockManager());
 //        System.out.println("Transaction: abort end " + tid);
     }
@@ -275,12 +572,23 @@ public class BufferPool {
      * @param t       the tuple to add
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t) throws DbException, IOException, TransactionAbortedException {
+        checkWritable(tid);
 //        Debug.printTxn(tid, "insert begin");
-        List<Page> modifiedPages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
-        for (Page page : modifiedPages) {
-            Page remove = LRUCache.put(page.getId(), page);
-            if (remove != null) {
-                flushPage(remove);
+        // a heap file leaves the page it changed pinned, so that it is not
+        // dropped and read again before it is put back
+        int depth = getPinDepth(tid);
+        try {
+            List<Page> modifiedPages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
+            for (Page page : modifiedPages) {
+                install(page);
+            }
+        } finally {
+            unpinAbove(tid, depth);
+        }
+        // the table first, then its indexes, so that writers lock in one order
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            for (Page page : index.insertTuple(tid, t)) {
+                install(page);
             }
         }
     }
@@ -299,15 +607,30 @@ public class BufferPool {
      * @param t   the tuple to delete
      */
     public void deleteTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
-        List<Page> modifiedPages = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t);
-        for (Page page : modifiedPages) {
-            Page remove = LRUCache.put(page.getId(), page);
-            if (remove != null) {
-                flushPage(remove);
+        checkWritable(tid);
+        int tableId = t.getRecordId().getPageId().getTableId();
+        int depth = getPinDepth(tid);
+        try {
+            List<Page> modifiedPages = Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
+            for (Page page : modifiedPages) {
+                install(page);
+            }
+        } finally {
+            unpinAbove(tid, depth);
+        }
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            for (Page page : index.deleteTuple(tid, t)) {
+                install(page);
             }
         }
     }
 
+    private void checkWritable(TransactionId tid) throws DbException {
+        if (versions.isSnapshot(tid)) {
+            throw new DbException("read-only transaction " + tid + " cannot write");
+        }
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
@@ -315,8 +638,8 @@ public class BufferPool {
      */
     public synchronized void flushAllPages() throws IOException {
         System.out.println("flushAllPages");
-        System.out.println(Database.getBufferPool().LRUCache);
-        Iterator<Page> it = LRUCache.valueIterator();
+        System.out.println(pageTable);
+        Iterator<Page> it = pageTable.pages().iterator();
         while (it.hasNext()) {
             Page p = it.next();
             if (p.isDirty() != null) {
@@ -324,7 +647,7 @@ public class BufferPool {
                 //TODO release the page
             }
         }
-        System.out.println("After flushAllPages: " + LRUCache);
+        System.out.println("After flushAllPages: " + pageTable);
     }
 
     /**
@@ -337,7 +660,7 @@ public class BufferPool {
      * are removed from the cache so they can be reused safely
      */
     public synchronized void removePage(PageId pid) {
-        LRUCache.remove(pid);
+        pageTable.remove(pid);
     }
 
     /**
@@ -346,36 +669,54 @@ public class BufferPool {
      * @param pid an ID indicating the page to flush
      */
     private synchronized void flushPage(PageId pid) throws IOException {
+        pageWriter.awaitBatch();
 //        System.out.println("BufferPool: flush " + pid);
-        Page p = LRUCache.get(pid);
+        Page p = pageTable.get(pid);
         if (p == null) {
             return;
         }
-        if (p.isDirty() != null) {
-            TransactionId dirtier = p.isDirty();
-            if (dirtier != null) {
-                Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
-                Database.getLogFile().force();
-            }
+        if (p.logsChanges()) {
+            // changed by other transactions while it is written, it stays
+            long version = pageTable.version(p);
+            writeChangesLogged(p);
+            pageTable.removeIfUnchanged(pid, version);
+            return;
         }
-        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
-        LRUCache.remove(pid);
+        writeOut(p);
+        // a pinned page stays, now matching the disk
+        pageTable.removeIfUnpinned(pid);
     }
 
     private synchronized void flushPage(Page p) throws IOException {
+        pageWriter.awaitBatch();
         System.out.println("BufferPool: flush " + p.getId().getPageNumber());
 
-        // append an update record to the log, with
-        // a before-image and after-image.
-        if (p.isDirty() != null) {
-            TransactionId dirtier = p.isDirty();
-            if (dirtier != null) {
-                Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
-                Database.getLogFile().force();
+        if (p.logsChanges()) {
+            long version = pageTable.version(p);
+            writeChangesLogged(p);
+            if (version >= 0) {
+                pageTable.removeIfUnchanged(p.getId(), version);
             }
+            return;
         }
-        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
-        LRUCache.remove(p.getId());
+        writeOut(p);
+        pageTable.removeIfUnpinned(p.getId());
+    }
+
+    // appends an update record to the log, with a before-image and
+    // after-image, and writes the image it holds
+    private void writeOut(Page p) throws IOException {
+        // the image is taken first, without the lock on the log
+        byte[] image = p.getPageData();
+        long lsn = p.getLsn();
+        TransactionId dirtier = p.isDirty();
+        if (dirtier != null) {
+            versions.beforeWrite(dirtier, p);
+            LogFile log = Database.getLogFile();
+            lsn = log.logWrite(dirtier, p.getBeforeImage(), p, image);
+            log.forceTo(lsn);
+        }
+        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p.getId(), image, lsn);
     }
 
     /**
@@ -388,8 +729,55 @@ public class BufferPool {
         }
     }
 
-    public simpledb.storage.LRUCache<PageId, Page> getLRUCache() {
-        return LRUCache;
+    public PageTable getPageTable() {
+        return pageTable;
+    }
+
+    /**
+     * @return the background writer that cleans pages before they are evicted
+     */
+    public PageWriter getPageWriter() {
+        return pageWriter;
+    }
+
+    /**
+     * @return the store of older page images read by snapshots
+     */
+    public VersionStore getVersionStore() {
+        return versions;
+    }
+
+    /**
+     * @return the prefetcher that reads pages ahead of sequential scans
+     */
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Writes out a page the page table evicted to make room, if it is dirty;
+     * clean pages match the disk and are simply dropped.
+     *
+     * @param victim the evicted page, or null if nothing was evicted
+     */
+    private void evicted(Page victim) throws IOException {
+        if (victim != null && victim.isDirty() != null) {
+            pageWriter.recordForegroundWrite();
+            try {
+                flushPage(victim);
+            } finally {
+                pageTable.writtenBack(victim);
+            }
+        }
+        pageWriter.poolChanged();
+    }
+
+    /**
+     * Stops the background writer and the prefetcher. Pages are not flushed.
+     */
+    public void close() {
+        prefetcher.shutdown();
+        pageWriter.shutdown();
     }
 
     /**
@@ -31,6 +31,17 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Push an image of the specified page to disk, taken when the page was
+     * logged, in place of the page itself, which may have changed since.
+     *
+     * @param pid  The id of the page the image belongs to
+     * @param data The image, as returned by {@link Page#getPageData()}
+     * @param lsn  The page LSN of the image, or 0 if it was not logged
+     * @throws IOException if the write fails
+     */
+    void writePage(PageId pid, byte[] data, long lsn) throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -92,4 +103,13 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     TupleDesc getTupleDesc();
+
+    /**
+     * Closes the files this DbFile keeps open. They are reopened by the next
+     * read or write, so a closed DbFile remains usable.
+     *
+     * @throws IOException if a file cannot be closed
+     */
+    default void close() throws IOException {
+    }
 }
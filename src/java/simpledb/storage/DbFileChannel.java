@@ -0,0 +1,108 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * DbFileChannel is the page I/O layer shared by the DbFile implementations.
+ * It keeps one FileChannel open for the lifetime of its DbFile and performs
+ * positional reads and writes on it, so a page miss or flush costs a single
+ * pread/pwrite instead of an open, seek and close.
+ * <p>
+ * Positional calls do not move a shared file pointer, so concurrent page I/O
+ * needs no locking. The channel is opened lazily and reopened if it was
+ * closed, e.g. by {@link #close()} or because an I/O thread was interrupted.
+ *
+ * @Threadsafe
+ */
+public class DbFileChannel {
+
+    private final File file;
+    private volatile FileChannel channel;
+
+    /**
+     * @param file the file backing the DbFile; created on first write if missing
+     */
+    public DbFileChannel(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null || !ch.isOpen()) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null || !ch.isOpen()) {
+                    ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Reads up to dst.length bytes starting at the given file offset.
+     *
+     * @return the number of bytes read, which is less than dst.length only at end of file
+     */
+    public int read(byte[] dst, long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(dst);
+        FileChannel ch = channel();
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position + buf.position());
+            if (n < 0) {
+                break;
+            }
+        }
+        return buf.position();
+    }
+
+    /**
+     * Writes all of src at the given file offset, growing the file if needed.
+     */
+    public void write(byte[] src, long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(src);
+        FileChannel ch = channel();
+        while (buf.hasRemaining()) {
+            ch.write(buf, position + buf.position());
+        }
+    }
+
+    /**
+     * Appends src to the end of the file.
+     *
+     * @return the offset at which src was written
+     */
+    public synchronized long append(byte[] src) throws IOException {
+        long position = size();
+        write(src, position);
+        return position;
+    }
+
+    public long size() throws IOException {
+        return channel().size();
+    }
+
+    /**
+     * Forces written pages to the storage device.
+     */
+    public void force() throws IOException {
+        channel().force(false);
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
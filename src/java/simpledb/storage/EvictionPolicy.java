@@ -0,0 +1,108 @@
+package simpledb.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * EvictionPolicy decides which resident page the PageTable gives up when it
+ * needs room for a new one. The PageTable reports every hit, install,
+ * eviction and explicit removal; the policy only tracks page ids and never
+ * touches the pages themselves.
+ * <p>
+ * Implementations must be thread-safe, and must ignore accesses to ids they
+ * are not tracking: a hit can race with the removal of the same page.
+ *
+ * @see PageTable
+ * @see BufferPool#BufferPool(int, EvictionPolicy)
+ */
+public interface EvictionPolicy {
+
+    /**
+     * A resident page was looked up. Called on every hit of the PageTable,
+     * so it should not take a lock the other methods hold; see {@link AccessBuffer}.
+     */
+    void recordAccess(PageId pid);
+
+    /**
+     * A page became resident.
+     */
+    void recordInsert(PageId pid);
+
+    /**
+     * A page became resident because it was read ahead of its use. It has
+     * not been referenced yet, so the first access after it should count as
+     * its first reference.
+     */
+    default void recordPrefetch(PageId pid) {
+        recordInsert(pid);
+    }
+
+    /**
+     * A resident page was chosen by {@link #chooseVictim()} and evicted.
+     */
+    void recordEvict(PageId pid);
+
+    /**
+     * A resident page was dropped by the BufferPool, e.g. after a flush or abort.
+     */
+    void recordRemove(PageId pid);
+
+    /**
+     * Pick the page that should be evicted next, without forgetting it.
+     *
+     * @return the id of the victim, or null if no page is tracked
+     */
+    default PageId chooseVictim() {
+        return chooseVictim(pid -> true);
+    }
+
+    /**
+     * Pick the coldest page that evictable accepts, without forgetting it.
+     * The pages are offered in eviction order, and the walk stops at the
+     * first one accepted, so that skipping a few pinned pages costs no more
+     * than looking at them.
+     *
+     * @param evictable called under the lock of the policy; it must not call
+     *                  back into the policy
+     * @return the id of the victim, or null if no tracked page is accepted
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+
+    /**
+     * Returns up to n pages in the order the policy would evict them, coldest
+     * first, without forgetting any of them. Used by the {@link PageWriter}
+     * to clean pages before they are evicted.
+     */
+    default List<PageId> coldest(int n) {
+        List<PageId> pids = new ArrayList<>();
+        if (n > 0) {
+            chooseVictim(pid -> {
+                pids.add(pid);
+                return pids.size() >= n;
+            });
+        }
+        return pids;
+    }
+
+    /**
+     * Returns the policy with the given name: "lru", "2q" or "lru-k".
+     *
+     * @param name     the policy name, case insensitive
+     * @param capacity the number of pages in the buffer pool
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    static EvictionPolicy forName(String name, int capacity) {
+        switch (name.toLowerCase()) {
+            case "lru":
+                return new LruPolicy();
+            case "2q":
+                return new TwoQueuePolicy(capacity);
+            case "lru-k":
+            case "lru-2":
+                return new LruKPolicy(2, capacity);
+            default:
+                throw new IllegalArgumentException("unknown eviction policy: " + name);
+        }
+    }
+}
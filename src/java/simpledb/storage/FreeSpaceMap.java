@@ -0,0 +1,173 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records which pages of a HeapFile have at least one free slot,
+ * so that an insert can go straight to such a page instead of probing the
+ * file from page 0.
+ * <p>
+ * The map is kept in a file next to the heap file (<tt>foo.dat.fsm</tt>), one
+ * byte per page: 0 if the page has room, 1 if it is full. Pages past the end
+ * of the map file have room. The map file follows the pages on disk: it is
+ * updated whenever a page is written, in an order that leaves the map
+ * claiming room on a full page rather than the other way around after a crash.
+ * <p>
+ * In memory the map also follows inserts and deletes on buffered pages. It is
+ * only a hint: inserts check the page they are sent to and mark it full if it
+ * turns out to have no room.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    private static final byte ROOM = 0;
+    private static final byte FULL = 1;
+
+    private final HeapFile heapFile;
+    private final DbFileChannel channel;
+    /**
+     * Pages known to be full; null until first use.
+     */
+    private BitSet full;
+    /**
+     * Pages marked full in the map file, once it has been loaded.
+     */
+    private BitSet fullOnDisk;
+    private int hint;
+
+    /**
+     * @param heapFile the heap file whose pages are tracked
+     */
+    public FreeSpaceMap(HeapFile heapFile) {
+        this.heapFile = heapFile;
+        this.channel = new DbFileChannel(new File(heapFile.getFile().getPath() + ".fsm"));
+    }
+
+    public File getFile() {
+        return channel.getFile();
+    }
+
+    /**
+     * Loads the map from disk, or rebuilds it from the page headers of the
+     * heap file if the map file does not exist.
+     */
+    private BitSet load() throws IOException {
+        if (full != null) {
+            return full;
+        }
+        BitSet bits = new BitSet();
+        int numPages = heapFile.numPages();
+        if (getFile().exists()) {
+            long size = channel.size();
+            byte[] map = new byte[(int) Math.min(size, numPages)];
+            int n = channel.read(map, 0);
+            for (int i = 0; i < n; i++) {
+                if (map[i] == FULL) {
+                    bits.set(i);
+                }
+            }
+            if (size > numPages) {
+                // entries left over from pages that no longer exist
+                channel.write(new byte[(int) (size - numPages)], numPages);
+            }
+        } else if (numPages > 0) {
+            byte[] map = new byte[numPages];
+            for (int i = 0; i < numPages; i++) {
+                if (!heapFile.hasFreeSlotOnDisk(i)) {
+                    bits.set(i);
+                    map[i] = FULL;
+                }
+            }
+            channel.write(map, 0);
+        }
+        full = bits;
+        fullOnDisk = (BitSet) bits.clone();
+        return full;
+    }
+
+    /**
+     * Returns a page that may have a free slot, starting from the page last
+     * returned.
+     *
+     * @param numPages the number of pages in the heap file
+     * @return the page number, or -1 if every page is full
+     */
+    public synchronized int findPage(int numPages) throws IOException {
+        BitSet bits = load();
+        if (hint >= numPages) {
+            hint = 0;
+        }
+        int pageNo = bits.nextClearBit(hint);
+        if (pageNo >= numPages) {
+            pageNo = bits.nextClearBit(0);
+        }
+        if (pageNo >= numPages) {
+            return -1;
+        }
+        hint = pageNo;
+        return pageNo;
+    }
+
+    /**
+     * Records a change in free space on a buffered page.
+     */
+    public synchronized void update(int pageNo, boolean hasRoom) throws IOException {
+        load().set(pageNo, !hasRoom);
+    }
+
+    /**
+     * Records free space on a page that was read from disk or dropped from the
+     * buffer pool, if the map is in use. Unlike {@link #update} this does not
+     * load the map, so plain scans never read it.
+     */
+    public synchronized void recordPage(int pageNo, boolean hasRoom) {
+        if (full != null) {
+            full.set(pageNo, !hasRoom);
+        }
+    }
+
+    /**
+     * Writes the free space of a page around the write of the page itself.
+     * The map file is only touched when the entry for the page changes.
+     * The first write loads the map, so that it is built from the pages on
+     * disk before any of them change.
+     *
+     * @param pageNo    the page being written
+     * @param hasRoom   whether the page has a free slot
+     * @param pageWrite writes the page to the heap file
+     */
+    public void pageWrite(int pageNo, boolean hasRoom, PageWrite pageWrite) throws IOException {
+        boolean changed;
+        synchronized (this) {
+            load();
+            changed = fullOnDisk.get(pageNo) == hasRoom;
+        }
+        byte[] entry = {hasRoom ? ROOM : FULL};
+        if (changed && hasRoom) {
+            // a crash in between leaves the map claiming room, which inserts recheck
+            channel.write(entry, pageNo);
+        }
+        pageWrite.run();
+        if (changed && !hasRoom) {
+            channel.write(entry, pageNo);
+        }
+        synchronized (this) {
+            full.set(pageNo, !hasRoom);
+            fullOnDisk.set(pageNo, !hasRoom);
+        }
+    }
+
+    /**
+     * The write of a heap page, performed by {@link #pageWrite}.
+     */
+    public interface PageWrite {
+        void run() throws IOException;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
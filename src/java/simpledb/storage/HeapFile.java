@@ -1,15 +1,10 @@
 package simpledb.storage;
 
-import net.sf.antcontrib.design.Log;
 import simpledb.common.*;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
@@ -27,6 +22,13 @@ public class HeapFile implements DbFile {
     File file;
     TupleDesc tupleDesc;
     int id;
+    final DbFileChannel channel;
+    final FreeSpaceMap freeSpace;
+    final PageLsnMap pageLsns;
+    // the tuple changes of each running transaction to each page, as the
+    // XOR of the page before and after them, by page number; guarded by
+    // itself. See committedImage.
+    private final Map<Integer, Map<TransactionId, byte[]>> rowChanges = new HashMap<>();
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -35,10 +37,26 @@ public class HeapFile implements DbFile {
      *          file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally reading
+     * its pages through a memory mapping of the whole file.
+     *
+     * @param f            the file that stores the on-disk backing store for this heap
+     *                     file.
+     * @param memoryMapped whether readPage should copy pages out of a mapping of the
+     *                     file instead of issuing a read per page
+     * @see MappedDbFileChannel
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         file = f;
         tupleDesc = td;
         id = file.getAbsoluteFile().hashCode();
-        int i = 0;
+        channel = memoryMapped ? new MappedDbFileChannel(f, BufferPool.getPageSize()) : new DbFileChannel(f);
+        freeSpace = new FreeSpaceMap(this);
+        pageLsns = new PageLsnMap(channel);
 //        System.out.println(file.length());
 //        System.out.println(numPages());
     }
@@ -52,6 +70,39 @@ public class HeapFile implements DbFile {
         return file;
     }
 
+    /**
+     * @return true if pages of this file are read through a memory mapping
+     */
+    public boolean isMemoryMapped() {
+        return channel instanceof MappedDbFileChannel;
+    }
+
+    /**
+     * @return the map of pages with free slots used to place inserts
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpace;
+    }
+
+    /**
+     * @return the page LSNs of the pages on disk, used by recovery
+     */
+    public PageLsnMap getPageLsnMap() {
+        return pageLsns;
+    }
+
+    /**
+     * Closes the heap file and its free space and page LSN maps.
+     */
+    public void close() throws IOException {
+        try {
+            channel.close();
+            freeSpace.close();
+        } finally {
+            pageLsns.close();
+        }
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -76,23 +127,19 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
-//        Page page = Database.getBufferPool().getPage(pid);
-//        if (page != null) return page;
         int pageSize = BufferPool.getPageSize();
+        long offset = (long) pid.getPageNumber() * pageSize;
+        byte[] data = new byte[pageSize];
         try {
-            FileChannel channel = new RandomAccessFile(file, "r").getChannel();
-            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, pid.getPageNumber() * pageSize, pageSize).load();
-            byte[] result = new byte[pageSize];
-            if (buffer.remaining() > 0) {
-                buffer.get(result, 0, pageSize);
+            if (channel.read(data, offset) < pageSize) {
+                throw new IllegalArgumentException("page " + pid.getPageNumber() + " is past the end of " + file);
             }
-            buffer.clear();
-            channel.close();
-            return new HeapPage((HeapPageId) pid, result);
+            HeapPage page = new HeapPage((HeapPageId) pid, data);
+            freeSpace.recordPage(pid.getPageNumber(), !page.isFull());
+            return page;
         } catch (IOException e) {
-            System.out.println("readPage 出现IO错误 " + " fileSize: " + file.length() + " index: " + pid.getPageNumber() * pageSize);
+            throw new RuntimeException("readPage failed, fileSize: " + file.length() + " offset: " + offset, e);
         }
-        return null;
     }
 
     /**
@@ -102,18 +149,41 @@ public class HeapFile implements DbFile {
      * @throws IOException if the write fails
      */
     public void writePage(Page page) throws IOException {
-        // if file size is not enough, enlarge it
-        while (numPages() <= page.getId().getPageNumber()) {
-            appendNewPage();
-        }
-        try {
-            RandomAccessFile f = new RandomAccessFile(file, "rw");
-            f.seek(page.getId().getPageNumber() * BufferPool.getPageSize());
-            f.write(page.getPageData());
-            f.close();
-        } catch (IOException e) {
-            System.out.println("writePage 出现IO错误");
+        writePage(page.getId(), page.getPageData(), page.getLsn());
+    }
+
+    public void writePage(PageId pid, byte[] data, long lsn) throws IOException {
+        int pageNo = pid.getPageNumber();
+        // a positional write past the end grows the file
+        freeSpace.pageWrite(pageNo, hasFreeSlot(data),
+                () -> channel.write(data, (long) pageNo * BufferPool.getPageSize()));
+        pageLsns.pageWritten(pid, lsn);
+    }
+
+    /**
+     * Reads only the header of the given page from disk.
+     *
+     * @return true if the page has a free slot
+     */
+    boolean hasFreeSlotOnDisk(int pageNo) throws IOException {
+        byte[] header = new byte[(numSlots() + 7) / 8];
+        channel.read(header, (long) pageNo * BufferPool.getPageSize());
+        return hasFreeSlot(header);
+    }
+
+    private int numSlots() {
+        return (BufferPool.getPageSize() * 8) / (tupleDesc.getSize() * 8 + 1);
+    }
+
+    // whether the header at the start of a page's data has a free slot
+    private boolean hasFreeSlot(byte[] data) {
+        int numSlots = numSlots();
+        for (int i = 0; i < numSlots; i++) {
+            if (((data[i / 8] >> (i % 8)) & 1) == 0) {
+                return true;
+            }
         }
+        return false;
     }
 
     /**
@@ -124,58 +194,275 @@ public class HeapFile implements DbFile {
     }
 
     public void appendNewPage() throws IOException {
-        Files.write(file.toPath(),
-                HeapPage.createEmptyPageData(),
-                StandardOpenOption.APPEND);
+        channel.append(HeapPage.createEmptyPageData());
     }
 
-    // TODO
-    // see DbFile.java for javadocs
+    /**
+     * Adds the tuple to a page with an empty slot. The transaction locks the
+     * slot exclusively, with intention locks on the page and table, so that
+     * transactions changing other tuples of the page go ahead at the same
+     * time. A slot emptied by a transaction that is still running is passed
+     * over, since its rollback puts the tuple back there.
+     * <p>
+     * The change is logged as it is made (see {@link #logRowChange}), and
+     * the page is left pinned for the caller, which unpins it once it has
+     * put the page back in the pool.
+     * <p>
+     * A transaction the log does not know about cannot have its tuple
+     * changes undone from the log, so it locks and changes the whole page,
+     * which is logged when it is written.
+     *
+     * @see BufferPool#insertTuple
+     */
     public List<Page> insertTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
+        if (!Database.getLogFile().isActive(tid)) {
+            return insertIntoPage(tid, t);
+        }
         List<Page> dirtyPages = new ArrayList<>();
-        HeapPage page;
-        int pageNo = 0;
-        page = (HeapPage) Database.getBufferPool().getNotFullPageFromCache(id);
-
-        if (page == null) {
-            do {
-                if (pageNo >= numPages()) {
-                    appendNewPage();
+        BufferPool bufferPool = Database.getBufferPool();
+        while (true) {
+            int numPages = numPages();
+            int pageNo = freeSpace.findPage(numPages);
+            if (pageNo < 0) {
+                growFrom(numPages);
+                continue;
+            }
+            // the locks come first, so the page cannot be dropped by an abort
+            // between the lookup and the insert, and no lock on the page or
+            // table is waited for under its latch
+            HeapPageId pid = new HeapPageId(id, pageNo);
+            try {
+                Database.getLockManager().lockTupleParents(tid, pid, Permissions.READ_WRITE);
+            } catch (DeadlockException e) {
+                throw new TransactionAbortedException();
+            }
+            HeapPage page = (HeapPage) bufferPool.pinPage(tid, pid);
+            RecordId busy = null;
+            synchronized (page) {
+                for (int slot = page.nextUnusedSlot(0); slot >= 0; slot = page.nextUnusedSlot(slot + 1)) {
+                    RecordId rid = new RecordId(pid, slot);
+                    if (!lockTuple(tid, rid, false)) {
+                        if (busy == null) {
+                            busy = rid;
+                        }
+                        continue;
+                    }
+                    byte[] before = page.getPageData();
+                    t.setRecordId(rid);
+                    page.insertTuple(t);
+                    logRowChange(tid, page, before);
+                    if (page.isFull()) {
+                        freeSpace.update(pageNo, false);
+                    }
+                    dirtyPages.add(page);
+                    return dirtyPages;
                 }
-                page = (HeapPage) Database.getBufferPool().getPage(new HeapPageId(id, pageNo));
-                pageNo++;
-            } while (page.isFull());
-        } else {
-//            System.out.println("insert to catch");
+                if (busy == null) {
+                    // filled by another transaction, or the map was stale
+                    freeSpace.update(pageNo, false);
+                }
+            }
+            bufferPool.unpinPage(tid, pid);
+            if (busy != null) {
+                // every empty slot may be taken back by a rollback; wait for one
+                lockTuple(tid, busy, true);
+            }
         }
-        // Try to get write lock
+    }
 
-        try {
-            Database.getLockManager().acquireLock(tid, page.pid, Permissions.READ_WRITE);
-        } catch (DeadlockException e) {
-            throw new TransactionAbortedException();
+    // inserts holding an exclusive lock on the whole page
+    private List<Page> insertIntoPage(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
+        List<Page> dirtyPages = new ArrayList<>();
+        HeapPage page;
+        int pageNo;
+        while (true) {
+            int numPages = numPages();
+            pageNo = freeSpace.findPage(numPages);
+            if (pageNo < 0) {
+                growFrom(numPages);
+                continue;
+            }
+            // the lock comes first, so the page cannot be dropped by an abort
+            // between the lookup and the insert
+            page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(id, pageNo), Permissions.READ_WRITE);
+            if (!page.isFull()) {
+                break;
+            }
+            // filled by a transaction we waited for, or the map was stale
+            freeSpace.update(pageNo, false);
         }
 
-        // change the tuple's pageId
-//        t.setRecordId(new RecordId(new HeapPageId(id, pageNo - 1), t.getRecordId().getTupleNumber()));
         page.insertTuple(t);
         page.markDirty(true, tid);
-//        System.out.println("After insert: " + page.getUsedSlots());
+        if (page.isFull()) {
+            freeSpace.update(pageNo, false);
+        }
         dirtyPages.add(page);
         return dirtyPages;
     }
 
-    // see DbFile.java for javadocs
+    // appends an empty page, unless another insert did since the file had numPages pages
+    private void growFrom(int numPages) throws IOException {
+        synchronized (channel) {
+            if (numPages() == numPages) {
+                appendNewPage();
+            }
+        }
+    }
+
+    /**
+     * Removes the tuple from its page, holding an exclusive lock on the
+     * tuple; see {@link #insertTuple}.
+     */
     public List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException, IOException {
         List<Page> dirtyPages = new ArrayList<>();
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-        page.deleteTuple(t);
-        page.markDirty(true, tid);
-//        System.out.println("After delete: " + page.getUsedSlots());
+        RecordId rid = t.getRecordId();
+        HeapPage page;
+        if (!Database.getLogFile().isActive(tid)) {
+            page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+            page.deleteTuple(t);
+            page.markDirty(true, tid);
+        } else {
+            lockTuple(tid, rid, true);
+            page = (HeapPage) Database.getBufferPool().pinPage(tid, rid.getPageId());
+            synchronized (page) {
+                byte[] before = page.getPageData();
+                page.deleteTuple(t);
+                logRowChange(tid, page, before);
+            }
+        }
+        freeSpace.update(page.pid.getPageNumber(), true);
         dirtyPages.add(page);
         return dirtyPages;
     }
 
+    // locks a tuple for writing, or only tries to if wait is false
+    private static boolean lockTuple(TransactionId tid, RecordId rid, boolean wait) throws TransactionAbortedException {
+        LockManager locks = Database.getLockManager();
+        try {
+            if (wait) {
+                locks.lockTuple(tid, rid, Permissions.READ_WRITE);
+                return true;
+            }
+            return locks.tryLockTuple(tid, rid, Permissions.READ_WRITE);
+        } catch (DeadlockException e) {
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * Logs a change the transaction just made to one tuple of the page,
+     * holding the page latch. The record holds the difference from the image
+     * before the change, so the records of the page follow its changes in
+     * order, whichever transactions made them. The change is added to the
+     * tuple changes of the transaction on the page, and the page is marked
+     * dirty.
+     */
+    private void logRowChange(TransactionId tid, HeapPage page, byte[] before) throws IOException {
+        PageDelta delta = PageDelta.diff(page.pid, before, page.getPageData());
+        if (delta.getRangeCount() == 0) {
+            return;
+        }
+        try {
+            Database.getLogFile().logRowChange(tid, page, delta);
+        } catch (IOException e) {
+            // a change the log does not hold must not reach the disk
+            page.restore(before);
+            throw e;
+        }
+        rowChanged(tid, page.pid.getPageNumber(), delta);
+        page.markDirty(true, tid);
+    }
+
+    /**
+     * Adds a change to tuples of the page, or the undo of one, to the tuple
+     * changes of the transaction there.
+     */
+    void rowChanged(TransactionId tid, int pageNo, PageDelta delta) {
+        synchronized (rowChanges) {
+            delta.xorInto(rowChanges.computeIfAbsent(pageNo, k -> new HashMap<>())
+                    .computeIfAbsent(tid, k -> new byte[BufferPool.getPageSize()]));
+        }
+    }
+
+    /**
+     * @return true if a running transaction changed tuples of the page
+     */
+    boolean hasRowChanges(int pageNo) {
+        synchronized (rowChanges) {
+            return rowChanges.containsKey(pageNo);
+        }
+    }
+
+    /**
+     * @return true if the transaction changed tuples of the page and has
+     * not ended yet
+     */
+    boolean hasRowChanges(TransactionId tid, int pageNo) {
+        synchronized (rowChanges) {
+            Map<TransactionId, byte[]> changes = rowChanges.get(pageNo);
+            return changes != null && changes.containsKey(tid);
+        }
+    }
+
+    /**
+     * Returns an image of the page as the running transactions found it:
+     * the image given, with the tuple changes of each of them taken off.
+     * Each holds the locks on the tuples it changed, so their changes are in
+     * different bits, and taking one off leaves the others as they are.
+     *
+     * @param image the page data, which is changed in place
+     */
+    byte[] committedImage(int pageNo, byte[] image) {
+        synchronized (rowChanges) {
+            for (byte[] mask : rowChanges.getOrDefault(pageNo, Collections.emptyMap()).values()) {
+                for (int i = 0; i < image.length; i++) {
+                    image[i] ^= mask[i];
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Forgets the tuple changes of a transaction that committed or was
+     * rolled back; see {@link HeapPage#rowsEnded}.
+     */
+    void rowsEnded(TransactionId tid, int pageNo) {
+        synchronized (rowChanges) {
+            Map<TransactionId, byte[]> changes = rowChanges.get(pageNo);
+            if (changes != null && changes.remove(tid) != null && changes.isEmpty()) {
+                rowChanges.remove(pageNo);
+            }
+        }
+    }
+
+    /**
+     * Ends the tuple changes of an aborted transaction on a page of the pool.
+     * A rollback has undone them already; any that are left, as when the
+     * pool aborts a transaction the log did not roll back, are taken off the
+     * page here, as a change of its own.
+     */
+    void rowsAborted(TransactionId tid, HeapPage page) throws IOException {
+        synchronized (page) {
+            byte[] before = page.getPageData();
+            byte[] after = before.clone();
+            synchronized (rowChanges) {
+                byte[] mask = rowChanges.getOrDefault(page.pid.getPageNumber(), Collections.emptyMap()).get(tid);
+                if (mask != null) {
+                    for (int i = 0; i < after.length; i++) {
+                        after[i] ^= mask[i];
+                    }
+                }
+            }
+            if (!Arrays.equals(before, after)) {
+                page.restore(after);
+                logRowChange(tid, page, before);
+            }
+            page.rowsEnded(tid);
+        }
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         return new HeapFileIterator(this, tid);
@@ -189,6 +476,7 @@ public class HeapFile implements DbFile {
         Iterator<Tuple> curIterator;
         TransactionId tid;
         boolean isOpen;
+        Prefetcher.Scan readAhead;
 
         public HeapFileIterator(HeapFile heapFile, TransactionId tid) {
             this.heapFile = heapFile;
@@ -198,10 +486,33 @@ public class HeapFile implements DbFile {
             isOpen = false;
         }
 
+        private Prefetcher.Scan newReadAhead() {
+            return Database.getBufferPool().getPrefetcher()
+                    .newScan(pageNo -> new HeapPageId(heapFile.id, pageNo), pageNum);
+        }
+
+        // makes page the current page; the iterator keeps the current page pinned
+        private void moveTo(Page page) {
+            unpinCurrent();
+            curPage = (HeapPage) page;
+            readAhead.accessed(curPage);
+        }
+
+        private void unpinCurrent() {
+            if (curPage != null) {
+                Database.getBufferPool().unpinPage(tid, curPage.getId());
+            }
+        }
+
         public void open() throws DbException, TransactionAbortedException {
-            curPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(heapFile.id, pageCur), Permissions.READ_ONLY);
-            curIterator = curPage.iterator();
+            readAhead = newReadAhead();
             isOpen = true;
+            // an empty file has no first page to read
+            if (pageNum == 0) {
+                return;
+            }
+            moveTo(Database.getBufferPool().pinPage(tid, new HeapPageId(heapFile.id, pageCur), Permissions.READ_ONLY));
+            curIterator = curPage.iterator();
         }
 
         // fetch not from BufferPool ?
@@ -211,7 +522,7 @@ public class HeapFile implements DbFile {
             pageCur++;
             if (pageCur >= pageNum) return false;
 //            curPage = (HeapPage) Database.getCatalog().getDatabaseFile(id).readPage(new HeapPageId(heapFile.id, pageCur));
-            curPage = (HeapPage) Database.getBufferPool().getPage(new HeapPageId(heapFile.id, pageCur));
+            moveTo(Database.getBufferPool().pinPage(tid, new HeapPageId(heapFile.id, pageCur)));
             if (curPage.isEmpty()) return hasNext();
             curIterator = curPage.iterator();
             return true;
@@ -222,7 +533,7 @@ public class HeapFile implements DbFile {
             if (!curIterator.hasNext()) {
                 pageCur++;
                 if (pageCur >= pageNum) throw new NoSuchElementException();
-                curPage = (HeapPage) Database.getBufferPool().getPage(new HeapPageId(heapFile.id, pageCur));
+                moveTo(Database.getBufferPool().pinPage(tid, new HeapPageId(heapFile.id, pageCur)));
 //                curPage = (HeapPage) Database.getBufferPool().getPage(null, new HeapPageId(heapFile.id, pageCur), Permissions.READ_ONLY);
                 curIterator = curPage.iterator();
             }
@@ -231,13 +542,19 @@ public class HeapFile implements DbFile {
 
         public void rewind() throws DbException, TransactionAbortedException {
             pageCur = 0;
-            curPage = (HeapPage) Database.getBufferPool().getPage(null, new HeapPageId(heapFile.id, pageCur), Permissions.READ_ONLY);
+            readAhead = newReadAhead();
+            if (pageNum == 0) {
+                return;
+            }
+            moveTo(Database.getBufferPool().pinPage(tid, new HeapPageId(heapFile.id, pageCur), Permissions.READ_ONLY));
             curIterator = curPage.iterator();
         }
 
         public void close() {
+            unpinCurrent();
             curPage = null;
             curIterator = null;
+            readAhead = null;
             isOpen = false;
         }
     }
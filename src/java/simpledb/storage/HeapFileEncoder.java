@@ -1,5 +1,6 @@
 package simpledb.storage;
 
+import simpledb.common.Catalog;
 import simpledb.common.Type;
 import simpledb.common.Utility;
 
@@ -110,6 +111,10 @@ public class HeapFileEncoder {
 
         BufferedReader br = new BufferedReader(new FileReader(inFile));
         FileOutputStream os = new FileOutputStream(outFile);
+        // a free space map or page LSNs left over from an earlier file of the same name are stale
+        new File(outFile.getPath() + ".fsm").delete();
+        new File(outFile.getPath() + ".lsn").delete();
+        Catalog.recordPageSize(outFile, npagebytes);
 
         // our numbers probably won't be much larger than 1024 digits
         char[] buf = new char[1024];
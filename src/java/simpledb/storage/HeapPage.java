@@ -10,12 +10,19 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.function.Consumer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Transactions holding locks on different tuples of a page change it side by
+ * side, so its tuples, header and data are changed and read under the page's
+ * own monitor, the page latch. While any of them runs, the page logs its
+ * changes as they are made and its before image is worked out from the
+ * tuple changes of each (see {@link HeapFile#committedImage}).
  *
  * @see HeapFile
  * @see BufferPool
@@ -27,12 +34,26 @@ public class HeapPage implements Page {
     final byte[] header;
     final Tuple[] tuples;
     final int numSlots;
+    final int[] fieldOffsets;
+
+    /**
+     * The raw page as read from disk, with tuples written back into their
+     * slots as they are inserted. Tuples are decoded from it on demand.
+     */
+    byte[] data;
+    /**
+     * True when data may be referenced outside this page (by the caller that
+     * supplied it, the before image or a tuple handed out by the iterator), so
+     * it has to be copied before it is written.
+     */
+    boolean dataShared;
 
     byte[] oldData;
     private final Byte oldDataLock = (byte) 0;
 
     boolean isDirty = false;
     TransactionId lastTid;
+    private volatile long lsn;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -46,6 +67,10 @@ public class HeapPage implements Page {
      * <p>
      * ceiling(no. tuple slots / 8)
      * <p>
+     * Only the header is read here. The page keeps data itself, without
+     * copying it, and tuples are decoded from it one field at a time as
+     * they are asked for; see {@link #iterator()}. data must not be modified
+     * by the caller afterwards.
      *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
@@ -55,24 +80,26 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+        // read the header slots of this page
+        header = Arrays.copyOf(data, getHeaderSize());
 
+        fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++) {
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
+        }
         tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
+        if (data.length < BufferPool.getPageSize()) {
+            // the padding after the last slot may be missing
+            this.data = Arrays.copyOf(data, BufferPool.getPageSize());
+        } else {
+            this.data = data;
         }
-        dis.close();
+        this.dataShared = true;
 
-        setBeforeImage();
+        // the bytes we were given are the before image until the page changes;
+        // the page is not published yet, so no lock is needed
+        oldData = data;
 //        System.out.println("pageId : " + pid);
 //        System.out.println("slot nums : " + numSlots);
 //        System.out.println("unusedSlots : " + getNumUnusedSlots());
@@ -107,11 +134,17 @@ public class HeapPage implements Page {
      * Return a view of this page before it was modified
      * -- used by recovery
      */
-    public HeapPage getBeforeImage() {
+    public synchronized HeapPage getBeforeImage() {
         try {
             byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
-                oldDataRef = oldData;
+            HeapFile file = file();
+            if (file != null && file.hasRowChanges(pid.getPageNumber())) {
+                // the page less the tuple changes of running transactions
+                oldDataRef = file.committedImage(pid.getPageNumber(), getPageData());
+            } else {
+                synchronized (oldDataLock) {
+                    oldDataRef = oldData;
+                }
             }
             return new HeapPage(pid, oldDataRef);
         } catch (IOException e) {
@@ -122,12 +155,59 @@ public class HeapPage implements Page {
         return null;
     }
 
-    public void setBeforeImage() {
+    public synchronized void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldData = getPageData();
         }
     }
 
+    /**
+     * Called when the tuple changes a transaction made to this page are no
+     * longer its own, because it committed or was rolled back: they are
+     * forgotten, and the page as it is becomes the before image once no
+     * other transaction has tuple changes on it.
+     */
+    synchronized void rowsEnded(TransactionId tid) {
+        HeapFile file = file();
+        if (file != null) {
+            file.rowsEnded(tid, pid.getPageNumber());
+        }
+        setBeforeImage();
+    }
+
+    /**
+     * Returns true while transactions that changed tuples of this page are
+     * running; see {@link HeapFile#insertTuple}.
+     */
+    @Override
+    public boolean logsChanges() {
+        HeapFile file = file();
+        return file != null && file.hasRowChanges(pid.getPageNumber());
+    }
+
+    // the file of the page, or null if the catalog holds another kind of file
+    private HeapFile file() {
+        DbFile file;
+        try {
+            file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        } catch (NoSuchElementException e) {
+            // a page of a table dropped from the catalog
+            return null;
+        }
+        return file instanceof HeapFile ? (HeapFile) file : null;
+    }
+
+    /**
+     * Replaces the contents of the page with an image of it, as a rollback
+     * does. Tuples handed out before keep the data they were read from.
+     */
+    synchronized void restore(byte[] image) {
+        System.arraycopy(image, 0, header, 0, header.length);
+        data = image;
+        dataShared = true;
+        Arrays.fill(tuples, null);
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -136,37 +216,82 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset of the given slot within the page data
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
+    /**
+     * Returns the tuple in the given slot, creating it the first time it is
+     * asked for. Its fields are decoded from the page data on first access.
+     */
+    private Tuple getTuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = new PageTuple(td, new RecordId(pid, slotId), data, slotOffset(slotId), fieldOffsets);
+            tuples[slotId] = t;
+            dataShared = true;
+        }
+        return t;
+    }
+
+    /**
+     * A tuple whose fields are decoded from the bytes of its page the first
+     * time they are read. It holds on to the page data it was created from,
+     * which the page copies before writing to it again.
+     */
+    static class PageTuple extends Tuple {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TupleDesc layout;
+        private final byte[] data;
+        private final int offset;
+        private final int[] fieldOffsets;
+
+        PageTuple(TupleDesc td, RecordId rid, byte[] data, int offset, int[] fieldOffsets) {
+            super(td);
+            setRecordId(rid);
+            this.layout = td;
+            this.data = data;
+            this.offset = offset;
+            this.fieldOffsets = fieldOffsets;
+        }
+
+        @Override
+        public Field getField(int i) {
+            Field f = super.getField(i);
+            if (f == null) {
+                f = layout.getFieldType(i).parse(data, offset + fieldOffsets[i]);
+                super.setField(i, f);
             }
-            return null;
+            return f;
         }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+        private void decodeAll() {
+            for (int i = 0; i < fieldOffsets.length; i++) {
+                getField(i);
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
 
-        return t;
+        @Override
+        public List<Field> getAllFields() {
+            decodeAll();
+            return super.getAllFields();
+        }
+
+        @Override
+        public Iterator<Field> fields() {
+            decodeAll();
+            return super.fields();
+        }
+
+        @Override
+        public String toValueString() {
+            decodeAll();
+            return super.toValueString();
+        }
     }
 
     /**
@@ -180,65 +305,17 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      * @see #HeapPage
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
+    public synchronized byte[] getPageData() {
+        byte[] out = data.clone();
+        System.arraycopy(header, 0, out, 0, header.length);
+        // empty slots and the padding after the last slot are written as zeroes
+        for (int i = 0; i < numSlots; i++) {
             if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                Arrays.fill(out, slotOffset(i), slotOffset(i + 1), (byte) 0);
             }
         }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        Arrays.fill(out, slotOffset(numSlots), out.length, (byte) 0);
+        return out;
     }
 
     /**
@@ -263,7 +340,7 @@ public class HeapPage implements Page {
      * @throws DbException if this tuple is not on this page, or tuple slot is
      *                     already empty.
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         if (getNumUnusedSlots() == tuples.length)
             throw new DbException("page is empty");
         int i = t.getRecordId().getTupleNumber();
@@ -272,13 +349,12 @@ public class HeapPage implements Page {
 //            System.out.println("origin tuple: " + tuples[i].toValueString() + " delete tuple: " + t.toValueString() + " !isSlotUsed(i)");
             return;
         }
-        if (!tuples[i].equals(t)) {
+        if (!getTuple(i).equals(t)) {
             System.out.println("origin tuple: " + tuples[i].toValueString() + " delete tuple: " + t.toValueString() + " !tuples[i].equals(t)");
 //            throw new DbException("");
         }
-        int a = i / 8;
-        int b = i % 8;
-        header[a] = (byte) (header[a] & (~(0x1 << b)));
+        tuples[i] = null;
+        markSlotUsed(i, false);
     }
 
     /**
@@ -289,7 +365,7 @@ public class HeapPage implements Page {
      * @throws DbException if the page is full (no empty slots) or tupledesc
      *                     is mismatch.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         if (isFull())
             throw new DbException("the page is full");
         if (!td.equals(t.getTupleDesc()))
@@ -301,11 +377,34 @@ public class HeapPage implements Page {
             t.getRecordId().setTupleNum(i);
         }
         t.setRecordId(new RecordId(pid, i));
+        writeTuple(i, t);
         tuples[i] = t;
         markSlotUsed(i, true);
 //        System.out.println("after: " + isSlotUsed(t.getRecordId().getTupleNumber()));
     }
 
+    /**
+     * Serializes t into the given slot of the page data, copying the data
+     * first if anything else may still be reading it.
+     */
+    private void writeTuple(int slotId, Tuple t) throws DbException {
+        if (dataShared) {
+            data = data.clone();
+            dataShared = false;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("could not serialize " + t.toValueString());
+        }
+        System.arraycopy(baos.toByteArray(), 0, data, slotOffset(slotId), td.getSize());
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -323,6 +422,14 @@ public class HeapPage implements Page {
         return lastTid;
     }
 
+    public long getLsn() {
+        return lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of unused (i.e., empty) slots on this page.
      */
@@ -370,6 +477,16 @@ public class HeapPage implements Page {
         return ((header[a] >> b) & 1) == 1;
     }
 
+    /**
+     * Returns the tuple in the given slot, or null if the slot is not filled.
+     */
+    public Tuple getTupleAt(int slotId) {
+        if (slotId < 0 || slotId >= numSlots || !isSlotUsed(slotId)) {
+            return null;
+        }
+        return getTuple(slotId);
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
@@ -379,6 +496,18 @@ public class HeapPage implements Page {
         header[a] = value ? (byte) (header[a] | (0x1 << b)) : (byte) (header[a] & (~(0x1 << b)));
     }
 
+    /**
+     * @return the first empty slot at or after from, or -1 if there is none
+     */
+    int nextUnusedSlot(int from) {
+        for (int i = from; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     private int getUnusedSlot() {
         for (int i = 0; i < header.length; i++) {
             for (int j = 0; j < 8; j++) {
@@ -399,39 +528,24 @@ public class HeapPage implements Page {
 
     class TupleIterator implements Iterator<Tuple> {
         HeapPage heapPage;
-        int headerCur;
-        int offset;
+        int slot;
 
         public TupleIterator(HeapPage heapPage) {
             this.heapPage = heapPage;
-            headerCur = 0;
-            offset = 0;
+            slot = 0;
         }
 
         public boolean hasNext() {
-            for (int i = headerCur; i < header.length; i++) {
-                for (int j = offset; j < 8; j++) {
-                    if (((header[i] >> j) & 1) == 1) {
-                        headerCur = i;
-                        offset = j;
-                        return true;
-                    }
-                }
+            while (slot < heapPage.numSlots && !heapPage.isSlotUsed(slot)) {
+                slot++;
             }
-            return false;
+            return slot < heapPage.numSlots;
         }
 
         public Tuple next() {
-            int index = headerCur * 8 + offset;
-            if (index >= heapPage.tuples.length) return null;
-            offset++;
-            if (offset >= 8) {
-                headerCur++;
-                offset = 0;
-            }
-            return heapPage.tuples[index];
+            if (!hasNext()) throw new NoSuchElementException();
+            return heapPage.getTuple(slot++);
         }
     }
 
 }
-
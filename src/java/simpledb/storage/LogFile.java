@@ -1,6 +1,8 @@
 package simpledb.storage;
 
+import simpledb.common.Config;
 import simpledb.common.Database;
+import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.transaction.TransactionId;
 
@@ -10,7 +12,13 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -24,8 +32,8 @@ two-phase locking discipline are followed.  <p>
 Many of the methods here are synchronized (to prevent concurrent log
 writes from happening); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+log records (on page flushed) and the log file writes pages back (on
+rollback and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
 must not be declared synchronized and must begin with a block like:
 
@@ -39,47 +47,89 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Group commit: </u>
+<p>
+
+Commits do not force the log while holding the lock on this object.
+They append their record, note the end of the log, and then wait in
+forceTo() or groupForceTo() until some force has covered that offset.
+The first of them to find no force in progress leads the next one: it
+waits up to the batch delay for more commits to append their records,
+forces the log once for all of them and wakes them up. The flush lock
+is never held while taking the lock on this object.
+
+<u> Log buffer: </u>
+<p>
+
+Records are built in a direct buffer and reach the file in large
+appends: when the buffer fills up, when the log is forced, and before
+the log is read back by a rollback, recovery or truncation. Each record
+is identified by its LSN, its position in the log counting every byte
+ever appended to it, so LSNs only ever grow.
+
+<u> Segments and checkpoints: </u>
+<p>
+
+The log is kept in segment files next to the log file, each named by the
+LSN of its first byte (log.1, log.16777216, ...). Records never span two
+segments: a record that does not fit in the last one starts the next.
+Checkpoints are fuzzy: they write down the running transactions and the
+dirty page table, the pages whose logged changes may not be on disk yet,
+without flushing any page or taking the buffer pool lock. Once a
+checkpoint is on disk the log file points to it, and the segments before
+the oldest record recovery may read are deleted whole.
 */
 
 /**
- * <p> The format of the log file is as follows:
+ * <p> The format of the log is as follows:
  *
  * <ul>
  *
- * <li> The first long integer of the file represents the offset of the
- * last written checkpoint, or -1 if there are no checkpoints
+ * <li> The log file holds a long integer LSN of the last checkpoint on
+ * disk, or -1 if there are no checkpoints, followed by the long integer id
+ * of the log.  The records are in the segment files.
  *
- * <li> All additional data in the log consists of log records.  Log
- * records are variable length.
+ * <li> Log records are variable length.
  *
  * <li> Each log record begins with an integer type and a long integer
  * transaction id.
  *
- * <li> Each log record ends with a long integer file offset representing
- * the position in the log file where the record began.
+ * <li> Each log record ends with a long integer LSN of the record.
  *
- * <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
- * CHECKPOINT
+ * <li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+ * CHECKPOINT, DELTA and CLR
  *
  * <li> ABORT, COMMIT, and BEGIN records contain no additional data
  *
  * <li>UPDATE RECORDS consist of two entries, a before image and an
  * after image.  These images are serialized Page objects, and can be
- * accessed with the LogFile.readPageData() and LogFile.writePageData()
- * methods.  See LogFile.print() for an example.
+ * read with the LogFile.readPageData() method.  They are no longer
+ * written.
+ *
+ * <li> DELTA records hold the changes to one page: its id, and the byte
+ * ranges that changed with their bytes before and after the change (see
+ * PageDelta).  They replace UPDATE records, which are still read back.
+ *
+ * <li> CLR (compensation) records are written when a DELTA record is
+ * undone.  They hold the LSN of the DELTA record, followed by the delta
+ * that undoes it.  They are redone like DELTA records, and never undone.
  *
  * <li> CHECKPOINT records consist of active transactions at the time
- * the checkpoint was taken and their first log record on disk.  The format
- * of the record is an integer count of the number of transactions, as well
- * as a long integer transaction id and a long integer first record offset
- * for each active transaction.
+ * the checkpoint was taken and the LSN of their first log record, then of
+ * the dirty pages and the LSN of the first record of each that may not be
+ * on disk.  The format of the record is an integer count of the number of
+ * transactions, a long integer transaction id and a long integer first
+ * record LSN for each active transaction, an integer count of dirty pages,
+ * and an integer table id, an integer page number and a long integer LSN
+ * for each dirty page.
  *
  * </ul>
  */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf; // the log file: checkpoint LSN and log id
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -87,10 +137,16 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int CLR_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
+    // LSN 0 stands for no LSN, see PageLsnMap
+    static final long FIRST_LSN = 1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    // checkpoint LSN and log id
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
 
     long currentOffset = -1;//protected by this
     //    int pageSize;
@@ -98,6 +154,49 @@ public class LogFile {
 
     final Map<Long, Long> tidToFirstLogRecord = new HashMap<>();
 
+    // the image last logged for each page a live transaction wrote, which
+    // its next delta of the page is taken against; protected by this
+    private final Map<Long, Map<PageId, byte[]>> loggedImages = new HashMap<>();
+
+    // tells the LSNs of this log from those of an earlier one, see PageLsnMap
+    private volatile long logId;
+
+    // the segment files by the LSN of their first byte; records are appended
+    // to the last one, segment, which starts at LSN segmentBase; protected
+    // by this
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    private RandomAccessFile segment;
+    private long segmentBase;
+    private volatile int segmentBytes = Config.DEFAULT_LOG_SEGMENT_BYTES;
+
+    // the segments hold the log up to LSN fileEnd and the buffer the records
+    // appended after it, so currentOffset is fileEnd plus the buffered
+    // bytes; protected by this
+    static final int LOG_BUFFER_BYTES = 1 << 20;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(LOG_BUFFER_BYTES);
+    private long fileEnd;
+
+    // the dirty page table: for each page with logged changes that may not
+    // be on disk, the LSNs of the first and of the last of them, by
+    // pageKey(); appended to under this, removed from as pages are forced
+    private final Map<Long, long[]> dirtyPages = new ConcurrentHashMap<>();
+
+    // checkpoints, one at a time
+    private final Object checkpointLock = new Object();
+    private volatile long checkpointMillis;
+    private boolean checkpointerRunning; // protected by checkpointLock
+    private boolean closed; // protected by this
+
+    // group commit, see the locking note above
+    private final Object flushLock = new Object();
+    private long durableOffset; // protected by flushLock
+    private boolean flushing; // protected by flushLock
+    private int flushWaiters; // protected by flushLock
+    private volatile int groupSize = Config.DEFAULT_GROUP_COMMIT_SIZE;
+    private volatile long groupDelayNanos = TimeUnit.MICROSECONDS.toNanos(Config.DEFAULT_GROUP_COMMIT_DELAY_US);
+    private final LongAdder forces = new LongAdder();
+    private int redone; // by the last recovery; protected by this
+
     /**
      * Constructor.
      * Initialize and back the log file with the specified file.
@@ -133,12 +232,115 @@ public class LogFile {
         totalRecords++;
         if (recoveryUndecided) {
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            startLog();
+        }
+    }
+
+    // throws out the contents of the log and starts a new one
+    private void startLog() throws IOException {
+        long id;
+        do {
+            id = new Random().nextLong();
+        } while (id == 0);
+        logId = id;
+        if (segment != null) {
+            segment.close();
+        }
+        for (File f : listSegments().values()) {
+            f.delete();
+        }
+        segments.clear();
+        raf.seek(0);
+        raf.setLength(0);
+        raf.writeLong(NO_CHECKPOINT_ID);
+        raf.writeLong(logId);
+        buffer.clear();
+        openSegment(FIRST_LSN);
+    }
+
+    /**
+     * @return the id of this log, or 0 if it has neither been recovered nor
+     * written to yet
+     */
+    public long getLogId() {
+        return logId;
+    }
+
+    private File segmentFile(long base) {
+        return new File(logFile.getPath() + "." + base);
+    }
+
+    // the segment files on disk, by the LSN of their first byte
+    private TreeMap<Long, File> listSegments() {
+        TreeMap<Long, File> found = new TreeMap<>();
+        String prefix = logFile.getName() + ".";
+        File[] files = logFile.getAbsoluteFile().getParentFile().listFiles();
+        for (File f : files == null ? new File[0] : files) {
+            String suffix = f.getName().startsWith(prefix) ? f.getName().substring(prefix.length()) : "";
+            if (!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit)) {
+                found.put(Long.parseLong(suffix), f);
+            }
+        }
+        return found;
+    }
+
+    // makes the segment starting at base the one records are appended to
+    private void openSegment(long base) throws IOException {
+        File f = segmentFile(base);
+        segment = new RandomAccessFile(f, "rw");
+        segments.put(base, f);
+        segmentBase = base;
+        fileEnd = base + segment.length();
+        currentOffset = fileEnd;
+    }
+
+    // makes room in the buffer for a record of the given size
+    private void reserve(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        flushBuffer();
+        if (buffer.capacity() < bytes) {
+            buffer = ByteBuffer.allocateDirect(Integer.highestOneBit(bytes) << 1);
+        }
+    }
+
+    // starts a record in the buffer; returns its LSN
+    private long beginRecord(int type, long tid, int bytes) throws IOException {
+        int size = INT_SIZE + LONG_SIZE + bytes + LONG_SIZE;
+        if (currentOffset > segmentBase && currentOffset - segmentBase + size > segmentBytes) {
+            // the segment is full; it is forced before it is closed, so that
+            // forces under way that find it closed can count on it
+            force();
+            segment.close();
+            openSegment(currentOffset);
+        }
+        reserve(size);
+        long start = currentOffset;
+        buffer.putInt(type);
+        buffer.putLong(tid);
+        return start;
+    }
+
+    // ends the record begun at start with the pointer back to it
+    private void endRecord(long start) {
+        buffer.putLong(start);
+        currentOffset = fileEnd + buffer.position();
+    }
+
+    /**
+     * Appends the buffered records to the last segment, without forcing it.
+     */
+    private void flushBuffer() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        FileChannel channel = segment.getChannel();
+        while (buffer.hasRemaining()) {
+            fileEnd += channel.write(buffer, fileEnd - segmentBase);
         }
+        buffer.clear();
     }
 
     public synchronized int getTotalRecords() {
@@ -152,11 +354,15 @@ public class LogFile {
      * @param tid The aborting transaction.
      */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
         System.out.println("LOG_ABORT: " + tid.getId());
+        // reads pages into the pool, so it must not hold the buffer pool lock
+        undoRowChanges(tid);
 
+        // must have buffer pool lock before proceeding, since this
+        // calls rollback
         synchronized (Database.getBufferPool()) {
+            // the rollback must not be overwritten by a background write
+            Database.getBufferPool().getPageWriter().awaitBatch();
 
             synchronized (this) {
                 preAppend();
@@ -165,14 +371,12 @@ public class LogFile {
 
                 // must do this here, since rollback only works for
                 // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
+                undoPageChanges(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                endRecord(beginRecord(ABORT_RECORD, tid.getId(), 0));
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                loggedImages.remove(tid.getId());
             }
         }
     }
@@ -183,78 +387,127 @@ public class LogFile {
      *
      * @param tid The committing transaction.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        boolean othersActive;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            long start = beginRecord(COMMIT_RECORD, tid.getId(), 0);
+            endRecord(start);
+            lsn = start;
+            tidToFirstLogRecord.remove(tid.getId());
+            loggedImages.remove(tid.getId());
+            othersActive = !tidToFirstLogRecord.isEmpty();
+        }
+        // shares the force with the commits that append meanwhile
+        awaitForce(lsn, othersActive);
     }
 
     /**
-     * Write an UPDATE record to disk for the specified tid and page
-     * (with provided         before and after images.)
+     * Write a DELTA record to disk for the specified tid and page, holding
+     * the bytes that changed since the page was last logged by tid (or
+     * since the provided before image, the first time.)
      *
      * @param tid    The transaction performing the write
      * @param before The before image of the page
      * @param after  The after image of the page
+     * The LSN of the record becomes the page LSN of the after image.
+     *
+     * @return the LSN of the record, to pass to {@link #forceTo}
      * @see Page#getBeforeImage
      */
-    public synchronized void logWrite(TransactionId tid, Page before,
+    public synchronized long logWrite(TransactionId tid, Page before,
                                       Page after)
             throws IOException {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        return logWrite(tid, before, after, after.getPageData());
+    }
+
+    /**
+     * Write a DELTA record as {@link #logWrite(TransactionId, Page, Page)}
+     * does, for an image of the after page the caller took. A caller that
+     * writes the page out without holding off its changes writes that image,
+     * which is exactly what the record holds.
+     *
+     * @param afterData The image of after, from {@link Page#getPageData()}
+     * @return the LSN of the record, to pass to {@link #forceTo}
+     */
+    public synchronized long logWrite(TransactionId tid, Page before,
+                                      Page after, byte[] afterData)
+            throws IOException {
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
-        /* update record conists of
+        /* delta record consists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           page delta (see PageDelta.write)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        PageId pid = after.getId();
+        Map<PageId, byte[]> images = loggedImages.computeIfAbsent(tid.getId(), k -> new HashMap<>());
+        byte[] from = images.get(pid);
+        if (from == null) {
+            from = before.getPageData();
+        }
+        byte[] to = afterData;
+        PageDelta delta = PageDelta.diff(pid, from, to);
+        images.put(pid, to);
 
-        writePageData(raf, before);
-        writePageData(raf, after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        long start = beginRecord(DELTA_RECORD, tid.getId(), delta.size());
+        delta.write(buffer);
+        endRecord(start);
+        dirtyPages.compute(pageKey(pid), (k, lsns) -> new long[]{lsns == null ? start : lsns[0], start});
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        after.setLsn(start);
+        return start;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException {
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /**
+     * Write a DELTA record for a change a transaction just made to tuples of
+     * a page that other transactions may be changing too (see
+     * {@link HeapFile#insertTuple}). The caller holds the page latch, so the
+     * records of the page are in the order of its changes, and the delta is
+     * taken between the images just before and after the change rather than
+     * against an image logged earlier. The LSN of the record becomes the
+     * page LSN.
+     *
+     * @return the LSN of the record
+     */
+    synchronized long logRowChange(TransactionId tid, Page page, PageDelta delta) throws IOException {
+        preAppend();
+        long start = beginRecord(DELTA_RECORD, tid.getId(), delta.size());
+        delta.write(buffer);
+        endRecord(start);
+        dirtyPages.compute(pageKey(delta.getPageId()), (k, lsns) -> new long[]{lsns == null ? start : lsns[0], start});
+        page.setLsn(start);
+        return start;
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
+    /**
+     * Called when a page is overwritten on disk without a log record, as
+     * when a B+ tree page is wiped for reuse. The next record of the page is
+     * taken against the page as it is read back, and the page LSN to give
+     * the page is returned: recovery must not replay the changes logged for
+     * the page before it was overwritten.
+     *
+     * @return the LSN the page holds the log up to, which is on disk
+     */
+    public long pageOverwritten(PageId pid) throws IOException {
+        long end;
+        synchronized (this) {
+            preAppend();
+            for (Map<PageId, byte[]> images : loggedImages.values()) {
+                images.keySet().removeIf(p -> p.getTableId() == pid.getTableId()
+                        && p.getPageNumber() == pid.getPageNumber());
+            }
+            end = logEnd();
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        forceTo(end - 1);
+        return end;
     }
 
     Page readPageData(RandomAccessFile raf) throws IOException {
@@ -302,8 +555,9 @@ public class LogFile {
      * Write a BEGIN record for the specified transaction
      *
      * @param tid The transaction that is beginning
+     * @return the LSN of the record
      */
-    public synchronized void logXactionBegin(TransactionId tid)
+    public synchronized long logXactionBegin(TransactionId tid)
             throws IOException {
         Debug.log("BEGIN");
         if (tidToFirstLogRecord.get(tid.getId()) != null) {
@@ -311,154 +565,111 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long start = beginRecord(BEGIN_RECORD, tid.getId(), 0);
+        endRecord(start);
+        tidToFirstLogRecord.put(tid.getId(), start);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
+        return start;
     }
 
     /**
      * Checkpoint the log and write a checkpoint record.
+     * <p>
+     * The checkpoint is fuzzy: it records the running transactions and the
+     * dirty page table as they are, while transactions go on, and writes no
+     * page. It does force the pages already written to the data files, and
+     * then records their page LSNs (see {@link PageLsnMap}). Recovery redoes
+     * from the oldest change the dirty page table names. Once the record is
+     * on disk the log file points to it and the log is truncated.
      */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        synchronized (checkpointLock) {
+            Database.getCatalog().forceFiles();
+            long checkpoint;
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                Map<Long, Long> active = new HashMap<>(tidToFirstLogRecord);
+                Map<Long, Long> dirty = new HashMap<>();
+                dirtyPages.forEach((page, lsns) -> dirty.put(page, lsns[0]));
 
+                //no tid , but leave space for convenience
+                checkpoint = beginRecord(CHECKPOINT_RECORD, -1,
+                        INT_SIZE + active.size() * 2 * LONG_SIZE + INT_SIZE + dirty.size() * 2 * LONG_SIZE);
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+                buffer.putInt(active.size());
+                active.forEach((tid, first) -> {
+                    buffer.putLong(tid);
+                    buffer.putLong(first);
+                });
+                //write the dirty page table
+                buffer.putInt(dirty.size());
+                dirty.forEach((page, recLsn) -> {
+                    buffer.putInt((int) (page >>> 32));
+                    buffer.putInt((int) (long) page);
+                    buffer.putLong(recLsn);
+                });
+                endRecord(checkpoint);
+            }
+            forceTo(checkpoint);
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
+            //once the CP is on disk, make sure the CP location in the log
+            // file is updated before any segment it needs is dropped
+            FileChannel channel;
+            synchronized (this) {
                 raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                raf.writeLong(checkpoint);
+                channel = raf.getChannel();
             }
+            channel.force(false);
+            logTruncate();
         }
-
-        logTruncate();
     }
 
     /**
      * Truncate any unneeded portion of the log to reduce its space
-     * consumption
+     * consumption: the segments that end before the last checkpoint, the
+     * first change its dirty page table names and the first record of any
+     * running transaction.
      */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        flushBuffer();
         raf.seek(0);
         long cpLoc = raf.readLong();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
 
         long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
+        try (LogReader in = new LogReader(cpLoc)) {
+            LogRecord cp = in.next();
+            if (cp == null || cp.type != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+            for (long lsn : cp.live.values()) {
+                minLogRecord = Math.min(minLogRecord, lsn);
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                    case UPDATE_RECORD:
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
-
-                        writePageData(logNew, before);
-                        writePageData(logNew, after);
-                        break;
-                    case CHECKPOINT_RECORD:
-                        int numXactions = raf.readInt();
-                        logNew.writeInt(numXactions);
-                        while (numXactions-- > 0) {
-                            long xid = raf.readLong();
-                            long xoffset = raf.readLong();
-                            logNew.writeLong(xid);
-                            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                        }
-                        break;
-                    case BEGIN_RECORD:
-                        tidToFirstLogRecord.put(record_tid, newStart);
-                        break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+            for (long lsn : cp.dirty.values()) {
+                minLogRecord = Math.min(minLogRecord, lsn);
             }
         }
+        for (long lsn : tidToFirstLogRecord.values()) {
+            minLogRecord = Math.min(minLogRecord, lsn);
+        }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        // we can drop every segment before the one holding minLogRecord
+        Long keep = segments.floorKey(minLogRecord);
+        if (keep == null) {
+            return;
+        }
+        Iterator<File> dropped = segments.headMap(keep).values().iterator();
+        while (dropped.hasNext()) {
+            File f = dropped.next();
+            Debug.log("TRUNCATING LOG: DROPPING " + f);
+            f.delete();
+            dropped.remove();
+        }
     }
 
     /**
@@ -467,77 +678,312 @@ public class LogFile {
      * transaction semantics, this should not be called on
      * transactions that have already committed (though this may not
      * be enforced by this method.)
+     * <p>
+     * Each change is undone by a CLR, which reaches the log before the
+     * page it restores. Changes to tuples of pages other transactions are
+     * changing too are undone first, on the pages in the pool.
      *
      * @param tid The transaction to rollback
      */
     public void rollback(TransactionId tid)
             throws NoSuchElementException, IOException {
+        undoRowChanges(tid);
         synchronized (Database.getBufferPool()) {
+            Database.getBufferPool().getPageWriter().awaitBatch();
             synchronized (this) {
-                preAppend();
-                // TODO: some code goes here
-//                print();
-//                Long record = tidToFirstLogRecord.get(tid.getId());
-//                raf.seek(record);
-//                int i = raf.readInt();
-//                System.out.println("record: "+i);
-                System.out.println("============ROLLBACK=============");
-                Set<PageId> pageIds = new HashSet<>();
-
-                raf.seek(tidToFirstLogRecord.get(tid.getId()));
-//                raf.readLong();
-
-                while (true) {
-                    try {
-                        int cpType = raf.readInt();
-                        long cpTid = raf.readLong();
+                undoPageChanges(tid);
+            }
+        }
+    }
 
-//                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-//                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+    // undoes the changes of tid the tuple rollback left, on disk; the caller
+    // holds the buffer pool lock and the lock on the log
+    private void undoPageChanges(TransactionId tid) throws IOException {
+        preAppend();
+        flushBuffer();
+        System.out.println("============ROLLBACK=============");
+        Long first = tidToFirstLogRecord.get(tid.getId());
+        if (first == null) {
+            throw new NoSuchElementException("transaction " + tid.getId() + " is not active");
+        }
+        undo(Collections.singleton(tid.getId()), first, false);
+    }
 
-                        switch (cpType) {
-                            case BEGIN_RECORD:
-                                System.out.println(" (BEGIN) " + cpTid);
-                                System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                                break;
-                            case ABORT_RECORD:
-                                System.out.println(" (ABORT) " + cpTid);
-                                System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                                break;
-                            case COMMIT_RECORD:
-                                System.out.println(" (COMMIT) " + cpTid);
-                                System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                                break;
-                            case UPDATE_RECORD:
-                                System.out.println(" (UPDATE) " + cpTid);
-
-                                long start = raf.getFilePointer();
-                                Page before = readPageData(raf);
-
-                                if (cpTid == tid.getId() && !pageIds.contains(before.getId())) {
-                                    System.out.println("ROLLBACK: write beforeImage to file: " + before.getId() + " tid: " + tid.getId());
-                                    Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
-                                    pageIds.add(before.getId());
-                                }
-
-                                long middle = raf.getFilePointer();
-                                Page after = readPageData(raf);
-                                System.out.println(start + ": before image table id " + before.getId().getTableId());
-                                System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                                System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
-                                System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                                System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                                System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
-                                System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+    /**
+     * Undoes the changes tid made to tuples of pages other transactions may
+     * be changing too (see {@link HeapFile#insertTuple}), on the pages in
+     * the pool rather than on disk: the pool holds the changes of the others
+     * that the disk may not yet. Each page is undone under its latch, newest
+     * change first, by {@link PageDelta#undoOn} on the page as it is now,
+     * with a CLR for each change; the page is then written like any other
+     * change. Must not be called holding the buffer pool lock, since the
+     * pages may have to be read in.
+     */
+    private void undoRowChanges(TransactionId tid) throws IOException {
+        Map<PageId, List<LogRecord>> changes = new LinkedHashMap<>();
+        synchronized (this) {
+            preAppend();
+            flushBuffer();
+            Long first = tidToFirstLogRecord.get(tid.getId());
+            if (first == null) {
+                throw new NoSuchElementException("transaction " + tid.getId() + " is not active");
+            }
+            Set<Long> compensated = new HashSet<>();
+            try (LogReader in = new LogReader(first)) {
+                for (LogRecord r = in.next(); r != null; r = in.next()) {
+                    if (r.tid != tid.getId()) {
+                        continue;
+                    }
+                    if (r.type == CLR_RECORD) {
+                        compensated.add(r.undone);
+                    } else if (r.type == DELTA_RECORD && rowFile(tid, r.delta.getPageId()) != null) {
+                        changes.computeIfAbsent(r.delta.getPageId(), k -> new ArrayList<>()).add(r);
+                    }
+                }
+            }
+            for (List<LogRecord> records : changes.values()) {
+                records.removeIf(r -> compensated.contains(r.lsn));
+            }
+        }
+
+        BufferPool bufferPool = Database.getBufferPool();
+        for (Map.Entry<PageId, List<LogRecord>> e : changes.entrySet()) {
+            PageId pid = e.getKey();
+            List<LogRecord> records = e.getValue();
+            HeapFile file = rowFile(tid, pid);
+            HeapPage page;
+            try {
+                page = (HeapPage) bufferPool.pinPage(tid, pid);
+            } catch (DbException ex) {
+                throw new IOException("could not read " + pid + " to roll back " + tid, ex);
+            }
+            try {
+                synchronized (page) {
+                    byte[] image = page.getPageData();
+                    long lsn = page.getLsn();
+                    synchronized (this) {
+                        preAppend();
+                        for (int i = records.size() - 1; i >= 0; i--) {
+                            LogRecord r = records.get(i);
+                            PageDelta undo = r.delta.undoOn(image);
+                            long clr = logClr(r, undo);
+                            dirtyPages.compute(pageKey(pid), (k, lsns) -> new long[]{lsns == null ? clr : lsns[0], clr});
+                            lsn = clr;
+                            file.rowChanged(tid, pid.getPageNumber(), undo);
                         }
+                    }
+                    page.restore(image);
+                    page.setLsn(lsn);
+                    page.markDirty(true, tid);
+                }
+            } finally {
+                bufferPool.unpinPage(tid, pid);
+            }
+        }
+    }
 
-                    } catch (EOFException e) {
-                        //e.printStackTrace();
-                        break;
+    // the file of a page tid changed tuples of, or null
+    private static HeapFile rowFile(TransactionId tid, PageId pid) {
+        if (!(pid instanceof HeapPageId)) {
+            return null;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        return file instanceof HeapFile && ((HeapFile) file).hasRowChanges(tid, pid.getPageNumber())
+                ? (HeapFile) file : null;
+    }
+
+    /*
+       a CLR consists of
+
+       record type
+       transaction id
+       LSN of the record undone
+       page delta that undoes it
+       start offset
+    */
+    private long logClr(LogRecord r, PageDelta undo) throws IOException {
+        long start = beginRecord(CLR_RECORD, r.tid, LONG_SIZE + undo.size());
+        buffer.putLong(r.lsn);
+        undo.write(buffer);
+        endRecord(start);
+        return start;
+    }
+
+    // a record read back from the log
+    private static class LogRecord {
+        int type;
+        long tid;
+        long lsn;
+        // DELTA and CLR records
+        PageDelta delta;
+        // CLR records: the LSN of the record undone
+        long undone;
+        // CHECKPOINT records: the first record of each live transaction, and
+        // the first change of each dirty page by pageKey()
+        Map<Long, Long> live;
+        Map<Long, Long> dirty;
+    }
+
+    /**
+     * Reads the record at the file pointer of a segment.
+     *
+     * @param base the LSN of the first byte of the segment
+     * @return the record, or null at the end of the segment or at a record
+     * cut short by a crash
+     */
+    private LogRecord readRecord(RandomAccessFile in, long base) throws IOException {
+        LogRecord r = new LogRecord();
+        r.lsn = base + in.getFilePointer();
+        try {
+            r.type = in.readInt();
+            r.tid = in.readLong();
+            switch (r.type) {
+                case UPDATE_RECORD:
+                    readPageData(in);
+                    readPageData(in);
+                    break;
+                case CLR_RECORD:
+                    r.undone = in.readLong();
+                    r.delta = PageDelta.read(in);
+                    break;
+                case DELTA_RECORD:
+                    r.delta = PageDelta.read(in);
+                    break;
+                case CHECKPOINT_RECORD:
+                    r.live = new HashMap<>();
+                    for (int n = in.readInt(); n > 0; n--) {
+                        r.live.put(in.readLong(), in.readLong());
                     }
+                    r.dirty = new HashMap<>();
+                    for (int n = in.readInt(); n > 0; n--) {
+                        long page = ((long) in.readInt() << 32) | (in.readInt() & 0xffffffffL);
+                        r.dirty.put(page, in.readLong());
+                    }
+                    break;
+            }
+            in.readLong();
+        } catch (EOFException e) {
+            return null;
+        }
+        return r;
+    }
+
+    /**
+     * Reads the records of the log from an LSN on, across segments. The
+     * buffer must have been flushed, and the segments must stay as they are
+     * while it is open; both hold under the lock on the log.
+     */
+    private class LogReader implements AutoCloseable {
+        private RandomAccessFile in;
+        private long base;
+
+        LogReader(long from) throws IOException {
+            Map.Entry<Long, File> s = segments.floorEntry(from);
+            if (s == null) {
+                s = segments.firstEntry();
+                from = s.getKey();
+            }
+            open(s);
+            in.seek(from - base);
+        }
+
+        private void open(Map.Entry<Long, File> s) throws IOException {
+            in = new RandomAccessFile(s.getValue(), "r");
+            base = s.getKey();
+        }
+
+        /**
+         * @return the next record, or null past the last whole record
+         */
+        LogRecord next() throws IOException {
+            while (true) {
+                long pos = in.getFilePointer();
+                LogRecord r = readRecord(in, base);
+                if (r != null) {
+                    return r;
+                }
+                Map.Entry<Long, File> s = segments.higherEntry(base);
+                if (s == null) {
+                    in.seek(pos);
+                    return null;
                 }
+                in.close();
+                open(s);
             }
         }
+
+        /**
+         * @return the LSN of the next record
+         */
+        long position() throws IOException {
+            return base + in.getFilePointer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Undoes the changes of the given transactions logged from the given
+     * LSN on, newest first, leaving out those a CLR already undid. The
+     * CLRs are forced before any page is written.
+     *
+     * @param repeated true once redo has brought every page on disk up to
+     *                 the end of the log. A heap page may then hold changes
+     *                 of a winner next to those of a loser, so its changes
+     *                 are undone with {@link PageDelta#undoOn} on the page
+     *                 as it is on disk; otherwise the before bytes of each
+     *                 change are put back.
+     */
+    private void undo(Set<Long> tids, long from, boolean repeated) throws IOException {
+        List<LogRecord> changes = new ArrayList<>();
+        Set<Long> compensated = new HashSet<>();
+        try (LogReader in = new LogReader(from)) {
+            for (LogRecord r = in.next(); r != null; r = in.next()) {
+                if (!tids.contains(r.tid)) {
+                    continue;
+                }
+                if (r.type == DELTA_RECORD) {
+                    changes.add(r);
+                } else if (r.type == CLR_RECORD) {
+                    compensated.add(r.undone);
+                }
+            }
+        }
+
+        List<PageDelta> undos = new ArrayList<>();
+        List<Long> lsns = new ArrayList<>();
+        Map<PageId, byte[]> images = new HashMap<>();
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            LogRecord r = changes.get(i);
+            if (compensated.contains(r.lsn)) {
+                continue;
+            }
+            PageId pid = r.delta.getPageId();
+            PageDelta undo;
+            if (repeated && pid instanceof HeapPageId) {
+                byte[] image = images.get(pid);
+                if (image == null) {
+                    image = PageDelta.readImage(pid);
+                    images.put(pid, image);
+                }
+                undo = r.delta.undoOn(image);
+            } else {
+                undo = r.delta.inverse();
+            }
+            undos.add(undo);
+            lsns.add(logClr(r, undo));
+        }
+        if (undos.isEmpty()) {
+            return;
+        }
+        force();
+        for (int i = 0; i < undos.size(); i++) {
+            Debug.log("UNDO: " + undos.get(i).getPageId() + " lsn: " + lsns.get(i));
+            undos.get(i).redo(lsns.get(i));
+        }
     }
 
     /**
@@ -545,10 +991,14 @@ public class LogFile {
      * is necessary so that start up can happen quickly (without
      * extensive recovery.)
      */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                closed = true;
+                raf.close();
+                segment.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -560,275 +1010,440 @@ public class LogFile {
      * committed transactions are installed and that the
      * updates of uncommitted transactions are not installed.
      * <p>
-     * do not redo the aborted txn
+     * Analysis reads the log from the last checkpoint on, rebuilding the
+     * transactions that never ended and the dirty page table. Redo then
+     * starts at the oldest change the table names and redoes every change,
+     * CLRs included, to a page the table names from that change on, unless
+     * the page on disk holds it already, as told by its page LSN (see
+     * {@link PageLsnMap}). This repeats history, aborted transactions
+     * included, since their rollback was logged as CLRs. Then the changes
+     * of the transactions that never ended are undone, newest first, with
+     * a CLR for each, and they are logged as aborted. A crash during
+     * recovery leaves CLRs that the next recovery redoes rather than
+     * undoing their changes again.
      */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
+            Database.getBufferPool().getPageWriter().awaitBatch();
             synchronized (this) {
                 recoveryUndecided = false;
-                // TODO: some code goes here
                 System.out.println("==========RECOVER===========");
-                Map<Long, Set<PageId>> tidToPageIds = new HashMap<>();
-                Map<Long, Set<Page>> tidToPages = new HashMap<>();
-                Set<Long> leftTids = new HashSet<>();
-                long curOffset = raf.getFilePointer();
+                segments.clear();
+                segments.putAll(listSegments());
+                if (raf.length() < HEADER_SIZE || segments.isEmpty()) {
+                    startLog();
+                    return;
+                }
                 raf.seek(0);
                 long checkpoint = raf.readLong();
-                System.out.println("0: checkpoint record at offset " + checkpoint);
-                if (checkpoint != -1) {
-                    raf.seek(checkpoint);
-
-//                    int numTransactions = raf.readInt();
-//                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-//
-//                    while (numTransactions-- > 0) {
-//                        long tid = raf.readLong();
-//                        long firstRecord = raf.readLong();
-//                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-//                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
-//                    }
-//                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                }
-
-                while (true) {
-                    try {
-                        int cpType = raf.readInt();
-                        long cpTid = raf.readLong();
-                        switch (cpType) {
-                            case BEGIN_RECORD:
-                                System.out.printf("Tid: %d begin\n", cpTid);
-                                if (!tidToPageIds.containsKey(cpTid)) {
-                                    tidToPageIds.put(cpTid, new HashSet<>());
-                                }
-                                if (!tidToPages.containsKey(cpTid)) {
-                                    tidToPages.put(cpTid, new HashSet<>());
-                                }
-                                leftTids.add(cpTid);
-                                raf.readLong();
+                logId = raf.readLong();
+                System.out.println("0: checkpoint record at LSN " + checkpoint);
+
+                // analysis
+                Map<Long, Long> live = new HashMap<>();
+                Map<Long, Long> dirty = new HashMap<>();
+                long end;
+                try (LogReader in = new LogReader(checkpoint == NO_CHECKPOINT_ID ? segments.firstKey() : checkpoint)) {
+                    for (LogRecord r = in.next(); r != null; r = in.next()) {
+                        switch (r.type) {
+                            case CHECKPOINT_RECORD:
+                                r.live.forEach(live::putIfAbsent);
+                                r.dirty.forEach(dirty::putIfAbsent);
                                 break;
-                            case ABORT_RECORD:
-                                leftTids.remove(cpTid);
-                                System.out.println("REMOVE: " + cpTid);
-                                for (Page page : tidToPages.get(cpTid)) {
-                                    System.out.println("REMOVE: " + cpTid + " page: " + page.getId());
-                                    Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-                                }
-                                raf.readLong();
+                            case BEGIN_RECORD:
+                                live.put(r.tid, r.lsn);
                                 break;
                             case COMMIT_RECORD:
-                                leftTids.remove(cpTid);
-                                raf.readLong();
-                                break;
-                            case CHECKPOINT_RECORD:
-                                int numTransactions = raf.readInt();
-                                System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-                                while (numTransactions-- > 0) {
-                                    long tid = raf.readLong();
-                                    leftTids.add(tid);
-                                    long firstRecord = raf.readLong();
-                                    System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                                    System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
-                                }
-                                System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                            case ABORT_RECORD:
+                                live.remove(r.tid);
                                 break;
-                            case UPDATE_RECORD:
-                                System.out.println(" (UPDATE) " + cpTid);
-                                long start = raf.getFilePointer();
-                                Page before = readPageData(raf);
-                                long middle = raf.getFilePointer();
-                                Page after = readPageData(raf);
-                                System.out.println(start + ": before image table id " + before.getId().getTableId());
-                                System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                                System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
-                                System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                                System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                                System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
-
-                                System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-
-                                System.out.println("REDO: " + after.getId().getPageNumber() + " tid: " + cpTid);
-                                Database.getCatalog().getDatabaseFile(after.getId().getTableId()).writePage(after);
-
-                                if (!tidToPageIds.containsKey(cpTid)) {
-                                    tidToPageIds.put(cpTid, new HashSet<>());
-                                    tidToPages.put(cpTid, new HashSet<>());
-                                }
-                                if (!tidToPageIds.get(cpTid).contains(before.getId())) {
-                                    tidToPageIds.get(cpTid).add(before.getId());
-                                    tidToPages.get(cpTid).add(before);
-                                }
+                            case DELTA_RECORD:
+                            case CLR_RECORD:
+                                dirty.putIfAbsent(pageKey(r.delta.getPageId()), r.lsn);
                                 break;
                         }
-
-                    } catch (EOFException e) {
-//                        e.printStackTrace();
-                        break;
                     }
+                    end = in.position();
                 }
 
-                StringBuilder sb = new StringBuilder();
-                for (Long leftTid : leftTids) {
-                    sb.append(leftTid);
-                    sb.append(" ");
+                // new records go after the last whole one
+                long last = segments.floorKey(end);
+                for (File f : segments.tailMap(last, false).values()) {
+                    f.delete();
                 }
-                System.out.println("LeftTids :" + sb);
-
-                // ROLLBACK
-                for (Long tid : leftTids) {
-                    Set<PageId> pageIds = new HashSet<>();
-                    System.out.println("============ROLLBACK IN=============");
-                    System.out.println("seek: " + tid);
-                    Long begin = tidToFirstLogRecord.get(tid);
-                    if (begin == null)
-                        begin = 0L;
-                    raf.seek(begin);
-                    if (begin == 0L) {
-                        System.out.println("0: checkpoint record at offset " + raf.readLong());
-                    }
-                    Map<PageId, Page> readyMap = new HashMap<>();
-
-                    while (true) {
-                        try {
-                            int cpType = raf.readInt();
-                            long cpTid = raf.readLong();
-                            switch (cpType) {
-                                case BEGIN_RECORD:
-                                    System.out.printf("Tid: %d begin\n", cpTid);
-                                    raf.readLong();
-                                    break;
-                                case ABORT_RECORD:
-                                    raf.readLong();
-                                    break;
-                                case COMMIT_RECORD:
-                                    raf.readLong();
-                                    break;
-                                case CHECKPOINT_RECORD:
-                                    int numTransactions = raf.readInt();
-                                    while (numTransactions-- > 0) {
-                                        long newTid = raf.readLong();
-                                        long firstRecord = raf.readLong();
-                                    }
-                                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                                    break;
-                                case UPDATE_RECORD:
-                                    System.out.println(" (UPDATE) " + cpTid);
-                                    long start = raf.getFilePointer();
-                                    Page before = readPageData(raf);
-                                    long middle = raf.getFilePointer();
-                                    Page after = readPageData(raf);
-                                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
-                                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
-                                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                                    // ROLLBACK
-                                    if (cpTid == tid && !pageIds.contains(before.getId())) {
-                                        System.out.println("ROLLBACK: writePage: " + before.getId().getPageNumber() + " tid: " + tid);
-                                        Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
-                                        pageIds.add(before.getId());
-                                    }
-
+                segments.tailMap(last, false).clear();
+                if (segment != null) {
+                    segment.close();
+                }
+                openSegment(last);
+                segment.setLength(end - last);
+                fileEnd = end;
+                currentOffset = end;
+                tidToFirstLogRecord.clear();
+                loggedImages.clear();
+                dirtyPages.clear();
+
+                // redo
+                redone = 0;
+                int skipped = 0;
+                if (!dirty.isEmpty()) {
+                    try (LogReader in = new LogReader(Collections.min(dirty.values()))) {
+                        for (LogRecord r = in.next(); r != null; r = in.next()) {
+                            if (r.type != DELTA_RECORD && r.type != CLR_RECORD) {
+                                continue;
+                            }
+                            Long recLsn = dirty.get(pageKey(r.delta.getPageId()));
+                            if (recLsn != null && r.lsn >= recLsn && r.delta.redo(r.lsn)) {
+                                redone++;
+                            } else {
+                                skipped++;
                             }
-
-                        } catch (EOFException e) {
-                            //e.printStackTrace();
-                            break;
                         }
                     }
-
-
                 }
-
+                Debug.log("REDO: " + redone + " changes redone, " + skipped + " already on disk");
+
+                // undo
+                Debug.log("LOSERS: " + live.keySet());
+                if (!live.isEmpty()) {
+                    undo(live.keySet(), Collections.min(live.values()), true);
+                    for (long tid : live.keySet()) {
+                        endRecord(beginRecord(ABORT_RECORD, tid, 0));
+                    }
+                    force();
+                }
+                // the pages redo and undo wrote, so the next recovery need
+                // not redo them again
+                Database.getCatalog().forceFiles();
                 System.out.println("=============RECOVER END===============");
-
             }
         }
-
     }
 
     /**
      * Print out a human readable represenation of the log
      */
-    public void print() throws IOException {
+    public synchronized void print() throws IOException {
         System.out.println("==========print log===========");
-
-        long curOffset = raf.getFilePointer();
-
+        flushBuffer();
         raf.seek(0);
+        System.out.println("checkpoint record at LSN " + raf.readLong());
+        System.out.println("log id " + raf.readLong());
+        if (segments.isEmpty()) {
+            return;
+        }
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
-
-        while (true) {
-            try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
-//                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-//                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
-
-                switch (cpType) {
+        try (LogReader in = new LogReader(segments.firstKey())) {
+            for (LogRecord r = in.next(); r != null; r = in.next()) {
+                switch (r.type) {
                     case BEGIN_RECORD:
-                        System.out.println(" (BEGIN) " + cpTid);
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        System.out.println(r.lsn + ": (BEGIN) " + r.tid);
                         break;
                     case ABORT_RECORD:
-                        System.out.println(" (ABORT) " + cpTid);
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        System.out.println(r.lsn + ": (ABORT) " + r.tid);
                         break;
                     case COMMIT_RECORD:
-                        System.out.println(" (COMMIT) " + cpTid);
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        System.out.println(r.lsn + ": (COMMIT) " + r.tid);
                         break;
-
                     case CHECKPOINT_RECORD:
-                        System.out.println(" (CHECKPOINT) " + cpTid);
-                        int numTransactions = raf.readInt();
-                        System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-
-                        while (numTransactions-- > 0) {
-                            long tid = raf.readLong();
-                            long firstRecord = raf.readLong();
-                            System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                            System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
-                        }
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-
+                        System.out.println(r.lsn + ": (CHECKPOINT) " + r.tid);
+                        System.out.println("    NUMBER OF OUTSTANDING RECORDS: " + r.live.size());
+                        r.live.forEach((tid, first) ->
+                                System.out.println("    TID: " + tid + ", FIRST LOG RECORD: " + first));
+                        System.out.println("    NUMBER OF DIRTY PAGES: " + r.dirty.size());
+                        r.dirty.forEach((page, recLsn) ->
+                                System.out.println("    TABLE: " + (int) (page >>> 32) + ", PAGE: "
+                                        + (int) (long) page + ", FIRST CHANGE: " + recLsn));
                         break;
                     case UPDATE_RECORD:
-                        System.out.println(" (UPDATE) " + cpTid);
+                        System.out.println(r.lsn + ": (UPDATE) " + r.tid);
+                        break;
+                    case CLR_RECORD:
+                    case DELTA_RECORD:
+                        System.out.println(r.lsn + ": " + (r.type == CLR_RECORD ? "(CLR) " : "(DELTA) ") + r.tid);
+                        if (r.type == CLR_RECORD) {
+                            System.out.println("    UNDOES LSN: " + r.undone);
+                        }
+                        System.out.println("    page " + r.delta.getPageId() + ", "
+                                + r.delta.getRangeCount() + " changed ranges");
+                        break;
+                }
+            }
+        }
+    }
 
-                        long start = raf.getFilePointer();
-                        Page before = readPageData(raf);
+    /**
+     * @return true if tid has begun and has not yet committed or aborted
+     */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /**
+     * Forces the whole log to disk right away.
+     */
+    public synchronized void force() throws IOException {
+        flushBuffer();
+        segment.getChannel().force(true);
+        forces.increment();
+        markDurable(logEnd());
+    }
 
-                        long middle = raf.getFilePointer();
-                        Page after = readPageData(raf);
+    /**
+     * @return the LSN just past the last record appended to the log. It
+     * only ever grows, even when the log is truncated.
+     */
+    public synchronized long logEnd() {
+        return currentOffset;
+    }
 
-                        System.out.println(start + ": before image table id " + before.getId().getTableId());
-                        System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                        System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+    /**
+     * Waits until the log is on disk up to and including the record with the
+     * given LSN, forcing it if no force in progress will cover it. Used
+     * before writing a page whose update record has that LSN.
+     *
+     * @param lsn an LSN returned by {@link #logWrite}
+     */
+    public void forceTo(long lsn) throws IOException {
+        awaitForce(lsn, false);
+    }
 
-                        System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                        System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                        System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+    /**
+     * Waits until the log is on disk up to and including the record with the
+     * given LSN as part of the commit of a transaction. If other
+     * transactions are running, the force may wait up to the batch delay
+     * for them to append their records too.
+     */
+    public void groupForceTo(TransactionId tid, long lsn) throws IOException {
+        boolean othersActive;
+        synchronized (this) {
+            othersActive = tidToFirstLogRecord.size() > (tidToFirstLogRecord.containsKey(tid.getId()) ? 1 : 0);
+        }
+        awaitForce(lsn, othersActive);
+    }
 
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+    private void awaitForce(long lsn, boolean gather) throws IOException {
+        synchronized (this) {
+            // even one with nothing left to force: the records of tuple
+            // changes may be on disk before their transaction commits
+            if (closed) {
+                throw new IOException("log is closed");
+            }
+        }
+        if (groupSize <= 1) {
+            // every commit forces the log on its own
+            force();
+            return;
+        }
+        // a commit is not done until it is durable, so interrupts are only
+        // passed on once it is
+        boolean interrupted = false;
+        try {
+            synchronized (flushLock) {
+                if (durableOffset <= lsn && flushing) {
+                    // counted once, so that waking waiters do not wake each
+                    // other over and over while the leader waits for the lock
+                    flushWaiters++;
+                    if (flushWaiters + 1 >= groupSize) {
+                        // the batch is full; the leader need not wait longer
+                        flushLock.notifyAll();
+                    }
+                    try {
+                        while (durableOffset <= lsn && flushing) {
+                            try {
+                                flushLock.wait();
+                            } catch (InterruptedException e) {
+                                interrupted = true;
+                            }
+                        }
+                    } finally {
+                        flushWaiters--;
+                    }
+                }
+                if (durableOffset > lsn) {
+                    return;
+                }
+                flushing = true;
+                long deadline = System.nanoTime() + groupDelayNanos;
+                long left;
+                while (gather && !interrupted && flushWaiters + 1 < groupSize
+                        && (left = deadline - System.nanoTime()) > 0) {
+                    try {
+                        flushLock.wait(left / 1_000_000, (int) (left % 1_000_000));
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            leadForce();
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
-                        break;
+    // forces the log for everyone waiting; the caller set flushing
+    private void leadForce() throws IOException {
+        long target = 0;
+        boolean forced = false;
+        try {
+            FileChannel channel;
+            synchronized (this) {
+                flushBuffer();
+                target = logEnd();
+                channel = segment.getChannel();
+            }
+            try {
+                channel.force(true);
+            } catch (ClosedChannelException e) {
+                // the log moved on to a new segment in the meantime, which
+                // forced this one
+            }
+            forces.increment();
+            forced = true;
+        } finally {
+            synchronized (flushLock) {
+                flushing = false;
+                if (forced && target > durableOffset) {
+                    durableOffset = target;
                 }
+                flushLock.notifyAll();
+            }
+        }
+    }
 
-            } catch (EOFException e) {
-                //e.printStackTrace();
-                break;
+    private void markDurable(long end) {
+        synchronized (flushLock) {
+            if (end > durableOffset) {
+                durableOffset = end;
+                flushLock.notifyAll();
             }
         }
+    }
 
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
+    /**
+     * Sets how commits share forces of the log.
+     *
+     * @param size        the most commits a force waits for; 1 forces the log
+     *                    for every commit on its own
+     * @param delayMicros the longest a force waits for more commits to join
+     */
+    public void setGroupCommit(int size, long delayMicros) {
+        if (size < 1 || delayMicros < 0) {
+            throw new IllegalArgumentException("bad group commit settings: " + size + ", " + delayMicros);
+        }
+        groupSize = size;
+        groupDelayNanos = TimeUnit.MICROSECONDS.toNanos(delayMicros);
     }
 
-    public synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * Sets the size at which the log moves on to a new segment. Truncation
+     * drops whole segments, so smaller ones free space sooner.
+     */
+    public void setSegmentSize(int bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("bad log segment size: " + bytes);
+        }
+        segmentBytes = bytes;
+    }
+
+    /**
+     * @return the number of segment files the log is kept in
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Sets how often a background thread checkpoints the log, once it has
+     * been recovered or written to. The thread stops when the interval is
+     * set to 0, the log is shut down or the database is reset.
+     *
+     * @param millis milliseconds between checkpoints, 0 for none
+     */
+    public void setCheckpointInterval(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("bad checkpoint interval: " + millis);
+        }
+        checkpointMillis = millis;
+        synchronized (checkpointLock) {
+            if (millis > 0 && !checkpointerRunning) {
+                checkpointerRunning = true;
+                Thread checkpointer = new Thread(this::runCheckpoints, "log-checkpointer");
+                checkpointer.setDaemon(true);
+                checkpointer.start();
+            }
+        }
+    }
+
+    private void runCheckpoints() {
+        try {
+            while (true) {
+                long millis = checkpointMillis;
+                if (millis > 0) {
+                    Thread.sleep(millis);
+                }
+                synchronized (this) {
+                    if (checkpointMillis == 0 || closed || Database.getLogFile() != this) {
+                        return;
+                    }
+                    if (recoveryUndecided) {
+                        // a checkpoint would throw out a log yet to be recovered
+                        continue;
+                    }
+                }
+                logCheckpoint();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            synchronized (checkpointLock) {
+                checkpointerRunning = false;
+            }
+        }
+    }
+
+    // the key of a page in the dirty page table: pages of a B+ tree file
+    // that are reused under another category are the same page on disk
+    private static long pageKey(PageId pid) {
+        return ((long) pid.getTableId() << 32) | (pid.getPageNumber() & 0xffffffffL);
+    }
+
+    /**
+     * Called when a page with the given page LSN is forced to disk: it holds
+     * every change logged for it up to that LSN, so it leaves the dirty
+     * page table unless a later change was logged meanwhile. A write that
+     * is not forced yet may still be lost, so its page stays, and neither a
+     * checkpoint nor truncation drops the records needed to redo it.
+     */
+    void pageWritten(PageId pid, long lsn) {
+        dirtyPages.computeIfPresent(pageKey(pid), (k, lsns) -> lsns[1] <= lsn ? null : lsns);
+    }
+
+    /**
+     * @return the number of pages in the dirty page table, whose logged
+     * changes may not all be forced to disk yet
+     */
+    public int getDirtyPageCount() {
+        return dirtyPages.size();
+    }
+
+    /**
+     * @return the number of changes the last recovery redid, leaving out
+     * those the pages on disk already held
+     */
+    public synchronized int getRedoneCount() {
+        return redone;
+    }
+
+    /**
+     * @return the number of times the log was forced to disk
+     */
+    public long getForceCount() {
+        return forces.sum();
     }
 
 }
@@ -0,0 +1,166 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K eviction (O'Neil, O'Neil and Weikum, SIGMOD '93).
+ * <p>
+ * Each page keeps the times of its last K references. The victim is the page
+ * whose K-th most recent reference is oldest; pages referenced fewer than K
+ * times count as infinitely old and go first, oldest last reference first.
+ * A page touched once by a scan is therefore evicted before any page that has
+ * been referenced K times. The history of recently evicted pages is retained
+ * (up to the pool capacity) so that a page re-read soon after eviction is not
+ * treated as new. The resident pages are kept ordered on their K-th and
+ * last references, so the victim is found without a scan.
+ * <p>
+ * Hits are queued in an {@link AccessBuffer} and applied under the lock of
+ * the policy later, so that they do not serialize the hit path of the
+ * {@link PageTable}; a hit is timed when it is applied, in the order hits
+ * were reported.
+ *
+ * @Threadsafe
+ */
+public class LruKPolicy implements EvictionPolicy {
+
+    private final int k;
+    private final int retained;
+    private long clock = 0;
+
+    // reference history of resident pages, most recent first
+    private final Map<PageId, long[]> resident = new HashMap<>();
+    // the resident pages in eviction order
+    private final NavigableMap<Rank, PageId> order = new TreeMap<>();
+    // history of evicted pages, oldest eviction first
+    private final Map<PageId, long[]> evicted = new LinkedHashMap<>();
+    // pages read ahead and not referenced since
+    private final Set<PageId> prefetched = new HashSet<>();
+    private final AccessBuffer hits = new AccessBuffer();
+
+    /**
+     * @param k        the number of references remembered per page, at least 1
+     * @param capacity the number of pages in the buffer pool
+     */
+    public LruKPolicy(int k, int capacity) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        this.k = k;
+        this.retained = Math.max(1, capacity);
+    }
+
+    public void recordAccess(PageId pid) {
+        if (hits.add(pid)) {
+            synchronized (this) {
+                hits.drain(this::access);
+            }
+        }
+    }
+
+    private void access(PageId pid) {
+        long[] history = resident.get(pid);
+        if (history == null) {
+            return;
+        }
+        order.remove(rank(history));
+        if (prefetched.remove(pid)) {
+            // the read-ahead stands in for this first reference
+            history[0] = ++clock;
+        } else {
+            reference(history);
+        }
+        order.put(rank(history), pid);
+    }
+
+    public synchronized void recordInsert(PageId pid) {
+        hits.drain(this::access);
+        long[] history = resident.remove(pid);
+        if (history != null) {
+            order.remove(rank(history));
+        } else {
+            history = evicted.remove(pid);
+        }
+        if (history == null) {
+            history = new long[k];
+        }
+        reference(history);
+        resident.put(pid, history);
+        order.put(rank(history), pid);
+    }
+
+    public synchronized void recordPrefetch(PageId pid) {
+        recordInsert(pid);
+        prefetched.add(pid);
+    }
+
+    public synchronized void recordEvict(PageId pid) {
+        hits.drain(this::access);
+        prefetched.remove(pid);
+        long[] history = resident.remove(pid);
+        if (history != null) {
+            order.remove(rank(history));
+            evicted.put(pid, history);
+            if (evicted.size() > retained) {
+                Iterator<PageId> it = evicted.keySet().iterator();
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void recordRemove(PageId pid) {
+        hits.drain(this::access);
+        prefetched.remove(pid);
+        long[] history = resident.remove(pid);
+        if (history != null) {
+            order.remove(rank(history));
+        }
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        hits.drain(this::access);
+        for (PageId pid : order.values()) {
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private void reference(long[] history) {
+        System.arraycopy(history, 0, history, 1, k - 1);
+        history[0] = ++clock;
+    }
+
+    private Rank rank(long[] history) {
+        return new Rank(history[k - 1], history[0]);
+    }
+
+    /**
+     * The place of a page in eviction order: oldest K-th reference first,
+     * where 0 stands for fewer than K references, then oldest last
+     * reference. No two pages share a last reference, so no two share a rank.
+     */
+    private static final class Rank implements Comparable<Rank> {
+        final long kth;
+        final long last;
+
+        Rank(long kth, long last) {
+            this.kth = kth;
+            this.last = last;
+        }
+
+        public int compareTo(Rank o) {
+            int c = Long.compare(kth, o.kth);
+            return c != 0 ? c : Long.compare(last, o.last);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package simpledb.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Plain least-recently-used eviction.
+ * <p>
+ * The pages are kept in an access-ordered map, so the victim is found at its
+ * head without a scan. Hits are queued in an {@link AccessBuffer} and moved
+ * to the tail under the lock of the policy later, so that they do not
+ * serialize the hit path of the {@link PageTable}. A single sequential scan
+ * larger than the pool flushes every other page out, see
+ * {@link TwoQueuePolicy} and {@link LruKPolicy} for scan-resistant alternatives.
+ *
+ * @Threadsafe
+ */
+public class LruPolicy implements EvictionPolicy {
+
+    // access ordered, eldest entry is the LRU page
+    private final Map<PageId, Boolean> pages = new LinkedHashMap<>(16, 0.75f, true);
+    private final AccessBuffer hits = new AccessBuffer();
+
+    public void recordAccess(PageId pid) {
+        if (hits.add(pid)) {
+            synchronized (this) {
+                hits.drain(this::access);
+            }
+        }
+    }
+
+    private void access(PageId pid) {
+        pages.get(pid);
+    }
+
+    public synchronized void recordInsert(PageId pid) {
+        hits.drain(this::access);
+        pages.put(pid, Boolean.TRUE);
+    }
+
+    public synchronized void recordEvict(PageId pid) {
+        hits.drain(this::access);
+        pages.remove(pid);
+    }
+
+    public synchronized void recordRemove(PageId pid) {
+        hits.drain(this::access);
+        pages.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        hits.drain(this::access);
+        for (PageId pid : pages.keySet()) {
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,108 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A DbFileChannel that serves reads from read-only memory mappings of the
+ * whole file instead of read calls. The file is mapped once, in chunks of
+ * {@link #CHUNK_PAGES} pages, and a page read copies its slice out of the
+ * chunk that holds it. Writes still go through positional writes on the
+ * channel; on Linux a shared mapping sees them immediately.
+ * <p>
+ * Only the last chunk can be shorter than CHUNK_PAGES pages. It is remapped
+ * when an append grows the file, and lazily when a read falls past it.
+ *
+ * @Threadsafe
+ */
+public class MappedDbFileChannel extends DbFileChannel {
+
+    /**
+     * Number of pages per mapped chunk (64 MB at the default page size).
+     */
+    public static final int CHUNK_PAGES = 16384;
+
+    private final long chunkBytes;
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private FileChannel readChannel;
+
+    /**
+     * @param file     the file backing the DbFile
+     * @param pageSize the page size of the DbFile; chunks never split a page
+     */
+    public MappedDbFileChannel(File file, int pageSize) {
+        super(file);
+        this.chunkBytes = (long) CHUNK_PAGES * pageSize;
+    }
+
+    @Override
+    public int read(byte[] dst, long position) throws IOException {
+        int index = (int) (position / chunkBytes);
+        int offset = (int) (position % chunkBytes);
+        MappedByteBuffer[] mapped = chunks;
+        MappedByteBuffer chunk = index < mapped.length ? mapped[index] : null;
+        if (chunk == null || chunk.capacity() < offset + dst.length) {
+            chunk = remap(index);
+        }
+        if (chunk == null || chunk.capacity() <= offset) {
+            return 0;
+        }
+        int len = Math.min(dst.length, chunk.capacity() - offset);
+        ByteBuffer slice = chunk.duplicate();
+        slice.position(offset);
+        slice.get(dst, 0, len);
+        return len;
+    }
+
+    @Override
+    public synchronized long append(byte[] src) throws IOException {
+        long position = super.append(src);
+        remap((int) (position / chunkBytes));
+        return position;
+    }
+
+    /**
+     * Maps (or maps again) the given chunk with the current file size.
+     *
+     * @return the mapping, or null if the chunk starts past the end of the file
+     */
+    private synchronized MappedByteBuffer remap(int index) throws IOException {
+        if (readChannel == null || !readChannel.isOpen()) {
+            readChannel = FileChannel.open(getFile().toPath(), StandardOpenOption.READ);
+        }
+        long start = index * chunkBytes;
+        long size = Math.min(chunkBytes, readChannel.size() - start);
+        if (size <= 0) {
+            return null;
+        }
+        MappedByteBuffer[] mapped = chunks;
+        if (index < mapped.length && mapped[index] != null && mapped[index].capacity() == size) {
+            return mapped[index];
+        }
+        MappedByteBuffer chunk = readChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        if (index >= mapped.length) {
+            mapped = Arrays.copyOf(mapped, index + 1);
+        } else {
+            mapped = mapped.clone();
+        }
+        mapped[index] = chunk;
+        chunks = mapped;
+        return chunk;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        super.close();
+        // mappings are released when they are garbage collected
+        chunks = new MappedByteBuffer[0];
+        if (readChannel != null) {
+            readChannel.close();
+            readChannel = null;
+        }
+    }
+}
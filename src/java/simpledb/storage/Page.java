@@ -59,4 +59,30 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * @return the LSN of the last log record written for this page, or 0 if
+     * none was written since it was read
+     */
+    long getLsn();
+
+    /**
+     * Records the LSN of a log record written for this page.
+     *
+     * @see PageLsnMap
+     */
+    void setLsn(long lsn);
+
+    /**
+     * Returns true if each change to this page is logged as it is made,
+     * under the latch of the page, because transactions holding locks on
+     * different tuples change it side by side (see {@link HeapFile#insertTuple}).
+     * Such a page is written as it is, after the log is forced up to its
+     * page LSN, and is kept in the pool when one of those transactions aborts.
+     * Other pages are logged by {@link LogFile#logWrite} before they are
+     * written.
+     */
+    default boolean logsChanges() {
+        return false;
+    }
 }
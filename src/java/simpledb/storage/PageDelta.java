@@ -0,0 +1,265 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeHeaderPage;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PageDelta is the body of a DELTA log record: the byte ranges in which one
+ * image of a page differs from the next, with the bytes of each range before
+ * and after the change.
+ * <p>
+ * Inserting or deleting a tuple on a {@link HeapPage} changes a byte of the
+ * header bitmap and the bytes of the slot; an entry change on a B+ tree page
+ * changes its slot bits, key and child or tuple bytes. A delta holds only
+ * those, instead of two images of the whole page.
+ * <p>
+ * Redo writes the after bytes onto the page as it is on disk. Deltas of a
+ * page are taken against the image logged before them, so redoing them in
+ * log order leaves the page exactly as after the changes, and redoing their
+ * inverses in reverse leaves it as before them.
+ * <p>
+ * A heap page may be changed by several transactions at once, each on its
+ * own tuples, so a header byte can hold bits changed by two of them. Such a
+ * change is undone by {@link #undoOn}, which flips back only the bits the
+ * delta changed, and leaves the rest of the page as it is now.
+ */
+class PageDelta {
+
+    // ranges closer than this are merged, since a range costs two ints
+    private static final int MERGE_GAP = 4;
+
+    private final PageId pid;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(PageId pid, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the changes that turn the page data from into to
+     */
+    static PageDelta diff(PageId pid, byte[] from, byte[] to) {
+        if (from.length != to.length) {
+            throw new IllegalArgumentException("images of " + pid + " differ in size");
+        }
+        int n = from.length;
+        List<int[]> ranges = new ArrayList<>();
+        int i = Arrays.mismatch(from, to);
+        while (i >= 0 && i < n) {
+            int start = i;
+            int end = i + 1;
+            while (end < n) {
+                if (from[end] != to[end]) {
+                    end++;
+                    continue;
+                }
+                int next = Arrays.mismatch(from, end, Math.min(n, end + MERGE_GAP),
+                        to, end, Math.min(n, end + MERGE_GAP));
+                if (next < 0) {
+                    break;
+                }
+                end += next + 1;
+            }
+            ranges.add(new int[]{start, end});
+            int next = end < n ? Arrays.mismatch(from, end, n, to, end, n) : -1;
+            i = next < 0 ? -1 : end + next;
+        }
+
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < offsets.length; r++) {
+            int[] range = ranges.get(r);
+            offsets[r] = range[0];
+            before[r] = Arrays.copyOfRange(from, range[0], range[1]);
+            after[r] = Arrays.copyOfRange(to, range[0], range[1]);
+        }
+        return new PageDelta(pid, offsets, before, after);
+    }
+
+    PageId getPageId() {
+        return pid;
+    }
+
+    /**
+     * @return the number of changed byte ranges
+     */
+    int getRangeCount() {
+        return offsets.length;
+    }
+
+    /**
+     * @return the bytes write() takes
+     */
+    int size() {
+        int bytes = LogFile.INT_SIZE + pid.serialize().length * LogFile.INT_SIZE + LogFile.INT_SIZE;
+        for (byte[] b : before) {
+            bytes += 2 * LogFile.INT_SIZE + 2 * b.length;
+        }
+        return bytes;
+    }
+
+    /*
+       a delta is written as
+
+       number of page id ints
+       page id ints (see PageId.serialize)
+       number of ranges
+       for each range: offset, length, before bytes, after bytes
+    */
+    void write(ByteBuffer buf) {
+        int[] id = pid.serialize();
+        buf.putInt(id.length);
+        for (int j : id) {
+            buf.putInt(j);
+        }
+        buf.putInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            buf.putInt(offsets[r]);
+            buf.putInt(before[r].length);
+            buf.put(before[r]);
+            buf.put(after[r]);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        int[] id = new int[in.readInt()];
+        for (int j = 0; j < id.length; j++) {
+            id[j] = in.readInt();
+        }
+        PageId pid;
+        if (id.length == 2) {
+            pid = new HeapPageId(id[0], id[1]);
+        } else if (id.length == 3) {
+            pid = new BTreePageId(id[0], id[1], id[2]);
+        } else {
+            throw new IOException("bad page id in delta record");
+        }
+        int ranges = in.readInt();
+        int[] offsets = new int[ranges];
+        byte[][] before = new byte[ranges][];
+        byte[][] after = new byte[ranges][];
+        for (int r = 0; r < ranges; r++) {
+            offsets[r] = in.readInt();
+            int length = in.readInt();
+            before[r] = new byte[length];
+            after[r] = new byte[length];
+            in.readFully(before[r]);
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pid, offsets, before, after);
+    }
+
+    /**
+     * @return the delta that undoes this one
+     */
+    PageDelta inverse() {
+        return new PageDelta(pid, offsets, after, before);
+    }
+
+    /**
+     * Returns the delta that undoes this one on a later image of the page,
+     * in which other changes may have been made to the same bytes since: each
+     * bit this delta changed is flipped back, and every other bit is kept.
+     * The image is changed to match.
+     */
+    PageDelta undoOn(byte[] image) {
+        byte[][] from = new byte[offsets.length][];
+        byte[][] to = new byte[offsets.length][];
+        for (int r = 0; r < offsets.length; r++) {
+            from[r] = Arrays.copyOfRange(image, offsets[r], offsets[r] + before[r].length);
+            to[r] = from[r].clone();
+            for (int i = 0; i < to[r].length; i++) {
+                to[r][i] ^= before[r][i] ^ after[r][i];
+            }
+            System.arraycopy(to[r], 0, image, offsets[r], to[r].length);
+        }
+        return new PageDelta(pid, offsets, from, to);
+    }
+
+    /**
+     * Flips the bits this delta changed in mask, an image-sized XOR of
+     * changes; see {@link HeapFile#committedImage}.
+     */
+    void xorInto(byte[] mask) {
+        for (int r = 0; r < offsets.length; r++) {
+            for (int i = 0; i < before[r].length; i++) {
+                mask[offsets[r] + i] ^= before[r][i] ^ after[r][i];
+            }
+        }
+    }
+
+    /**
+     * @return the data of the page as it is on disk, zeroes if it never
+     * reached the disk
+     */
+    static byte[] readImage(PageId pid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        try {
+            return file.readPage(pid).getPageData();
+        } catch (IllegalArgumentException e) {
+            // the page never reached the disk
+            return new byte[pid instanceof BTreePageId && ((BTreePageId) pid).pgcateg() == BTreePageId.ROOT_PTR
+                    ? BTreeRootPtrPage.getPageSize() : BufferPool.getPageSize()];
+        }
+    }
+
+    /**
+     * Writes the after bytes onto the page on disk, unless its page LSN
+     * shows it already holds the change.
+     *
+     * @param lsn the LSN of the record holding this delta, which becomes
+     *            the page LSN
+     * @return false if the page already held the change
+     */
+    boolean redo(long lsn) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (PageLsnMap.of(file).getLsn(pid) >= lsn) {
+            return false;
+        }
+        byte[] data = readImage(pid);
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(after[r], 0, data, offsets[r], after[r].length);
+        }
+        Page page = pageOf(pid, data);
+        page.setLsn(lsn);
+        file.writePage(page);
+        return true;
+    }
+
+    // the page object a file of the catalog reads for the data
+    private static Page pageOf(PageId pid, byte[] data) throws IOException {
+        if (pid instanceof HeapPageId) {
+            return new HeapPage((HeapPageId) pid, data);
+        }
+        BTreePageId id = (BTreePageId) pid;
+        switch (id.pgcateg()) {
+            case BTreePageId.ROOT_PTR:
+                return new BTreeRootPtrPage(id, data);
+            case BTreePageId.HEADER:
+                return new BTreeHeaderPage(id, data);
+            default:
+                int keyField = ((BTreeFile) Database.getCatalog().getDatabaseFile(id.getTableId())).keyField();
+                return id.pgcateg() == BTreePageId.LEAF
+                        ? new BTreeLeafPage(id, data, keyField)
+                        : new BTreeInternalPage(id, data, keyField);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreePageId;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PageLsnMap records the page LSN of each page of a file: the LSN of the
+ * last log record whose change the page on disk holds. Recovery redoes a
+ * change only on pages older than its record (see {@link LogFile#recover}).
+ * <p>
+ * The page formats have no room for an LSN, so pages carry theirs in memory
+ * only (see {@link Page#getLsn}) and the map keeps them in a file next to
+ * the data file (<tt>foo.dat.lsn</tt>), sixteen bytes per page: the id of
+ * the log the LSN belongs to, and the LSN. Entries of another log, such as
+ * one that was thrown out when the database started afresh, read as 0.
+ * <p>
+ * An entry must never get ahead of the page it describes: redo skips a
+ * change whenever the entry of its page is at least its LSN (see
+ * {@link PageDelta}), so an entry that survives a crash while the write of
+ * its page does not would lose the change. The writes of data pages are not
+ * forced, so entries are only kept in memory when the pages are written,
+ * and {@link #force} writes them out once it has forced the data file. A
+ * crash in between leaves the map behind the pages, and recovery redoes
+ * changes the pages already hold, which leaves them as they were.
+ *
+ * @Threadsafe
+ */
+public class PageLsnMap {
+
+    private static final int ENTRY_SIZE = 2 * Long.BYTES;
+
+    private final DbFileChannel data;
+    private final DbFileChannel channel;
+
+    // the page LSNs of pages written since the last force, by page
+    private Map<PageId, Long> written = new HashMap<>(); // protected by this
+
+    /**
+     * @param data the channel of the file whose pages are tracked
+     */
+    public PageLsnMap(DbFileChannel data) {
+        this.data = data;
+        this.channel = new DbFileChannel(new File(data.getFile().getPath() + ".lsn"));
+    }
+
+    /**
+     * @return the map of the given heap or B+ tree file
+     */
+    public static PageLsnMap of(DbFile file) {
+        if (file instanceof HeapFile) {
+            return ((HeapFile) file).getPageLsnMap();
+        }
+        if (file instanceof BTreeFile) {
+            return ((BTreeFile) file).getPageLsnMap();
+        }
+        throw new IllegalArgumentException("no page LSNs are kept for " + file.getClass().getName());
+    }
+
+    public File getFile() {
+        return channel.getFile();
+    }
+
+    // the root pointer page of a B+ tree file is 0, its other pages start at 1
+    private static long position(PageId pid) {
+        boolean rootPtr = pid instanceof BTreePageId && ((BTreePageId) pid).pgcateg() == BTreePageId.ROOT_PTR;
+        return (long) (rootPtr ? 0 : pid.getPageNumber()) * ENTRY_SIZE;
+    }
+
+    /**
+     * @return the page LSN of the page on disk, or 0 if it is not known
+     */
+    public long getLsn(PageId pid) throws IOException {
+        byte[] entry = new byte[ENTRY_SIZE];
+        if (channel.read(entry, position(pid)) < ENTRY_SIZE) {
+            return 0;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(entry);
+        long logId = buf.getLong();
+        long lsn = buf.getLong();
+        return logId != 0 && logId == Database.getLogFile().getLogId() ? lsn : 0;
+    }
+
+    /**
+     * Records the page LSN of a page that was just written. Pages that were
+     * written without a log record, which have no LSN, leave the map as it is.
+     * <p>
+     * The entry is only kept in memory until the next {@link #force}, and
+     * the page stays in the dirty page table of the log until then: the
+     * write may still be lost. Until then recovery may also redo changes the
+     * page already holds. That is harmless: redo writes the after bytes of
+     * each delta in log order, and every byte a redone delta sets ends up
+     * with the value of the last change to it, which the page already has.
+     */
+    public void pageWritten(PageId pid, long lsn) {
+        if (lsn <= 0 || Database.getLogFile().getLogId() == 0) {
+            return;
+        }
+        synchronized (this) {
+            written.merge(pid, lsn, Math::max);
+        }
+    }
+
+    /**
+     * Records the page LSN of a page that was just overwritten without a log
+     * record, as a B+ tree page is wiped for reuse. The page and its entry are
+     * forced at once: recovery must not replay the changes logged for the page
+     * before, since the next changes are logged against the wiped page.
+     */
+    public void pageOverwritten(PageId pid, long lsn) throws IOException {
+        long logId = Database.getLogFile().getLogId();
+        if (lsn <= 0 || logId == 0) {
+            return;
+        }
+        data.force();
+        writeEntry(pid, logId, lsn);
+        channel.force();
+        synchronized (this) {
+            written.remove(pid);
+        }
+        Database.getLogFile().pageWritten(pid, lsn);
+    }
+
+    /**
+     * Forces the pages written to the data file so far to disk, then writes
+     * out their entries and forces them too, and takes the pages out of the
+     * dirty page table of the log.
+     */
+    public void force() throws IOException {
+        Map<PageId, Long> entries;
+        synchronized (this) {
+            if (written.isEmpty()) {
+                return;
+            }
+            entries = written;
+            written = new HashMap<>();
+        }
+        long logId = Database.getLogFile().getLogId();
+        data.force();
+        for (Map.Entry<PageId, Long> e : entries.entrySet()) {
+            writeEntry(e.getKey(), logId, e.getValue());
+        }
+        channel.force();
+        for (Map.Entry<PageId, Long> e : entries.entrySet()) {
+            Database.getLogFile().pageWritten(e.getKey(), e.getValue());
+        }
+    }
+
+    private void writeEntry(PageId pid, long logId, long lsn) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        entry.putLong(logId);
+        entry.putLong(lsn);
+        channel.write(entry.array(), position(pid));
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
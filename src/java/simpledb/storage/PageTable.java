@@ -0,0 +1,499 @@
+package simpledb.storage;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PageTable maps the ids of resident pages to their in-memory copies for the
+ * BufferPool.
+ * <p>
+ * Lookups never block on the table itself: frames live in a ConcurrentHashMap
+ * and a cache hit is only reported to the {@link EvictionPolicy}. Installing a
+ * page that is not yet resident takes the eviction lock, which asks the policy
+ * for a victim once the table is at capacity.
+ * <p>
+ * A resident page can be pinned, any number of times. A pinned page is never
+ * chosen for eviction and never dropped by {@link #removeIfUnchanged} or
+ * {@link #removeIfUnpinned}, so whoever pinned it keeps working on the copy
+ * the rest of the pool sees. Only {@link #remove} drops a pinned page.
+ * <p>
+ * A dirty victim is tracked as being written back until the BufferPool
+ * reports it with {@link #writtenBack}; it is registered before its frame goes,
+ * so a miss on its id always finds it in {@link #writingBack}. The copy there
+ * is newer than the disk and is the one to install again. {@link #prefetch}
+ * does not install a copy read from disk while that write may still be
+ * pending, nor one read while any dirty page left the table, e.g. after a
+ * flush or an abort.
+ *
+ * @Threadsafe
+ */
+public class PageTable {
+
+    static class Frame {
+        final PageId pid;
+        volatile Page page;
+        /**
+         * Bumped every time the page is put again, i.e. after each change
+         */
+        volatile long version;
+        /**
+         * Number of pins; only changed while the map entry is being computed
+         */
+        volatile int pins;
+
+        Frame(PageId pid, Page page) {
+            this.pid = pid;
+            this.page = page;
+        }
+    }
+
+    private final Map<PageId, Frame> frames;
+    private final EvictionPolicy policy;
+    private final ReentrantLock evictionLock;
+    private final int capacity;
+
+    static class WriteBack {
+        final Page page;
+        /**
+         * Number of evictions of the page whose write is pending; only changed
+         * while the map entry is being computed
+         */
+        int writes;
+
+        WriteBack(Page page) {
+            this.page = page;
+        }
+    }
+
+    // dirty victims not yet written, and a count of dirty pages that left
+    private final Map<PageId, WriteBack> writingBack = new ConcurrentHashMap<>();
+    private final AtomicLong dirtyDrops = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates an empty page table with LRU eviction.
+     *
+     * @param capacity maximum number of resident pages
+     */
+    public PageTable(int capacity) {
+        this(capacity, new LruPolicy());
+    }
+
+    /**
+     * Creates an empty page table.
+     *
+     * @param capacity maximum number of resident pages
+     * @param policy   the policy used to choose which page to evict
+     */
+    public PageTable(int capacity, EvictionPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.frames = new ConcurrentHashMap<>(capacity * 2);
+        this.evictionLock = new ReentrantLock();
+    }
+
+    public boolean containsKey(PageId pid) {
+        return frames.containsKey(pid);
+    }
+
+    /**
+     * Returns the resident page with the given id and records the access, or
+     * null if the page is not resident.
+     */
+    public Page get(PageId pid) {
+        Frame frame = frames.get(pid);
+        if (frame == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        policy.recordAccess(pid);
+        return frame.page;
+    }
+
+    /**
+     * Installs a page, replacing any resident copy with the same id.
+     *
+     * @return the page evicted to make room for it, or null if nothing was evicted
+     * @throws IllegalStateException if the table is full and every page is pinned
+     */
+    public Page put(PageId pid, Page page) {
+        if (replace(pid, page)) {
+            return null;
+        }
+
+        evictionLock.lock();
+        try {
+            // another thread may have installed the page while we waited
+            if (replace(pid, page)) {
+                return null;
+            }
+            Page victim = null;
+            if (frames.size() >= capacity) {
+                victim = evict();
+                if (victim == null) {
+                    throw new IllegalStateException("every page in the pool is pinned");
+                }
+                if (victim.isDirty() != null) {
+                    dirtyDrops.incrementAndGet();
+                }
+            }
+            frames.put(pid, new Frame(pid, page));
+            policy.recordInsert(pid);
+            return victim;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the resident page with the given id without recording an
+     * access, or null if the page is not resident.
+     */
+    public Page peek(PageId pid) {
+        Frame frame = frames.get(pid);
+        return frame == null ? null : frame.page;
+    }
+
+    /**
+     * Pins a page if it is the resident copy of its id.
+     *
+     * @return false if the page is not resident, e.g. it was evicted since
+     * it was looked up
+     */
+    public boolean pin(Page page) {
+        boolean[] pinned = {false};
+        frames.computeIfPresent(page.getId(), (id, f) -> {
+            if (f.page == page) {
+                f.pins++;
+                pinned[0] = true;
+            }
+            return f;
+        });
+        return pinned[0];
+    }
+
+    /**
+     * Releases one pin on a page; does nothing if the page is not resident
+     * or not pinned.
+     */
+    public void unpin(PageId pid) {
+        frames.computeIfPresent(pid, (id, f) -> {
+            if (f.pins > 0) {
+                f.pins--;
+            }
+            return f;
+        });
+    }
+
+    /**
+     * @return the number of pins on a page, 0 if it is not resident
+     */
+    public int pinCount(PageId pid) {
+        Frame frame = frames.get(pid);
+        return frame == null ? 0 : frame.pins;
+    }
+
+    /**
+     * Returns a stamp to pass to {@link #prefetch}; take it before reading
+     * the page from disk.
+     */
+    public long prefetchStamp() {
+        return dirtyDrops.get();
+    }
+
+    /**
+     * Installs a page read ahead of its use. Unlike {@link #put}, the page is
+     * only installed if it is not resident, and only a clean, unpinned victim
+     * is given up for it: a prefetch never writes anything and never pushes out a page
+     * the policy would keep.
+     * <p>
+     * The page is not installed if a dirty page left the table since the
+     * stamp was taken, as the copy read from disk may predate its write or
+     * its rollback.
+     *
+     * @param stamp the value of {@link #prefetchStamp()} before the page was read
+     * @return true if the page was installed
+     */
+    public boolean prefetch(PageId pid, Page page, long stamp) {
+        evictionLock.lock();
+        try {
+            if (frames.containsKey(pid) || writingBack.containsKey(pid) || dirtyDrops.get() != stamp) {
+                return false;
+            }
+            if (frames.size() >= capacity) {
+                Frame frame = unpinnedVictim();
+                if (frame == null || frame.page.isDirty() != null
+                        || !frames.remove(frame.pid, frame)) {
+                    return false;
+                }
+                policy.recordEvict(frame.pid);
+            }
+            frames.put(pid, new Frame(pid, page));
+            policy.recordPrefetch(pid);
+            return true;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a dirty page {@link #put} evicted whose write has not been
+     * reported yet, or null if there is none with the given id. A query that
+     * misses the page installs this copy again rather than read the disk,
+     * which may not hold it yet.
+     */
+    public Page writingBack(PageId pid) {
+        WriteBack pending = writingBack.get(pid);
+        return pending == null ? null : pending.page;
+    }
+
+    /**
+     * Called once a dirty page returned by {@link #put} has been written.
+     */
+    public void writtenBack(Page page) {
+        writingBack.computeIfPresent(page.getId(), (id, w) ->
+                w.page == page && --w.writes == 0 ? null : w);
+    }
+
+    /**
+     * Replaces the copy of a resident page; atomic with respect to
+     * {@link #removeIfUnchanged}.
+     *
+     * @return false if the page is not resident
+     */
+    private boolean replace(PageId pid, Page page) {
+        Frame frame = frames.computeIfPresent(pid, (id, f) -> {
+            f.page = page;
+            f.version++;
+            return f;
+        });
+        if (frame == null) {
+            return false;
+        }
+        policy.recordAccess(pid);
+        return true;
+    }
+
+    /**
+     * Returns the version of a resident page, which changes whenever the
+     * page is put again.
+     *
+     * @return the version, or -1 if page is not the resident copy of its id
+     */
+    public long version(Page page) {
+        Frame frame = frames.get(page.getId());
+        if (frame == null) {
+            return -1;
+        }
+        // read the version first: a put in between changes the page as well
+        long version = frame.version;
+        return frame.page == page ? version : -1;
+    }
+
+    /**
+     * Removes a page only if it has not been put again since
+     * {@link #version} returned the given version, and is not pinned. A page
+     * that was changed while it was being written therefore stays resident.
+     *
+     * @return true if the page was removed
+     */
+    public boolean removeIfUnchanged(PageId pid, long version) {
+        Frame[] frame = {null};
+        frames.computeIfPresent(pid, (id, f) -> {
+            if (f.version != version || f.pins > 0) {
+                return f;
+            }
+            frame[0] = f;
+            return null;
+        });
+        if (frame[0] != null) {
+            dropped(frame[0]);
+        }
+        return frame[0] != null;
+    }
+
+    /**
+     * Returns up to n resident pages in eviction order, coldest first,
+     * without recording an access.
+     */
+    public List<Page> coldest(int n) {
+        List<Page> list = new ArrayList<>();
+        for (PageId pid : policy.coldest(n)) {
+            Frame frame = frames.get(pid);
+            if (frame != null) {
+                list.add(frame.page);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Removes a page unless it is pinned.
+     *
+     * @return true if the page was removed
+     */
+    public boolean removeIfUnpinned(PageId pid) {
+        Frame[] frame = {null};
+        frames.computeIfPresent(pid, (id, f) -> {
+            if (f.pins > 0) {
+                return f;
+            }
+            frame[0] = f;
+            return null;
+        });
+        if (frame[0] != null) {
+            dropped(frame[0]);
+        }
+        return frame[0] != null;
+    }
+
+    public void remove(PageId pid) {
+        Frame frame = frames.remove(pid);
+        if (frame != null) {
+            dropped(frame);
+        }
+    }
+
+    private void dropped(Frame frame) {
+        if (frame.page.isDirty() != null) {
+            dirtyDrops.incrementAndGet();
+        }
+        policy.recordRemove(frame.pid);
+    }
+
+    public void clear() {
+        for (PageId pid : new ArrayList<>(frames.keySet())) {
+            remove(pid);
+        }
+    }
+
+    /**
+     * Returns a live view of the resident page ids.
+     */
+    public Set<PageId> pageIds() {
+        return frames.keySet();
+    }
+
+    /**
+     * Returns a snapshot of the resident pages.
+     */
+    public List<Page> pages() {
+        List<Page> list = new ArrayList<>(frames.size());
+        for (Frame frame : frames.values()) {
+            list.add(frame.page);
+        }
+        return list;
+    }
+
+    public int size() {
+        return frames.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public EvictionPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Returns the number of lookups that found their page resident.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that did not find their page.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+    }
+
+    // caller holds the eviction lock; returns null if every page is pinned
+    private Page evict() {
+        while (true) {
+            Frame frame = unpinnedVictim();
+            if (frame == null) {
+                return null;
+            }
+            // a pin may have been taken since the victim was chosen
+            boolean[] evicted = {false};
+            frames.computeIfPresent(frame.pid, (id, f) -> {
+                if (f != frame || f.pins > 0) {
+                    return f;
+                }
+                evicted[0] = true;
+                if (f.page.isDirty() != null) {
+                    writingBack.compute(id, (i, w) -> {
+                        w = w != null && w.page == f.page ? w : new WriteBack(f.page);
+                        w.writes++;
+                        return w;
+                    });
+                }
+                return null;
+            });
+            if (evicted[0]) {
+                policy.recordEvict(frame.pid);
+                return frame.page;
+            }
+        }
+    }
+
+    // caller holds the eviction lock
+    private Frame unpinnedVictim() {
+        // walk the eviction order past the pinned pages, and past pages the
+        // policy still tracks though they were removed concurrently
+        List<PageId> gone = new ArrayList<>();
+        PageId pid = policy.chooseVictim(next -> {
+            Frame f = frames.get(next);
+            if (f == null) {
+                gone.add(next);
+            }
+            return f != null && f.pins == 0;
+        });
+        for (PageId next : gone) {
+            policy.recordRemove(next);
+        }
+        Frame frame = pid == null ? null : frames.get(pid);
+        if (frame != null && frame.pins == 0) {
+            return frame;
+        }
+        // a removal raced with an install and the policy lost track of a
+        // resident page; fall back to any frame
+        for (Frame f : frames.values()) {
+            if (f.pins == 0) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("head->");
+        for (Frame frame : frames.values()) {
+            sb.append(frame.pid.getPageNumber());
+            if (frame.page.isDirty() != null) {
+                sb.append("(D)");
+            }
+            sb.append("->");
+        }
+        sb.append("tail");
+        sb.append(String.format(" (size: %d, capacity: %d, policy: %s)",
+                frames.size(), capacity, policy.getClass().getSimpleName()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,334 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PageWriter is the background writer of a BufferPool. Once the pool is
+ * nearly full it keeps cleaning the dirty pages closest to eviction, so that
+ * a query that needs a frame usually finds a clean victim and does not have
+ * to write one out itself.
+ * <p>
+ * Each round takes up to a batch of dirty pages among the coldest quarter
+ * of the pool and appends their update records to the log, holding the
+ * BufferPool lock. It then forces the log up to the last of those records
+ * and writes the pages in file order without the lock, so that queries are
+ * not held up by the I/O. What is written is the image each record was
+ * taken from, never a later change the log does not hold yet. Written pages
+ * are dropped from the pool unless they were put again in the meantime,
+ * exactly as a flush would.
+ * <p>
+ * Dirty pages all belong to running transactions, so this is the STEAL the
+ * foreground already does when it evicts a dirty page: the update record,
+ * with the before-image, is on disk before the page, and a rollback or
+ * recovery undoes it. Only pages of transactions that are active in the log
+ * are written; anything else is left to the foreground. Whatever else writes
+ * pages of the pool, or puts older images back on disk, first waits for the
+ * batch in flight with {@link #awaitBatch()} while it holds the BufferPool
+ * lock, so no background write can land after it.
+ * <p>
+ * The thread is started the first time the pool fills up past its high
+ * watermark, and stopped by {@link #shutdown()}.
+ *
+ * @Threadsafe
+ */
+public class PageWriter implements Runnable {
+
+    public static final int DEFAULT_BATCH_PAGES = 16;
+    public static final long DEFAULT_INTERVAL_MILLIS = 20;
+
+    private final BufferPool bufferPool;
+    private final PageTable pageTable;
+    private final int batchPages;
+    private final long intervalMillis;
+    private final int scanDepth;
+    private final int highWater;
+
+    private volatile Thread thread;
+    private volatile boolean stopped;
+
+    // set while a batch is written without the BufferPool lock
+    private final Object batchLock = new Object();
+    private boolean writing;
+
+    private final LongAdder pagesWritten = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder foregroundWrites = new LongAdder();
+    private volatile int queueDepth;
+    private volatile double flushRate;
+    private long rateWindowStart = System.nanoTime();
+    private long rateWindowPages;
+
+    /**
+     * Creates a writer with the default batch size and interval.
+     */
+    public PageWriter(BufferPool bufferPool, PageTable pageTable) {
+        this(bufferPool, pageTable, DEFAULT_BATCH_PAGES, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param batchPages     the most pages written per round
+     * @param intervalMillis how long the writer sleeps when it has caught up
+     */
+    public PageWriter(BufferPool bufferPool, PageTable pageTable, int batchPages, long intervalMillis) {
+        this.bufferPool = bufferPool;
+        this.pageTable = pageTable;
+        this.batchPages = batchPages;
+        this.intervalMillis = intervalMillis;
+        int capacity = pageTable.getCapacity();
+        this.scanDepth = Math.max(1, capacity / 4);
+        this.highWater = Math.max(1, capacity - scanDepth);
+    }
+
+    /**
+     * Called by the BufferPool after it installs a page; starts the writer
+     * once the pool is full enough for evictions to be near.
+     */
+    public void poolChanged() {
+        if (thread != null || stopped || pageTable.size() < highWater) {
+            return;
+        }
+        synchronized (this) {
+            if (thread == null && !stopped) {
+                thread = new Thread(this, "page-writer");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Called by the BufferPool when a query had to write a dirty victim itself.
+     */
+    public void recordForegroundWrite() {
+        foregroundWrites.increment();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    public void run() {
+        while (!stopped) {
+            int written = 0;
+            try {
+                written = cleanOnce();
+            } catch (IOException | RuntimeException e) {
+                // the pages stay dirty and are written by the foreground
+                e.printStackTrace();
+            }
+            updateRate(written);
+            if (written < batchPages) {
+                synchronized (this) {
+                    if (stopped) {
+                        break;
+                    }
+                    try {
+                        wait(intervalMillis);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs one round of cleaning on the calling thread.
+     *
+     * @return the number of pages written
+     */
+    public int cleanOnce() throws IOException {
+        List<Page> dirty = new ArrayList<>();
+        for (Page p : pageTable.coldest(scanDepth)) {
+            if (p.isDirty() != null) {
+                dirty.add(p);
+            }
+        }
+        queueDepth = dirty.size();
+        if (dirty.isEmpty()) {
+            return 0;
+        }
+
+        List<Page> batch = new ArrayList<>();
+        List<Long> versions = new ArrayList<>();
+        // the pages as they were logged, with their LSNs: their owners may
+        // change them while the batch is written without the lock
+        List<byte[]> images = new ArrayList<>();
+        List<Long> lsns = new ArrayList<>();
+        LogFile log = Database.getLogFile();
+        long lastLsn = -1;
+        synchronized (bufferPool) {
+            for (Page p : dirty) {
+                if (batch.size() == batchPages) {
+                    break;
+                }
+                TransactionId dirtier = p.isDirty();
+                long version = pageTable.version(p);
+                byte[] image;
+                if (p.logsChanges()) {
+                    // its changes are logged already, the last one under its
+                    // page LSN; both are taken under the page latch
+                    if (version < 0) {
+                        continue;
+                    }
+                    long lsn;
+                    synchronized (p) {
+                        image = p.getPageData();
+                        lsn = p.getLsn();
+                    }
+                    lastLsn = Math.max(lastLsn, lsn);
+                    batch.add(p);
+                    versions.add(version);
+                    images.add(image);
+                    lsns.add(lsn);
+                    continue;
+                }
+                if (dirtier == null || version < 0 || !log.isActive(dirtier)) {
+                    continue;
+                }
+                bufferPool.getVersionStore().beforeWrite(dirtier, p);
+                image = p.getPageData();
+                long lsn = log.logWrite(dirtier, p.getBeforeImage(), p, image);
+                lastLsn = Math.max(lastLsn, lsn);
+                batch.add(p);
+                versions.add(version);
+                images.add(image);
+                lsns.add(lsn);
+            }
+            if (batch.isEmpty()) {
+                return 0;
+            }
+            synchronized (batchLock) {
+                writing = true;
+            }
+        }
+
+        try {
+            // the update records reach the disk before any of the pages
+            if (lastLsn > 0) {
+                log.forceTo(lastLsn);
+            }
+
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                order.add(i);
+            }
+            order.sort(Comparator.comparingInt((Integer i) -> batch.get(i).getId().getTableId())
+                    .thenComparingInt(i -> batch.get(i).getId().getPageNumber()));
+            for (int i : order) {
+                PageId pid = batch.get(i).getId();
+                Database.getCatalog().getDatabaseFile(pid.getTableId())
+                        .writePage(pid, images.get(i), lsns.get(i));
+                pageTable.removeIfUnchanged(pid, versions.get(i));
+            }
+        } finally {
+            synchronized (batchLock) {
+                writing = false;
+                batchLock.notifyAll();
+            }
+        }
+        pagesWritten.add(batch.size());
+        batches.increment();
+        queueDepth = Math.max(0, dirty.size() - batch.size());
+        return batch.size();
+    }
+
+    /**
+     * Waits until the batch being written, if any, is on disk. Must be called
+     * holding the BufferPool lock, so that no new batch starts before the
+     * caller releases it, and without holding the lock of the log, which the
+     * writer needs to force it.
+     */
+    public void awaitBatch() {
+        boolean interrupted = false;
+        synchronized (batchLock) {
+            while (writing) {
+                try {
+                    batchLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void updateRate(int written) {
+        rateWindowPages += written;
+        long now = System.nanoTime();
+        if (now - rateWindowStart >= 1_000_000_000L) {
+            flushRate = rateWindowPages * 1e9 / (now - rateWindowStart);
+            rateWindowStart = now;
+            rateWindowPages = 0;
+        }
+    }
+
+    /**
+     * Stops the writer thread, if it was started, and waits for it to finish
+     * its current round.
+     */
+    public void shutdown() {
+        Thread t;
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+            t = thread;
+        }
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        Thread t = thread;
+        return t != null && t.isAlive();
+    }
+
+    /**
+     * @return the number of pages written by the background writer
+     */
+    public long getPagesWritten() {
+        return pagesWritten.sum();
+    }
+
+    /**
+     * @return the number of rounds that wrote at least one page
+     */
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    /**
+     * @return the number of dirty victims that queries had to write themselves
+     */
+    public long getForegroundWrites() {
+        return foregroundWrites.sum();
+    }
+
+    /**
+     * @return the number of dirty pages near the tail of the pool still
+     * waiting to be written, as of the last round
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return pages written per second over the last full second
+     */
+    public double getFlushRate() {
+        return flushRate;
+    }
+}
@@ -0,0 +1,414 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Prefetcher reads pages into a BufferPool ahead of a sequential scan, on a
+ * small pool of I/O threads, so that the scan finds the next pages resident
+ * instead of waiting for each read in turn.
+ * <p>
+ * Every scan keeps its own {@link Scan} and reports each page it moves to.
+ * Once a scan has moved forward twice in a row it is taken to be sequential,
+ * and the prefetcher keeps up to a window of pages read ahead of it: the
+ * following page numbers of a heap file, or the right siblings of a B+ tree
+ * leaf. The window is capped at a quarter of the pool.
+ * <p>
+ * Prefetching is best effort. Pages are installed with
+ * {@link PageTable#prefetch}, which never writes a page and only gives up a
+ * clean, unpinned victim; a read that cannot be installed, or that does not fit in the
+ * request queue, is dropped. No locks are taken, as for the other lock-free
+ * reads in {@link BufferPool#getPage(PageId)}: the scan still locks each page
+ * when it gets to it.
+ *
+ * @Threadsafe
+ */
+public class Prefetcher {
+
+    public static final int DEFAULT_WINDOW_PAGES = 8;
+    public static final int DEFAULT_IO_THREADS = 2;
+
+    /**
+     * Consecutive forward moves before a scan counts as sequential
+     */
+    static final int SEQUENTIAL_RUN = 2;
+
+    private static final int MAX_QUEUED_REQUESTS = 256;
+
+    private final PageTable pageTable;
+    private final int ioThreads;
+    private volatile int windowPages = DEFAULT_WINDOW_PAGES;
+
+    private ThreadPoolExecutor executor;
+    private boolean stopped;
+    // pages being read from disk, by a read-ahead or by a query that missed
+    private final Map<PageId, CompletableFuture<Page>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final LongAdder requested = new LongAdder();
+    private final LongAdder loaded = new LongAdder();
+    private final LongAdder alreadyResident = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Creates a prefetcher with the default window and number of I/O threads.
+     */
+    public Prefetcher(PageTable pageTable) {
+        this(pageTable, DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * @param ioThreads the number of threads reading pages ahead
+     */
+    public Prefetcher(PageTable pageTable, int ioThreads) {
+        this.pageTable = pageTable;
+        this.ioThreads = Math.max(1, ioThreads);
+    }
+
+    /**
+     * Sets how many pages are read ahead of a sequential scan; 0 turns
+     * prefetching off.
+     */
+    public void setWindow(int pages) {
+        if (pages < 0) {
+            throw new IllegalArgumentException("negative prefetch window: " + pages);
+        }
+        windowPages = pages;
+    }
+
+    public int getWindow() {
+        return windowPages;
+    }
+
+    // the window actually used, which leaves most of the pool to other pages
+    private int effectiveWindow() {
+        return Math.min(windowPages, pageTable.getCapacity() / 4);
+    }
+
+    /**
+     * Starts tracking a scan over numbered pages, e.g. a heap file.
+     *
+     * @param pageIds maps a page number to the id of that page
+     * @param numPages the number of pages in the file
+     */
+    public Scan newScan(IntFunction<PageId> pageIds, int numPages) {
+        return new PageScan(pageIds, numPages);
+    }
+
+    /**
+     * Starts tracking a scan that follows a chain of pages, e.g. B+ tree
+     * leaves.
+     *
+     * @param next returns the id of the page after the given one, or null at
+     *             the end of the chain
+     */
+    public Scan newChainScan(Function<Page, PageId> next) {
+        return new ChainScan(next);
+    }
+
+    /**
+     * The read-ahead state of one scan. Not thread-safe; a scan is driven by
+     * a single iterator.
+     */
+    public abstract static class Scan {
+        int run;
+
+        /**
+         * Reports that the scan has moved to the given page.
+         */
+        public abstract void accessed(Page page);
+    }
+
+    private class PageScan extends Scan {
+        private final IntFunction<PageId> pageIds;
+        private final int numPages;
+        private int last = -2;
+        private int requestedTo = -1;
+
+        PageScan(IntFunction<PageId> pageIds, int numPages) {
+            this.pageIds = pageIds;
+            this.numPages = numPages;
+        }
+
+        public void accessed(Page page) {
+            int pageNo = page.getId().getPageNumber();
+            run = pageNo == last + 1 ? run + 1 : 0;
+            last = pageNo;
+            int window = effectiveWindow();
+            if (run < SEQUENTIAL_RUN || window == 0) {
+                return;
+            }
+            requestedTo = Math.max(requestedTo, pageNo);
+            // top the window up once half of it has been used
+            if (requestedTo - pageNo > window / 2) {
+                return;
+            }
+            int end = Math.min(pageNo + window, numPages - 1);
+            List<PageId> pids = new ArrayList<>();
+            for (int p = requestedTo + 1; p <= end; p++) {
+                pids.add(pageIds.apply(p));
+            }
+            if (!pids.isEmpty() && submit(() -> {
+                for (PageId pid : pids) {
+                    load(pid);
+                }
+            }, pids.size())) {
+                requestedTo = end;
+            }
+        }
+    }
+
+    private class ChainScan extends Scan {
+        private final Function<Page, PageId> next;
+        private int ahead;
+
+        ChainScan(Function<Page, PageId> next) {
+            this.next = next;
+            // the first page is where the scan starts, not a move
+            this.run = -1;
+        }
+
+        public void accessed(Page page) {
+            run++;
+            ahead = Math.max(0, ahead - 1);
+            int window = effectiveWindow();
+            if (run < SEQUENTIAL_RUN || window == 0 || ahead > window / 2) {
+                return;
+            }
+            PageId start = next.apply(page);
+            if (start == null) {
+                return;
+            }
+            // pages that are already resident are passed over cheaply
+            if (submit(() -> {
+                PageId pid = start;
+                for (int i = 0; i < window && pid != null; i++) {
+                    Page p = load(pid);
+                    if (p == null) {
+                        break;
+                    }
+                    pid = next.apply(p);
+                }
+            }, window)) {
+                ahead = window;
+            }
+        }
+    }
+
+    private boolean submit(Runnable request, int pages) {
+        ThreadPoolExecutor ex = executor();
+        if (ex == null) {
+            return false;
+        }
+        pending.incrementAndGet();
+        try {
+            ex.execute(() -> {
+                try {
+                    request.run();
+                } catch (RuntimeException e) {
+                    // e.g. the table was dropped from the catalog; the scan
+                    // reads the pages itself
+                } finally {
+                    pending.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            dropped.add(pages);
+            return false;
+        }
+        requested.add(pages);
+        return true;
+    }
+
+    /**
+     * Installs a page a query read after missing it in the pool.
+     */
+    public interface Install {
+        void install(Page page) throws DbException;
+    }
+
+    /**
+     * Reads a page that a query missed in the pool and installs it. If the
+     * page is already being read, by a read-ahead or another query, that
+     * read is waited for instead of reading the page a second time. Only the
+     * thread registered as reading a page installs it, so the page cannot
+     * become resident, and be evicted dirty, while its disk copy is read.
+     *
+     * @return the page, installed in the pool
+     */
+    public Page read(PageId pid, Install install) throws DbException {
+        while (true) {
+            CompletableFuture<Page> mine = new CompletableFuture<>();
+            CompletableFuture<Page> other = inFlight.putIfAbsent(pid, mine);
+            if (other != null) {
+                try {
+                    other.join();
+                } catch (CompletionException e) {
+                    // the other read failed; try again below
+                }
+                // the copy in the pool, if any, is the one to use: the other read
+                // installed it. If its copy was refused or has been evicted
+                // since, read the page as the registered reader
+                Page page = pageTable.get(pid);
+                if (page != null) {
+                    return page;
+                }
+                continue;
+            }
+
+            try {
+                // a read-ahead may have finished since the query missed
+                Page page = pageTable.get(pid);
+                if (page == null) {
+                    // a dirty copy the pool gave up is newer than the disk
+                    // until its write is done
+                    page = pageTable.writingBack(pid);
+                    if (page == null) {
+                        page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                    }
+                    install.install(page);
+                }
+                mine.complete(page);
+                return page;
+            } catch (DbException | RuntimeException e) {
+                mine.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(pid, mine);
+            }
+        }
+    }
+
+    /**
+     * Reads a page into the pool unless it is already resident.
+     *
+     * @return the page, or null if it is already being read. A copy the pool
+     * refused is still returned, for a chain scan to find the next page.
+     */
+    private Page load(PageId pid) {
+        Page resident = pageTable.peek(pid);
+        if (resident != null) {
+            alreadyResident.increment();
+            return resident;
+        }
+        CompletableFuture<Page> mine = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(pid, mine) != null) {
+            return null;
+        }
+        try {
+            resident = pageTable.peek(pid);
+            if (resident != null) {
+                alreadyResident.increment();
+                mine.complete(resident);
+                return resident;
+            }
+            long stamp = pageTable.prefetchStamp();
+            Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            if (pageTable.prefetch(pid, page, stamp)) {
+                loaded.increment();
+                mine.complete(page);
+            } else {
+                // the copy may be stale; a query waiting for it reads the
+                // page again
+                dropped.increment();
+                mine.complete(null);
+            }
+            return page;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(pid, mine);
+        }
+    }
+
+    private synchronized ThreadPoolExecutor executor() {
+        if (stopped) {
+            return null;
+        }
+        if (executor == null) {
+            AtomicInteger count = new AtomicInteger();
+            executor = new ThreadPoolExecutor(ioThreads, ioThreads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(MAX_QUEUED_REQUESTS), r -> {
+                        Thread t = new Thread(r, "prefetch-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+        }
+        return executor;
+    }
+
+    /**
+     * Blocks until every request submitted so far has finished. Used by tests
+     * and benchmarks.
+     */
+    public void awaitIdle() throws InterruptedException {
+        while (pending.get() > 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Stops the I/O threads; requests still queued are dropped.
+     */
+    public void shutdown() {
+        ThreadPoolExecutor ex;
+        synchronized (this) {
+            stopped = true;
+            ex = executor;
+        }
+        if (ex != null) {
+            pending.addAndGet(-ex.shutdownNow().size());
+            try {
+                ex.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of pages requested ahead of scans
+     */
+    public long getPagesRequested() {
+        return requested.sum();
+    }
+
+    /**
+     * @return the number of pages read and installed ahead of their use
+     */
+    public long getPagesLoaded() {
+        return loaded.sum();
+    }
+
+    /**
+     * @return the number of requested pages that were already resident
+     */
+    public long getPagesAlreadyResident() {
+        return alreadyResident.sum();
+    }
+
+    /**
+     * @return the number of requested pages given up, because the pool had
+     * no clean victim or the queue was full
+     */
+    public long getPagesDropped() {
+        return dropped.sum();
+    }
+}
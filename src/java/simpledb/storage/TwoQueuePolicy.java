@@ -0,0 +1,126 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Full 2Q eviction (Johnson and Shasha, VLDB '94).
+ * <p>
+ * Pages seen for the first time enter the FIFO queue A1in; hits while a page
+ * sits there do not promote it, so a sequential scan only ever cycles through
+ * A1in. Pages evicted from A1in leave their id in the ghost queue A1out, and a
+ * page that is read again while its id is still in A1out goes straight to the
+ * LRU queue Am. Hot pages (B+ tree roots and internal pages, repeatedly probed
+ * heap pages) therefore survive large scans.
+ * <p>
+ * Hits are queued in an {@link AccessBuffer} and applied under the lock of
+ * the policy later, so that they do not serialize the hit path of the
+ * {@link PageTable}.
+ *
+ * @Threadsafe
+ */
+public class TwoQueuePolicy implements EvictionPolicy {
+
+    private final int kin;
+    private final int kout;
+
+    private final Set<PageId> a1in = new LinkedHashSet<>();
+    private final Set<PageId> a1out = new LinkedHashSet<>();
+    // access ordered, eldest entry is the LRU page
+    private final Map<PageId, Boolean> am = new LinkedHashMap<>(16, 0.75f, true);
+    private final AccessBuffer hits = new AccessBuffer();
+
+    /**
+     * @param capacity the number of pages in the buffer pool
+     */
+    public TwoQueuePolicy(int capacity) {
+        this(Math.max(1, capacity / 4), Math.max(1, capacity / 2));
+    }
+
+    /**
+     * @param kin  the number of pages A1in may hold before it is preferred for eviction
+     * @param kout the number of ghost ids remembered in A1out
+     */
+    public TwoQueuePolicy(int kin, int kout) {
+        this.kin = kin;
+        this.kout = kout;
+    }
+
+    public void recordAccess(PageId pid) {
+        if (hits.add(pid)) {
+            synchronized (this) {
+                hits.drain(this::access);
+            }
+        }
+    }
+
+    private void access(PageId pid) {
+        // a hit in A1in is a correlated reference and is ignored
+        am.get(pid);
+    }
+
+    public synchronized void recordInsert(PageId pid) {
+        hits.drain(this::access);
+        if (a1out.remove(pid)) {
+            am.put(pid, Boolean.TRUE);
+        } else if (!am.containsKey(pid)) {
+            a1in.add(pid);
+        }
+    }
+
+    public synchronized void recordPrefetch(PageId pid) {
+        hits.drain(this::access);
+        // the ghost entry stays, read-ahead alone does not promote a page
+        if (!am.containsKey(pid)) {
+            a1in.add(pid);
+        }
+    }
+
+    public synchronized void recordEvict(PageId pid) {
+        hits.drain(this::access);
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized void recordRemove(PageId pid) {
+        hits.drain(this::access);
+        a1in.remove(pid);
+        am.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        hits.drain(this::access);
+        // the overflow of A1in goes first, then Am, then the rest of A1in
+        Iterator<PageId> in = a1in.iterator();
+        for (int i = a1in.size(); i > kin; i--) {
+            PageId pid = in.next();
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        for (PageId pid : am.keySet()) {
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        while (in.hasNext()) {
+            PageId pid = in.next();
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
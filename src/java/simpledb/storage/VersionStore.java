@@ -0,0 +1,304 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the older committed images of pages, so that a
+ * read-only transaction can read a consistent snapshot of the database
+ * without taking any page locks.
+ * <p>
+ * Every commit that changes pages while snapshots are open is given a
+ * commit number from a global clock, and the image each of its pages had
+ * before it is kept as a version, valid from the commit that wrote it up to
+ * this one. A snapshot is a commit number: it sees every commit up to and
+ * including it. Pages no commit after the snapshot has touched are read
+ * from the pool as usual, through their before-image, so the changes of
+ * transactions that have not committed yet are never seen.
+ * <p>
+ * A page written to disk before its transaction committed (see
+ * {@link PageWriter}) no longer has its committed image on disk; that image
+ * is kept here until the writer commits or aborts.
+ * <p>
+ * A version is dropped as soon as no open snapshot can read it, and a new
+ * snapshot can only see the newest commit, so with no snapshot open the
+ * store is empty and a commit costs nothing extra. A snapshot opened while
+ * such a commit is still writing its pages waits for it to finish.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    private static class Version {
+        final Page image;
+        final long from;
+        final long to;
+
+        Version(Page image, long from, long to) {
+            this.image = image;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static class Stolen {
+        final TransactionId dirtier;
+        final Page image;
+
+        Stolen(TransactionId dirtier, Page image) {
+            this.dirtier = dirtier;
+            this.image = image;
+        }
+    }
+
+    private final BufferPool bufferPool;
+
+    // the last commit number handed out
+    private long clock;
+    // bumped whenever the committed image of some page may have moved
+    private long epoch;
+    // commits that are writing their pages, and those that kept no versions
+    private final TreeSet<Long> inProgress = new TreeSet<>();
+    private final Map<TransactionId, Long> committing = new HashMap<>();
+    private final Set<TransactionId> unversioned = new HashSet<>();
+
+    // the commit that wrote the image of a page that is current now; pages
+    // that are not here have not changed since every open snapshot began
+    private final Map<PageId, Long> headFrom = new HashMap<>();
+    // older images of each page, newest first
+    private final Map<PageId, Deque<Version>> chains = new HashMap<>();
+    private final Map<PageId, Stolen> stolen = new HashMap<>();
+    private int versionCount;
+
+    // snapshot of each read-only transaction, and how many are open at each
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    private final TreeMap<Long, Integer> open = new TreeMap<>();
+
+    public VersionStore(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    // the newest commit a snapshot opened now can see
+    private long stable() {
+        return inProgress.isEmpty() ? clock : inProgress.first() - 1;
+    }
+
+    /**
+     * Opens a snapshot for a read-only transaction. Its reads see every
+     * transaction that committed before this call and none that commits
+     * after it.
+     */
+    public synchronized void beginSnapshot(TransactionId tid) {
+        if (snapshots.containsKey(tid)) {
+            return;
+        }
+        boolean interrupted = false;
+        while (!unversioned.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        long s = stable();
+        snapshots.put(tid, s);
+        open.merge(s, 1, Integer::sum);
+    }
+
+    /**
+     * Closes the snapshot of a transaction, if it has one, and drops the
+     * versions that only it could read.
+     */
+    public synchronized void endSnapshot(TransactionId tid) {
+        Long s = snapshots.remove(tid);
+        if (s == null) {
+            return;
+        }
+        open.computeIfPresent(s, (k, n) -> n == 1 ? null : n - 1);
+        collect();
+    }
+
+    /**
+     * @return true if the transaction reads from a snapshot
+     */
+    public boolean isSnapshot(TransactionId tid) {
+        return tid != null && snapshots.containsKey(tid);
+    }
+
+    /**
+     * Returns the page as the snapshot of a transaction sees it. The page
+     * must not be changed by the caller.
+     */
+    public Page read(TransactionId tid, PageId pid) throws DbException {
+        Long s = snapshots.get(tid);
+        if (s == null) {
+            throw new DbException("transaction " + tid + " has no snapshot");
+        }
+        while (true) {
+            long seen;
+            synchronized (this) {
+                Long h = headFrom.get(pid);
+                if (h != null && h > s) {
+                    return older(pid, s);
+                }
+                Stolen st = stolen.get(pid);
+                if (st != null) {
+                    return st.image;
+                }
+                seen = epoch;
+            }
+            // the page has not changed since the snapshot, unless a commit
+            // or a write of uncommitted data got in while it was being read
+            Page image = bufferPool.getPage(pid).getBeforeImage();
+            synchronized (this) {
+                if (epoch == seen) {
+                    return image;
+                }
+            }
+        }
+    }
+
+    private Page older(PageId pid, long s) throws DbException {
+        Deque<Version> chain = chains.get(pid);
+        if (chain != null) {
+            for (Version v : chain) {
+                if (v.from <= s && s < v.to) {
+                    return v.image;
+                }
+            }
+        }
+        throw new DbException("no version of " + pid + " for snapshot " + s);
+    }
+
+    /**
+     * Called before a page is written to disk on behalf of the transaction
+     * that dirtied it. Unless that transaction is committing, the disk is
+     * about to hold uncommitted data, so the committed image is kept until
+     * the transaction ends.
+     */
+    public synchronized void beforeWrite(TransactionId dirtier, Page page) {
+        if (committing.containsKey(dirtier) || stolen.containsKey(page.getId())) {
+            return;
+        }
+        stolen.put(page.getId(), new Stolen(dirtier, page.getBeforeImage()));
+        epoch++;
+    }
+
+    /**
+     * Called when a transaction starts to write out its pages at commit,
+     * before any of them is written.
+     *
+     * @param pages the pages the transaction locked
+     */
+    public synchronized void commitStart(TransactionId tid, Iterable<PageId> pages) {
+        long c = ++clock;
+        inProgress.add(c);
+        committing.put(tid, c);
+        boolean keep = !snapshots.isEmpty();
+        if (!keep) {
+            unversioned.add(tid);
+        }
+        for (PageId pid : pages) {
+            Page image = null;
+            Stolen st = stolen.get(pid);
+            if (st != null && st.dirtier.equals(tid)) {
+                stolen.remove(pid);
+                image = st.image;
+            } else {
+                Page resident = bufferPool.getPageTable().get(pid);
+                // a page taking tuple changes is dirtied by whichever
+                // transaction changed it last
+                if (resident != null && (tid.equals(resident.isDirty()) || resident.logsChanges())) {
+                    image = resident.getBeforeImage();
+                }
+            }
+            if (image == null || !keep) {
+                continue;
+            }
+            Long h = headFrom.put(pid, c);
+            chains.computeIfAbsent(pid, p -> new ArrayDeque<>())
+                    .addFirst(new Version(image, h == null ? 0 : h, c));
+            versionCount++;
+        }
+        epoch++;
+    }
+
+    /**
+     * Called once a committing transaction has written all of its pages and
+     * made them the new before-images.
+     */
+    public synchronized void commitEnd(TransactionId tid) {
+        Long c = committing.remove(tid);
+        if (c == null) {
+            return;
+        }
+        inProgress.remove(c);
+        if (unversioned.remove(tid)) {
+            notifyAll();
+        }
+        collect();
+    }
+
+    /**
+     * Called once an aborted transaction has been rolled back; the disk
+     * holds the committed images of its pages again.
+     */
+    public synchronized void aborted(TransactionId tid) {
+        if (stolen.values().removeIf(st -> st.dirtier.equals(tid))) {
+            epoch++;
+        }
+    }
+
+    // drops the versions no open or future snapshot can read
+    private void collect() {
+        long stable = stable();
+        long oldest = open.isEmpty() ? stable : Math.min(stable, open.firstKey());
+        Iterator<Map.Entry<PageId, Deque<Version>>> it = chains.entrySet().iterator();
+        while (it.hasNext()) {
+            Deque<Version> chain = it.next().getValue();
+            chain.removeIf(v -> {
+                if (v.to > stable) {
+                    return false;
+                }
+                Map.Entry<Long, Integer> reader = open.ceilingEntry(v.from);
+                if (reader != null && reader.getKey() < v.to) {
+                    return false;
+                }
+                versionCount--;
+                return true;
+            });
+            if (chain.isEmpty()) {
+                it.remove();
+            }
+        }
+        headFrom.values().removeIf(h -> h <= oldest);
+    }
+
+    /**
+     * @return the number of older page images being kept
+     */
+    public synchronized int getVersionCount() {
+        return versionCount;
+    }
+
+    /**
+     * @return the number of open snapshots
+     */
+    public int getSnapshotCount() {
+        return snapshots.size();
+    }
+}
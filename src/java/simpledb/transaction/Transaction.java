@@ -3,6 +3,7 @@ package simpledb.transaction;
 import simpledb.common.Database;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 
 /**
  * Transaction encapsulates information about the state of
@@ -11,10 +12,21 @@ import java.io.IOException;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly if true, the transaction reads a snapshot of the
+     *                 database taken when it starts, without locking any
+     *                 pages, and may not change anything
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /**
@@ -22,6 +34,9 @@ public class Transaction {
      */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().getVersionStore().beginSnapshot(tid);
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -33,6 +48,10 @@ public class Transaction {
         return tid;
     }
 
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     /**
      * Finish the transaction
      */
@@ -59,7 +78,13 @@ public class Transaction {
             }
 
             // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+            try {
+                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+            } catch (UncheckedIOException e) {
+                // the commit failed and was turned into an abort
+                started = false;
+                throw e.getCause();
+            }
 
             // write commit log record
             if (!abort) {
@@ -0,0 +1,193 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		// small pages, so that a few thousand tuples make a tree of several levels
+		Database.reset();
+		BufferPool.setPageSize(256);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	// three tuples for each key from 0 on, in key order
+	private static List<Tuple> sortedTuples(int n) {
+		List<Tuple> tuples = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			tuples.add(BTreeUtility.getBTreeTuple(new int[]{i / 3, i}));
+		}
+		return tuples;
+	}
+
+	private static BTreeFile load(List<Tuple> tuples, double fillFactor) throws Exception {
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		return BTreeBulkLoader.load(new TupleIterator(Utility.getTupleDesc(2), tuples), f, 0, fillFactor, "bulk");
+	}
+
+	private int count(DbFileIterator it) throws Exception {
+		it.open();
+		int n = 0;
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	/**
+	 * Trees of every size around the page capacities are whole, hold all the
+	 * tuples in key order, and keep every page but the root at least half full
+	 */
+	@Test
+	public void testLoad() throws Exception {
+		int leaf = BTreeUtility.getNumTuplesPerPage(2);
+		int[] sizes = {0, 1, leaf - 1, leaf, leaf + 1, leaf * 2 + 1, leaf * 3 - 1, 5000};
+		for (double fillFactor : new double[]{1.0, 0.75, 0.5}) {
+			for (int n : sizes) {
+				BTreeFile bf = load(sortedTuples(n), fillFactor);
+				BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+				DbFileIterator it = bf.iterator(tid);
+				it.open();
+				int seen = 0;
+				while (it.hasNext()) {
+					Tuple t = it.next();
+					assertEquals(seen / 3, ((IntField) t.getField(0)).getValue());
+					assertEquals(seen, ((IntField) t.getField(1)).getValue());
+					seen++;
+				}
+				it.close();
+				assertEquals(n, seen);
+
+				if (n > 0) {
+					int key = (n - 1) / 3 / 2;
+					assertEquals(Math.min(3, n - key * 3),
+							count(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)))));
+				}
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+	}
+
+	/**
+	 * Pages hold the fill factor of what they can, so a lower fill factor
+	 * makes more leaves
+	 */
+	@Test
+	public void testFillFactor() throws Exception {
+		int leaf = BTreeUtility.getNumTuplesPerPage(2);
+		int n = leaf * 40;
+		BTreeFile full = load(sortedTuples(n), 1.0);
+		BTreeFile half = load(sortedTuples(n), 0.5);
+		assertTrue(full.numPages() < 45);
+		assertTrue(half.numPages() > 75);
+		assertEquals(n, count(full.iterator(tid)));
+		assertEquals(n, count(half.iterator(tid)));
+	}
+
+	/**
+	 * A loaded tree takes inserts and deletes like any other, reusing the
+	 * pages the load left free
+	 */
+	@Test
+	public void testUpdateLoadedTree() throws Exception {
+		int leaf = BTreeUtility.getNumTuplesPerPage(2);
+		int children = BTreeUtility.getNumEntriesPerPage() / 2 + 1;
+		// half full leaves, three more than fill two pages above them: the
+		// last page above them is emptied into the one before it and left free
+		int n = leaf / 2 * (children * 2 + 3);
+		BTreeFile bf = load(sortedTuples(n), 0.5);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		assertNotNull(rootPtr.getHeaderId());
+		Database.getBufferPool().transactionComplete(tid);
+
+		// more than the first leaf has room for
+		tid = new TransactionId();
+		for (int i = 0; i < leaf; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[]{1, -1}));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		assertEquals(n + leaf, count(bf.iterator(tid)));
+		// a split took the free page
+		BTreeHeaderPage header = (BTreeHeaderPage) Database.getBufferPool().getPage(tid,
+				rootPtr.getHeaderId(), Permissions.READ_ONLY);
+		assertEquals(-1, header.getEmptySlot());
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(0)));
+		it.open();
+		while (it.hasNext()) {
+			Database.getBufferPool().deleteTuple(tid, it.next());
+		}
+		it.close();
+		assertEquals(0, count(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(0)))));
+	}
+
+	/**
+	 * Input sorted by an OrderBy loads; unsorted input is refused
+	 */
+	@Test
+	public void testUnsortedInput() throws Exception {
+		List<Tuple> tuples = sortedTuples(1000);
+		Collections.shuffle(tuples, new Random(3));
+
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = BTreeBulkLoader.load(new OrderBy(0, true, new TupleIterator(Utility.getTupleDesc(2), tuples)),
+				f, 0, 1.0, "sorted");
+		assertEquals(1000, count(bf.iterator(tid)));
+		assertEquals(bf.getId(), Database.getCatalog().getTableId("sorted"));
+
+		try {
+			load(tuples, 1.0);
+			fail("loaded unsorted tuples");
+		} catch (DbException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
@@ -289,6 +289,38 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		page.deleteKeyAndRightChild(BTreeUtility.getBTreeEntry(2));
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChildId()
+	 */
+	@Test public void findChildId() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		List<BTreeEntry> entries = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+
+		assertEquals(entries.get(0).getLeftChild(), page.findChildId(null));
+		for (int[] entry : EXAMPLE_VALUES) {
+			for (int key = entry[1] - 1; key <= entry[1] + 1; ++key) {
+				// the child a linear scan would pick
+				BTreePageId expected = entries.get(entries.size() - 1).getRightChild();
+				for (BTreeEntry e : entries) {
+					if (((IntField) e.getKey()).getValue() >= key) {
+						expected = e.getLeftChild();
+						break;
+					}
+				}
+				assertEquals(expected, page.findChildId(new IntField(key)));
+			}
+		}
+		assertEquals(entries.get(0).getLeftChild(), page.findChildId(new IntField(Integer.MIN_VALUE)));
+		assertEquals(entries.get(entries.size() - 1).getRightChild(), page.findChildId(new IntField(Integer.MAX_VALUE)));
+
+		// the search follows entries as they are deleted
+		page.deleteKeyAndRightChild(entries.get(entries.size() - 1));
+		assertEquals(entries.get(entries.size() - 2).getRightChild(), page.findChildId(new IntField(Integer.MAX_VALUE)));
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.deleteEntry()
 	 */
@@ -196,6 +196,33 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field, boolean)
+	 */
+	@Test public void testSeekIterator() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		List<Integer> keys = new ArrayList<>();
+		for (int[] tuple : EXAMPLE_VALUES)
+			keys.add(tuple[0]);
+		Collections.sort(keys);
+
+		for (int key : keys) {
+			for (int probe = key - 1; probe <= key + 1; ++probe) {
+				for (boolean strict : new boolean[] { false, true }) {
+					Iterator<Tuple> it = page.iterator(new IntField(probe), strict);
+					for (int k : keys) {
+						if (k > probe || (!strict && k == probe)) {
+							assertTrue(it.hasNext());
+							assertEquals(new IntField(k), it.next().getField(0));
+						}
+					}
+					assertFalse(it.hasNext());
+				}
+			}
+		}
+		assertFalse(page.iterator(new IntField(Integer.MAX_VALUE), false).hasNext());
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.getNumEmptySlots()
 	 */
@@ -0,0 +1,115 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolPinTest extends SimpleDbTestBase {
+
+    private static final int SLOTS = 504;
+
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 10 * SLOTS, null, null);
+        tid = new TransactionId();
+    }
+
+    private HeapPageId pid(int pageNo) {
+        return new HeapPageId(hf.getId(), pageNo);
+    }
+
+    /**
+     * A pinned page stays resident, as the same object, until it is unpinned
+     */
+    @Test
+    public void pinnedPageIsNotEvicted() throws Exception {
+        BufferPool bp = Database.resetBufferPool(4);
+        Page pinned = bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        for (int i = 1; i < 10; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        assertSame(pinned, bp.getPage(tid, pid(0), Permissions.READ_ONLY));
+        assertEquals(1, bp.getPageTable().pinCount(pid(0)));
+
+        bp.unpinPage(tid, pid(0));
+        for (int i = 1; i < 10; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        assertFalse(bp.getPageTable().containsKey(pid(0)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A page cannot be read once every page in the pool is pinned
+     */
+    @Test(expected = DbException.class)
+    public void fullyPinnedPoolRejectsReads() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        bp.pinPage(tid, pid(1), Permissions.READ_ONLY);
+        bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Pins taken after a depth are released together, the rest at commit
+     */
+    @Test
+    public void pinsAreReleasedByDepthAndAtCommit() throws Exception {
+        BufferPool bp = Database.resetBufferPool(8);
+        bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        int depth = bp.getPinDepth(tid);
+        bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        bp.pinPage(tid, pid(1), Permissions.READ_ONLY);
+        assertEquals(2, bp.getPageTable().pinCount(pid(0)));
+
+        bp.unpinAbove(tid, depth);
+        assertEquals(1, bp.getPageTable().pinCount(pid(0)));
+        assertEquals(0, bp.getPageTable().pinCount(pid(1)));
+
+        // unpinning a page the transaction has not pinned does nothing
+        bp.unpinPage(new TransactionId(), pid(0));
+        assertEquals(1, bp.getPageTable().pinCount(pid(0)));
+
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getPageTable().pinCount(pid(0)));
+    }
+
+    /**
+     * A heap file iterator keeps exactly its current page pinned
+     */
+    @Test
+    public void iteratorPinsCurrentPage() throws Exception {
+        BufferPool bp = Database.resetBufferPool(4);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        assertEquals(1, bp.getPageTable().pinCount(pid(0)));
+        for (int i = 0; i <= SLOTS; i++) {
+            it.next();
+        }
+        assertEquals(0, bp.getPageTable().pinCount(pid(0)));
+        assertEquals(1, bp.getPageTable().pinCount(pid(1)));
+        it.close();
+        assertEquals(0, bp.getPageTable().pinCount(pid(1)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPinTest.class);
+    }
+}
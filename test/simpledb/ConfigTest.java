@@ -0,0 +1,165 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Test;
+import simpledb.common.Config;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class ConfigTest extends SimpleDbTestBase {
+
+    @After
+    public void tearDown() {
+        BufferPool.resetPageSize();
+    }
+
+    private static Config config(String... keyValues) {
+        Properties props = new Properties();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            props.setProperty(keyValues[i], keyValues[i + 1]);
+        }
+        return new Config(props);
+    }
+
+    /**
+     * Missing settings take their defaults
+     */
+    @Test
+    public void defaults() {
+        Config c = config();
+        assertEquals(Config.DEFAULT_PAGE_SIZE, c.getPageSize());
+        assertEquals(BufferPool.DEFAULT_PAGES, c.getBufferPoolPages());
+        assertEquals("lru", c.getEvictionPolicy());
+        assertEquals(Config.DEFAULT_PREFETCH_WINDOW, c.getPrefetchWindow());
+        assertEquals(Config.DEFAULT_LOCK_TIMEOUT_MS, c.getLockTimeoutMillis());
+    }
+
+    /**
+     * Sizes take suffixes, and a pool size in bytes is divided into pages
+     */
+    @Test
+    public void sizesInBytes() {
+        Config c = config(Config.PAGE_SIZE, "16k", Config.POOL_BYTES, "64MB",
+                Config.POOL_POLICY, "2Q", Config.PREFETCH_WINDOW, "0");
+        assertEquals(16384, c.getPageSize());
+        assertEquals(4096, c.getBufferPoolPages());
+        assertEquals("2q", c.getEvictionPolicy());
+        assertEquals(0, c.getPrefetchWindow());
+        assertEquals(100, config(Config.POOL_PAGES, "100").getBufferPoolPages());
+    }
+
+    /**
+     * Settings out of range are rejected when they are read
+     */
+    @Test
+    public void rejectsBadSettings() {
+        String[][] bad = {
+                {Config.PAGE_SIZE, "4000"},
+                {Config.PAGE_SIZE, "128k"},
+                {Config.PAGE_SIZE, "big"},
+                {Config.POOL_PAGES, "0"},
+                {Config.POOL_BYTES, "1k"},
+                {Config.POOL_PAGES, "10", Config.POOL_BYTES, "1m"},
+                {Config.POOL_POLICY, "mru"},
+                {Config.PREFETCH_WINDOW, "-1"},
+                {Config.LOCK_TIMEOUT, "0"},
+                {Config.GROUP_COMMIT_SIZE, "0"},
+                {Config.GROUP_COMMIT_DELAY, "-5"},
+                // only byte sizes take a suffix
+                {Config.LOCK_TIMEOUT, "5k"},
+                {Config.CHECKPOINT_INTERVAL, "1m"},
+                {Config.POOL_PAGES, "2k"},
+        };
+        for (String[] kv : bad) {
+            try {
+                config(kv);
+                fail("accepted " + String.join("=", kv));
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * The catalog refuses a table file written with another page size
+     */
+    @Test
+    public void catalogChecksFileLength() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 3 * 504, null, null);
+        File f = hf.getFile();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(f.length() + BufferPool.getPageSize() / 2);
+        }
+        try {
+            Utility.openHeapFile(2, f);
+            fail("accepted a file that is not a whole number of pages");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    /**
+     * The catalog refuses a file written with half the page size even when
+     * its length is a whole number of the larger pages
+     */
+    @Test
+    public void catalogChecksRecordedPageSize() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 4 * 504, null, null);
+        File f = hf.getFile();
+        assertEquals(4, hf.numPages());
+
+        BufferPool.setPageSize(2 * BufferPool.getPageSize());
+        assertEquals(0, f.length() % BufferPool.getPageSize());
+        try {
+            Utility.openHeapFile(2, f);
+            fail("accepted a file written with another page size");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    /**
+     * Tables work with large pages
+     */
+    @Test
+    public void largePages() throws Exception {
+        BufferPool.setPageSize(64 * 1024);
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+        assertEquals(3, hf.numPages());
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(tuples.size(), count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ConfigTest.class);
+    }
+}
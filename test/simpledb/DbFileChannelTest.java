@@ -0,0 +1,116 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.storage.DbFileChannel;
+import simpledb.storage.MappedDbFileChannel;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DbFileChannelTest {
+
+    private File file;
+    private DbFileChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("channel", ".dat");
+        file.deleteOnExit();
+        channel = new DbFileChannel(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.close();
+    }
+
+    private static byte[] filled(int len, int value) {
+        byte[] data = new byte[len];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    /**
+     * Unit test for DbFileChannel.write() and read() at arbitrary offsets
+     */
+    @Test
+    public void positionalReadWrite() throws Exception {
+        channel.write(filled(16, 1), 0);
+        channel.write(filled(16, 3), 32);
+        assertEquals(48, channel.size());
+        assertEquals(48, file.length());
+
+        byte[] buf = new byte[16];
+        assertEquals(16, channel.read(buf, 32));
+        assertArrayEquals(filled(16, 3), buf);
+        // the gap left by the write past the end reads back as zeroes
+        assertEquals(16, channel.read(buf, 16));
+        assertArrayEquals(filled(16, 0), buf);
+    }
+
+    /**
+     * Reads past the end of the file return a short count
+     */
+    @Test
+    public void shortReadAtEnd() throws Exception {
+        channel.write(filled(10, 7), 0);
+        byte[] buf = new byte[16];
+        assertEquals(10, channel.read(buf, 0));
+        assertEquals(0, channel.read(buf, 10));
+    }
+
+    /**
+     * Unit test for DbFileChannel.append(), and reopening after close()
+     */
+    @Test
+    public void appendAndReopen() throws Exception {
+        assertEquals(0, channel.append(filled(8, 1)));
+        assertEquals(8, channel.append(filled(8, 2)));
+        channel.close();
+
+        byte[] buf = new byte[8];
+        assertEquals(8, channel.read(buf, 8));
+        assertArrayEquals(filled(8, 2), buf);
+    }
+
+    /**
+     * A mapped channel sees positional writes and appends made after it mapped the file
+     */
+    @Test
+    public void mappedReadFollowsGrowth() throws Exception {
+        MappedDbFileChannel mapped = new MappedDbFileChannel(file, 8);
+        try {
+            mapped.append(filled(8, 1));
+            byte[] buf = new byte[8];
+            assertEquals(8, mapped.read(buf, 0));
+            assertArrayEquals(filled(8, 1), buf);
+            assertEquals(0, mapped.read(buf, 8));
+
+            mapped.append(filled(8, 2));
+            assertEquals(8, mapped.read(buf, 8));
+            assertArrayEquals(filled(8, 2), buf);
+
+            // a write past the end is picked up when the read falls past the mapping
+            mapped.write(filled(8, 3), 16);
+            mapped.write(filled(8, 4), 0);
+            assertEquals(8, mapped.read(buf, 16));
+            assertArrayEquals(filled(8, 3), buf);
+            assertEquals(8, mapped.read(buf, 0));
+            assertArrayEquals(filled(8, 4), buf);
+        } finally {
+            mapped.close();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DbFileChannelTest.class);
+    }
+}
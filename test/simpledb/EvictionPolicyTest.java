@@ -0,0 +1,150 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.storage.*;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class EvictionPolicyTest {
+
+    private static final int CAPACITY = 8;
+
+    /**
+     * Simulates a page table of CAPACITY frames driven only by the policy:
+     * a few hot pages are referenced repeatedly, then a long scan of cold
+     * pages runs through the pool once.
+     *
+     * @return the hot pages that are still resident after the scan
+     */
+    private static int hotPagesAfterScan(EvictionPolicy policy) {
+        Set<PageId> resident = new HashSet<>();
+        PageId[] hot = new PageId[3];
+        for (int i = 0; i < hot.length; i++) {
+            hot[i] = new HeapPageId(1, i);
+        }
+        for (int round = 0; round < 3; round++) {
+            for (PageId pid : hot) {
+                reference(policy, resident, pid);
+            }
+            // other pages come and go between the hot references
+            reference(policy, resident, new HeapPageId(3, round));
+        }
+        for (int i = 0; i < 100; i++) {
+            reference(policy, resident, new HeapPageId(2, i));
+        }
+        int survivors = 0;
+        for (PageId pid : hot) {
+            if (resident.contains(pid)) {
+                survivors++;
+            }
+        }
+        return survivors;
+    }
+
+    private static void reference(EvictionPolicy policy, Set<PageId> resident, PageId pid) {
+        if (resident.contains(pid)) {
+            policy.recordAccess(pid);
+            return;
+        }
+        if (resident.size() >= CAPACITY) {
+            PageId victim = policy.chooseVictim();
+            assertNotNull(victim);
+            assertTrue(resident.remove(victim));
+            policy.recordEvict(victim);
+        }
+        resident.add(pid);
+        policy.recordInsert(pid);
+    }
+
+    /**
+     * A scan larger than the pool flushes everything out under LRU
+     */
+    @Test
+    public void lruIsNotScanResistant() {
+        assertEquals(0, hotPagesAfterScan(new LruPolicy()));
+    }
+
+    /**
+     * Under 2Q, a page re-read after leaving A1in lives in Am and survives scans
+     */
+    @Test
+    public void twoQueueKeepsHotPages() {
+        EvictionPolicy policy = new TwoQueuePolicy(2, CAPACITY);
+        Set<PageId> resident = new HashSet<>();
+        PageId hot = new HeapPageId(1, 0);
+        reference(policy, resident, hot);
+        // push the hot page through A1in into the ghost queue, then re-read it
+        for (int i = 0; i < CAPACITY; i++) {
+            reference(policy, resident, new HeapPageId(3, i));
+        }
+        assertFalse(resident.contains(hot));
+        reference(policy, resident, hot);
+
+        for (int i = 0; i < 100; i++) {
+            reference(policy, resident, new HeapPageId(2, i));
+        }
+        assertTrue(resident.contains(hot));
+    }
+
+    /**
+     * Under LRU-2, pages referenced twice outlive pages referenced once
+     */
+    @Test
+    public void lruKKeepsHotPages() {
+        assertEquals(3, hotPagesAfterScan(new LruKPolicy(2, CAPACITY)));
+    }
+
+    /**
+     * A victim the caller cannot evict is passed over for the next page in
+     * eviction order, and the walk stops there
+     */
+    @Test
+    public void victimSkipsRejectedPages() {
+        for (EvictionPolicy policy : new EvictionPolicy[]{new LruPolicy(),
+                new TwoQueuePolicy(2, CAPACITY), new LruKPolicy(2, CAPACITY)}) {
+            for (int i = 0; i < 6; i++) {
+                policy.recordInsert(new HeapPageId(1, i));
+            }
+            policy.recordAccess(new HeapPageId(1, 0));
+            List<PageId> order = policy.coldest(CAPACITY);
+            assertEquals(6, order.size());
+            assertEquals(order.subList(0, 3), policy.coldest(3));
+
+            Set<PageId> offered = new HashSet<>();
+            PageId victim = policy.chooseVictim(pid -> {
+                offered.add(pid);
+                return offered.size() == 3;
+            });
+            assertEquals(order.get(2), victim);
+            assertEquals(new HashSet<>(order.subList(0, 3)), offered);
+            assertNull(policy.chooseVictim(pid -> false));
+        }
+    }
+
+    /**
+     * Unit test for EvictionPolicy.forName()
+     */
+    @Test
+    public void forName() {
+        assertTrue(EvictionPolicy.forName("LRU", CAPACITY) instanceof LruPolicy);
+        assertTrue(EvictionPolicy.forName("2q", CAPACITY) instanceof TwoQueuePolicy);
+        assertTrue(EvictionPolicy.forName("lru-k", CAPACITY) instanceof LruKPolicy);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void forNameUnknown() {
+        EvictionPolicy.forName("mru", CAPACITY);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,120 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class FreeSpaceMapTest extends TestUtil.CreateHeapFile {
+
+    private static final int SLOTS = 504;
+
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        // fill three pages, so that inserts must skip the full ones
+        for (int i = 0; i < 3 * SLOTS; i++) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+        empty.getFreeSpaceMap().getFile().delete();
+    }
+
+    private Tuple firstTupleOn(int pageNo) throws Exception {
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(empty.getId(), pageNo), Permissions.READ_ONLY);
+        Iterator<Tuple> it = page.iterator();
+        return it.next();
+    }
+
+    /**
+     * Inserts skip full pages and go to the page a delete made room on
+     */
+    @Test
+    public void insertGoesToFreedPage() throws Exception {
+        assertEquals(3, empty.numPages());
+        assertEquals(-1, empty.getFreeSpaceMap().findPage(empty.numPages()));
+
+        Database.getBufferPool().deleteTuple(tid, firstTupleOn(1));
+        assertEquals(1, empty.getFreeSpaceMap().findPage(empty.numPages()));
+
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+        assertEquals(1, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(3, empty.numPages());
+        assertEquals(-1, empty.getFreeSpaceMap().findPage(empty.numPages()));
+    }
+
+    /**
+     * The map is written with the pages and read back when the table is reopened
+     */
+    @Test
+    public void persistsAcrossReopen() throws Exception {
+        Database.getBufferPool().deleteTuple(tid, firstTupleOn(2));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        assertTrue(empty.getFreeSpaceMap().getFile().exists());
+
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+        assertEquals(2, reopened.getFreeSpaceMap().findPage(reopened.numPages()));
+    }
+
+    /**
+     * A missing map is rebuilt from the page headers
+     */
+    @Test
+    public void rebuiltWhenMissing() throws Exception {
+        Database.getBufferPool().deleteTuple(tid, firstTupleOn(0));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        assertTrue(empty.getFreeSpaceMap().getFile().delete());
+
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+        assertEquals(0, reopened.getFreeSpaceMap().findPage(reopened.numPages()));
+        assertTrue(reopened.getFreeSpaceMap().getFile().exists());
+    }
+
+    /**
+     * Aborting an insert that filled a page leaves the page available
+     */
+    @Test
+    public void abortRestoresRoom() throws Exception {
+        Database.getBufferPool().deleteTuple(tid, firstTupleOn(0));
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(-1, 2));
+        assertEquals(-1, empty.getFreeSpaceMap().findPage(empty.numPages()));
+        Database.getBufferPool().transactionComplete(tid, false);
+        tid = new TransactionId();
+
+        Tuple t = Utility.getHeapTuple(-2, 2);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
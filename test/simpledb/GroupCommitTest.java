@@ -0,0 +1,151 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private static final int COMMITTERS = 4;
+
+    private LogFile log;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        log = Database.getLogFile();
+    }
+
+    private List<TransactionId> begin(int n) throws Exception {
+        List<TransactionId> tids = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            tids.add(tid);
+        }
+        return tids;
+    }
+
+    /**
+     * Commits that arrive together are made durable by a single force
+     */
+    @Test
+    public void concurrentCommitsShareAForce() throws Exception {
+        log.setGroupCommit(COMMITTERS, TimeUnit.SECONDS.toMicros(5));
+        List<TransactionId> tids = begin(COMMITTERS);
+        long before = log.getForceCount();
+
+        ExecutorService threads = Executors.newFixedThreadPool(COMMITTERS);
+        try {
+            List<Future<?>> commits = new ArrayList<>();
+            for (TransactionId tid : tids) {
+                commits.add(threads.submit(() -> {
+                    log.logCommit(tid);
+                    return null;
+                }));
+            }
+            long start = System.nanoTime();
+            for (Future<?> f : commits) {
+                f.get(10, TimeUnit.SECONDS);
+            }
+            // a full batch does not wait out the delay
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(1, log.getForceCount() - before);
+    }
+
+    /**
+     * With a group of one every commit forces the log itself
+     */
+    @Test
+    public void groupOfOneForcesEachCommit() throws Exception {
+        log.setGroupCommit(1, 0);
+        List<TransactionId> tids = begin(COMMITTERS);
+        long before = log.getForceCount();
+        for (TransactionId tid : tids) {
+            log.logCommit(tid);
+        }
+        assertEquals(COMMITTERS, log.getForceCount() - before);
+    }
+
+    /**
+     * A record that is already on disk needs no force
+     */
+    @Test
+    public void durableOffsetsAreNotForcedAgain() throws Exception {
+        TransactionId tid = new TransactionId();
+        long lsn = log.logXactionBegin(tid);
+        log.forceTo(lsn);
+        long before = log.getForceCount();
+        log.forceTo(lsn);
+        log.logCommit(tid);
+        assertEquals(1, log.getForceCount() - before);
+    }
+
+    /**
+     * LSNs keep growing when a checkpoint truncates the log
+     */
+    @Test
+    public void lsnsSurviveTruncation() throws Exception {
+        begin(COMMITTERS);
+        long lsn = log.logXactionBegin(new TransactionId());
+        long end = log.logEnd();
+        log.logCheckpoint();
+        assertTrue(log.logEnd() > end);
+        assertTrue(log.logXactionBegin(new TransactionId()) > lsn);
+    }
+
+    /**
+     * A commit whose records cannot be forced fails, writes none of its
+     * pages and lets go of its locks
+     */
+    @Test
+    public void failedForceFailsTheCommit() throws Exception {
+        File f = File.createTempFile("groupcommit", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{1, 2}));
+        // every later append and force fails
+        log.shutdown();
+
+        try {
+            t.commit();
+            fail("the commit should fail");
+        } catch (IOException expected) {
+        }
+        assertFalse(((HeapPage) hf.readPage(pid)).iterator().hasNext());
+        assertFalse(Database.getBufferPool().holdsLock(t.getId(), pid));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -14,6 +14,12 @@ import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -96,6 +102,32 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * An insert waits for the page another transaction has locked, instead
+     * of growing the table
+     */
+    @Test
+    public void concurrentInsertsShareAPage() throws Exception {
+        empty.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        TransactionId other = new TransactionId();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<Page>> insert = executor.submit(() -> empty.insertTuple(other, Utility.getHeapTuple(2, 2)));
+            try {
+                insert.get(100, TimeUnit.MILLISECONDS);
+                fail("the insert did not wait for the page lock");
+            } catch (TimeoutException expected) {
+                // expected
+            }
+            Database.getBufferPool().transactionComplete(tid);
+            assertEquals(0, insert.get(5, TimeUnit.SECONDS).get(0).getId().getPageNumber());
+            assertEquals(1, empty.numPages());
+        } finally {
+            executor.shutdownNow();
+            Database.getBufferPool().transactionComplete(other);
+        }
+    }
+
     /**
      * JUnit suite target
      */
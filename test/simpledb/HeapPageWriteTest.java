@@ -14,6 +14,8 @@ import simpledb.common.DbException;
 import simpledb.common.Utility;
 import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.RecordId;
 import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -133,6 +135,36 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Tuples handed out by the iterator keep their values when their slot is
+     * deleted and reused, and the page still serializes what was inserted.
+     */
+    @Test
+    public void tuplesOutliveSlotReuse() throws Exception {
+        Tuple expected = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA).iterator().next();
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        // none of its fields are decoded before the slot is reused
+        Tuple first = page.iterator().next();
+        int slot = first.getRecordId().getTupleNumber();
+
+        page.deleteTuple(first);
+        Tuple replacement = Utility.getHeapTuple(((IntField) expected.getField(0)).getValue() + 1, 2);
+        replacement.setRecordId(new RecordId(pid, slot));
+        page.insertTuple(replacement);
+        assertEquals(slot, replacement.getRecordId().getTupleNumber());
+        assertTrue(TestUtil.compareTuples(expected, first));
+
+        // the example data is not modified either
+        assertTrue(TestUtil.compareTuples(expected, new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA).iterator().next()));
+
+        HeapPage reread = new HeapPage(pid, page.getPageData());
+        Iterator<Tuple> it = reread.iterator();
+        assertTrue(it.hasNext());
+        Tuple t = it.next();
+        assertEquals(slot, t.getRecordId().getTupleNumber());
+        assertTrue(TestUtil.compareTuples(replacement, t));
+    }
+
     /**
      * JUnit suite target
      */
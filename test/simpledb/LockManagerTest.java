@@ -0,0 +1,323 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.DeadlockException;
+import simpledb.common.LockManager;
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest {
+
+    private static final int BLOCKED_MS = 100;
+
+    private final PageId p0 = new HeapPageId(1, 0);
+    private final PageId p1 = new HeapPageId(1, 1);
+    private LockManager lm;
+    private ExecutorService threads;
+    private TransactionId t1, t2, t3;
+
+    @Before
+    public void setUp() {
+        lm = new LockManager();
+        threads = Executors.newCachedThreadPool();
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        t3 = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        threads.shutdownNow();
+    }
+
+    private interface LockCall {
+        void lock() throws Exception;
+    }
+
+    private Future<Long> acquireAsync(LockCall call) {
+        return threads.submit(() -> {
+            call.lock();
+            return System.nanoTime();
+        });
+    }
+
+    private Future<Long> acquireAsync(TransactionId tid, PageId pid, Permissions perm) {
+        return acquireAsync(() -> lm.acquireLock(tid, pid, perm));
+    }
+
+    private static void assertBlocked(Future<?> f) throws InterruptedException {
+        Thread.sleep(BLOCKED_MS);
+        assertFalse(f.isDone());
+    }
+
+    /**
+     * A waiter is woken as soon as the lock is released, not on a poll
+     */
+    @Test
+    public void releaseWakesWaiter() throws Exception {
+        lm.acquireLock(t1, p0, Permissions.READ_WRITE);
+        Future<Long> f = acquireAsync(t2, p0, Permissions.READ_ONLY);
+        assertBlocked(f);
+
+        long released = System.nanoTime();
+        lm.unLockPage(t1, p0);
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(f.get(1, TimeUnit.SECONDS) - released);
+        assertTrue("woken after " + waitedMs + " ms", waitedMs < 50);
+        assertTrue(lm.holdsLock(t2, p0));
+        assertFalse(lm.holdsLock(t1, p0));
+        // an abort of t1 must leave the page alone
+        assertFalse(lm.getMarkPages(t1).contains(p0));
+    }
+
+    /**
+     * Readers arriving after a waiting writer queue behind it
+     */
+    @Test
+    public void writerIsNotStarved() throws Exception {
+        lm.acquireLock(t1, p0, Permissions.READ_ONLY);
+        Future<Long> writer = acquireAsync(t2, p0, Permissions.READ_WRITE);
+        assertBlocked(writer);
+        Future<Long> reader = acquireAsync(t3, p0, Permissions.READ_ONLY);
+        assertBlocked(reader);
+
+        lm.unLockPage(t1, p0);
+        writer.get(1, TimeUnit.SECONDS);
+        assertBlocked(reader);
+
+        lm.unLockPage(t2, p0);
+        reader.get(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Two holders of a shared lock that both upgrade deadlock; the second
+     * is refused and the first upgrades once it lets go
+     */
+    @Test
+    public void competingUpgrades() throws Exception {
+        lm.acquireLock(t1, p0, Permissions.READ_ONLY);
+        lm.acquireLock(t2, p0, Permissions.READ_ONLY);
+        Future<Long> upgrade = acquireAsync(t1, p0, Permissions.READ_WRITE);
+        assertBlocked(upgrade);
+
+        try {
+            lm.acquireLock(t2, p0, Permissions.READ_WRITE);
+            fail("both upgrades were let wait");
+        } catch (DeadlockException expected) {
+            // expected
+        }
+        lm.unLockPage(t2, p0);
+        upgrade.get(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A wait that closes a cycle is refused; the other waiter goes on
+     */
+    @Test
+    public void cycleIsDetected() throws Exception {
+        lm.acquireLock(t1, p0, Permissions.READ_WRITE);
+        lm.acquireLock(t2, p1, Permissions.READ_WRITE);
+        Future<Long> f = acquireAsync(t1, p1, Permissions.READ_WRITE);
+        assertBlocked(f);
+
+        try {
+            lm.acquireLock(t2, p0, Permissions.READ_ONLY);
+            fail("deadlock not detected");
+        } catch (DeadlockException expected) {
+            // expected
+        }
+        lm.unLockPage(t2, p1);
+        f.get(1, TimeUnit.SECONDS);
+        assertTrue(lm.holdsLock(t1, p1));
+    }
+
+    /**
+     * The youngest transaction on a cycle is aborted, even if an older one
+     * closed it
+     */
+    @Test
+    public void youngestIsVictim() throws Exception {
+        lm.acquireLock(t1, p0, Permissions.READ_WRITE);
+        lm.acquireLock(t2, p1, Permissions.READ_WRITE);
+        Future<Long> young = acquireAsync(t2, p0, Permissions.READ_WRITE);
+        assertBlocked(young);
+        Future<Long> old = acquireAsync(t1, p1, Permissions.READ_WRITE);
+
+        try {
+            young.get(1, TimeUnit.SECONDS);
+            fail("deadlock not detected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DeadlockException);
+        }
+        assertEquals(1, lm.getDeadlockCount());
+        assertFalse(old.isDone());
+        lm.unLockPage(t2, p1);
+        old.get(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A cycle through pages of several shards is detected
+     */
+    @Test
+    public void cycleAcrossShards() throws Exception {
+        lm = new LockManager(LockManager.DEFAULT_WAIT_TIMEOUT_MS, 64);
+        PageId p2 = new HeapPageId(2, 7);
+        lm.acquireLock(t1, p0, Permissions.READ_WRITE);
+        lm.acquireLock(t2, p1, Permissions.READ_WRITE);
+        lm.acquireLock(t3, p2, Permissions.READ_WRITE);
+        Future<Long> f1 = acquireAsync(t1, p1, Permissions.READ_ONLY);
+        Future<Long> f2 = acquireAsync(t2, p2, Permissions.READ_WRITE);
+        assertBlocked(f1);
+        assertBlocked(f2);
+
+        try {
+            lm.acquireLock(t3, p0, Permissions.READ_WRITE);
+            fail("deadlock not detected");
+        } catch (DeadlockException expected) {
+            // expected
+        }
+        lm.unLockPage(t3, p2);
+        f2.get(1, TimeUnit.SECONDS);
+        lm.unLockPage(t2, p1);
+        lm.unLockPage(t2, p2);
+        f1.get(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The lock table forgets a page once nobody holds or waits for its lock
+     */
+    @Test
+    public void releasedPagesAreDropped() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            lm.acquireLock(t1, new HeapPageId(3, i), i % 2 == 0 ? Permissions.READ_ONLY : Permissions.READ_WRITE);
+        }
+        lm.acquireLock(t2, new HeapPageId(3, 0), Permissions.READ_ONLY);
+        // the pages and their table
+        assertEquals(101, lm.getLockCount());
+        for (PageId pid : lm.getMarkPages(t1)) {
+            lm.unLockPage(t1, pid);
+        }
+        assertEquals(2, lm.getLockCount());
+        lm.releaseAll(t1);
+        lm.releaseAll(t2);
+        assertEquals(0, lm.getLockCount());
+    }
+
+    private RecordId rid(PageId pid, int slot) {
+        return new RecordId(pid, slot);
+    }
+
+    /**
+     * Writers of different tuples on one page go ahead together, and hold
+     * off a reader of the whole page
+     */
+    @Test
+    public void tupleLocksShareAPage() throws Exception {
+        lm.lockTuple(t1, rid(p0, 0), Permissions.READ_WRITE);
+        lm.lockTuple(t2, rid(p0, 1), Permissions.READ_WRITE);
+        Future<Long> sameTuple = acquireAsync(() -> lm.lockTuple(t3, rid(p0, 1), Permissions.READ_ONLY));
+        Future<Long> page = acquireAsync(() -> lm.acquireLock(t3, p1, Permissions.READ_ONLY));
+        page.get(1, TimeUnit.SECONDS);
+        assertBlocked(sameTuple);
+
+        lm.releaseAll(t2);
+        sameTuple.get(1, TimeUnit.SECONDS);
+        Future<Long> wholePage = acquireAsync(() -> lm.acquireLock(t3, p0, Permissions.READ_ONLY));
+        assertBlocked(wholePage);
+        lm.releaseAll(t1);
+        wholePage.get(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A tuple lock that would wait is refused at once, and the page of the
+     * tuple is still marked for the transaction
+     */
+    @Test
+    public void tryLockTupleNeverWaits() throws Exception {
+        lm.lockTuple(t1, rid(p0, 0), Permissions.READ_WRITE);
+        lm.lockTupleParents(t2, p0, Permissions.READ_WRITE);
+        assertFalse(lm.tryLockTuple(t2, rid(p0, 0), Permissions.READ_WRITE));
+        assertTrue(lm.tryLockTuple(t2, rid(p0, 1), Permissions.READ_WRITE));
+        assertTrue(lm.getMarkPages(t2).contains(p0));
+        assertFalse(lm.holdsLock(t2, p0));
+
+        lm.releaseAll(t1);
+        assertTrue(lm.tryLockTuple(t2, rid(p0, 0), Permissions.READ_WRITE));
+        lm.releaseAll(t2);
+        assertEquals(0, lm.getLockCount());
+    }
+
+    /**
+     * Enough page locks on one table are replaced by a lock on the table
+     */
+    @Test
+    public void pageLocksEscalate() throws Exception {
+        lm.setEscalationThreshold(4);
+        for (int i = 0; i < 4; i++) {
+            lm.acquireLock(t1, new HeapPageId(1, i), Permissions.READ_ONLY);
+        }
+        assertEquals(1, lm.getEscalationCount());
+        assertEquals(1, lm.getLockCount());
+        assertEquals(4, lm.getMarkPages(t1).size());
+
+        lm.acquireLock(t2, new HeapPageId(1, 9), Permissions.READ_ONLY);
+        Future<Long> writer = acquireAsync(() -> lm.acquireLock(t2, new HeapPageId(1, 9), Permissions.READ_WRITE));
+        assertBlocked(writer);
+        lm.releaseAll(t1);
+        writer.get(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Enough tuple locks on one page are replaced by a lock on the page,
+     * unless another transaction is in the way
+     */
+    @Test
+    public void tupleLocksEscalate() throws Exception {
+        lm.setEscalationThreshold(4);
+        lm.lockTuple(t2, rid(p1, 0), Permissions.READ_ONLY);
+        for (int i = 0; i < 4; i++) {
+            lm.lockTuple(t1, rid(p0, i), Permissions.READ_WRITE);
+            lm.lockTuple(t1, rid(p1, i + 1), Permissions.READ_WRITE);
+        }
+        // p1 could not be locked exclusively because of t2
+        assertEquals(1, lm.getEscalationCount());
+        assertTrue(lm.holdsLock(t1, p0));
+        assertFalse(lm.holdsLock(t1, p1));
+
+        Future<Long> reader = acquireAsync(() -> lm.lockTuple(t3, rid(p0, 9), Permissions.READ_ONLY));
+        assertBlocked(reader);
+        lm.releaseAll(t1);
+        reader.get(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A wait that outlasts the timeout aborts the transaction
+     */
+    @Test(expected = TransactionAbortedException.class)
+    public void waitTimesOut() throws Exception {
+        lm.setWaitTimeout(BLOCKED_MS);
+        lm.acquireLock(t1, p0, Permissions.READ_ONLY);
+        lm.acquireLock(t2, p0, Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,165 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PageTableTest extends SimpleDbTestBase {
+
+    private int tableId;
+
+    @Before
+    public void createTable() throws Exception {
+        File f = File.createTempFile("table", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = Utility.openHeapFile(2, f);
+        Database.getCatalog().addTable(hf, "pagetable");
+        tableId = hf.getId();
+    }
+
+    private HeapPage page(int pgNo) throws Exception {
+        return new HeapPage(new HeapPageId(tableId, pgNo), HeapPage.createEmptyPageData());
+    }
+
+    /**
+     * Unit test for PageTable.put() once the table is full
+     */
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        PageTable table = new PageTable(3);
+        for (int i = 0; i < 3; i++) {
+            assertNull(table.put(new HeapPageId(tableId, i), page(i)));
+            Thread.sleep(1);
+        }
+        // touch page 0 so that page 1 becomes the oldest
+        assertNotNull(table.get(new HeapPageId(tableId, 0)));
+
+        Page victim = table.put(new HeapPageId(tableId, 3), page(3));
+        assertNotNull(victim);
+        assertEquals(new HeapPageId(tableId, 1), victim.getId());
+        assertEquals(3, table.size());
+        assertFalse(table.containsKey(new HeapPageId(tableId, 1)));
+        assertTrue(table.containsKey(new HeapPageId(tableId, 0)));
+    }
+
+    /**
+     * Pinned pages are passed over for the next page in eviction order
+     */
+    @Test
+    public void evictionSkipsPinnedPages() throws Exception {
+        PageTable table = new PageTable(3);
+        List<HeapPage> pages = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            pages.add(page(i));
+            table.put(pages.get(i).getId(), pages.get(i));
+        }
+        assertTrue(table.pin(pages.get(0)));
+        assertTrue(table.pin(pages.get(1)));
+
+        Page victim = table.put(new HeapPageId(tableId, 3), page(3));
+        assertNotNull(victim);
+        assertEquals(pages.get(2).getId(), victim.getId());
+        assertTrue(table.containsKey(pages.get(0).getId()));
+        assertTrue(table.containsKey(pages.get(1).getId()));
+    }
+
+    /**
+     * Unit test for PageTable.put() with an id that is already resident
+     */
+    @Test
+    public void replaceDoesNotEvict() throws Exception {
+        PageTable table = new PageTable(2);
+        HeapPageId pid = new HeapPageId(tableId, 0);
+        table.put(pid, page(0));
+        table.put(new HeapPageId(tableId, 1), page(1));
+
+        HeapPage replacement = page(0);
+        assertNull(table.put(pid, replacement));
+        assertSame(replacement, table.get(pid));
+        assertEquals(2, table.size());
+    }
+
+    /**
+     * A dirty victim is handed out for a miss until each of its writes is
+     * reported, and a copy read from disk is not prefetched over it
+     */
+    @Test
+    public void dirtyVictimIsReadableUntilWritten() throws Exception {
+        PageTable table = new PageTable(1);
+        HeapPageId pid = new HeapPageId(tableId, 0);
+        HeapPage dirty = page(0);
+        dirty.markDirty(true, new TransactionId());
+        table.put(pid, dirty);
+
+        long stamp = table.prefetchStamp();
+        assertSame(dirty, table.put(new HeapPageId(tableId, 1), page(1)));
+        assertSame(dirty, table.writingBack(pid));
+        assertFalse(table.prefetch(pid, page(0), stamp));
+
+        // installed again and evicted again before the first write is done
+        table.put(pid, table.writingBack(pid));
+        assertSame(dirty, table.put(new HeapPageId(tableId, 1), page(1)));
+        table.writtenBack(dirty);
+        assertSame(dirty, table.writingBack(pid));
+        table.writtenBack(dirty);
+        assertNull(table.writingBack(pid));
+    }
+
+    /**
+     * Concurrent hits and inserts must never push the table past capacity
+     */
+    @Test
+    public void concurrentAccessRespectsCapacity() throws Exception {
+        final PageTable table = new PageTable(8);
+        final List<HeapPage> pages = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            pages.add(page(i));
+        }
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 5000; i++) {
+                        HeapPage p = pages.get((i * 7 + offset) % pages.size());
+                        if (table.get(p.getId()) == null) {
+                            table.put(p.getId(), p);
+                        }
+                        if (table.size() > 8) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+        assertTrue(table.size() <= 8);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageTableTest.class);
+    }
+}
@@ -0,0 +1,178 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class PageWriterTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 16;
+    private static final int SLOTS = 504;
+
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 12 * SLOTS, null, null);
+        bp = Database.resetBufferPool(POOL_PAGES);
+    }
+
+    private HeapPageId pid(int pageNo) {
+        return new HeapPageId(hf.getId(), pageNo);
+    }
+
+    /**
+     * Deletes the first tuple on each of the given pages, then reads enough
+     * other pages that the modified ones are the coldest in the pool.
+     */
+    private void dirtyColdPages(TransactionId tid, int dirtyPages) throws Exception {
+        for (int i = 0; i < dirtyPages; i++) {
+            HeapPage page = (HeapPage) bp.getPage(tid, pid(i), Permissions.READ_WRITE);
+            bp.deleteTuple(tid, page.iterator().next());
+        }
+        for (int i = dirtyPages; i < 12; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+    }
+
+    private int usedSlotsOnDisk(int pageNo) {
+        return ((HeapPage) hf.readPage(pid(pageNo))).getUsedSlots();
+    }
+
+    /**
+     * Cold dirty pages are logged, written and dropped; an abort still undoes them
+     */
+    @Test
+    public void cleansColdPagesAndAbortUndoesThem() throws Exception {
+        PageWriter writer = bp.getPageWriter();
+        // rounds are run by hand here
+        writer.shutdown();
+        Transaction t = new Transaction();
+        t.start();
+        dirtyColdPages(t.getId(), 3);
+
+        assertEquals(3, writer.cleanOnce());
+        assertEquals(3, writer.getPagesWritten());
+        assertEquals(0, writer.getQueueDepth());
+        for (int i = 0; i < 3; i++) {
+            assertFalse(bp.getPageTable().containsKey(pid(i)));
+            assertEquals(SLOTS - 1, usedSlotsOnDisk(i));
+        }
+
+        t.abort();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(SLOTS, usedSlotsOnDisk(i));
+        }
+    }
+
+    /**
+     * A page changed after it was logged is written as it was logged, so
+     * recovery undoes every change of a loser the disk holds
+     */
+    @Test
+    public void writesPagesAsLogged() throws Exception {
+        PageWriter writer = bp.getPageWriter();
+        writer.shutdown();
+        Transaction t = new Transaction();
+        t.start();
+        HeapFile hooked = new HeapFile(hf.getFile(), hf.getTupleDesc()) {
+            private boolean changed;
+
+            // the owner changes the page again once it is logged
+            private void change(PageId id) throws IOException {
+                if (changed) {
+                    return;
+                }
+                changed = true;
+                Page page = bp.getPageTable().peek(id);
+                try {
+                    bp.deleteTuple(t.getId(), ((HeapPage) page).iterator().next());
+                } catch (DbException | TransactionAbortedException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            @Override
+            public void writePage(Page page) throws IOException {
+                change(page.getId());
+                super.writePage(page);
+            }
+
+            @Override
+            public void writePage(PageId id, byte[] data, long lsn) throws IOException {
+                change(id);
+                super.writePage(id, data, lsn);
+            }
+        };
+        Database.getCatalog().addTable(hooked, "hooked");
+        dirtyColdPages(t.getId(), 1);
+
+        assertEquals(1, writer.cleanOnce());
+        assertEquals(SLOTS - 1, usedSlotsOnDisk(0));
+        assertEquals(SLOTS - 2, ((HeapPage) bp.getPageTable().peek(pid(0))).getUsedSlots());
+
+        // crash with t running
+        Database.reset();
+        hf = Utility.openHeapFile(2, hf.getFile());
+        Database.getLogFile().recover();
+        assertEquals(SLOTS, usedSlotsOnDisk(0));
+    }
+
+    /**
+     * Pages of a transaction the log does not know about are left to the foreground
+     */
+    @Test
+    public void skipsTransactionsNotInLog() throws Exception {
+        bp.getPageWriter().shutdown();
+        TransactionId tid = new TransactionId();
+        dirtyColdPages(tid, 2);
+        assertEquals(0, bp.getPageWriter().cleanOnce());
+        assertEquals(2, bp.getPageWriter().getQueueDepth());
+        assertTrue(bp.getPageTable().containsKey(pid(0)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * The writer thread starts once the pool fills up and stops on reset
+     */
+    @Test
+    public void startsWhenPoolFills() throws Exception {
+        TransactionId tid = new TransactionId();
+        PageWriter writer = bp.getPageWriter();
+        for (int i = 0; i < POOL_PAGES / 2; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        assertFalse(writer.isRunning());
+        for (int i = POOL_PAGES / 2; i < 12; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        assertTrue(writer.isRunning());
+        bp.transactionComplete(tid);
+
+        Database.reset();
+        assertFalse(writer.isRunning());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageWriterTest.class);
+    }
+}
@@ -0,0 +1,140 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class PrefetcherTest extends SimpleDbTestBase {
+
+    private static final int SLOTS = 504;
+
+    private HeapFile hf;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 20 * SLOTS, null, null);
+    }
+
+    private HeapPageId pid(int pageNo) {
+        return new HeapPageId(hf.getId(), pageNo);
+    }
+
+    private Prefetcher.Scan scan(Prefetcher prefetcher) {
+        return prefetcher.newScan(this::pid, hf.numPages());
+    }
+
+    /**
+     * Once a scan has moved forward twice, the next window of pages is read
+     */
+    @Test
+    public void sequentialScanReadsAhead() throws Exception {
+        BufferPool bp = Database.resetBufferPool(50);
+        Prefetcher prefetcher = bp.getPrefetcher();
+        prefetcher.setWindow(4);
+        Prefetcher.Scan scan = scan(prefetcher);
+
+        scan.accessed(bp.getPage(pid(0)));
+        scan.accessed(bp.getPage(pid(1)));
+        prefetcher.awaitIdle();
+        assertEquals(0, prefetcher.getPagesRequested());
+
+        scan.accessed(bp.getPage(pid(2)));
+        prefetcher.awaitIdle();
+        assertEquals(4, prefetcher.getPagesLoaded());
+        for (int i = 3; i <= 6; i++) {
+            assertTrue(bp.getPageTable().containsKey(pid(i)));
+        }
+        assertFalse(bp.getPageTable().containsKey(pid(7)));
+
+        // the window is only topped up once half of it is used
+        scan.accessed(bp.getPage(pid(3)));
+        prefetcher.awaitIdle();
+        assertEquals(4, prefetcher.getPagesRequested());
+        scan.accessed(bp.getPage(pid(4)));
+        prefetcher.awaitIdle();
+        assertEquals(6, prefetcher.getPagesRequested());
+        assertTrue(bp.getPageTable().containsKey(pid(8)));
+    }
+
+    /**
+     * Jumping around the file reads nothing ahead
+     */
+    @Test
+    public void randomAccessDoesNotPrefetch() throws Exception {
+        BufferPool bp = Database.resetBufferPool(50);
+        Prefetcher.Scan scan = scan(bp.getPrefetcher());
+        for (int pageNo : new int[]{0, 5, 2, 9, 10, 3}) {
+            scan.accessed(bp.getPage(pid(pageNo)));
+        }
+        bp.getPrefetcher().awaitIdle();
+        assertEquals(0, bp.getPrefetcher().getPagesRequested());
+        assertEquals(6, bp.getPageTable().size());
+    }
+
+    /**
+     * A full pool of dirty pages is left alone; the read-ahead is dropped
+     */
+    @Test
+    public void neverEvictsDirtyPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(8);
+        bp.getPageWriter().shutdown();
+        Prefetcher prefetcher = bp.getPrefetcher();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 8; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_WRITE);
+        }
+
+        Prefetcher.Scan scan = scan(prefetcher);
+        for (int i = 10; i <= 12; i++) {
+            scan.accessed(hf.readPage(pid(i)));
+        }
+        prefetcher.awaitIdle();
+        assertEquals(2, prefetcher.getPagesRequested());
+        assertEquals(0, prefetcher.getPagesLoaded());
+        assertEquals(2, prefetcher.getPagesDropped());
+        for (int i = 0; i < 8; i++) {
+            assertTrue(bp.getPageTable().containsKey(pid(i)));
+        }
+        bp.transactionComplete(tid, false);
+    }
+
+    /**
+     * A full scan of a B+ tree reads leaves ahead through the sibling pointers
+     */
+    @Test
+    public void btreeScanFollowsSiblings() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20 * 500, null, null, 0);
+        BufferPool bp = Database.resetBufferPool(50);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        bp.getPrefetcher().awaitIdle();
+        assertEquals(20 * 500, count);
+        assertTrue(bp.getPrefetcher().getPagesLoaded() > 0);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PrefetcherTest.class);
+    }
+}
@@ -215,6 +215,10 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public void writePage(PageId pid, byte[] data, long lsn) {
+            throw new RuntimeException("not implemented");
+        }
+
         public List<Page> insertTuple(TransactionId tid, Tuple t) {
             throw new RuntimeException("not implemented");
         }
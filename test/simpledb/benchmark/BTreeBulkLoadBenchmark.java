@@ -0,0 +1,66 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeBulkLoader;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time to build a {@link BTreeFile} over sorted keys by inserting them one
+ * at a time in a single transaction, and by {@link BTreeBulkLoader} at a
+ * few fill factors.
+ * <p>
+ * Usage: java simpledb.benchmark.BTreeBulkLoadBenchmark [keys]
+ */
+public class BTreeBulkLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        List<Tuple> tuples = new ArrayList<>(keys);
+        for (int i = 0; i < keys; i++) {
+            tuples.add(BTreeUtility.getBTreeTuple(new int[]{i, i}));
+        }
+
+        PrintStream out = System.out;
+        out.printf("%-12s %10s %12s %8s%n", "build", "ms", "tuples/sec", "pages");
+        for (String build : new String[]{"insert", "bulk 1.0", "bulk 0.9", "bulk 0.5"}) {
+            File f = File.createTempFile("bulkload", ".dat");
+            f.deleteOnExit();
+            long start;
+            BTreeFile tree;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            try {
+                Database.reset();
+                // room for every page the inserts dirty before they commit
+                Database.resetBufferPool(keys / BTreeUtility.getNumTuplesPerPage(2) * 3 + 64);
+                start = System.nanoTime();
+                if (build.equals("insert")) {
+                    tree = BTreeUtility.openBTreeFile(2, f, 0);
+                    TransactionId tid = new TransactionId();
+                    for (Tuple t : tuples) {
+                        Database.getBufferPool().insertTuple(tid, tree.getId(), t);
+                    }
+                    Database.getBufferPool().transactionComplete(tid);
+                } else {
+                    double fillFactor = Double.parseDouble(build.substring(5));
+                    tree = BTreeBulkLoader.load(new TupleIterator(Utility.getTupleDesc(2), tuples),
+                            f, 0, fillFactor, "bulkload");
+                }
+            } finally {
+                System.setOut(out);
+            }
+            double ms = (System.nanoTime() - start) / 1e6;
+            out.printf("%-12s %10.0f %12.0f %8d%n", build, ms, keys / (ms / 1000), tree.numPages());
+        }
+    }
+}
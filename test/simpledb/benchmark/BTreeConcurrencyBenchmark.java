@@ -0,0 +1,111 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of 1..N threads inserting into and looking up keys in one
+ * {@link BTreeFile}, each operation in a transaction of its own.
+ * <p>
+ * Half of the operations insert a random key and half look one up. Inserts
+ * that fit in their leaf and lookups lock only the leaf, so the threads
+ * wait for each other only when they meet in a leaf or a page splits.
+ * Commits share forces of the log, so that the log does not hide the
+ * waits for locks.
+ * <p>
+ * Usage: java simpledb.benchmark.BTreeConcurrencyBenchmark [maxThreads] [seconds] [keys]
+ */
+public class BTreeConcurrencyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int keys = args.length > 2 ? Integer.parseInt(args[2]) : 200_000;
+
+        PrintStream out = System.out;
+        out.printf("%-8s %12s %10s %10s%n", "threads", "ops/sec", "inserts", "aborts");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            long[] result;
+            try {
+                Database.reset();
+                BTreeFile tree = BTreeUtility.createBTreeFile(2, keys, null, null, 0);
+                Database.resetBufferPool(BufferPool.DEFAULT_PAGES * 20);
+                // commits share forces of the log, which would otherwise dominate
+                Database.getLogFile().setGroupCommit(threads, 1000);
+                result = run(tree, threads, seconds, keys);
+            } finally {
+                System.setOut(out);
+            }
+            out.printf("%-8d %12.0f %10d %10d%n", threads, result[0] / (double) seconds, result[1], result[2]);
+        }
+    }
+
+    /**
+     * @return the operations, inserts and aborted transactions
+     */
+    private static long[] run(BTreeFile tree, int threads, int seconds, int keys) throws InterruptedException {
+        AtomicLong ops = new AtomicLong();
+        AtomicLong inserts = new AtomicLong();
+        AtomicLong aborts = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline) {
+                        int key = rnd.nextInt(keys) + 1;
+                        boolean insert = rnd.nextBoolean();
+                        TransactionId tid = new TransactionId();
+                        try {
+                            if (insert) {
+                                Database.getBufferPool().insertTuple(tid, tree.getId(),
+                                        BTreeUtility.getBTreeTuple(new int[]{key, 0}));
+                            } else {
+                                DbFileIterator it = tree.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+                                it.open();
+                                while (it.hasNext()) {
+                                    it.next();
+                                }
+                                it.close();
+                            }
+                            Database.getBufferPool().transactionComplete(tid);
+                            ops.incrementAndGet();
+                            if (insert) {
+                                inserts.incrementAndGet();
+                            }
+                        } catch (TransactionAbortedException e) {
+                            Database.getBufferPool().transactionComplete(tid, false);
+                            aborts.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        return new long[]{ops.get(), inserts.get(), aborts.get()};
+    }
+}
@@ -0,0 +1,161 @@
+package simpledb.benchmark;
+
+import simpledb.TestUtil;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeEntry;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionId;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Point lookups in a {@link BTreeFile}, and the in-page searches they are
+ * made of.
+ * <p>
+ * The page rows compare a linear walk over the entries of a full internal
+ * and a full leaf page with the binary search of
+ * {@link BTreeInternalPage#findChildId} and {@link BTreeLeafPage#iterator(Field, boolean)}.
+ * The tree rows time equality lookups of random keys, with every page of
+ * the tree resident in the buffer pool.
+ * <p>
+ * Usage: java simpledb.benchmark.BTreeLookupBenchmark [keys] [lookups]
+ */
+public class BTreeLookupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        BTreeFile tree;
+        try {
+            // sized to hold the whole tree, so that no lookup reads from disk
+            Database.resetBufferPool(keys / BTreeUtility.getNumTuplesPerPage(2) * 2 + 64);
+            tree = BTreeUtility.createBTreeFile(2, keys, null, null, 0);
+            Database.getCatalog().addTable(new TestUtil.SkeletonFile(-1, Utility.getTupleDesc(2)), "btreelookup");
+        } finally {
+            System.setOut(out);
+        }
+
+        out.printf("%-16s %12s %10s %10s%n", "search", "ops/sec", "p50 ns", "p99 ns");
+        pages(out, lookups);
+        tree(out, tree, keys, lookups);
+    }
+
+    private static void pages(PrintStream out, int lookups) throws Exception {
+        BTreePageId ipid = new BTreePageId(-1, 1, BTreePageId.INTERNAL);
+        BTreePageId lpid = new BTreePageId(-1, 1, BTreePageId.LEAF);
+        int maxKey = 1 << 20;
+        BTreeInternalPage internal = BTreeUtility.createRandomInternalPage(ipid, 0, BTreePageId.LEAF, 0, maxKey, 2);
+        BTreeLeafPage leaf = BTreeUtility.createRandomLeafPage(lpid, 2, 0, 0, maxKey);
+
+        for (boolean binary : new boolean[]{false, true}) {
+            long[] ns = new long[lookups];
+            long sink = 0;
+            for (int i = 0; i < lookups; i++) {
+                IntField key = new IntField(ThreadLocalRandom.current().nextInt(maxKey));
+                long start = System.nanoTime();
+                BTreePageId child = binary ? internal.findChildId(key) : linearChild(internal, key);
+                ns[i] = System.nanoTime() - start;
+                sink += child.getPageNumber();
+            }
+            report(out, (binary ? "binary" : "linear") + " internal", ns, sink);
+        }
+        for (boolean binary : new boolean[]{false, true}) {
+            long[] ns = new long[lookups];
+            long sink = 0;
+            for (int i = 0; i < lookups; i++) {
+                IntField key = new IntField(ThreadLocalRandom.current().nextInt(maxKey));
+                long start = System.nanoTime();
+                Iterator<Tuple> it = binary ? leaf.iterator(key, false) : linearSeek(leaf, key);
+                ns[i] = System.nanoTime() - start;
+                sink += it.hasNext() ? 1 : 0;
+            }
+            report(out, (binary ? "binary" : "linear") + " leaf", ns, sink);
+        }
+    }
+
+    /**
+     * The child a search descends to, found by walking every entry
+     */
+    private static BTreePageId linearChild(BTreeInternalPage page, IntField key) {
+        Iterator<BTreeEntry> it = page.iterator();
+        BTreeEntry e = null;
+        while (it.hasNext()) {
+            e = it.next();
+            if (key.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+                return e.getLeftChild();
+            }
+        }
+        return e.getRightChild();
+    }
+
+    /**
+     * An iterator positioned at the first tuple not below the key, found by
+     * walking the tuples before it
+     */
+    private static Iterator<Tuple> linearSeek(BTreeLeafPage page, IntField key) {
+        Iterator<Tuple> it = page.iterator();
+        int skip = 0;
+        while (it.hasNext() && key.compare(Op.GREATER_THAN, it.next().getField(0))) {
+            skip++;
+        }
+        it = page.iterator();
+        for (int i = 0; i < skip; i++) {
+            it.next();
+        }
+        return it;
+    }
+
+    private static void tree(PrintStream out, BTreeFile tree, int keys, int lookups) throws Exception {
+        TransactionId tid = new TransactionId();
+        // one pass over the leaves reads the tree into the buffer pool
+        DbFileIterator scan = tree.iterator(tid);
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+        }
+        scan.close();
+
+        long[] ns = new long[lookups];
+        long sink = 0;
+        for (int i = 0; i < lookups; i++) {
+            IntField key = new IntField(ThreadLocalRandom.current().nextInt(keys) + 1);
+            long start = System.nanoTime();
+            DbFileIterator it = tree.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+            it.open();
+            sink += it.hasNext() ? 1 : 0;
+            it.close();
+            ns[i] = System.nanoTime() - start;
+        }
+        report(out, "tree " + keys, ns, sink);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static void report(PrintStream out, String name, long[] ns, long sink) {
+        long total = 0;
+        for (long n : ns) {
+            total += n;
+        }
+        Arrays.sort(ns);
+        out.printf("%-16s %12.0f %10d %10d%s%n", name, ns.length / (total / 1e9),
+                ns[ns.length / 2], ns[Math.min(ns.length - 1, (int) (ns.length * 0.99))],
+                sink < 0 ? "!" : "");
+    }
+}
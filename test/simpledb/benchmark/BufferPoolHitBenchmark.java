@@ -0,0 +1,100 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded throughput benchmark for the BufferPool hit path.
+ * <p>
+ * Loads a HeapFile that fits entirely in the buffer pool, then lets 1..N
+ * worker threads fetch random resident pages for a fixed time. Both the
+ * unlocked internal lookup and the locked {@link BufferPool#getPage(TransactionId, PageId, Permissions)}
+ * path are measured.
+ * <p>
+ * Usage: java simpledb.benchmark.BufferPoolHitBenchmark [maxThreads] [seconds]
+ */
+public class BufferPoolHitBenchmark {
+
+    private static final int PAGES = 40;
+    private static final int ROWS_PER_PAGE = 504;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, PAGES * ROWS_PER_PAGE, null, null);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        List<PageId> pids = new ArrayList<>();
+        for (int i = 0; i < table.numPages(); i++) {
+            pids.add(new HeapPageId(table.getId(), i));
+            Database.getBufferPool().getPage(pids.get(i));
+        }
+
+        System.out.printf("%-8s %-8s %14s %12s%n", "path", "threads", "ops/sec", "ns/op");
+        for (boolean locked : new boolean[]{false, true}) {
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                run(locked, threads, seconds, pids);
+            }
+        }
+    }
+
+    private static void run(boolean locked, int threads, int seconds, List<PageId> pids) throws InterruptedException {
+        AtomicLong ops = new AtomicLong();
+        AtomicLong nanos = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                long count = 0;
+                try {
+                    start.await();
+                    long begin = System.nanoTime();
+                    long now = begin;
+                    while (now < deadline) {
+                        for (int i = 0; i < 1024; i++) {
+                            PageId pid = pids.get(rnd.nextInt(pids.size()));
+                            if (locked) {
+                                Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                            } else {
+                                Database.getBufferPool().getPage(pid);
+                            }
+                        }
+                        count += 1024;
+                        now = System.nanoTime();
+                    }
+                    nanos.addAndGet(now - begin);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    Database.getBufferPool().transactionComplete(tid);
+                    ops.addAndGet(count);
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+
+        double opsPerSec = ops.get() / (double) seconds;
+        double nsPerOp = ops.get() == 0 ? 0 : nanos.get() / (double) ops.get();
+        System.out.printf("%-8s %-8d %14.0f %12.1f%n", locked ? "locked" : "table", threads, opsPerSec, nsPerOp);
+    }
+}
@@ -0,0 +1,82 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Commit latency of one-row insert transactions while the {@link LogFile}
+ * is checkpointed in the background.
+ * <p>
+ * The run is repeated without checkpoints and with a checkpoint every
+ * interval. Fuzzy checkpoints write no pages and take no lock transactions
+ * wait on, so the tail latency should hardly move.
+ * <p>
+ * Usage: java simpledb.benchmark.CheckpointBenchmark [intervalMillis] [seconds]
+ */
+public class CheckpointBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long interval = args.length > 0 ? Long.parseLong(args[0]) : 50;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        PrintStream out = System.out;
+        out.printf("%-12s %10s %10s %10s %10s%n", "checkpoints", "commits", "p50 us", "p99 us", "max us");
+        for (long millis : new long[]{0, interval}) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            long[] latencies;
+            try {
+                latencies = run(millis, seconds);
+            } finally {
+                System.setOut(out);
+            }
+            Arrays.sort(latencies);
+            out.printf("%-12s %10d %10d %10d %10d%n", millis == 0 ? "none" : "every " + millis + "ms",
+                    latencies.length, percentile(latencies, 0.5), percentile(latencies, 0.99),
+                    latencies[latencies.length - 1]);
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    /**
+     * @return the microseconds each transaction took, insert and commit
+     */
+    private static long[] run(long checkpointMillis, int seconds) throws Exception {
+        Database.reset();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(1, 0);
+        log.logCheckpoint();
+        log.setCheckpointInterval(checkpointMillis);
+
+        long[] latencies = new long[1 << 16];
+        int n = 0;
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        try {
+            while (System.nanoTime() < deadline) {
+                long start = System.nanoTime();
+                Transaction txn = new Transaction();
+                txn.start();
+                Database.getBufferPool().insertTuple(txn.getId(), f.getId(), Utility.getHeapTuple(new int[]{n, 0}));
+                txn.commit();
+                if (n == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, n * 2);
+                }
+                latencies[n++] = (System.nanoTime() - start) / 1000;
+            }
+        } finally {
+            log.setCheckpointInterval(0);
+        }
+        return Arrays.copyOf(latencies, n);
+    }
+}
@@ -0,0 +1,130 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the buffer pool hit ratio of each {@link EvictionPolicy} under a
+ * mixed workload: point lookups through {@link BTreeFile#indexIterator} run
+ * alongside repeated full scans of a HeapFile that is larger than the pool.
+ * <p>
+ * Usage: java simpledb.benchmark.EvictionPolicyBenchmark [seconds] [scanThreads]
+ */
+public class EvictionPolicyBenchmark {
+
+    private static final int POOL_PAGES = BufferPool.DEFAULT_PAGES;
+    private static final int INDEX_ROWS = 20000;
+    private static final int HEAP_PAGES = 4 * POOL_PAGES;
+    private static final int ROWS_PER_PAGE = 504;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int scanThreads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+        PrintStream out = System.out;
+        out.printf("%-14s %10s %10s %10s %12s%n", "policy", "hits", "misses", "hit ratio", "lookups/s");
+        for (String name : new String[]{"lru", "2q", "lru-k"}) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            long[] result;
+            try {
+                result = run(EvictionPolicy.forName(name, POOL_PAGES), seconds, scanThreads);
+            } finally {
+                System.setOut(out);
+            }
+            long hits = result[0];
+            long misses = result[1];
+            out.printf("%-14s %10d %10d %10.3f %12.0f%n", name, hits, misses,
+                    hits / (double) Math.max(1, hits + misses), result[2] / (double) seconds);
+        }
+    }
+
+    /**
+     * @return hits, misses and the number of completed point lookups
+     */
+    private static long[] run(EvictionPolicy policy, int seconds, int scanThreads) throws Exception {
+        Database.reset();
+        List<List<Integer>> keys = new ArrayList<>();
+        BTreeFile index = BTreeUtility.createRandomBTreeFile(2, INDEX_ROWS, null, keys, 0);
+        HeapFile heap = SystemTestUtil.createRandomHeapFile(2, HEAP_PAGES * ROWS_PER_PAGE, null, null);
+        Database.getCatalog().addTable(heap, SystemTestUtil.getUUID());
+        Database.resetBufferPool(POOL_PAGES, policy);
+
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong lookups = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < scanThreads; t++) {
+            threads.add(new Thread(() -> {
+                while (!stop.get()) {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        DbFileIterator it = heap.iterator(tid);
+                        it.open();
+                        while (it.hasNext() && !stop.get()) {
+                            it.next();
+                        }
+                        it.close();
+                    } catch (Exception e) {
+                        // aborted scans simply start over
+                    } finally {
+                        Database.getBufferPool().transactionComplete(tid);
+                    }
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            while (!stop.get()) {
+                TransactionId tid = new TransactionId();
+                int key = keys.get(rnd.nextInt(keys.size())).get(0);
+                try {
+                    DbFileIterator it = index.indexIterator(tid,
+                            new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+                    it.open();
+                    while (it.hasNext()) {
+                        it.next();
+                    }
+                    it.close();
+                    lookups.incrementAndGet();
+                } catch (Exception e) {
+                    // aborted lookups are not counted
+                } finally {
+                    Database.getBufferPool().transactionComplete(tid);
+                }
+            }
+        }));
+
+        // warm up, then measure
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(1000);
+        PageTable table = Database.getBufferPool().getPageTable();
+        table.resetStats();
+        lookups.set(0);
+        Thread.sleep(seconds * 1000L);
+        long hits = table.getHitCount();
+        long misses = table.getMissCount();
+        long done = lookups.get();
+
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return new long[]{hits, misses, done};
+    }
+}
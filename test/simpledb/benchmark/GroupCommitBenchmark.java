@@ -0,0 +1,92 @@
+package simpledb.benchmark;
+
+import simpledb.common.Config;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Commit throughput of the {@link LogFile} with and without group commit.
+ * <p>
+ * 1..N threads each run one-row insert transactions back to back. The run
+ * is repeated with a group size of 1, where every commit forces the log on
+ * its own, and with the configured group size and delay.
+ * <p>
+ * Usage: java simpledb.benchmark.GroupCommitBenchmark [maxThreads] [seconds]
+ */
+public class GroupCommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        Config config = Config.get();
+
+        PrintStream out = System.out;
+        out.printf("%-10s %-8s %12s %14s%n", "group", "threads", "commits/sec", "forces/commit");
+        for (int size : new int[]{1, config.getGroupCommitSize()}) {
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                long[] result;
+                try {
+                    result = run(size, config.getGroupCommitDelayMicros(), threads, seconds);
+                } finally {
+                    System.setOut(out);
+                }
+                out.printf("%-10d %-8d %12.0f %14.2f%n", size, threads,
+                        result[0] / (double) seconds, result[1] / (double) Math.max(1, result[0]));
+            }
+        }
+    }
+
+    /**
+     * @return the number of commits and of forces of the log
+     */
+    private static long[] run(int groupSize, long delayMicros, int threads, int seconds) throws Exception {
+        Database.reset();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        Database.getLogFile().setGroupCommit(groupSize, delayMicros);
+        long forcesBefore = Database.getLogFile().getForceCount();
+
+        AtomicLong commits = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int t = 0; t < threads; t++) {
+            int worker = t;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    int i = 0;
+                    while (System.nanoTime() < deadline) {
+                        Transaction txn = new Transaction();
+                        txn.start();
+                        try {
+                            Database.getBufferPool().insertTuple(txn.getId(), f.getId(),
+                                    Utility.getHeapTuple(new int[]{worker, i++}));
+                            txn.commit();
+                            commits.incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            txn.abort();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        return new long[]{commits.get(), Database.getLogFile().getForceCount() - forcesBefore};
+    }
+}
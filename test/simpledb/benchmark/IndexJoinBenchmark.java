@@ -0,0 +1,67 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Time to join outer tables of a few sizes with one large inner table on
+ * an indexed field, by the nested-loops {@link Join} and by {@link IndexJoin}.
+ * <p>
+ * Join recurses once for each pair of tuples that does not match, so it
+ * needs a large stack.
+ * <p>
+ * Usage: java -Xss1g simpledb.benchmark.IndexJoinBenchmark [innerRows]
+ */
+public class IndexJoinBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int innerRows = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int maxValue = innerRows / 10;
+
+        PrintStream out = System.out;
+        out.printf("%-10s %-8s %10s %10s%n", "outer", "join", "ms", "tuples");
+        for (int outerRows : new int[]{10, 100, 1000}) {
+            for (String join : new String[]{"nested", "index"}) {
+                long start;
+                int tuples = 0;
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                try {
+                    Database.reset();
+                    HeapFile inner = SystemTestUtil.createRandomHeapFile(2, innerRows, maxValue, null, null);
+                    HeapFile outer = SystemTestUtil.createRandomHeapFile(2, outerRows, maxValue, null, null);
+                    File f = File.createTempFile("index", ".dat");
+                    f.deleteOnExit();
+                    SecondaryIndex index = SecondaryIndex.create(inner.getId(), 0, f, 1.0);
+
+                    TransactionId tid = new TransactionId();
+                    JoinPredicate p = new JoinPredicate(0, Op.EQUALS, 0);
+                    OpIterator outerScan = new SeqScan(tid, outer.getId(), "o");
+                    start = System.nanoTime();
+                    OpIterator it = join.equals("nested")
+                            ? new Join(p, outerScan, new SeqScan(tid, inner.getId(), "i"))
+                            : new IndexJoin(p, outerScan, new IndexScan(tid, index, null, "i"));
+                    it.open();
+                    while (it.hasNext()) {
+                        it.next();
+                        tuples++;
+                    }
+                    it.close();
+                    Database.getBufferPool().transactionComplete(tid);
+                } finally {
+                    System.setOut(out);
+                }
+                double ms = (System.nanoTime() - start) / 1e6;
+                out.printf("%-10d %-8s %10.0f %10d%n", outerRows, join, ms, tuples);
+            }
+        }
+    }
+}
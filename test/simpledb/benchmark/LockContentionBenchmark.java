@@ -0,0 +1,125 @@
+package simpledb.benchmark;
+
+import simpledb.common.DeadlockException;
+import simpledb.common.LockManager;
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Contention benchmark for the {@link LockManager}.
+ * <p>
+ * 1..N worker threads run short transactions against a small set of hot
+ * pages: each locks a few random pages, shared or exclusive, holds them for
+ * a moment and releases them. Every lock request is timed, and the wait
+ * times are reported as percentiles along with the commit and abort rates.
+ * <p>
+ * Usage: java simpledb.benchmark.LockContentionBenchmark [maxThreads] [seconds] [hotPages] [writePercent]
+ */
+public class LockContentionBenchmark {
+
+    private static final int PAGES_PER_TXN = 4;
+    private static final long HOLD_NANOS = 20_000;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int hotPages = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int writePercent = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+        PageId[] pids = new PageId[hotPages];
+        for (int i = 0; i < hotPages; i++) {
+            pids[i] = new HeapPageId(0, i);
+        }
+
+        System.out.printf("%-8s %12s %10s %12s %12s %12s%n",
+                "threads", "commits/sec", "aborts", "p50 wait us", "p99 wait us", "max wait us");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(threads, seconds, pids, writePercent);
+        }
+    }
+
+    private static void run(int threads, int seconds, PageId[] pids, int writePercent) throws InterruptedException {
+        LockManager lm = new LockManager();
+        AtomicLong commits = new AtomicLong();
+        AtomicLong aborts = new AtomicLong();
+        long[][] waits = new long[threads][];
+        int[] counts = new int[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        for (int t = 0; t < threads; t++) {
+            int worker = t;
+            new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                long[] samples = new long[1 << 16];
+                int n = 0;
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            for (int i = 0; i < PAGES_PER_TXN; i++) {
+                                PageId pid = pids[rnd.nextInt(pids.length)];
+                                Permissions perm = rnd.nextInt(100) < writePercent
+                                        ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+                                long begin = System.nanoTime();
+                                lm.acquireLock(tid, pid, perm);
+                                if (n == samples.length) {
+                                    samples = Arrays.copyOf(samples, n * 2);
+                                }
+                                samples[n++] = System.nanoTime() - begin;
+                            }
+                            LockSupport.parkNanos(HOLD_NANOS);
+                            commits.incrementAndGet();
+                        } catch (DeadlockException | TransactionAbortedException e) {
+                            aborts.incrementAndGet();
+                        } finally {
+                            lm.releaseAll(tid);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    waits[worker] = samples;
+                    counts[worker] = n;
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+
+        int total = 0;
+        for (int c : counts) {
+            total += c;
+        }
+        long[] all = new long[total];
+        int at = 0;
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(waits[t], 0, all, at, counts[t]);
+            at += counts[t];
+        }
+        Arrays.sort(all);
+        System.out.printf("%-8d %12.0f %10d %12.1f %12.1f %12.1f%n", threads,
+                commits.get() / (double) seconds, aborts.get(),
+                percentile(all, 50) / 1e3, percentile(all, 99) / 1e3,
+                (total == 0 ? 0 : all[total - 1]) / 1e3);
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) ((long) sorted.length * p / 100))];
+    }
+}
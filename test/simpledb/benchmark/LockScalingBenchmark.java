@@ -0,0 +1,78 @@
+package simpledb.benchmark;
+
+import simpledb.common.LockManager;
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scaling benchmark for the sharded lock table of the {@link LockManager}.
+ * <p>
+ * 1..N worker threads lock and unlock pages of their own table, so no two
+ * threads ever want the same lock and any slowdown comes from the lock
+ * table itself. The run is repeated with a single shard, the layout of a
+ * table under one latch, for comparison.
+ * <p>
+ * Usage: java simpledb.benchmark.LockScalingBenchmark [maxThreads] [seconds]
+ */
+public class LockScalingBenchmark {
+
+    private static final int PAGES_PER_THREAD = 64;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+        System.out.printf("%-8s %-8s %14s %10s%n", "shards", "threads", "locks/sec", "speedup");
+        for (int shards : new int[]{1, LockManager.DEFAULT_SHARDS}) {
+            double single = 0;
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                double rate = run(new LockManager(LockManager.DEFAULT_WAIT_TIMEOUT_MS, shards), threads, seconds);
+                if (threads == 1) {
+                    single = rate;
+                }
+                System.out.printf("%-8d %-8d %14.0f %9.2fx%n", shards, threads, rate, rate / single);
+            }
+        }
+    }
+
+    private static double run(LockManager lm, int threads, int seconds) throws InterruptedException {
+        AtomicLong ops = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        for (int t = 0; t < threads; t++) {
+            PageId[] pids = new PageId[PAGES_PER_THREAD];
+            for (int i = 0; i < PAGES_PER_THREAD; i++) {
+                pids[i] = new HeapPageId(t, i);
+            }
+            new Thread(() -> {
+                long count = 0;
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline) {
+                        TransactionId tid = new TransactionId();
+                        for (int i = 0; i < pids.length; i++) {
+                            lm.acquireLock(tid, pids[i], i % 4 == 0 ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+                        }
+                        lm.releaseAll(tid);
+                        count += pids.length;
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    ops.addAndGet(count);
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        return ops.get() / (double) seconds;
+    }
+}
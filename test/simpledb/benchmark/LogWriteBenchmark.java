@@ -0,0 +1,60 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Cost of appending update records to the {@link LogFile}, without forcing
+ * the log.
+ * <p>
+ * One transaction logs the same page over and over, with one tuple deleted
+ * and put back in turn; the time per record, the bytes per record and the
+ * rate at which log bytes are produced are reported.
+ * <p>
+ * Usage: java simpledb.benchmark.LogWriteBenchmark [records]
+ */
+public class LogWriteBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Database.reset();
+            LogFile log = Database.getLogFile();
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+            HeapPage page = (HeapPage) f.readPage(new HeapPageId(f.getId(), 0));
+            HeapPage deleted = new HeapPage(page.getId(), page.getPageData());
+            deleted.deleteTuple(deleted.iterator().next());
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+
+            // warm up
+            for (int i = 0; i < records / 10; i++) {
+                log.logWrite(tid, page, i % 2 == 0 ? deleted : page);
+            }
+            long startEnd = log.logEnd();
+            long start = System.nanoTime();
+            for (int i = 0; i < records; i++) {
+                log.logWrite(tid, page, i % 2 == 0 ? deleted : page);
+            }
+            log.force();
+            long nanos = System.nanoTime() - start;
+            long bytes = log.logEnd() - startEnd;
+            System.setOut(out);
+            out.printf("%d records, %.2f us/record, %d bytes/record, %.0f MB/s%n", records,
+                    nanos / 1e3 / records, bytes / records, bytes / (nanos / 1e9) / (1 << 20));
+        } finally {
+            System.setOut(out);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Searches and inserts that fit in their leaf lock only the leaf, so
+ * transactions working in different leaves of one tree do not wait for each
+ * other.
+ */
+public class BTreeConcurrencyTest extends SimpleDbTestBase {
+
+    private BTreeFile bf;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        // a root over a hundred full leaves
+        bf = BTreeUtility.createBTreeFile(2, 60000, null, null, 0);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES * 10);
+        // split the leaves the tests write to, so they have room
+        for (int key : new int[]{30000, 50000}) {
+            insertCommitted(key);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Database.reset();
+    }
+
+    private BTreePageId rootId() throws Exception {
+        return ((BTreeRootPtrPage) Database.getBufferPool().getPage(BTreeRootPtrPage.getId(bf.getId()))).getRootId();
+    }
+
+    private int count(TransactionId tid, IndexPredicate ipred) throws Exception {
+        DbFileIterator it = ipred == null ? bf.iterator(tid) : bf.indexIterator(tid, ipred);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * A search locks the leaves it reads and nothing above them
+     */
+    @Test
+    public void searchLocksOnlyLeaves() throws Exception {
+        TransactionId tid = new TransactionId();
+        assertEquals(2, count(tid, new IndexPredicate(Op.EQUALS, new IntField(30000))));
+        BTreePageId root = rootId();
+        assertEquals(BTreePageId.INTERNAL, root.pgcateg());
+        assertFalse(Database.getBufferPool().holdsLock(tid, BTreeRootPtrPage.getId(bf.getId())));
+        assertFalse(Database.getBufferPool().holdsLock(tid, root));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An insert with room in its leaf locks only the leaf
+     */
+    @Test
+    public void insertLocksOnlyTheLeaf() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[]{30001, 0}));
+        assertFalse(Database.getBufferPool().holdsLock(tid, BTreeRootPtrPage.getId(bf.getId())));
+        assertFalse(Database.getBufferPool().holdsLock(tid, rootId()));
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        assertEquals(2, count(tid, new IndexPredicate(Op.EQUALS, new IntField(30001))));
+        assertEquals(1, count(tid, new IndexPredicate(Op.EQUALS, new IntField(29999))));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An insert does not wait for a transaction that searched another leaf
+     */
+    @Test
+    public void insertDoesNotWaitForReaderOfAnotherLeaf() throws Exception {
+        TransactionId reader = new TransactionId();
+        assertEquals(1, count(reader, new IndexPredicate(Op.EQUALS, new IntField(100))));
+
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            TransactionId tid = new TransactionId();
+            Future<?> insert = writer.submit(() -> {
+                Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[]{50000, 0}));
+                return null;
+            });
+            insert.get(10, TimeUnit.SECONDS);
+            Database.getBufferPool().transactionComplete(tid);
+        } finally {
+            writer.shutdownNow();
+        }
+        Database.getBufferPool().transactionComplete(reader);
+    }
+
+    /**
+     * Threads inserting into one tree at once, splitting its leaves and
+     * internal pages, lose no tuple and keep the leaves in order
+     */
+    @Test
+    public void concurrentInsertsKeepTheTreeWhole() throws Exception {
+        int threads = 8;
+        int perThread = 1500;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                int first = i;
+                done.add(pool.submit(() -> {
+                    for (int k = 0; k < perThread; k++) {
+                        // spread over the whole tree, and repeat existing keys
+                        int key = (first + k * threads) * 40 % 60000 + 1;
+                        insertCommitted(key);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : done) {
+                f.get(300, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        int n = 0;
+        int prev = Integer.MIN_VALUE;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int key = ((IntField) t.getField(0)).getValue();
+            assertTrue(prev <= key);
+            prev = key;
+            n++;
+        }
+        it.close();
+        assertEquals(60000 + 2 + threads * perThread, n);
+        assertEquals(n, count(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(1))));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    // inserts the key in a transaction of its own, retrying after aborts
+    private void insertCommitted(int key) throws Exception {
+        while (true) {
+            TransactionId tid = new TransactionId();
+            try {
+                Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[]{key, 0}));
+                Database.getBufferPool().transactionComplete(tid);
+                return;
+            } catch (TransactionAbortedException e) {
+                Database.getBufferPool().transactionComplete(tid, false);
+            }
+        }
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeConcurrencyTest.class);
+    }
+}
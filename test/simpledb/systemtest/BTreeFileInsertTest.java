@@ -246,7 +246,7 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 			IndexPredicate ipred = new IndexPredicate(Op.EQUALS, t.getField(0));
 			DbFileIterator fit = bigFile.indexIterator(tid, ipred);
 			fit.open();
-			System.out.println(Database.getBufferPool().getLRUCache());
+			System.out.println(Database.getBufferPool().getPageTable());
 			boolean found = false;
 			while(fit.hasNext()) {
 				if(fit.next().equals(t)) {
@@ -0,0 +1,193 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+
+import static simpledb.systemtest.DeltaLogTest.begin;
+import static simpledb.systemtest.DeltaLogTest.count;
+import static simpledb.systemtest.DeltaLogTest.insert;
+
+/**
+ * Checkpoints write no pages and wait for no transaction, and truncation
+ * drops whole segments of the log.
+ */
+public class CheckpointTest extends SimpleDbTestBase {
+
+    private final File heapFile = new File("checkpoint1.db");
+    // written by a transaction that runs while others commit to heapFile
+    private final File loserFile = new File("checkpoint2.db");
+    private HeapFile hf;
+    private HeapFile loserHf;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tearDown();
+        hf = Utility.createEmptyHeapFile(heapFile.getAbsolutePath(), 2);
+        loserHf = Utility.createEmptyHeapFile(loserFile.getAbsolutePath(), 2);
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : new File[]{heapFile, loserFile}) {
+            f.delete();
+            new File(f.getPath() + ".fsm").delete();
+            new File(f.getPath() + ".lsn").delete();
+        }
+    }
+
+    private void crash() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, heapFile);
+        loserHf = Utility.openHeapFile(2, loserFile);
+        Database.getLogFile().recover();
+    }
+
+    private void commitRows(int from, int to) throws Exception {
+        for (int v = from; v < to; v++) {
+            Transaction t = begin();
+            insert(hf, t, v);
+            t.commit();
+        }
+    }
+
+    /**
+     * A checkpoint neither takes the buffer pool lock nor flushes the pages
+     * of running transactions
+     */
+    @Test
+    public void checkpointDoesNotStall() throws Exception {
+        commitRows(1, 2);
+        Transaction t = begin();
+        insert(hf, t, 2);
+
+        ExecutorService checkpointer = Executors.newSingleThreadExecutor();
+        try {
+            synchronized (Database.getBufferPool()) {
+                Future<?> checkpoint = checkpointer.submit(() -> {
+                    Database.getLogFile().logCheckpoint();
+                    return null;
+                });
+                checkpoint.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            checkpointer.shutdownNow();
+        }
+
+        HeapPage onDisk = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        int tuples = 0;
+        for (Iterator<Tuple> it = onDisk.iterator(); it.hasNext(); it.next()) {
+            tuples++;
+        }
+        assertEquals(1, tuples);
+        t.commit();
+        assertEquals(1, count(hf, 2));
+    }
+
+    /**
+     * A written page stays in the dirty page table until it is forced, so
+     * a checkpoint keeps the records of a write the OS may still lose
+     */
+    @Test
+    public void writtenPagesStayDirtyUntilForced() throws Exception {
+        LogFile log = Database.getLogFile();
+        commitRows(1, 2);
+        assertTrue(log.getDirtyPageCount() > 0);
+
+        Database.getCatalog().forceFiles();
+        assertEquals(0, log.getDirtyPageCount());
+    }
+
+    /**
+     * Truncation deletes the segments before the checkpoint
+     */
+    @Test
+    public void truncationDropsSegments() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setSegmentSize(1024);
+        commitRows(0, 40);
+        int before = log.getSegmentCount();
+        assertTrue(before > 2);
+
+        long end = log.logEnd();
+        log.logCheckpoint();
+        assertEquals(1, log.getSegmentCount());
+        assertTrue(log.logEnd() > end);
+
+        crash();
+        for (int v = 0; v < 40; v++) {
+            assertEquals(1, count(hf, v));
+        }
+    }
+
+    /**
+     * The segments a running transaction wrote are kept so that it can be
+     * undone
+     */
+    @Test
+    public void runningTransactionKeepsItsSegments() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setSegmentSize(1024);
+        Transaction loser = begin();
+        insert(loserHf, loser, 100);
+        Database.getBufferPool().flushAllPages();
+        commitRows(0, 40);
+        int before = log.getSegmentCount();
+
+        log.logCheckpoint();
+        assertEquals(before, log.getSegmentCount());
+
+        crash();
+        assertEquals(0, count(loserHf, 100));
+        for (int v = 0; v < 40; v++) {
+            assertEquals(1, count(hf, v));
+        }
+    }
+
+    /**
+     * A change logged before a checkpoint but not yet on disk is in the
+     * dirty page table, and is redone
+     */
+    @Test
+    public void dirtyPagesBeforeCheckpointAreRedone() throws Exception {
+        commitRows(1, 2);
+        LogFile log = Database.getLogFile();
+        Transaction t = begin();
+        // logged as it is made and committed, but the crash comes before
+        // the page is written
+        insert(hf, t, 2);
+        log.logCommit(t.getId());
+        log.logCheckpoint();
+
+        crash();
+        assertEquals(1, Database.getLogFile().getRedoneCount());
+        assertEquals(1, count(hf, 1));
+        assertEquals(1, count(hf, 2));
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(CheckpointTest.class);
+    }
+}
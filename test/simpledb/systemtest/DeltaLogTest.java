@@ -0,0 +1,201 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
+import simpledb.transaction.Transaction;
+
+/**
+ * Updates are logged as the bytes they change, and are redone and undone
+ * from those alone.
+ */
+public class DeltaLogTest extends SimpleDbTestBase {
+
+    private final File heapFile = new File("delta1.db");
+    private final File treeFile = new File("delta2.db");
+    private HeapFile hf;
+    private BTreeFile bf;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        heapFile.delete();
+        treeFile.delete();
+        hf = Utility.createEmptyHeapFile(heapFile.getAbsolutePath(), 2);
+        bf = BTreeUtility.createEmptyBTreeFile(treeFile.getAbsolutePath(), 2, 0);
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : new File[]{heapFile, treeFile}) {
+            f.delete();
+            new File(f.getPath() + ".fsm").delete();
+            new File(f.getPath() + ".lsn").delete();
+        }
+    }
+
+    static Transaction begin() {
+        Transaction t = new Transaction();
+        t.start();
+        return t;
+    }
+
+    static void insert(DbFile f, Transaction t, int v) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(new int[]{v, 0}));
+    }
+
+    static int count(DbFile f, int v) throws Exception {
+        Transaction t = begin();
+        int n = 0;
+        DbFileIterator it = f.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == v) {
+                n++;
+            }
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    private void crash() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, heapFile);
+        bf = BTreeUtility.openBTreeFile(2, treeFile, 0);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Inserting one tuple logs a few dozen bytes rather than two pages
+     */
+    @Test
+    public void oneTupleInsertIsSmall() throws Exception {
+        LogFile log = Database.getLogFile();
+        Transaction t = begin();
+        insert(hf, t, 1);
+        Database.getBufferPool().flushPages(t.getId());
+        t.commit();
+
+        t = begin();
+        insert(hf, t, 2);
+        long end = log.logEnd();
+        Database.getBufferPool().flushPages(t.getId());
+        long bytes = log.logEnd() - end;
+        assertTrue(bytes + " bytes logged", bytes < 128);
+        t.commit();
+    }
+
+    /**
+     * A page written twice before an abort is restored from both deltas
+     */
+    @Test
+    public void abortUndoesEveryDelta() throws Exception {
+        Transaction t = begin();
+        insert(hf, t, 1);
+        Database.getBufferPool().flushAllPages();
+        insert(hf, t, 2);
+        Database.getBufferPool().flushAllPages();
+        t.abort();
+
+        HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertFalse(p.iterator().hasNext());
+        assertEquals(0, count(hf, 1));
+        assertEquals(0, count(hf, 2));
+    }
+
+    /**
+     * Transactions change different tuples of one page at once, and an
+     * abort takes off only its own
+     */
+    @Test
+    public void abortUndoesOnlyItsTuples() throws Exception {
+        Transaction kept = begin();
+        insert(hf, kept, 1);
+        Transaction aborted = begin();
+        insert(hf, aborted, 2);
+        insert(hf, kept, 3);
+        assertEquals(1, hf.numPages());
+        Database.getBufferPool().flushAllPages();
+        aborted.abort();
+        kept.commit();
+
+        HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(2, p.getUsedSlots());
+        assertEquals(1, count(hf, 1));
+        assertEquals(0, count(hf, 2));
+        assertEquals(1, count(hf, 3));
+    }
+
+    /**
+     * B+ tree pages are redone and undone after a crash
+     */
+    @Test
+    public void btreePagesRecover() throws Exception {
+        Transaction t1 = begin();
+        insert(bf, t1, 5);
+        t1.commit();
+        Transaction t2 = begin();
+        insert(bf, t2, 6);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+        assertEquals(1, count(bf, 5));
+        assertEquals(0, count(bf, 6));
+    }
+
+    /**
+     * Changes a transaction wrote before a checkpoint are undone when it
+     * loses or has aborted after it
+     */
+    @Test
+    public void changesBeforeCheckpointAreUndone() throws Exception {
+        Transaction loser = begin();
+        insert(hf, loser, 1);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        insert(hf, loser, 2);
+        Database.getBufferPool().flushAllPages();
+
+        Transaction aborted = begin();
+        insert(bf, aborted, 3);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        insert(bf, aborted, 4);
+        Database.getBufferPool().flushAllPages();
+        aborted.abort();
+
+        Transaction winner = begin();
+        insert(bf, winner, 5);
+        winner.commit();
+
+        crash();
+        for (int v = 1; v <= 4; v++) {
+            assertEquals(0, count(v <= 2 ? hf : bf, v));
+        }
+        assertEquals(1, count(bf, 5));
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(DeltaLogTest.class);
+    }
+}
@@ -0,0 +1,194 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.Parser;
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+/**
+ * An index join returns the tuples a nested-loops join does, across
+ * batches of outer tuples, and the optimizer picks it for a few outer
+ * tuples joined with a large indexed table.
+ */
+public class IndexJoinTest extends SimpleDbTestBase {
+
+    private static final int INNER_ROWS = 20000;
+    private static final int MAX_VALUE = 2000;
+
+    private HeapFile outer;
+    private HeapFile inner;
+    private SecondaryIndex index;
+    private List<List<Integer>> outerTuples;
+    private List<List<Integer>> innerTuples;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        outerTuples = new ArrayList<>();
+        outer = SystemTestUtil.createRandomHeapFile(2, IndexJoin.BATCH_SIZE * 5 / 2, MAX_VALUE, null, outerTuples, "c");
+        Database.getCatalog().addTable(outer, "o");
+        innerTuples = new ArrayList<>();
+        inner = SystemTestUtil.createRandomHeapFile(2, INNER_ROWS, MAX_VALUE, null, innerTuples, "c");
+        Database.getCatalog().addTable(inner, "i");
+        File f = File.createTempFile("index", ".dat");
+        f.deleteOnExit();
+        index = SecondaryIndex.create(inner.getId(), 0, f, 1.0);
+    }
+
+    // the outer tuples joined with the inner tuples on outer field1 = inner field 0
+    private List<List<Integer>> expected(List<List<Integer>> outers, int field1) {
+        Map<Integer, List<List<Integer>>> byKey = new HashMap<>();
+        for (List<Integer> t : innerTuples) {
+            byKey.computeIfAbsent(t.get(0), k -> new ArrayList<>()).add(t);
+        }
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> t1 : outers) {
+            for (List<Integer> t2 : byKey.getOrDefault(t1.get(field1), new ArrayList<>())) {
+                List<Integer> t = new ArrayList<>(t1);
+                t.addAll(t2);
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    private IndexJoin join(TransactionId tid, int field1) {
+        return new IndexJoin(new JoinPredicate(field1, Op.EQUALS, 0),
+                new SeqScan(tid, outer.getId(), "o"), new IndexScan(tid, index, null, "i"));
+    }
+
+    /**
+     * The join of every outer tuple, in several batches, with its matches,
+     * before and after a rewind
+     */
+    @Test
+    public void testJoin() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int field1 = 0; field1 < 2; field1++) {
+            List<List<Integer>> expected = expected(outerTuples, field1);
+            assertFalse(expected.isEmpty());
+            SystemTestUtil.matchTuples(join(tid, field1), expected);
+
+            IndexJoin join = join(tid, field1);
+            join.open();
+            while (join.hasNext()) {
+                join.next();
+            }
+            join.rewind();
+            int n = 0;
+            while (join.hasNext()) {
+                join.next();
+                n++;
+            }
+            join.close();
+            assertEquals(expected.size(), n);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    // the operators of a plan, from the root down
+    private static List<OpIterator> operators(OpIterator plan) {
+        List<OpIterator> result = new ArrayList<>();
+        result.add(plan);
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                result.addAll(operators(child));
+            }
+        }
+        return result;
+    }
+
+    private OpIterator plan(TransactionId tid, String query) throws Exception {
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("o", new TableStats(outer.getId(), 1000));
+        stats.put("i", new TableStats(inner.getId(), 1000));
+        return new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, stats, false);
+    }
+
+    /**
+     * The optimizer looks up a few outer tuples in the index of the inner
+     * table, applying the filters of the inner table after the join, and
+     * falls back to a nested-loops join on a field without an index
+     */
+    @Test
+    public void testOptimizer() throws Exception {
+        TransactionId tid = new TransactionId();
+        OpIterator plan = plan(tid, "SELECT * FROM o, i WHERE o.c1 < 20 AND o.c0 = i.c0 AND i.c1 > 100;");
+        List<OpIterator> ops = operators(plan);
+        assertTrue(ops.stream().anyMatch(o -> o instanceof IndexJoin));
+        assertFalse(ops.stream().anyMatch(o -> o instanceof Join));
+
+        List<List<Integer>> outers = new ArrayList<>(outerTuples);
+        outers.removeIf(t -> t.get(1) >= 20);
+        List<List<Integer>> expected = expected(outers, 0);
+        expected.removeIf(t -> t.get(3) <= 100);
+        SystemTestUtil.matchTuples(plan, expected);
+
+        List<OpIterator> unindexed = operators(plan(tid, "SELECT * FROM o, i WHERE o.c1 < 20 AND o.c0 = i.c1;"));
+        assertTrue(unindexed.stream().anyMatch(o -> o instanceof Join));
+        assertFalse(unindexed.stream().anyMatch(o -> o instanceof IndexJoin));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A join with a table of a page, whose keys each match many tuples, is
+     * cheaper by nested loops than by index lookups, which read a page for
+     * each match, and is costed and done that way
+     */
+    @Test
+    public void testTinyInner() throws Exception {
+        HeapFile tiny = SystemTestUtil.createRandomHeapFile(2, 20, 2, null, null, "c");
+        Database.getCatalog().addTable(tiny, "s");
+        File f = File.createTempFile("index", ".dat");
+        f.deleteOnExit();
+        SecondaryIndex.create(tiny.getId(), 0, f, 1.0);
+
+        TransactionId tid = new TransactionId();
+        TableStats outerStats = new TableStats(outer.getId(), 1000);
+        TableStats tinyStats = new TableStats(tiny.getId(), 1000);
+        TableStats.setTableStats("o", outerStats);
+        TableStats.setTableStats("s", tinyStats);
+        String query = "SELECT * FROM o, s WHERE o.c0 = s.c0;";
+        JoinOptimizer jo = new JoinOptimizer(new Parser().generateLogicalPlan(tid, query), new ArrayList<>());
+        int card1 = outerStats.estimateTableCardinality(1.0);
+        int card2 = tinyStats.estimateTableCardinality(1.0);
+        double cost1 = outerStats.estimateScanCost();
+        double cost2 = tinyStats.estimateScanCost();
+        double cost = jo.estimateJoinCost(new LogicalJoinNode("o", "s", "c0", "c0", Op.EQUALS),
+                card1, card2, cost1, cost2);
+        assertEquals(card1 * card2 + card1 * cost2 + cost1, cost, 0.001);
+
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("o", outerStats);
+        stats.put("s", tinyStats);
+        List<OpIterator> ops = operators(new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, stats, false));
+        assertTrue(ops.stream().anyMatch(o -> o instanceof Join));
+        assertFalse(ops.stream().anyMatch(o -> o instanceof IndexJoin));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexJoinTest.class);
+    }
+}
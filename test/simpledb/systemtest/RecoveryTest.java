@@ -0,0 +1,242 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.IndexScan;
+import simpledb.execution.Predicate;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.DbFile;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import static simpledb.systemtest.DeltaLogTest.begin;
+import static simpledb.systemtest.DeltaLogTest.count;
+import static simpledb.systemtest.DeltaLogTest.insert;
+
+/**
+ * Recovery redoes only what the pages on disk are missing, and undoes
+ * losers with compensation records.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+
+    private final File heapFile = new File("recovery1.db");
+    private final File schemaFile = new File("recovery.schema");
+    private HeapFile hf;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tearDown();
+        hf = Utility.createEmptyHeapFile(heapFile.getAbsolutePath(), 2);
+    }
+
+    @After
+    public void tearDown() {
+        heapFile.delete();
+        new File(heapFile.getPath() + ".fsm").delete();
+        new File(heapFile.getPath() + ".lsn").delete();
+        schemaFile.delete();
+        for (String name : new String[]{"recovery2.dat", "recovery2.c0.idx"}) {
+            new File(name).delete();
+            new File(name + ".fsm").delete();
+            new File(name + ".lsn").delete();
+        }
+    }
+
+    private void restart() {
+        Database.reset();
+        hf = Utility.openHeapFile(2, heapFile);
+    }
+
+    private void crash() throws Exception {
+        restart();
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Committed pages forced by a checkpoint are on disk already, so nothing
+     * is redone
+     */
+    @Test
+    public void pagesOnDiskAreNotRedone() throws Exception {
+        Transaction t = begin();
+        insert(hf, t, 1);
+        t.commit();
+        Database.getLogFile().logCheckpoint();
+
+        crash();
+        assertEquals(0, Database.getLogFile().getRedoneCount());
+        assertEquals(1, count(hf, 1));
+    }
+
+    /**
+     * The page LSN of a written page is only recorded once the page is
+     * forced, so it never claims a change a lost write did not hold
+     */
+    @Test
+    public void pageLsnsFollowForcedPages() throws Exception {
+        Transaction t = begin();
+        insert(hf, t, 1);
+        t.commit();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        assertEquals(0, hf.getPageLsnMap().getLsn(pid));
+
+        Database.getCatalog().forceFiles();
+        assertTrue(hf.getPageLsnMap().getLsn(pid) > 0);
+    }
+
+    /**
+     * A page whose write was lost is brought up to date from the log
+     */
+    @Test
+    public void lostWritesAreRedone() throws Exception {
+        Transaction t1 = begin();
+        insert(hf, t1, 1);
+        t1.commit();
+        byte[] old = hf.readPage(new HeapPageId(hf.getId(), 0)).getPageData();
+        Transaction t2 = begin();
+        insert(hf, t2, 2);
+        t2.commit();
+
+        restart();
+        try (RandomAccessFile raf = new RandomAccessFile(heapFile, "rw")) {
+            raf.write(old, 0, BufferPool.getPageSize());
+        }
+        hf.getPageLsnMap().getFile().delete();
+        Database.getLogFile().recover();
+
+        assertTrue(Database.getLogFile().getRedoneCount() > 0);
+        assertEquals(1, count(hf, 1));
+        assertEquals(1, count(hf, 2));
+    }
+
+    /**
+     * A loser is undone by the first recovery and left alone by the next
+     */
+    @Test
+    public void losersAreUndoneOnce() throws Exception {
+        Transaction winner = begin();
+        insert(hf, winner, 1);
+        winner.commit();
+        Transaction aborted = begin();
+        insert(hf, aborted, 3);
+        Database.getBufferPool().flushAllPages();
+        aborted.abort();
+        Transaction loser = begin();
+        insert(hf, loser, 2);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+        assertEquals(1, count(hf, 1));
+        assertEquals(0, count(hf, 2));
+        assertEquals(0, count(hf, 3));
+
+        crash();
+        assertEquals(0, Database.getLogFile().getRedoneCount());
+        assertEquals(1, count(hf, 1));
+        assertEquals(0, count(hf, 2));
+    }
+
+    /**
+     * A winner writes a page that holds a tuple of a loser too; recovery
+     * undoes the loser's tuple and leaves the winner's
+     */
+    @Test
+    public void losersAreUndoneByTuple() throws Exception {
+        Transaction loser = begin();
+        insert(hf, loser, 2);
+        Transaction winner = begin();
+        insert(hf, winner, 1);
+        winner.commit();
+        assertEquals(1, hf.numPages());
+
+        crash();
+        assertEquals(1, count(hf, 1));
+        assertEquals(0, count(hf, 2));
+    }
+
+    /**
+     * Records written after a restart have higher LSNs than any before it
+     */
+    @Test
+    public void lsnsGrowAcrossRestarts() throws Exception {
+        Transaction t = begin();
+        insert(hf, t, 1);
+        t.commit();
+        LogFile log = Database.getLogFile();
+        long end = log.logEnd();
+        log.logCheckpoint();
+
+        crash();
+        assertTrue(Database.getLogFile().logXactionBegin(new TransactionId()) >= end);
+    }
+
+    // the tuples an index finds for a key
+    private static int lookup(SecondaryIndex index, int v) throws Exception {
+        Transaction t = begin();
+        IndexScan scan = new IndexScan(t.getId(), index,
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(v)), "t");
+        int n = 0;
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        t.commit();
+        return n;
+    }
+
+    /**
+     * An index declared in the schema file is back in the catalog when
+     * recovery runs, so its lost writes are redone too
+     */
+    @Test
+    public void schemaIndexesAreRecovered() throws Exception {
+        Files.write(schemaFile.toPath(), "recovery2 (c0 int, c1 int)\nindex recovery2 (c0)\n".getBytes());
+        Database.reset();
+        Database.getCatalog().loadSchema(schemaFile.getPath());
+        int tableid = Database.getCatalog().getTableId("recovery2");
+        DbFile table = Database.getCatalog().getDatabaseFile(tableid);
+        File indexFile = new File("recovery2.c0.idx");
+        byte[] built = Files.readAllBytes(indexFile.toPath());
+
+        Transaction t = begin();
+        insert(table, t, 1);
+        t.commit();
+
+        // the committed entry never reached the index file
+        Database.reset();
+        Files.write(indexFile.toPath(), built);
+        new File(indexFile.getPath() + ".lsn").delete();
+        Database.getCatalog().loadSchema(schemaFile.getPath());
+        Database.getLogFile().recover();
+
+        assertTrue(Database.getLogFile().getRedoneCount() > 0);
+        SecondaryIndex index = Database.getCatalog().getIndexes(tableid).get(0);
+        assertEquals(1, lookup(index, 1));
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
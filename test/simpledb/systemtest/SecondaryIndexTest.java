@@ -0,0 +1,191 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.Parser;
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionId;
+
+/**
+ * A secondary index over a heap file finds the tuples of a key, follows
+ * the inserts and deletes of the table, and is picked by the optimizer for
+ * predicates that few tuples match.
+ */
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 10000;
+    private static final int MAX_VALUE = 1000;
+
+    private HeapFile hf;
+    private SecondaryIndex index;
+    private List<List<Integer>> tuples;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples, "c");
+        Database.getCatalog().addTable(hf, "t");
+        File f = File.createTempFile("index", ".dat");
+        f.deleteOnExit();
+        index = SecondaryIndex.create(hf.getId(), 0, f, 0.9);
+    }
+
+    private List<List<Integer>> matching(Op op, int value) {
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (new IntField(t.get(0)).compare(op, new IntField(value))) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    private void checkIndexScan(Op op, int value) throws Exception {
+        TransactionId tid = new TransactionId();
+        IndexScan scan = new IndexScan(tid, index, new IndexPredicate(op, new IntField(value)), "t");
+        SystemTestUtil.matchTuples(scan, matching(op, value));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An index scan returns the tuples a filtered scan of the table does
+     */
+    @Test
+    public void testIndexScan() throws Exception {
+        for (int value : new int[]{0, 17, MAX_VALUE / 2, MAX_VALUE - 1, MAX_VALUE + 5}) {
+            for (Op op : new Op[]{Op.EQUALS, Op.LESS_THAN, Op.GREATER_THAN_OR_EQ}) {
+                checkIndexScan(op, value);
+            }
+        }
+
+        // rewinding with another predicate starts a new scan
+        TransactionId tid = new TransactionId();
+        IndexScan scan = new IndexScan(tid, index, new IndexPredicate(Op.EQUALS, new IntField(3)), "t");
+        scan.open();
+        scan.rewind(new IndexPredicate(Op.EQUALS, new IntField(4)));
+        int n = 0;
+        while (scan.hasNext()) {
+            assertEquals(4, ((IntField) scan.next().getField(0)).getValue());
+            n++;
+        }
+        scan.close();
+        assertEquals(matching(Op.EQUALS, 4).size(), n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Tuples inserted into and deleted from the table are added to and
+     * removed from the index, and an abort takes back both
+     */
+    @Test
+    public void testMaintenance() throws Exception {
+        int key = MAX_VALUE + 1;
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 10; i++) {
+            Tuple t = new Tuple(hf.getTupleDesc());
+            t.setField(0, new IntField(key));
+            t.setField(1, new IntField(i));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+            List<Integer> row = new ArrayList<>();
+            row.add(key);
+            row.add(i);
+            tuples.add(row);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        checkIndexScan(Op.EQUALS, key);
+
+        // delete the tuples of one key through the index
+        int deleted = tuples.get(0).get(0);
+        tid = new TransactionId();
+        IndexScan scan = new IndexScan(tid, index, new IndexPredicate(Op.EQUALS, new IntField(deleted)), "t");
+        scan.open();
+        List<Tuple> found = new ArrayList<>();
+        while (scan.hasNext()) {
+            found.add(scan.next());
+        }
+        scan.close();
+        for (Tuple t : found) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tuples.removeIf(t -> t.get(0) == deleted);
+        checkIndexScan(Op.EQUALS, deleted);
+        checkIndexScan(Op.LESS_THAN_OR_EQ, MAX_VALUE + 1);
+
+        // an aborted insert leaves no entry behind
+        tid = new TransactionId();
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(key));
+        t.setField(1, new IntField(-1));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        Database.getBufferPool().transactionComplete(tid, false);
+        checkIndexScan(Op.EQUALS, key);
+    }
+
+    // the operators of a plan, from the root down
+    private static List<OpIterator> operators(OpIterator plan) {
+        List<OpIterator> result = new ArrayList<>();
+        result.add(plan);
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                result.addAll(operators(child));
+            }
+        }
+        return result;
+    }
+
+    private OpIterator plan(TransactionId tid, String query) throws Exception {
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("t", new TableStats(hf.getId(), 1000));
+        return new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, stats, false);
+    }
+
+    /**
+     * The optimizer scans the index for a predicate few tuples match, and
+     * the table for one that many do
+     */
+    @Test
+    public void testOptimizer() throws Exception {
+        TransactionId tid = new TransactionId();
+        OpIterator selective = plan(tid, "SELECT * FROM t WHERE t.c0 = 17 AND t.c1 > 100;");
+        List<OpIterator> ops = operators(selective);
+        assertTrue(ops.stream().anyMatch(o -> o instanceof IndexScan));
+        assertFalse(ops.stream().anyMatch(o -> o instanceof SeqScan));
+        List<List<Integer>> expected = matching(Op.EQUALS, 17);
+        expected.removeIf(t -> t.get(1) <= 100);
+        SystemTestUtil.matchTuples(selective, expected);
+
+        List<OpIterator> broad = operators(plan(tid, "SELECT * FROM t WHERE t.c0 > 17;"));
+        assertTrue(broad.stream().anyMatch(o -> o instanceof SeqScan));
+        assertFalse(broad.stream().anyMatch(o -> o instanceof IndexScan));
+
+        List<OpIterator> unindexed = operators(plan(tid, "SELECT * FROM t WHERE t.c1 = 17;"));
+        assertFalse(unindexed.stream().anyMatch(o -> o instanceof IndexScan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
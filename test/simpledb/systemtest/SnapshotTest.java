@@ -0,0 +1,105 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.HeapFile;
+import simpledb.storage.VersionStore;
+import simpledb.transaction.Transaction;
+
+/**
+ * Read-only transactions read a snapshot and never wait for writers.
+ */
+public class SnapshotTest extends SimpleDbTestBase {
+
+    private HeapFile f;
+    private VersionStore versions;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        f = SystemTestUtil.createRandomHeapFile(2, 512 * 3, null, null);
+        versions = Database.getBufferPool().getVersionStore();
+    }
+
+    private static Transaction begin(boolean readOnly) {
+        Transaction t = new Transaction(readOnly);
+        t.start();
+        return t;
+    }
+
+    /**
+     * A reader is not blocked by a writer, and keeps reading what was
+     * committed when it began after the writer commits
+     */
+    @Test(timeout = 10000)
+    public void readerIgnoresLaterCommits() throws Exception {
+        Transaction writer = begin(false);
+        AbortEvictionTest.insertRow(f, writer);
+
+        Transaction reader = begin(true);
+        assertFalse(AbortEvictionTest.findMagicTuple(f, reader));
+        writer.commit();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, reader));
+        assertTrue(versions.getVersionCount() > 0);
+
+        Transaction later = begin(true);
+        assertTrue(AbortEvictionTest.findMagicTuple(f, later));
+        later.commit();
+        reader.commit();
+        assertEquals(0, versions.getVersionCount());
+        assertEquals(0, versions.getSnapshotCount());
+    }
+
+    /**
+     * Pages written to disk before their transaction commits are not seen
+     */
+    @Test(timeout = 10000)
+    public void uncommittedWritesOnDiskAreInvisible() throws Exception {
+        Transaction writer = begin(false);
+        AbortEvictionTest.insertRow(f, writer);
+        Database.getBufferPool().flushPages(writer.getId());
+
+        Transaction reader = begin(true);
+        assertFalse(AbortEvictionTest.findMagicTuple(f, reader));
+        writer.abort();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, reader));
+        reader.commit();
+
+        Transaction later = begin(true);
+        assertFalse(AbortEvictionTest.findMagicTuple(f, later));
+        later.commit();
+    }
+
+    /**
+     * Without open snapshots, commits keep no versions
+     */
+    @Test
+    public void noVersionsWithoutSnapshots() throws Exception {
+        Transaction writer = begin(false);
+        AbortEvictionTest.insertRow(f, writer);
+        writer.commit();
+        assertEquals(0, versions.getVersionCount());
+    }
+
+    @Test(expected = DbException.class)
+    public void readOnlyCannotWrite() throws Exception {
+        Transaction reader = begin(true);
+        try {
+            AbortEvictionTest.insertRow(f, reader);
+        } finally {
+            reader.abort();
+        }
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SnapshotTest.class);
+    }
+}